@@ -2,18 +2,24 @@ package com.arnobpaul;
 
 import com.arnobpaul.client.ClientTask;
 import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ThreadMode;
+import com.arnobpaul.server.ClientStoreException;
+import com.arnobpaul.server.ClientStoreType;
+import com.arnobpaul.server.ServerMode;
 import com.arnobpaul.server.ServerTask;
 
 import javax.crypto.NoSuchPaddingException;
+import java.io.IOException;
 import java.nio.file.FileSystemException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.logging.Logger;
 
 public class Main {
-    public static final String SERVER_ARG = "-s"; // "-s"
-    public static final String CLIENT_ARG = "-c"; // "-c <Data_folder>"
+    public static final String SERVER_ARG = "-s"; // "-s <Server_Mode> <Client_Store> <Node_Index>/<Node_Count>"
+    public static final String CLIENT_ARG = "-c"; // "-c <Data_folder> <Thread_Mode>"
 
     private static final Logger logger = Logger.getLogger(Main.class.getName());
 
@@ -22,32 +28,145 @@ public class Main {
 
         if (args.length == 0) {
             System.out.println("Please use the following commands:");
-            System.out.println(SERVER_ARG + " : Run as a server.");
-            System.out.println(CLIENT_ARG + " : Run as a client.");
+            System.out.println(SERVER_ARG + " : Run as a server. Optional server modes: " + Arrays.toString(getServerModeArgNames())
+                    + ", optional client stores: " + Arrays.toString(getClientStoreTypeArgNames())
+                    + ", optional cluster node: <Node_Index>/<Node_Count>");
+            System.out.println(CLIENT_ARG + " : Run as a client. Optional thread modes: " + Arrays.toString(getThreadModeArgNames()));
             return;
         }
 
         if (args[0].equals(SERVER_ARG)) {
+            ServerMode serverMode = ServerMode.THREAD_POOL;
+            if (args.length >= 2) {
+                serverMode = ServerMode.fromArgName(args[1]);
+                if (serverMode == null) {
+                    System.err.println("Unknown server mode: " + args[1]);
+                    return;
+                }
+                if (serverMode == ServerMode.VIRTUAL_THREAD && !ThreadMode.VIRTUAL.isSupported()) {
+                    System.err.println(ThreadMode.VIRTUAL.getUnsupportedMessage());
+                    return;
+                }
+            }
+
+            ClientStoreType clientStoreType = ClientStoreType.SQLITE;
+            if (args.length >= 3) {
+                clientStoreType = ClientStoreType.fromArgName(args[2]);
+                if (clientStoreType == null) {
+                    System.err.println("Unknown client store: " + args[2]);
+                    return;
+                }
+            }
+
+            // Several server processes on this host (i.e., a cluster), sharing the client port and the client store
+            int nodeIndex = 0;
+            int nodeCount = 1;
+            String clusterSecret = null;
+            if (args.length == 4) {
+                int[] clusterNode = parseClusterNode(args[3]);
+                if (clusterNode == null) {
+                    System.err.println("Unknown cluster node: " + args[3]);
+                    return;
+                }
+                if (clientStoreType == ClientStoreType.LOG) {
+                    System.err.println("The log client store cannot be shared by the cluster nodes");
+                    return;
+                }
+                nodeIndex = clusterNode[0];
+                nodeCount = clusterNode[1];
+                // Not in the command line, which other users of the host may see
+                clusterSecret = System.getenv(AppConfig.CLUSTER_SECRET_ENV);
+                if (nodeCount > 1 && (clusterSecret == null || clusterSecret.isEmpty())) {
+                    System.err.println("The cluster secret must be given in the environment variable " + AppConfig.CLUSTER_SECRET_ENV);
+                    return;
+                }
+            }
+
             try {
-                new ServerTask().startServer();
-            } catch (SQLException | NoSuchPaddingException | NoSuchAlgorithmException e) {
+                ServerTask serverTask = new ServerTask(serverMode, clientStoreType, nodeIndex, nodeCount, clusterSecret);
+                // The server runs until the process is stopped, so the pending writes are flushed on the way out
+                Runtime.getRuntime().addShutdownHook(new Thread(serverTask::stopServer, "ServerShutdown"));
+                serverTask.startServer();
+            } catch (ClientStoreException | IOException | NoSuchPaddingException | NoSuchAlgorithmException e) {
                 e.printStackTrace();
                 logger.severe(e.getMessage());
             }
         } else if (args[0].equals(CLIENT_ARG)) {
             String dataFolder;
-            if (args.length == 2) {
+            if (args.length >= 2) {
                 dataFolder = args[1];
             } else {
                 dataFolder = Integer.toHexString(new Random().nextInt());
             }
 
+            ThreadMode threadMode = ThreadMode.PLATFORM;
+            if (args.length == 3) {
+                threadMode = ThreadMode.fromArgName(args[2]);
+                if (threadMode == null) {
+                    System.err.println("Unknown thread mode: " + args[2]);
+                    return;
+                }
+                if (!threadMode.isSupported()) {
+                    System.err.println(threadMode.getUnsupportedMessage());
+                    return;
+                }
+            }
+
             try {
-                new ClientTask(dataFolder).connectToServer();
+                new ClientTask(dataFolder, threadMode).connectToServer();
             } catch (FileSystemException | SQLException | NoSuchPaddingException | NoSuchAlgorithmException e) {
                 e.printStackTrace();
                 logger.severe(e.getMessage());
             }
         }
     }
+
+    /**
+     * @param arg the cluster node given in the command line, i.e., <code>&lt;Node_Index&gt;/&lt;Node_Count&gt;</code>
+     * @return the node index and the node count, or null if malformed
+     */
+    private static int[] parseClusterNode(String arg) {
+        String[] argItems = arg.split("/", 2);
+        if (argItems.length != 2) {
+            return null;
+        }
+
+        try {
+            int nodeIndex = Integer.parseInt(argItems[0]);
+            int nodeCount = Integer.parseInt(argItems[1]);
+            if (nodeIndex < 0 || nodeIndex >= nodeCount) {
+                return null;
+            }
+            return new int[]{nodeIndex, nodeCount};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String[] getServerModeArgNames() {
+        ServerMode[] serverModes = ServerMode.values();
+        String[] argNames = new String[serverModes.length];
+        for (int i = 0; i < serverModes.length; i++) {
+            argNames[i] = serverModes[i].argName;
+        }
+        return argNames;
+    }
+
+    private static String[] getClientStoreTypeArgNames() {
+        ClientStoreType[] clientStoreTypes = ClientStoreType.values();
+        String[] argNames = new String[clientStoreTypes.length];
+        for (int i = 0; i < clientStoreTypes.length; i++) {
+            argNames[i] = clientStoreTypes[i].argName;
+        }
+        return argNames;
+    }
+
+    private static String[] getThreadModeArgNames() {
+        ThreadMode[] threadModes = ThreadMode.values();
+        String[] argNames = new String[threadModes.length];
+        for (int i = 0; i < threadModes.length; i++) {
+            argNames[i] = threadModes[i].argName;
+        }
+        return argNames;
+    }
 }
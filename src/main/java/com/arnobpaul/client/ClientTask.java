@@ -1,58 +1,83 @@
 package com.arnobpaul.client;
 
 import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ThreadMode;
 import com.arnobpaul.common.crypto.*;
+import com.arnobpaul.common.network.CommandRegistry;
+import com.arnobpaul.common.network.FrameCodec;
+import com.arnobpaul.common.network.FrameDecoder;
+import com.arnobpaul.common.network.OutboundQueue;
+import com.arnobpaul.common.network.Protocol;
+import org.jetbrains.annotations.NotNull;
 
 import javax.crypto.NoSuchPaddingException;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystemException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.util.NoSuchElementException;
 import java.util.Scanner;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 public class ClientTask implements Runnable {
     private static final String SERVER_IP = "127.0.0.1";
 
     private Socket socket = null;
-    private Scanner scanner = null;
-    private PrintWriter printWriter = null;
+    private InputStream inputStream = null;
+    private OutboundQueue outboundQueue = null;
 
-    private ThreadPoolExecutor threadPoolExecutor = null;
+    private final FrameDecoder frameDecoder = new FrameDecoder(this::processFrame);
+    private final CommandRegistry commandRegistry = new CommandRegistry(this::getServerAddress);
+    private volatile boolean isProtocolNegotiated = false;
+    // Set once the server did not reply in time, so a late reply never switches the protocol
+    private volatile boolean isProtocolNegotiationTimedOut = false;
+
+    private ExecutorService writerExecutorService = null;
 
     private static volatile boolean isRunning = true;
 
     private final DbService dbService;
     private final String dataFolder;
+    private final ThreadMode threadMode;
 
     private final RsaGenEncDec rsaGenEncDec;
     private final RsaSignVerify rsaSignVerify;
     private final DiffieHellmanKeyExchange diffieHellmanKeyExchange;
     private final HmacGenerateVerify hmacGenerateVerify;
     private final AesGenEncDec aesGenEncDec;
+    private final AeadEncDec aeadEncDec;
+    private final Hkdf hkdf;
+    private final Ed25519SignVerify ed25519SignVerify;
 
     private final SignupLoginService signupLoginService;
     private final TrustAndBlockListService trustAndBlockListService;
     private final CommunicationService communicationService;
+    private final GroupService groupService;
     private final RenewService renewService;
 
     private static final Logger logger = Logger.getLogger(ClientTask.class.getName());
 
-    public ClientTask(String dataFolder) throws FileSystemException, SQLException, NoSuchPaddingException, NoSuchAlgorithmException {
+    public ClientTask(String dataFolder, @NotNull ThreadMode threadMode) throws FileSystemException, SQLException, NoSuchPaddingException, NoSuchAlgorithmException {
         this.dataFolder = dataFolder;
-        this.dbService = new DbService(dataFolder);
-
+        threadMode.checkSupported();
+        this.threadMode = threadMode;
         this.rsaGenEncDec = new RsaGenEncDec();
         this.rsaSignVerify = new RsaSignVerify();
         this.diffieHellmanKeyExchange = new DiffieHellmanKeyExchange();
         this.hmacGenerateVerify = new HmacGenerateVerify();
         this.aesGenEncDec = new AesGenEncDec();
+        this.aeadEncDec = new AeadEncDec();
+        this.hkdf = new Hkdf();
+        this.ed25519SignVerify = new Ed25519SignVerify();
+
+        this.dbService = new DbService(dataFolder, rsaSignVerify.getPublicKeyCache());
 
         this.signupLoginService = new SignupLoginService(
                 this,
@@ -72,8 +97,22 @@ public class ClientTask implements Runnable {
                 this.rsaSignVerify,
                 this.diffieHellmanKeyExchange,
                 this.hmacGenerateVerify,
-                this.aesGenEncDec
+                this.aesGenEncDec,
+                this.aeadEncDec,
+                this.hkdf,
+                this.ed25519SignVerify
+        );
+
+        this.groupService = new GroupService(
+                this,
+                this.communicationService,
+                this.signupLoginService,
+                this.trustAndBlockListService,
+                this.aeadEncDec,
+                this.hkdf,
+                this.ed25519SignVerify
         );
+        communicationService.setSenderKeyListener(groupService);
 
         this.renewService = new RenewService(
                 this,
@@ -82,6 +121,12 @@ public class ClientTask implements Runnable {
                 this.rsaGenEncDec,
                 this.rsaSignVerify
         );
+
+        commandRegistry.register(AppConfig.NetworkCommand.PROTOCOL_ACCEPT, this::processProtocolAccept);
+        signupLoginService.registerCommandHandlers(commandRegistry);
+        communicationService.registerCommandHandlers(commandRegistry);
+        groupService.registerCommandHandlers(commandRegistry);
+        renewService.registerCommandHandlers(commandRegistry);
     }
 
     public void connectToServer() {
@@ -89,8 +134,14 @@ public class ClientTask implements Runnable {
 
         try {
             socket = new Socket(SERVER_IP, AppConfig.SERVER_PORT);
-            scanner = new Scanner(socket.getInputStream());
-            printWriter = new PrintWriter(socket.getOutputStream(), true);
+            inputStream = socket.getInputStream();
+            writerExecutorService = threadMode.newSingleThreadExecutor("ClientNetworkOutput");
+            outboundQueue = new OutboundQueue(
+                    socket.getOutputStream(),
+                    writerExecutorService,
+                    AppConfig.OUTBOUND_QUEUE_CAPACITY);
+
+            negotiateProtocol(AppConfig.CLIENT_PROTOCOL);
         } catch (IOException e) {
             e.printStackTrace();
             logger.severe(e.getMessage());
@@ -99,58 +150,105 @@ public class ClientTask implements Runnable {
 
         System.out.println("Connected to server.");
 
-        // network output thread
-        threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-
         // network input thread
-        new Thread(this, "ClientNetworkInputLoop").start();
+        threadMode.newThread(this, "ClientNetworkInputLoop").start();
 
         // user input thread
         new Thread(new InputTask(this), "ClientUserInputLoop").start();
     }
 
+    /**
+     * This method requests the protocol and waits for the reply before any other line is sent or received.
+     * If the server does not reply in time (e.g., an older server), the text protocol is kept and the negotiation is
+     * over (see {@link #processProtocolAccept(String)}).
+     */
+    private void negotiateProtocol(Protocol protocol) throws IOException {
+        if (protocol == Protocol.TEXT) return;
+
+        sendRaw(String.format("%s %s",
+                AppConfig.NetworkCommand.PROTOCOL,
+                protocol.protocolName));
+
+        socket.setSoTimeout(AppConfig.PROTOCOL_NEGOTIATION_TIMEOUT);
+        byte[] readBuffer = new byte[256];
+        try {
+            while (!isProtocolNegotiated) {
+                int readCount = inputStream.read(readBuffer);
+                if (readCount < 0) {
+                    throw new EOFException("Connection closed during protocol negotiation.");
+                }
+                frameDecoder.feed(ByteBuffer.wrap(readBuffer, 0, readCount));
+            }
+        } catch (SocketTimeoutException e) {
+            isProtocolNegotiationTimedOut = true;
+            logger.warning(String.format("No reply for protocol %s; using protocol %s",
+                    protocol.protocolName,
+                    frameDecoder.getProtocol().protocolName));
+        }
+        socket.setSoTimeout(0);
+    }
+
     @Override
     public void run() {
-        while (isRunning) {
+        try {
+            frameDecoder.readFrom(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+        }
+
+        outboundQueue.close();
+        writerExecutorService.shutdown();
+        logger.info("ClientTask is terminated");
+    }
+
+    private void processFrame(ByteBuffer frame) {
+        try {
+            commandRegistry.dispatch(frame, frameDecoder.getProtocol());
+        } catch (ProtocolException e) {
+            logger.warning(String.format("Malformed frame from server: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * A reply after the timeout of {@link #negotiateProtocol(Protocol)} is never applied: the server already uses the
+     * accepted protocol while this client has sent in the text protocol since then, so the connection is closed unless
+     * the text protocol is accepted.
+     */
+    private void processProtocolAccept(String protocolName) {
+        Protocol protocol = Protocol.fromProtocolName(protocolName);
+        if (isProtocolNegotiationTimedOut) {
+            if (protocol == frameDecoder.getProtocol()) {
+                logger.info(String.format("Protocol %s accepted by server after the timeout", protocolName));
+                return;
+            }
+            System.err.println(String.format("ERROR! Protocol %s accepted by server after the timeout. Disconnected from server; please restart the client.",
+                    protocolName));
             try {
-                String dataReceived = scanner.nextLine().trim();
-
-                logger.info(String.format("Received \"%s\" from %s:%s",
-                        dataReceived,
-                        socket.getInetAddress().getHostAddress(),
-                        socket.getPort()));
-
-                String[] dataReceivedItems = dataReceived.split(" ", 2);
-                String header = dataReceivedItems[0];
-                String data = null;
-                if (dataReceivedItems.length == 2) {
-                    data = dataReceivedItems[1];
-                }
-                if (header.startsWith(AppConfig.NetworkCommand.SIGNUP)) {
-                    signupLoginService.processSignup(header, data);
-                } else if (header.startsWith(AppConfig.NetworkCommand.LOGIN)) {
-                    signupLoginService.processLogin(header, data);
-                } else if (header.startsWith(AppConfig.NetworkCommand.SEND_DATA)) {
-                    communicationService.processSend(header, data);
-                } else if (header.startsWith(AppConfig.NetworkCommand.RENEW_KEY)) {
-                    renewService.processRenew(header, data);
-                }
-            } catch (NoSuchElementException e) {
+                socket.close();
+            } catch (IOException e) {
                 e.printStackTrace();
                 logger.severe(e.getMessage());
-                threadPoolExecutor.shutdown();
-                return;
             }
+            return;
+        }
+        if (isProtocolNegotiated || protocol == null) {
+            logger.warning(String.format("Unexpected protocol accepted: %s", protocolName));
+            return;
         }
 
-        threadPoolExecutor.shutdown();
-        logger.info("ClientTask is terminated");
+        // The following frames in both directions use the accepted protocol
+        frameDecoder.setProtocol(protocol);
+        isProtocolNegotiated = true;
+        logger.info(String.format("Protocol %s accepted by server", protocol.protocolName));
     }
 
-    public boolean sendRaw(String dataToSend) {
-        if (!threadPoolExecutor.isShutdown()) {
-            threadPoolExecutor.submit(() -> printWriter.println(dataToSend));
+    private String getServerAddress() {
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
 
+    public boolean sendRaw(String dataToSend) {
+        if (outboundQueue.offer(FrameCodec.encode(dataToSend, frameDecoder.getProtocol()))) {
             logger.info(String.format("Sent \"%s\" to %s:%s",
                     dataToSend,
                     socket.getInetAddress().getHostAddress(),
@@ -158,6 +256,9 @@ public class ClientTask implements Runnable {
 
             return true;
         }
+        if (!outboundQueue.isClosed()) {
+            System.err.println("Too many pending messages to the server. Please try again later.");
+        }
         return false;
     }
 
@@ -211,7 +312,18 @@ public class ClientTask implements Runnable {
                             clientTask.signupLoginService.requestLogin();
                             break;
                         case AppConfig.UserCommand.SEND:
-                            clientTask.communicationService.requestSend(data);
+                            if (clientTask.communicationService.requestSend(data)) {
+                                clientTask.groupService.deactivateGroup();
+                            }
+                            break;
+                        case AppConfig.UserCommand.GROUP_CREATE:
+                            clientTask.groupService.requestGroupCreate();
+                            break;
+                        case AppConfig.UserCommand.GROUP_ADD:
+                            clientTask.groupService.requestGroupAdd(data);
+                            break;
+                        case AppConfig.UserCommand.GROUP:
+                            clientTask.groupService.requestGroup(data);
                             break;
                         case AppConfig.UserCommand.SEND_TRUST:
                             clientTask.communicationService.requestSendTrust(data);
@@ -232,6 +344,8 @@ public class ClientTask implements Runnable {
                             clientTask.renewService.requestRenew(data);
                             break;
                     }
+                } else if (clientTask.groupService.isGroupActive()) {
+                    clientTask.groupService.requestSendMessage(dataInput);
                 } else {
                     clientTask.communicationService.requestSendMessage(dataInput);
                 }
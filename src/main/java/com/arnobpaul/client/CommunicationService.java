@@ -3,20 +3,58 @@ package com.arnobpaul.client;
 import com.arnobpaul.common.AppConfig;
 import com.arnobpaul.common.ClientEntity;
 import com.arnobpaul.common.RandomGeneratorHelper;
+import com.arnobpaul.common.collection.IntObjectHashMap;
 import com.arnobpaul.common.crypto.*;
+import com.arnobpaul.common.network.CommandRegistry;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.PublicKey;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * This class communicates with any number of other clients at once. Every other client has its own
+ * {@link PeerSession}, so a message from (or an invitation of) another client does not tear down the message keys
+ * already agreed with the others.
+ * <p>
+ * The sender keys of the groups are given as the messages of a {@link PeerSession} too, but the groups themselves are
+ * kept by a {@link SenderKeyListener} (see {@link GroupService}).
+ */
 public class CommunicationService {
+    interface SenderKeyListener {
+        /**
+         * @return true if the session with the client is for the sender keys of a group (not requested by the user),
+         * otherwise false
+         */
+        boolean isSenderKeyRequested(int clientId);
+
+        /**
+         * This method is called once a session is invited, so the sender keys waiting for it can be given.
+         */
+        void onPeerSessionInvited(@NotNull PeerSession session);
+
+        /**
+         * This method is called once the other client restarts the key exchange, as it lost the sender keys given to
+         * it too.
+         */
+        void onPeerSessionRestarted(@NotNull PeerSession session);
+
+        /**
+         * @param senderKeyText decrypted message of DATA_SENDER_KEY
+         * @return true if the sender key is accepted, otherwise false
+         */
+        boolean onSenderKeyReceived(@NotNull PeerSession session, @NotNull String senderKeyText);
+    }
+
     private final ClientTask clientTask;
 
     private final SignupLoginService signupLoginService;
@@ -26,22 +64,36 @@ public class CommunicationService {
     private final DiffieHellmanKeyExchange diffieHellmanKeyExchange;
     private final HmacGenerateVerify hmacGenerateVerify;
     private final AesGenEncDec aesGenEncDec;
+    private final AeadEncDec aeadEncDec;
+    private final Hkdf hkdf;
+    private final Ed25519SignVerify ed25519SignVerify;
+
+    private final MessageKeyUpdatePolicy messageKeyUpdatePolicy = new MessageKeyUpdatePolicy(
+            AppConfig.MESSAGE_KEY_UPDATE_MESSAGE_COUNT,
+            AppConfig.MESSAGE_KEY_UPDATE_BYTE_COUNT,
+            AppConfig.MESSAGE_KEY_UPDATE_INTERVAL);
 
     private ClientEntity loginClient = null;
 
-    private int otherClientId = 0;
-    private String otherClientPublicKey = null;
+    // Sessions with the other clients by Client_ID, kept while talking to the others
+    private final IntObjectHashMap<PeerSession> peerSessions = new IntObjectHashMap<>();
+    // Client_ID the typed messages are sent to
+    private int activeClientId = 0;
+    // Client_ID requested by the last SEND command (i.e., to be activated once invited)
+    private int requestedClientId = 0;
 
-    private boolean isMessageKeyUpdated = false;
-    private String sharedSecretMessageKey = null;
-    private String sharedSecretEncryptionKey = null;
-    private String sharedSecretHmacKey = null;
-    private AsymmetricKeyPair messageKey = null;
-    private int messageSequenceNumber = 0;
-    private String otherClientMessagePublicKey = null;
-    private int otherClientMessageSequenceNumber = 0;
+    // Client_ID of the last received SEND_* command
+    private int receivedClientId = 0;
 
-    private final BlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
+    // Keeps the groups, whose sender keys are given as the messages of the sessions
+    private volatile SenderKeyListener senderKeyListener = null;
+
+    // Context of the message keys derived by HKDF
+    private static final String MESSAGE_KEY_INFO = "SecureChat message keys";
+    static final long MESSAGE_KEY_PREVIOUS_EPOCH_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(AppConfig.MESSAGE_KEY_PREVIOUS_EPOCH_TIMEOUT);
+    // Size in bytes of the random nonce of DATA_DH_START, which makes every start of the key exchange unique
+    private static final int START_NONCE_SIZE = 16;
 
     private static final Logger logger = Logger.getLogger(TrustAndBlockListService.class.getName());
 
@@ -51,7 +103,10 @@ public class CommunicationService {
                                 @NotNull RsaSignVerify rsaSignVerify,
                                 @NotNull DiffieHellmanKeyExchange diffieHellmanKeyExchange,
                                 @NotNull HmacGenerateVerify hmacGenerateVerify,
-                                @NotNull AesGenEncDec aesGenEncDec) {
+                                @NotNull AesGenEncDec aesGenEncDec,
+                                @NotNull AeadEncDec aeadEncDec,
+                                @NotNull Hkdf hkdf,
+                                @NotNull Ed25519SignVerify ed25519SignVerify) {
         this.clientTask = clientTask;
         this.signupLoginService = signupLoginService;
         this.trustAndBlockListService = trustAndBlockListService;
@@ -59,6 +114,11 @@ public class CommunicationService {
         this.diffieHellmanKeyExchange = diffieHellmanKeyExchange;
         this.hmacGenerateVerify = hmacGenerateVerify;
         this.aesGenEncDec = aesGenEncDec;
+        this.aeadEncDec = aeadEncDec;
+        this.hkdf = hkdf;
+        this.ed25519SignVerify = ed25519SignVerify;
+
+        diffieHellmanKeyExchange.prepareKeyPairPool(AppConfig.MESSAGE_KEY_AGREEMENT_MODE);
     }
 
     synchronized public boolean requestSend(String data) {
@@ -88,105 +148,163 @@ public class CommunicationService {
                     foundClientId));
             return false;
         }
-        otherClientId = foundClientId;
+        requestedClientId = foundClientId;
+        if (peerSessions.containsKey(foundClientId)) {
+            activeClientId = foundClientId;
+        }
 
+        // The public key is always fetched again, in case it is renewed
         clientTask.sendRaw(String.format("%s %d",
                 AppConfig.NetworkCommand.SEND_START,
-                otherClientId));
+                foundClientId));
+
+        return true;
+    }
+
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_INVITE, this::processSendInvite);
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_DATA, this::processSendData);
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_FAILURE, this::processSendFailure);
+    }
+
+    void setSenderKeyListener(@Nullable SenderKeyListener senderKeyListener) {
+        this.senderKeyListener = senderKeyListener;
+    }
+
+    synchronized public boolean processSendInvite(String data) {
+        String[] dataItems = checkAndSplitReceivedData(AppConfig.NetworkCommand.SEND_INVITE, data);
+        if (dataItems == null) return false;
 
+        if (dataItems.length != 2) {
+            System.err.println(String.format("Malformed data received for Header: %s ; Data: %s",
+                    AppConfig.NetworkCommand.SEND_INVITE, data));
+            return false;
+        }
+        String otherClientPublicKey = dataItems[1];
+
+        PeerSession session = peerSessions.get(receivedClientId);
+        if (session == null || !session.otherClientPublicKey.equals(otherClientPublicKey)) {
+            // A new (or renewed) public key needs a new session
+            session = new PeerSession(receivedClientId, otherClientPublicKey);
+            peerSessions.put(receivedClientId, session);
+        }
+
+        SenderKeyListener senderKeyListener = this.senderKeyListener;
+        if (activeClientId == 0 || receivedClientId == requestedClientId) {
+            activeClientId = receivedClientId;
+        } else if (receivedClientId != activeClientId
+                && (senderKeyListener == null || !senderKeyListener.isSenderKeyRequested(receivedClientId))) {
+            System.out.println(String.format("Client_ID %d wants to communicate. (Enter \"%s %d\" to send messages to the client)",
+                    receivedClientId,
+                    AppConfig.UserCommand.SEND,
+                    receivedClientId));
+        }
+        if (!checkTrustListAndShowWarningIfNeeded(session)) {
+            return false;
+        }
+
+        // The sender keys waiting for the session are given now
+        if (senderKeyListener != null) {
+            senderKeyListener.onPeerSessionInvited(session);
+        }
         return true;
     }
 
-    synchronized public boolean processSend(String header, String data) {
+    synchronized public boolean processSendData(String data) {
+        String[] dataItems = checkAndSplitReceivedData(AppConfig.NetworkCommand.SEND_DATA, data);
+        if (dataItems == null) return false;
+
+        if (dataItems.length != 2) {
+            System.err.println(String.format("Malformed data received for Header: %s ; Data: %s",
+                    AppConfig.NetworkCommand.SEND_DATA, data));
+            return false;
+        }
+        PeerSession session = peerSessions.get(receivedClientId);
+        if (session == null) {
+            clientTask.sendRaw(String.format("%s %d %s",
+                    AppConfig.NetworkCommand.SEND_DATA,
+                    receivedClientId,
+                    AppConfig.NetworkCommand.DATA_MESSAGE_ERROR));
+            System.err.println(String.format("Unexpected data received from Client_ID: %d\n" +
+                            "Data: %s\n" +
+                            "No invitation received from the client.",
+                    receivedClientId,
+                    dataItems[1]));
+            return false;
+        }
+        if (!checkTrustListAndShowWarningIfNeeded(session)) {
+            clientTask.sendRaw(String.format("%s %d %s",
+                    AppConfig.NetworkCommand.SEND_DATA,
+                    session.otherClientId,
+                    AppConfig.NetworkCommand.DATA_MESSAGE_ERROR));
+            return false;
+        }
+
+        String[] messageItems = dataItems[1].split(" ", 2);
+        if (messageItems.length != 2) {
+            if (messageItems[0].equals(AppConfig.NetworkCommand.DATA_MESSAGE_ERROR)) {
+                System.err.println(String.format("The other client has something wrong. Client_ID: %d",
+                        session.otherClientId));
+                return false;
+            }
+            System.err.println(String.format("Malformed data received for Header: %s ; Data: null ; Client_ID: %d",
+                    messageItems[0],
+                    session.otherClientId));
+            return false;
+        }
+
+        return processSendMessage(session, messageItems[0], messageItems[1]);
+    }
+
+    synchronized public boolean processSendFailure(String data) {
+        String[] dataItems = checkAndSplitReceivedData(AppConfig.NetworkCommand.SEND_FAILURE, data);
+        if (dataItems == null) return false;
+
+        System.err.println(String.format("Failed to send data to Client_ID: %d",
+                receivedClientId));
+        return false;
+    }
+
+    /**
+     * This method checks the common part of the received SEND_* commands, i.e., <code>&lt;Client_ID&gt; ...</code>.
+     *
+     * @return the data split into the client ID (also set to {@link #receivedClientId}) and the rest,
+     * or null if the command must be ignored
+     */
+    private String[] checkAndSplitReceivedData(String header, String data) {
         loginClient = signupLoginService.getLoginClient();
         if (loginClient == null) {
             System.err.println("Client must be logged in to receive a message to another client.");
-            return false;
+            return null;
         }
 
         if (data == null) {
             System.err.println(String.format("Null data received for Header: %s",
                     header));
-            return false;
+            return null;
         }
         String[] dataItems = data.split(" ", 2);
-        int foundClientId;
         try {
-            foundClientId = Integer.parseInt(dataItems[0]);
+            receivedClientId = Integer.parseInt(dataItems[0]);
         } catch (NumberFormatException e) {
             e.printStackTrace();
             logger.warning(e.getMessage());
-            return false;
+            return null;
         }
-        if (trustAndBlockListService.isClientBlocked(foundClientId)) {
+        if (trustAndBlockListService.isClientBlocked(receivedClientId)) {
             clientTask.sendRaw(String.format("%s %d %s",
                     AppConfig.NetworkCommand.SEND_DATA,
-                    foundClientId,
+                    receivedClientId,
                     AppConfig.NetworkCommand.DATA_MESSAGE_ERROR));
 
             logger.warning(String.format("Message received from a blocked client! Client_ID: %d",
-                    foundClientId));
-            return false;
-        }
-        switch (header) {
-            case AppConfig.NetworkCommand.SEND_INVITE:
-                if (dataItems.length != 2) {
-                    System.err.println(String.format("Malformed data received for Header: %s ; Data: %s",
-                            header, data));
-                    return false;
-                }
-                otherClientId = foundClientId;
-                otherClientPublicKey = dataItems[1];
-
-                resetMessageObjects();
-                return checkTrustListAndShowWarningIfNeeded();
-            case AppConfig.NetworkCommand.SEND_DATA:
-                if (dataItems.length != 2) {
-                    System.err.println(String.format("Malformed data received for Header: %s ; Data: %s",
-                            header, data));
-                    return false;
-                }
-                if (foundClientId != otherClientId) {
-                    clientTask.sendRaw(String.format("%s %d %s",
-                            AppConfig.NetworkCommand.SEND_DATA,
-                            foundClientId,
-                            AppConfig.NetworkCommand.DATA_MESSAGE_ERROR));
-                    System.err.println(String.format("Unexpected data received from Client_ID: %d\n" +
-                                    "Data: %s\n" +
-                                    "Expected Client_ID: %d",
-                            foundClientId,
-                            dataItems[1],
-                            otherClientId));
-                    return false;
-                }
-                if (!checkTrustListAndShowWarningIfNeeded()) {
-                    clientTask.sendRaw(String.format("%s %d %s",
-                            AppConfig.NetworkCommand.SEND_DATA,
-                            otherClientId,
-                            AppConfig.NetworkCommand.DATA_MESSAGE_ERROR));
-                    return false;
-                }
-
-                String[] messageItems = dataItems[1].split(" ", 2);
-                if (messageItems.length != 2) {
-                    if (messageItems[0].equals(AppConfig.NetworkCommand.DATA_MESSAGE_ERROR)) {
-                        System.err.println(String.format("The other client has something wrong. Client_ID: %d",
-                                otherClientId));
-                        return false;
-                    }
-                    System.err.println(String.format("Malformed data received for Header: %s ; Data: null ; Client_ID: %d",
-                            messageItems[0],
-                            otherClientId));
-                    return false;
-                }
-
-                return processSendMessage(messageItems[0], messageItems[1]);
-            case AppConfig.NetworkCommand.SEND_FAILURE:
-                System.err.println(String.format("Failed to send data to Client_ID: %d",
-                        foundClientId));
-                return false;
+                    receivedClientId));
+            return null;
         }
-        return false;
+        return dataItems;
     }
 
     synchronized public boolean requestSendTrust(String data) {
@@ -199,17 +317,17 @@ public class CommunicationService {
             return false;
         }
 
-        if (foundClientId != otherClientId) {
+        PeerSession session = peerSessions.get(foundClientId);
+        if (session == null) {
             System.err.println(String.format("Unexpected input received for Client_ID: %d\n" +
-                            "Expected Client_ID: %d",
-                    foundClientId,
-                    otherClientId));
+                            "No invitation received from the client.",
+                    foundClientId));
             return false;
         }
 
         return trustAndBlockListService.trustClient(String.format("%d %s",
-                otherClientId,
-                otherClientPublicKey));
+                session.otherClientId,
+                session.otherClientPublicKey));
     }
 
     synchronized public boolean requestSendMessage(String data) {
@@ -224,39 +342,44 @@ public class CommunicationService {
             return false;
         }
 
-        if (otherClientId == 0) {
+        PeerSession session = peerSessions.get(activeClientId);
+        if (session == null) {
             System.err.println("Error! Please provide Client_ID before sending a message.");
             return false;
         }
 
-        if (trustAndBlockListService.isClientBlocked(otherClientId)) {
+        if (trustAndBlockListService.isClientBlocked(session.otherClientId)) {
             System.err.println(String.format("ERROR! Client blocked. Message cannot be sent to Client_ID: %d",
-                    otherClientId));
+                    session.otherClientId));
             return false;
         }
 
-        if (!checkTrustListAndShowWarningIfNeeded()) {
+        if (!checkTrustListAndShowWarningIfNeeded(session)) {
             return false;
         }
 
         try {
-            messageQueue.put(data);
+            session.messageQueue.put(data);
         } catch (InterruptedException e) {
             e.printStackTrace();
             logger.warning(e.getMessage());
             return false;
         }
 
-        processMessageQueue();
+        processMessageQueue(session);
 
-        return messageQueue.isEmpty();
+        return session.messageQueue.isEmpty();
     }
 
-    private boolean processSendMessage(String header, String data) {
+    private boolean processSendMessage(PeerSession session, String header, String data) {
         switch (header) {
             case AppConfig.NetworkCommand.DATA_DH_START:
             case AppConfig.NetworkCommand.DATA_DH_START_ACCEPT: {
-                if (sharedSecretMessageKey != null) {
+                // A signed DATA_DH_START after the key exchange means the other client lost its session (e.g.,
+                // restarted), so the key exchange starts over once the signature is verified, unless its start
+                // nonce was seen before (i.e., a replayed DATA_DH_START)
+                boolean isRestarted = (session.sharedSecretMessageKey != null);
+                if (isRestarted && !header.equals(AppConfig.NetworkCommand.DATA_DH_START)) {
                     System.err.println(String.format("Unexpected header received! HMAC tag needed, but received digital signature. Header: %s",
                             header));
                     return false;
@@ -266,7 +389,7 @@ public class CommunicationService {
                     System.err.println(String.format("Malformed message data received for Header: %s ; Data: %s ; Client_ID: %d",
                             header,
                             data,
-                            otherClientId));
+                            session.otherClientId));
                 }
                 String signature = dataItems[0];
                 int foundOtherClientMessageSequenceNumber;
@@ -277,21 +400,80 @@ public class CommunicationService {
                     logger.severe(e.getMessage());
                     return false;
                 }
-                if (foundOtherClientMessageSequenceNumber != otherClientMessageSequenceNumber) {
+                if (isRestarted && foundOtherClientMessageSequenceNumber != 0) {
                     System.err.println(String.format("The other client's message sequence number mismatched!\n" +
                                     "Found: %d\n" +
-                                    "Expected: %d",
-                            foundOtherClientMessageSequenceNumber,
-                            otherClientMessageSequenceNumber));
+                                    "Expected: 0",
+                            foundOtherClientMessageSequenceNumber));
                     return false;
                 }
-                String foundOtherClientMessagePublicKey = dataItems[2];
+                if (!isRestarted && !checkOtherClientMessageSequenceNumber(foundOtherClientMessageSequenceNumber, session.otherClientReplayWindow)) {
+                    return false;
+                }
+                // The version is missing if the other client only supports the finite-field key agreement (and CBC
+                // with HMAC), the message cipher version is missing if it only supports CBC with HMAC, and the start
+                // nonce is missing if it cannot restart the key exchange
+                String[] messagePublicKeyItems = dataItems[2].split(" ", 4);
+                String foundOtherClientMessagePublicKey = messagePublicKeyItems[0];
+                KeyAgreementMode foundKeyAgreementMode = KeyAgreementMode.FINITE_FIELD;
+                if (messagePublicKeyItems.length >= 2) {
+                    try {
+                        foundKeyAgreementMode = KeyAgreementMode.fromVersion(Integer.parseInt(messagePublicKeyItems[1]));
+                    } catch (NumberFormatException e) {
+                        foundKeyAgreementMode = null;
+                    }
+                }
+                if (foundKeyAgreementMode == null) {
+                    System.err.println(String.format("Unsupported key agreement version received! Version: %s ; Client_ID: %d",
+                            messagePublicKeyItems[1],
+                            session.otherClientId));
+                    return false;
+                }
+                if (header.equals(AppConfig.NetworkCommand.DATA_DH_START_ACCEPT)
+                        && foundKeyAgreementMode != session.keyAgreementMode) {
+                    System.err.println(String.format("The other client's key agreement mismatched!\n" +
+                                    "Found: %s\n" +
+                                    "Expected: %s",
+                            foundKeyAgreementMode,
+                            session.keyAgreementMode));
+                    return false;
+                }
+                MessageCipherMode foundMessageCipherMode = MessageCipherMode.CBC_HMAC;
+                if (messagePublicKeyItems.length >= 3) {
+                    try {
+                        foundMessageCipherMode = MessageCipherMode.fromVersion(Integer.parseInt(messagePublicKeyItems[2]));
+                    } catch (NumberFormatException e) {
+                        foundMessageCipherMode = null;
+                    }
+                }
+                if (foundMessageCipherMode == null) {
+                    System.err.println(String.format("Unsupported message cipher version received! Version: %s ; Client_ID: %d",
+                            messagePublicKeyItems[2],
+                            session.otherClientId));
+                    return false;
+                }
+                if (header.equals(AppConfig.NetworkCommand.DATA_DH_START_ACCEPT)
+                        && foundMessageCipherMode != session.messageCipherMode) {
+                    System.err.println(String.format("The other client's message cipher mismatched!\n" +
+                                    "Found: %s\n" +
+                                    "Expected: %s",
+                            foundMessageCipherMode,
+                            session.messageCipherMode));
+                    return false;
+                }
+                String foundStartNonce = (messagePublicKeyItems.length == 4) ? messagePublicKeyItems[3] : null;
+                if (isRestarted && (foundStartNonce == null || session.otherClientStartNonces.contains(foundStartNonce))) {
+                    System.err.println(String.format("Key exchange restart rejected! Missing or replayed start nonce. Client_ID: %d",
+                            session.otherClientId));
+                    return false;
+                }
+                // The versions (and the start nonce) are signed too, so they cannot be downgraded on the way
                 String messageToBeVerified = String.format("%d %s",
                         foundOtherClientMessageSequenceNumber,
-                        foundOtherClientMessagePublicKey);
+                        dataItems[2]);
                 boolean isVerified;
                 try {
-                    isVerified = rsaSignVerify.verify(messageToBeVerified, signature, otherClientPublicKey);
+                    isVerified = rsaSignVerify.verify(messageToBeVerified, signature, session.otherClientId, session.otherClientPublicKey);
                 } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
                     e.printStackTrace();
                     logger.severe(e.getMessage());
@@ -301,14 +483,28 @@ public class CommunicationService {
                     System.err.println("The other client's message signature mismatched!");
                     return false;
                 }
-                otherClientMessagePublicKey = foundOtherClientMessagePublicKey;
+                if (header.equals(AppConfig.NetworkCommand.DATA_DH_START) && foundStartNonce != null) {
+                    session.otherClientStartNonces.add(foundStartNonce);
+                }
+                if (isRestarted) {
+                    logger.info(String.format("Key exchange restarted by Client_ID: %d",
+                            session.otherClientId));
+                    session.resetMessageKeys();
+                    SenderKeyListener senderKeyListener = this.senderKeyListener;
+                    if (senderKeyListener != null) {
+                        senderKeyListener.onPeerSessionRestarted(session);
+                    }
+                }
+                session.keyAgreementMode = foundKeyAgreementMode;
+                session.messageCipherMode = foundMessageCipherMode;
+                session.otherClientMessagePublicKey = foundOtherClientMessagePublicKey;
 
-                otherClientMessageSequenceNumber++;
+                session.otherClientReplayWindow.update(foundOtherClientMessageSequenceNumber);
                 if (header.equals(AppConfig.NetworkCommand.DATA_DH_START)) {
-                    isMessageKeyUpdated = false;
-                    updateMessageKey();
+                    session.isMessageKeyUpdated = false;
+                    updateMessageKey(session);
                 }
-                processMessageQueue();
+                processMessageQueue(session);
                 return true;
             }
             case AppConfig.NetworkCommand.DATA_DH_CHANGE:
@@ -318,7 +514,7 @@ public class CommunicationService {
                     System.err.println(String.format("Malformed message data received for Header: %s ; Data: %s ; Client_ID: %d",
                             header,
                             data,
-                            otherClientId));
+                            session.otherClientId));
                 }
                 String hmacTag = dataItems[0];
                 int foundOtherClientMessageSequenceNumber;
@@ -329,45 +525,43 @@ public class CommunicationService {
                     logger.severe(e.getMessage());
                     return false;
                 }
-                if (foundOtherClientMessageSequenceNumber != otherClientMessageSequenceNumber) {
-                    System.err.println(String.format("The other client's message sequence number mismatched!\n" +
-                                    "Found: %d\n" +
-                                    "Expected: %d",
-                            foundOtherClientMessageSequenceNumber,
-                            otherClientMessageSequenceNumber));
+                if (!checkOtherClientMessageSequenceNumber(foundOtherClientMessageSequenceNumber, session.otherClientReplayWindow)) {
                     return false;
                 }
                 String foundOtherClientMessagePublicKey = dataItems[2];
                 String messageToBeVerified = String.format("%d %s",
                         foundOtherClientMessageSequenceNumber,
                         foundOtherClientMessagePublicKey);
-                boolean isVerified;
-                try {
-                    isVerified = hmacGenerateVerify.verifyTag(messageToBeVerified, hmacTag, sharedSecretHmacKey);
-                } catch (InvalidKeyException e) {
-                    e.printStackTrace();
-                    logger.severe(e.getMessage());
-                    return false;
-                }
+                boolean isVerified = hmacGenerateVerify.verifyTag(messageToBeVerified, hmacTag, session.hmacKey);
                 if (!isVerified) {
                     System.err.println("The other client's message HMAC tag mismatched!");
                     return false;
                 }
-                otherClientMessagePublicKey = foundOtherClientMessagePublicKey;
+                session.otherClientMessagePublicKey = foundOtherClientMessagePublicKey;
 
-                otherClientMessageSequenceNumber++;
+                session.otherClientReplayWindow.update(foundOtherClientMessageSequenceNumber);
                 if (header.equals(AppConfig.NetworkCommand.DATA_DH_CHANGE)) {
-                    isMessageKeyUpdated = false;
-                    updateMessageKey();
+                    session.isMessageKeyUpdated = false;
+                    updateMessageKey(session);
+                } else if (session.messageKey != null) {
+                    // The keys are updated at once, as the messages may not be waiting for them (see
+                    // processMessageQueue(session)), while the other client already sends with them
+                    updateSharedSecretMessageKey(session);
                 }
-                processMessageQueue();
+                processMessageQueue(session);
                 return true;
             }
             case AppConfig.NetworkCommand.DATA_MESSAGE: {
+                if (session.messageCipherMode.isAead()) {
+                    System.err.println(String.format("Unexpected header received! AEAD needed for the message cipher %s. Header: %s",
+                            session.messageCipherMode,
+                            header));
+                    return false;
+                }
                 String encryptedMessage = data;
                 String decryptedMessage;
                 try {
-                    decryptedMessage = aesGenEncDec.decrypt(encryptedMessage, sharedSecretEncryptionKey);
+                    decryptedMessage = aesGenEncDec.decrypt(encryptedMessage, session.encryptionKey);
                 } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
                     e.printStackTrace();
                     logger.severe(e.getMessage());
@@ -378,7 +572,7 @@ public class CommunicationService {
                     System.err.println(String.format("Malformed message data received for Header: %s ; Data: %s ; Client_ID: %d",
                             header,
                             data,
-                            otherClientId));
+                            session.otherClientId));
                 }
                 String hmacTag = dataItems[0];
                 int foundOtherClientMessageSequenceNumber;
@@ -389,44 +583,126 @@ public class CommunicationService {
                     logger.severe(e.getMessage());
                     return false;
                 }
-                if (foundOtherClientMessageSequenceNumber != otherClientMessageSequenceNumber) {
-                    System.err.println(String.format("The other client's message sequence number mismatched!\n" +
-                                    "Found: %d\n" +
-                                    "Expected: %d",
-                            foundOtherClientMessageSequenceNumber,
-                            otherClientMessageSequenceNumber));
+                if (!checkOtherClientMessageSequenceNumber(foundOtherClientMessageSequenceNumber, session.otherClientReplayWindow)) {
                     return false;
                 }
                 String foundMessage = dataItems[2];
                 String messageToBeVerified = String.format("%d %s",
                         foundOtherClientMessageSequenceNumber,
                         foundMessage);
-                boolean isVerified;
-                try {
-                    isVerified = hmacGenerateVerify.verifyTag(messageToBeVerified, hmacTag, sharedSecretHmacKey);
-                } catch (InvalidKeyException e) {
-                    e.printStackTrace();
-                    logger.severe(e.getMessage());
-                    return false;
-                }
+                boolean isVerified = hmacGenerateVerify.verifyTag(messageToBeVerified, hmacTag, session.hmacKey);
                 if (!isVerified) {
                     System.err.println("The other client's message HMAC tag mismatched!");
                     return false;
                 }
                 System.out.println(String.format("[Client_ID %d] %s",
-                        otherClientId,
+                        session.otherClientId,
                         foundMessage));
-                otherClientMessageSequenceNumber++;
+                session.otherClientReplayWindow.update(foundOtherClientMessageSequenceNumber);
                 return true;
             }
+            case AppConfig.NetworkCommand.DATA_MESSAGE_AEAD: {
+                String foundMessage = decryptAeadMessage(session, header, data);
+                if (foundMessage == null) {
+                    return false;
+                }
+                System.out.println(String.format("[Client_ID %d] %s",
+                        session.otherClientId,
+                        foundMessage));
+                return true;
+            }
+            case AppConfig.NetworkCommand.DATA_SENDER_KEY: {
+                String foundSenderKey = decryptAeadMessage(session, header, data);
+                if (foundSenderKey == null) {
+                    return false;
+                }
+                SenderKeyListener senderKeyListener = this.senderKeyListener;
+                return senderKeyListener != null && senderKeyListener.onSenderKeyReceived(session, foundSenderKey);
+            }
         }
         return false;
     }
 
-    private boolean checkTrustListAndShowWarningIfNeeded() {
+    /**
+     * This method verifies, and decrypts, <code>&lt;Epoch&gt; &lt;Seq_Num&gt; AeadEnc(&lt;Message&gt;)</code> of a
+     * message encrypted with the message keys of the session (i.e., DATA_AEAD or DATA_SENDER_KEY).
+     *
+     * @return the decrypted message, or null if not accepted
+     */
+    private String decryptAeadMessage(PeerSession session, String header, String data) {
+        if (!session.messageCipherMode.isAead() || session.aeadKey == null) {
+            System.err.println(String.format("Unexpected header received! AEAD not agreed for the message cipher %s. Header: %s",
+                    session.messageCipherMode,
+                    header));
+            return null;
+        }
+        String[] dataItems = data.split(" ", 3);
+        if (dataItems.length != 3) {
+            System.err.println(String.format("Malformed message data received for Header: %s ; Data: %s ; Client_ID: %d",
+                    header,
+                    data,
+                    session.otherClientId));
+            return null;
+        }
+        int foundEpoch;
+        int foundOtherClientMessageSequenceNumber;
+        try {
+            foundEpoch = Integer.parseInt(dataItems[0]);
+            foundOtherClientMessageSequenceNumber = Integer.parseInt(dataItems[1]);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return null;
+        }
+        // The other client may still send with the previous keys until it receives the new public key, and
+        // those messages may arrive after the ones with the new keys
+        boolean isPreviousEpoch = (foundEpoch == session.epoch - 1 && session.previousAeadKey != null);
+        if (isPreviousEpoch
+                && System.nanoTime() - session.previousEpochEndTime > MESSAGE_KEY_PREVIOUS_EPOCH_TIMEOUT_NANOS) {
+            session.previousAeadKey = null;
+            session.previousOtherClientReplayWindow = null;
+            System.err.println(String.format("The other client's message epoch expired! Epoch: %d",
+                    foundEpoch));
+            return null;
+        }
+        if (foundEpoch != session.epoch && !isPreviousEpoch) {
+            System.err.println(String.format("The other client's message epoch mismatched!\n" +
+                            "Found: %d\n" +
+                            "Expected: %d",
+                    foundEpoch,
+                    session.epoch));
+            return null;
+        }
+        ReplayWindow replayWindow = isPreviousEpoch
+                ? session.previousOtherClientReplayWindow
+                : session.otherClientReplayWindow;
+        if (!checkOtherClientMessageSequenceNumber(foundOtherClientMessageSequenceNumber, replayWindow)) {
+            return null;
+        }
+        // The tag covers the sequence number too, so it is verified along with the decryption (and the keys
+        // differ in every epoch)
+        String foundMessage;
+        try {
+            foundMessage = aeadEncDec.decrypt(dataItems[2],
+                    session.otherClientId,
+                    foundOtherClientMessageSequenceNumber,
+                    isPreviousEpoch ? session.previousAeadKey : session.aeadKey);
+        } catch (AEADBadTagException e) {
+            System.err.println("The other client's message AEAD tag mismatched!");
+            return null;
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | IllegalArgumentException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return null;
+        }
+        replayWindow.update(foundOtherClientMessageSequenceNumber);
+        return foundMessage;
+    }
+
+    boolean checkTrustListAndShowWarningIfNeeded(@NotNull PeerSession session) {
         boolean isTrusted = trustAndBlockListService.isClientPublicKeyTrusted(
-                otherClientId,
-                otherClientPublicKey);
+                session.otherClientId,
+                session.otherClientPublicKey);
 
         if (!isTrusted) {
             System.out.println(String.format(
@@ -435,25 +711,57 @@ public class CommunicationService {
                             "Client_ID: %d\n" +
                             "Client_Public_Key: %s",
                     AppConfig.UserCommand.SEND_TRUST,
-                    otherClientId,
-                    otherClientId,
-                    otherClientPublicKey));
+                    session.otherClientId,
+                    session.otherClientId,
+                    session.otherClientPublicKey));
             return false;
         }
         return true;
     }
 
-    private void processMessageQueue() {
-        while (!messageQueue.isEmpty()) {
+    /**
+     * @return the session with the client, or null if not invited yet
+     */
+    @Nullable
+    PeerSession getPeerSession(int clientId) {
+        return peerSessions.get(clientId);
+    }
+
+    /**
+     * This method gives the sender key of a group to the other client as a message of the session, i.e., once the
+     * message keys are agreed.
+     *
+     * @param senderKeyText <code>&lt;Group_ID&gt; &lt;Key_ID&gt; &lt;Message_Cipher_Version&gt; &lt;Sender_Key&gt;
+     *                      &lt;Signing_Public_Key&gt;</code>
+     */
+    void queueSenderKey(@NotNull PeerSession session, @NotNull String senderKeyText) {
+        session.senderKeyQueue.add(senderKeyText);
+        processMessageQueue(session);
+    }
+
+    private void processMessageQueue(PeerSession session) {
+        while (!session.senderKeyQueue.isEmpty() || !session.messageQueue.isEmpty()) {
             try {
-                if (!isMessageKeyUpdated) {
-                    if (!updateMessageKey()) {
+                if (!session.isMessageKeyUpdated) {
+                    // The key exchange is started (or finished) unless already waiting for the other client
+                    boolean isWaiting = (session.messageKey != null && session.otherClientMessagePublicKey == null);
+                    if (!isWaiting && updateMessageKey(session)) {
+                        continue;
+                    }
+                    if (!isSendingDuringKeyUpdateAllowed(session)) {
                         break;
                     }
-                } else {
-                    if (!sendMessage(messageQueue.take())) {
+                }
+                // The sender keys go first, as the group messages with them may already be sent
+                if (!session.senderKeyQueue.isEmpty()) {
+                    if (!sendSenderKey(session, session.senderKeyQueue.peek())) {
                         break;
                     }
+                    session.senderKeyQueue.poll();
+                    continue;
+                }
+                if (!sendMessage(session, session.messageQueue.take())) {
+                    break;
                 }
             } catch (InterruptedException e) {
                 e.printStackTrace();
@@ -462,28 +770,36 @@ public class CommunicationService {
         }
     }
 
+    /**
+     * The messages are sent with the current keys while waiting for the other client's new public key, as the other
+     * client accepts them for a while (see {@link PeerSession#previousAeadKey}). A client only supporting CBC with
+     * HMAC drops the previous keys at once, so the messages wait for the new keys in that case.
+     *
+     * @return true if the messages can be sent before the key update is finished, otherwise false
+     */
+    private boolean isSendingDuringKeyUpdateAllowed(PeerSession session) {
+        return session.messageCipherMode.isAead() && session.aeadKey != null;
+    }
+
     /**
      * @param message message to be sent
      * @return true if this client is not waiting for any response and no error, otherwise false
      */
-    private boolean sendMessage(String message) {
+    private boolean sendMessage(PeerSession session, String message) {
+        if (session.messageCipherMode.isAead()) {
+            return sendAeadMessage(session, AppConfig.NetworkCommand.DATA_MESSAGE_AEAD, message);
+        }
+
         String messageToBeTagged = String.format("%d %s",
-                messageSequenceNumber,
+                session.messageSequenceNumber,
                 message);
-        String hmacTag;
-        try {
-            hmacTag = hmacGenerateVerify.generateTag(messageToBeTagged, sharedSecretHmacKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-            logger.severe(e.getMessage());
-            return false;
-        }
+        String hmacTag = hmacGenerateVerify.generateTag(messageToBeTagged, session.hmacKey);
         String messageToBeEncrypted = String.format("%s %s",
                 hmacTag,
                 messageToBeTagged);
         String encryptedMessage;
         try {
-            encryptedMessage = aesGenEncDec.encrypt(messageToBeEncrypted, sharedSecretEncryptionKey);
+            encryptedMessage = aesGenEncDec.encrypt(messageToBeEncrypted, session.encryptionKey);
         } catch (InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
             e.printStackTrace();
             logger.severe(e.getMessage());
@@ -491,31 +807,77 @@ public class CommunicationService {
         }
         clientTask.sendRaw(String.format("%s %d %s %s",
                 AppConfig.NetworkCommand.SEND_DATA,
-                otherClientId,
+                session.otherClientId,
                 AppConfig.NetworkCommand.DATA_MESSAGE,
                 encryptedMessage));
 
-        updateOwnMessageSequenceNumber();
+        session.messageByteCount += encryptedMessage.length();
+        updateOwnMessageSequenceNumber(session);
+        return true;
+    }
+
+    /**
+     * @param senderKeyText sender key of a group to be given to the other client (see {@link #queueSenderKey(PeerSession, String)})
+     * @return true if this client is not waiting for any response and no error, otherwise false
+     */
+    private boolean sendSenderKey(PeerSession session, String senderKeyText) {
+        if (!session.messageCipherMode.isAead()) {
+            // The sender key is dropped, as the other client only supporting CBC with HMAC cannot read the group
+            // messages anyway
+            System.err.println(String.format("ERROR! The other client does not support AEAD needed for the group messages. Client_ID: %d",
+                    session.otherClientId));
+            return true;
+        }
+        return sendAeadMessage(session, AppConfig.NetworkCommand.DATA_SENDER_KEY, senderKeyText);
+    }
+
+    /**
+     * @param messageHeader header of the message, i.e., DATA_AEAD or DATA_SENDER_KEY
+     * @param message       message to be sent
+     * @return true if this client is not waiting for any response and no error, otherwise false
+     */
+    private boolean sendAeadMessage(PeerSession session, String messageHeader, String message) {
+        String encryptedMessage;
+        try {
+            encryptedMessage = aeadEncDec.encrypt(message,
+                    loginClient.clientId,
+                    session.messageSequenceNumber,
+                    session.aeadKey);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | BadPaddingException | IllegalBlockSizeException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return false;
+        }
+        clientTask.sendRaw(String.format("%s %d %s %d %d %s",
+                AppConfig.NetworkCommand.SEND_DATA,
+                session.otherClientId,
+                messageHeader,
+                session.epoch,
+                session.messageSequenceNumber,
+                encryptedMessage));
+
+        session.messageByteCount += encryptedMessage.length();
+        updateOwnMessageSequenceNumber(session);
         return true;
     }
 
     /**
      * @return true if this client is not waiting for any response and no error, otherwise false
      */
-    private boolean updateMessageKey() {
-        boolean isWaitNeeded = (otherClientMessagePublicKey == null);
+    private boolean updateMessageKey(PeerSession session) {
+        boolean isWaitNeeded = (session.otherClientMessagePublicKey == null);
 
-        String messageToBeSent = generateMessageForMessageKeyAndPerformAction();
+        String messageToBeSent = generateMessageForMessageKeyAndPerformAction(session);
         if (messageToBeSent == null) {
             return !isWaitNeeded;
         }
         clientTask.sendRaw(String.format("%s %d %s",
                 AppConfig.NetworkCommand.SEND_DATA,
-                otherClientId,
+                session.otherClientId,
                 messageToBeSent));
 
-        if (!isMessageKeyUpdated) {
-            updateOwnMessageSequenceNumber();
+        if (!session.isMessageKeyUpdated) {
+            updateOwnMessageSequenceNumber(session);
         }
         return !isWaitNeeded;
     }
@@ -523,45 +885,74 @@ public class CommunicationService {
     /**
      * @return the message part to be sent to the other client (without the server header)
      */
-    private String generateMessageForMessageKeyAndPerformAction() {
-        String messageHeader = getMessageHeader();
-        if (otherClientMessagePublicKey == null) {
-            messageKey = diffieHellmanKeyExchange.generateKey(AppConfig.RSA_KEY_SIZE);
-            String messageToBeSignedOrTagged = String.format("%d %s",
-                    messageSequenceNumber,
-                    messageKey.publicKey);
+    private String generateMessageForMessageKeyAndPerformAction(PeerSession session) {
+        String messageHeader = getMessageHeader(session);
+        if (session.otherClientMessagePublicKey == null) {
+            session.messageKey = diffieHellmanKeyExchange.takeKey(session.keyAgreementMode);
+            String messageToBeSignedOrTagged = formatMessagePublicKey(session, messageHeader,
+                    session.messageSequenceNumber,
+                    session.messageKey.publicKey);
             return String.format("%s %s %s",
                     messageHeader,
-                    generateSignatureOrTag(messageToBeSignedOrTagged, sharedSecretMessageKey),
+                    generateSignatureOrTag(messageToBeSignedOrTagged, session.hmacKey),
                     messageToBeSignedOrTagged);
         } else {
-            if (messageKey != null) {
-                updateSharedSecretMessageKey();
+            if (session.messageKey != null) {
+                updateSharedSecretMessageKey(session);
                 return null;
             }
-            messageKey = diffieHellmanKeyExchange.generateKey(AppConfig.RSA_KEY_SIZE);
-            AsymmetricKeyPair oldMessageKey = messageKey;
-            String oldSharedSecretMessageKey = sharedSecretMessageKey;
-            String messageToBeSignedOrTagged = String.format("%d %s",
-                    messageSequenceNumber,
+            session.messageKey = diffieHellmanKeyExchange.takeKey(session.keyAgreementMode);
+            AsymmetricKeyPair oldMessageKey = session.messageKey;
+            // The key of the last epoch is kept, as the new public key is tagged with it
+            HmacGenerateVerify.HmacKey oldHmacKey = session.hmacKey;
+            String messageToBeSignedOrTagged = formatMessagePublicKey(session, messageHeader,
+                    session.messageSequenceNumber,
                     oldMessageKey.publicKey);
-            updateSharedSecretMessageKey();
+            updateSharedSecretMessageKey(session);
             return String.format("%s %s %s",
                     messageHeader,
-                    generateSignatureOrTag(messageToBeSignedOrTagged, oldSharedSecretMessageKey),
+                    generateSignatureOrTag(messageToBeSignedOrTagged, oldHmacKey),
                     messageToBeSignedOrTagged);
         }
     }
 
-    private String getMessageHeader() {
-        if (sharedSecretMessageKey == null) {
-            if (otherClientMessagePublicKey == null) {
+    /**
+     * @return the signed or tagged part of the message, i.e., <code>&lt;Seq_Num&gt; &lt;Client_DH_Public_Key&gt;</code>
+     * followed by <code>&lt;Key_Agreement_Version&gt; &lt;Message_Cipher_Version&gt;</code> if starting the key
+     * exchange, and a random <code>&lt;Start_Nonce&gt;</code> for <code>DATA_DH_START</code>
+     */
+    private String formatMessagePublicKey(PeerSession session, String messageHeader, int messageSequenceNumber, String messagePublicKey) {
+        if (messageHeader.equals(AppConfig.NetworkCommand.DATA_DH_START)) {
+            byte[] startNonce = new byte[START_NONCE_SIZE];
+            AppConfig.SECURE_RANDOM.nextBytes(startNonce);
+            return String.format("%d %s %d %d %s",
+                    messageSequenceNumber,
+                    messagePublicKey,
+                    session.keyAgreementMode.version,
+                    session.messageCipherMode.version,
+                    Base64.getEncoder().encodeToString(startNonce));
+        }
+        if (messageHeader.equals(AppConfig.NetworkCommand.DATA_DH_START_ACCEPT)) {
+            return String.format("%d %s %d %d",
+                    messageSequenceNumber,
+                    messagePublicKey,
+                    session.keyAgreementMode.version,
+                    session.messageCipherMode.version);
+        }
+        return String.format("%d %s",
+                messageSequenceNumber,
+                messagePublicKey);
+    }
+
+    private String getMessageHeader(PeerSession session) {
+        if (session.sharedSecretMessageKey == null) {
+            if (session.otherClientMessagePublicKey == null) {
                 return AppConfig.NetworkCommand.DATA_DH_START;
             } else {
                 return AppConfig.NetworkCommand.DATA_DH_START_ACCEPT;
             }
         } else {
-            if (otherClientMessagePublicKey == null) {
+            if (session.otherClientMessagePublicKey == null) {
                 return AppConfig.NetworkCommand.DATA_DH_CHANGE;
             } else {
                 return AppConfig.NetworkCommand.DATA_DH_CHANGE_ACCEPT;
@@ -569,17 +960,50 @@ public class CommunicationService {
         }
     }
 
-    private void updateSharedSecretMessageKey() {
+    private void updateSharedSecretMessageKey(PeerSession session) {
+        boolean isNewEpoch = (session.sharedSecretMessageKey != null);
+        AeadEncDec.AeadKey oldAeadKey = session.aeadKey;
         try {
-            sharedSecretMessageKey = diffieHellmanKeyExchange.getSharedSecretKey(messageKey, otherClientMessagePublicKey);
+            session.sharedSecretMessageKey = diffieHellmanKeyExchange.getSharedSecretKey(session.keyAgreementMode, session.messageKey, session.otherClientMessagePublicKey);
         } catch (InvalidKeySpecException | InvalidKeyException e) {
             e.printStackTrace();
             logger.severe(e.getMessage());
             return;
         }
-        RandomGeneratorHelper randomGeneratorHelper = new RandomGeneratorHelper(sharedSecretMessageKey);
-        sharedSecretEncryptionKey = randomGeneratorHelper.nextBase64String(AppConfig.AES_KEY_SIZE / 8);
-        sharedSecretHmacKey = randomGeneratorHelper.nextBase64String(AppConfig.RSA_KEY_SIZE / 8);
+        if (session.messageCipherMode.isAead()) {
+            // Both of the keys in one pass, bound to both of the clients (in the order of Client_ID) and the cipher
+            String[] derivedKeys;
+            try {
+                derivedKeys = hkdf.deriveKeys(session.sharedSecretMessageKey,
+                        String.format("%s %d %d %d",
+                                MESSAGE_KEY_INFO,
+                                Math.min(loginClient.clientId, session.otherClientId),
+                                Math.max(loginClient.clientId, session.otherClientId),
+                                session.messageCipherMode.version),
+                        AppConfig.AES_KEY_SIZE / 8,
+                        AppConfig.HMAC_KEY_SIZE / 8);
+            } catch (InvalidKeyException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+                return;
+            }
+            session.sharedSecretEncryptionKey = derivedKeys[0];
+            session.sharedSecretHmacKey = derivedKeys[1];
+            session.aeadKey = aeadEncDec.decodeKey(session.messageCipherMode, session.sharedSecretEncryptionKey);
+        } else {
+            // The keys are derived as by the clients only supporting CBC with HMAC
+            RandomGeneratorHelper randomGeneratorHelper = new RandomGeneratorHelper(session.sharedSecretMessageKey);
+            session.sharedSecretEncryptionKey = randomGeneratorHelper.nextBase64String(AppConfig.AES_KEY_SIZE / 8);
+            session.sharedSecretHmacKey = randomGeneratorHelper.nextBase64String(AppConfig.RSA_KEY_SIZE / 8);
+            session.encryptionKey = aesGenEncDec.decodeKey(session.sharedSecretEncryptionKey);
+        }
+        try {
+            session.hmacKey = hmacGenerateVerify.decodeKey(session.sharedSecretHmacKey);
+        } catch (InvalidKeyException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            session.hmacKey = null;
+        }
 
         logger.info(String.format("MessageKey.PrivateKey: %s\n" +
                         "MessageKey.PublicKey: %s\n" +
@@ -587,68 +1011,69 @@ public class CommunicationService {
                         "SharedSecretMessageKey: %s\n" +
                         "SharedSecretEncryptionKey: %s\n" +
                         "SharedSecretHmacKey: %s",
-                messageKey.privateKey,
-                messageKey.publicKey,
-                otherClientMessagePublicKey,
-                sharedSecretMessageKey,
-                sharedSecretEncryptionKey,
-                sharedSecretHmacKey));
-
-        isMessageKeyUpdated = true;
-        messageKey = null;
-        otherClientMessagePublicKey = null;
-        messageSequenceNumber = 0;
-        otherClientMessageSequenceNumber = 0;
+                session.messageKey.privateKey,
+                session.messageKey.publicKey,
+                session.otherClientMessagePublicKey,
+                session.sharedSecretMessageKey,
+                session.sharedSecretEncryptionKey,
+                session.sharedSecretHmacKey));
+
+        if (isNewEpoch) {
+            session.epoch++;
+            session.previousAeadKey = oldAeadKey;
+            session.previousOtherClientReplayWindow = session.otherClientReplayWindow;
+            session.previousEpochEndTime = System.nanoTime();
+        }
+        session.epochStartTime = System.nanoTime();
+        session.messageByteCount = 0;
+        session.isMessageKeyUpdated = true;
+        session.messageKey = null;
+        session.otherClientMessagePublicKey = null;
+        session.messageSequenceNumber = 0;
+        session.otherClientReplayWindow = new ReplayWindow();
     }
 
-    private String generateSignatureOrTag(String messageToBeSignedOrTagged, String sharedSecretMessageKeyToBeUsed) {
-        if (sharedSecretMessageKeyToBeUsed == null) {
+    /**
+     * @param hmacKeyToBeUsed HMAC key of the epoch to tag with, or null to sign (i.e., before the first epoch)
+     */
+    private String generateSignatureOrTag(String messageToBeSignedOrTagged, HmacGenerateVerify.HmacKey hmacKeyToBeUsed) {
+        if (hmacKeyToBeUsed == null) {
             try {
-                return rsaSignVerify.sign(messageToBeSignedOrTagged, loginClient.clientPrivateKey);
+                return rsaSignVerify.sign(messageToBeSignedOrTagged, signupLoginService.getLoginPrivateKey());
             } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
                 e.printStackTrace();
                 logger.severe(e.getMessage());
-            }
-        } else {
-            try {
-                String hmacKeyToBeUsed;
-                if (sharedSecretMessageKeyToBeUsed.equals(sharedSecretMessageKey)) {
-                    hmacKeyToBeUsed = sharedSecretHmacKey;
-                } else {
-                    RandomGeneratorHelper randomGeneratorHelper = new RandomGeneratorHelper(sharedSecretMessageKeyToBeUsed);
-                    randomGeneratorHelper.nextBase64String(AppConfig.AES_KEY_SIZE / 8);
-                    hmacKeyToBeUsed = randomGeneratorHelper.nextBase64String(AppConfig.RSA_KEY_SIZE / 8);
-                }
-                return hmacGenerateVerify.generateTag(messageToBeSignedOrTagged, hmacKeyToBeUsed);
-            } catch (InvalidKeyException e) {
-                e.printStackTrace();
-                logger.severe(e.getMessage());
+                return null;
             }
         }
-        return null;
+        return hmacGenerateVerify.generateTag(messageToBeSignedOrTagged, hmacKeyToBeUsed);
     }
 
-    private void updateOwnMessageSequenceNumber() {
-        messageSequenceNumber++;
-        // otherClientMessageSequenceNumber++; // this is updated after receiving the other client's message
-
-        if (isMessageKeyUpdated) {
-            if (messageSequenceNumber > AppConfig.MESSAGE_SEQUENCE_NUMBER_UPDATE_MIN) {
-                isMessageKeyUpdated = AppConfig.SECURE_RANDOM.nextBoolean();
-            }
+    /**
+     * @param replayWindow window of the epoch the message belongs to
+     * @return true if the sequence number is neither received before nor too old (see {@link ReplayWindow}),
+     * otherwise false
+     */
+    static boolean checkOtherClientMessageSequenceNumber(int foundOtherClientMessageSequenceNumber, ReplayWindow replayWindow) {
+        if (!replayWindow.isAcceptable(foundOtherClientMessageSequenceNumber)) {
+            System.err.println(String.format("The other client's message sequence number is replayed or too old!\n" +
+                            "Found: %d\n" +
+                            "Highest received: %d",
+                    foundOtherClientMessageSequenceNumber,
+                    replayWindow.getHighest()));
+            return false;
         }
+        return true;
     }
 
-    private void resetMessageObjects() {
-        isMessageKeyUpdated = false;
-        sharedSecretMessageKey = null;
-        sharedSecretEncryptionKey = null;
-        sharedSecretHmacKey = null;
-        messageKey = null;
-        otherClientMessagePublicKey = null;
-        messageSequenceNumber = 0;
-        otherClientMessageSequenceNumber = 0;
-
-        messageQueue.clear();
+    private void updateOwnMessageSequenceNumber(PeerSession session) {
+        session.messageSequenceNumber++;
+        // session.otherClientReplayWindow.update(...); // this is updated after receiving the other client's message
+
+        if (session.isMessageKeyUpdated) {
+            session.isMessageKeyUpdated = !messageKeyUpdatePolicy.isUpdateNeeded(session.messageSequenceNumber,
+                    session.messageByteCount,
+                    System.nanoTime() - session.epochStartTime);
+        }
     }
 }
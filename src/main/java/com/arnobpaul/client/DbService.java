@@ -1,11 +1,16 @@
 package com.arnobpaul.client;
 
 import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.collection.IntObjectHashMap;
 import com.arnobpaul.common.crypto.AsymmetricKeyPair;
+import com.arnobpaul.common.crypto.PublicKeyCache;
+import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.nio.file.FileSystemException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DbService {
     private static final String DATABASE_URL_PREFIX = "jdbc:sqlite:";
@@ -26,7 +31,15 @@ public class DbService {
 
     private final Connection dbConnection;
 
-    public DbService(String dataFolder) throws FileSystemException, SQLException {
+    private final PublicKeyCache publicKeyCache;
+
+    /**
+     * @param dataFolder     folder of the database file
+     * @param publicKeyCache cache of the parsed public keys to be invalidated once a trusted public key is changed
+     */
+    public DbService(String dataFolder, @NotNull PublicKeyCache publicKeyCache) throws FileSystemException, SQLException {
+        this.publicKeyCache = publicKeyCache;
+
         File dataFolderFile = new File(dataFolder);
         boolean isFolderCreated = new File(dataFolder).mkdir();
         if (!isFolderCreated && !dataFolderFile.exists()) {
@@ -127,6 +140,7 @@ public class DbService {
         statement.setInt(1, clientId);
         statement.setString(2, clientPublicKey);
         int affectedRows = statement.executeUpdate();
+        publicKeyCache.invalidate(clientId);
 
         if (affectedRows == 0) {
             throw new SQLException("Insert failed.");
@@ -155,12 +169,30 @@ public class DbService {
         }
     }
 
+    /**
+     * @return all the trusted public keys by client ID
+     */
+    public IntObjectHashMap<String> getTrustList() throws SQLException {
+        final String sql = "SELECT * FROM " + TRUST_LIST_TABLE;
+
+        PreparedStatement statement = dbConnection.prepareStatement(sql);
+        ResultSet clientSet = statement.executeQuery();
+
+        IntObjectHashMap<String> trustList = new IntObjectHashMap<>();
+        while (clientSet.next()) {
+            trustList.put(clientSet.getInt(TRUST_LIST_CLIENT_ID_COL),
+                    clientSet.getString(TRUST_LIST_CLIENT_PUBLIC_KEY_COL));
+        }
+        return trustList;
+    }
+
     public boolean deleteFromTrustList(int clientId) throws SQLException {
         final String sql = "DELETE FROM " + TRUST_LIST_TABLE + " WHERE " + TRUST_LIST_CLIENT_ID_COL + " = ?";
 
         PreparedStatement statement = dbConnection.prepareStatement(sql);
         statement.setInt(1, clientId);
         int deletedRows = statement.executeUpdate();
+        publicKeyCache.invalidate(clientId);
 
         return (deletedRows > 0);
     }
@@ -201,6 +233,22 @@ public class DbService {
         }
     }
 
+    /**
+     * @return all the blocked client IDs in ascending order
+     */
+    public int[] getBlockList() throws SQLException {
+        final String sql = "SELECT * FROM " + BLOCK_LIST_TABLE + " ORDER BY " + BLOCK_LIST_CLIENT_ID_COL;
+
+        PreparedStatement statement = dbConnection.prepareStatement(sql);
+        ResultSet clientSet = statement.executeQuery();
+
+        List<Integer> blockList = new ArrayList<>();
+        while (clientSet.next()) {
+            blockList.add(clientSet.getInt(BLOCK_LIST_CLIENT_ID_COL));
+        }
+        return blockList.stream().mapToInt(Integer::intValue).toArray();
+    }
+
     public boolean deleteFromBlockList(int clientId) throws SQLException {
         final String sql = "DELETE FROM " + BLOCK_LIST_TABLE + " WHERE " + BLOCK_LIST_CLIENT_ID_COL + " = ?";
 
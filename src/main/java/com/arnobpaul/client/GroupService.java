@@ -0,0 +1,657 @@
+package com.arnobpaul.client;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.collection.IntObjectHashMap;
+import com.arnobpaul.common.crypto.*;
+import com.arnobpaul.common.network.CommandRegistry;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.logging.Logger;
+
+/**
+ * This class sends, and receives, the messages of the groups. A message to a group is encrypted once with the sender
+ * key of this client (see {@link GroupSession}) and sent once, so the server passes the same ciphertext to all the
+ * members. The sender key is given to every other member as a message of its {@link PeerSession} through
+ * {@link CommunicationService}, which calls back this class for the sender keys it receives.
+ * <p>
+ * The groups are only accessed while holding the lock of {@link CommunicationService}, as giving a sender key changes
+ * the {@link PeerSession} of the member.
+ */
+public class GroupService implements CommunicationService.SenderKeyListener {
+    private final ClientTask clientTask;
+
+    private final CommunicationService communicationService;
+    private final SignupLoginService signupLoginService;
+    private final TrustAndBlockListService trustAndBlockListService;
+
+    private final AeadEncDec aeadEncDec;
+    private final Hkdf hkdf;
+    private final Ed25519SignVerify ed25519SignVerify;
+
+    private final MessageKeyUpdatePolicy messageKeyUpdatePolicy = new MessageKeyUpdatePolicy(
+            AppConfig.MESSAGE_KEY_UPDATE_MESSAGE_COUNT,
+            AppConfig.MESSAGE_KEY_UPDATE_BYTE_COUNT,
+            AppConfig.MESSAGE_KEY_UPDATE_INTERVAL);
+
+    private ClientEntity loginClient = null;
+
+    // Groups of this client by Group_ID
+    private final IntObjectHashMap<GroupSession> groupSessions = new IntObjectHashMap<>();
+    // Group_ID the typed messages are sent to, or 0 if sent to the active client
+    private int activeGroupId = 0;
+
+    // Context of the sender keys derived by HKDF
+    private static final String SENDER_KEY_INFO = "SecureChat sender keys";
+
+    private static final Logger logger = Logger.getLogger(GroupService.class.getName());
+
+    public GroupService(@NotNull ClientTask clientTask,
+                        @NotNull CommunicationService communicationService,
+                        @NotNull SignupLoginService signupLoginService,
+                        @NotNull TrustAndBlockListService trustAndBlockListService,
+                        @NotNull AeadEncDec aeadEncDec,
+                        @NotNull Hkdf hkdf,
+                        @NotNull Ed25519SignVerify ed25519SignVerify) {
+        this.clientTask = clientTask;
+        this.communicationService = communicationService;
+        this.signupLoginService = signupLoginService;
+        this.trustAndBlockListService = trustAndBlockListService;
+        this.aeadEncDec = aeadEncDec;
+        this.hkdf = hkdf;
+        this.ed25519SignVerify = ed25519SignVerify;
+    }
+
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_CREATE_SUCCESS, this::processGroupCreateSuccess);
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_MEMBERS, this::processGroupMembers);
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_DATA, this::processGroupData);
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_FAILURE, this::processGroupFailure);
+    }
+
+    public boolean requestGroupCreate() {
+        synchronized (communicationService) {
+            loginClient = signupLoginService.getLoginClient();
+            if (loginClient == null) {
+                System.err.println("Client must be logged in to create a group.");
+                return false;
+            }
+
+            clientTask.sendRaw(AppConfig.NetworkCommand.GROUP_CREATE);
+            return true;
+        }
+    }
+
+    public boolean requestGroupAdd(String data) {
+        synchronized (communicationService) {
+            loginClient = signupLoginService.getLoginClient();
+            if (loginClient == null) {
+                System.err.println("Client must be logged in to add a group member.");
+                return false;
+            }
+
+            String[] dataItems = (data == null) ? new String[0] : data.split(" ");
+            if (dataItems.length != 2) {
+                System.err.println(String.format("ERROR! Enter \"%s <Group_ID> <Client_ID>\"",
+                        AppConfig.UserCommand.GROUP_ADD));
+                return false;
+            }
+            int foundGroupId;
+            int foundClientId;
+            try {
+                foundGroupId = Integer.parseInt(dataItems[0]);
+                foundClientId = Integer.parseInt(dataItems[1]);
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                logger.warning(e.getMessage());
+                return false;
+            }
+
+            clientTask.sendRaw(String.format("%s %d %d",
+                    AppConfig.NetworkCommand.GROUP_ADD,
+                    foundGroupId,
+                    foundClientId));
+            return true;
+        }
+    }
+
+    /**
+     * This method makes the group active, so the typed messages are sent to the group until another client or group
+     * is chosen. The members are fetched again, in case they are changed.
+     */
+    public boolean requestGroup(String data) {
+        synchronized (communicationService) {
+            loginClient = signupLoginService.getLoginClient();
+            if (loginClient == null) {
+                System.err.println("Client must be logged in to send a message to a group.");
+                return false;
+            }
+
+            int foundGroupId;
+            try {
+                foundGroupId = Integer.parseInt(data);
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                logger.warning(e.getMessage());
+                return false;
+            }
+
+            activeGroupId = foundGroupId;
+            getOrCreateGroupSession(foundGroupId);
+            clientTask.sendRaw(String.format("%s %d",
+                    AppConfig.NetworkCommand.GROUP_MEMBERS,
+                    foundGroupId));
+            return true;
+        }
+    }
+
+    /**
+     * The message waits for the members if they are not told by the server yet.
+     */
+    public boolean requestSendMessage(String data) {
+        if (data == null || data.isEmpty()) {
+            System.err.println("Sending message cannot be null or empty.");
+            return false;
+        }
+
+        synchronized (communicationService) {
+            loginClient = signupLoginService.getLoginClient();
+            if (loginClient == null) {
+                System.err.println("Client must be logged in to send a message to a group.");
+                return false;
+            }
+
+            if (activeGroupId == 0) {
+                System.err.println("Error! Please provide Group_ID before sending a message.");
+                return false;
+            }
+            GroupSession groupSession = getOrCreateGroupSession(activeGroupId);
+            if (groupSession.memberIds == null) {
+                groupSession.messageQueue.add(data);
+                return true;
+            }
+            return sendGroupMessage(groupSession, data);
+        }
+    }
+
+    /**
+     * @return true if the typed messages are sent to a group, otherwise false (i.e., sent to the active client)
+     */
+    public boolean isGroupActive() {
+        synchronized (communicationService) {
+            return activeGroupId != 0;
+        }
+    }
+
+    /**
+     * This method makes the typed messages sent to the active client again (e.g., another client is chosen).
+     */
+    public void deactivateGroup() {
+        synchronized (communicationService) {
+            activeGroupId = 0;
+        }
+    }
+
+    public boolean processGroupCreateSuccess(String data) {
+        synchronized (communicationService) {
+            int foundGroupId;
+            try {
+                foundGroupId = Integer.parseInt(data);
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                logger.warning(e.getMessage());
+                return false;
+            }
+
+            System.out.println(String.format("Group created. Group_ID: %d (Enter \"%s %d <Client_ID>\" to add a member, " +
+                            "and \"%s %d\" to send messages to the group)",
+                    foundGroupId,
+                    AppConfig.UserCommand.GROUP_ADD,
+                    foundGroupId,
+                    AppConfig.UserCommand.GROUP,
+                    foundGroupId));
+            return true;
+        }
+    }
+
+    public boolean processGroupMembers(String data) {
+        synchronized (communicationService) {
+            loginClient = signupLoginService.getLoginClient();
+            if (loginClient == null || data == null) {
+                return false;
+            }
+
+            String[] dataItems = data.split(" ", 2);
+            int foundGroupId;
+            int[] foundMemberIds;
+            try {
+                foundGroupId = Integer.parseInt(dataItems[0]);
+                if (dataItems.length != 2) {
+                    throw new NumberFormatException("No member found for Group_ID: " + foundGroupId);
+                }
+                String[] memberIdItems = dataItems[1].split(",");
+                foundMemberIds = new int[memberIdItems.length];
+                for (int i = 0; i < memberIdItems.length; i++) {
+                    foundMemberIds[i] = Integer.parseInt(memberIdItems[i]);
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                logger.warning(e.getMessage());
+                return false;
+            }
+
+            GroupSession groupSession = getOrCreateGroupSession(foundGroupId);
+            groupSession.memberIds = foundMemberIds;
+            System.out.println(String.format("[Group_ID %d] Members: %s",
+                    foundGroupId,
+                    Arrays.toString(foundMemberIds)));
+
+            // A new member gets the current sender key at once, as the messages to the group may already be sent
+            if (groupSession.senderKey != null) {
+                distributeSenderKey(groupSession);
+            }
+            while (!groupSession.messageQueue.isEmpty()) {
+                if (!sendGroupMessage(groupSession, groupSession.messageQueue.poll())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public boolean processGroupData(String data) {
+        synchronized (communicationService) {
+            loginClient = signupLoginService.getLoginClient();
+            if (loginClient == null) {
+                System.err.println("Client must be logged in to receive a message to a group.");
+                return false;
+            }
+            if (data == null) {
+                System.err.println(String.format("Null data received for Header: %s",
+                        AppConfig.NetworkCommand.GROUP_DATA));
+                return false;
+            }
+
+            String[] dataItems = data.split(" ", 3);
+            if (dataItems.length != 3) {
+                System.err.println(String.format("Malformed data received for Header: %s ; Data: %s",
+                        AppConfig.NetworkCommand.GROUP_DATA, data));
+                return false;
+            }
+            int foundGroupId;
+            int foundSenderClientId;
+            try {
+                foundGroupId = Integer.parseInt(dataItems[0]);
+                foundSenderClientId = Integer.parseInt(dataItems[1]);
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                logger.warning(e.getMessage());
+                return false;
+            }
+            if (foundSenderClientId == loginClient.clientId) {
+                return false;
+            }
+            if (trustAndBlockListService.isClientBlocked(foundSenderClientId)) {
+                logger.warning(String.format("Group message received from a blocked client! Group_ID: %d ; Client_ID: %d",
+                        foundGroupId,
+                        foundSenderClientId));
+                return false;
+            }
+
+            return processGroupMessage(getOrCreateGroupSession(foundGroupId), foundSenderClientId, dataItems[2]);
+        }
+    }
+
+    public boolean processGroupFailure(String data) {
+        synchronized (communicationService) {
+            System.err.println(String.format("Failed to process the group request. Group_ID: %s",
+                    data));
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isSenderKeyRequested(int clientId) {
+        boolean[] isRequested = {false};
+        groupSessions.forEach((groupId, groupSession) ->
+                isRequested[0] |= groupSession.senderKeyRequestedIds.contains(clientId));
+        return isRequested[0] || isGroupMember(clientId);
+    }
+
+    @Override
+    public void onPeerSessionInvited(@NotNull PeerSession session) {
+        loginClient = signupLoginService.getLoginClient();
+        if (loginClient == null) {
+            return;
+        }
+        groupSessions.forEach((groupId, groupSession) -> distributeSenderKey(groupSession));
+    }
+
+    @Override
+    public void onPeerSessionRestarted(@NotNull PeerSession session) {
+        groupSessions.forEach((groupId, groupSession) -> {
+            groupSession.removeOtherSenderKey(session.otherClientId);
+            if (groupSession.senderKeyRecipientIds.contains(session.otherClientId)) {
+                session.senderKeyQueue.add(groupSession.senderKeyText);
+            }
+        });
+    }
+
+    @Override
+    public boolean onSenderKeyReceived(@NotNull PeerSession session, @NotNull String senderKeyText) {
+        return processSenderKey(session.otherClientId, senderKeyText);
+    }
+
+    private GroupSession getOrCreateGroupSession(int groupId) {
+        GroupSession groupSession = groupSessions.get(groupId);
+        if (groupSession == null) {
+            groupSession = new GroupSession(groupId);
+            groupSessions.put(groupId, groupSession);
+        }
+        return groupSession;
+    }
+
+    /**
+     * @return true if the client is a member of a group of this client (as told by the server), otherwise false
+     */
+    private boolean isGroupMember(int clientId) {
+        boolean[] isMember = {false};
+        groupSessions.forEach((groupId, groupSession) -> isMember[0] |= groupSession.isMember(clientId));
+        return isMember[0];
+    }
+
+    /**
+     * This method encrypts, and signs, the message once with the sender key, so the server passes the same
+     * ciphertext to all the members.
+     *
+     * @return true if no error, otherwise false
+     */
+    private boolean sendGroupMessage(GroupSession groupSession, String message) {
+        if (groupSession.senderKey == null || groupSession.isSenderKeyUpdateNeeded) {
+            if (!updateSenderKey(groupSession)) {
+                return false;
+            }
+        }
+        distributeSenderKey(groupSession);
+
+        GroupSession.SenderKey senderKey = groupSession.senderKey;
+        String encryptedMessage;
+        String signature;
+        try {
+            encryptedMessage = aeadEncDec.encrypt(message,
+                    loginClient.clientId,
+                    groupSession.messageSequenceNumber,
+                    senderKey.aeadKey);
+            // The signature proves the sender to the other members, as every member knows the sender key
+            signature = ed25519SignVerify.sign(String.format("%d %d %d %s",
+                            groupSession.groupId,
+                            senderKey.keyId,
+                            groupSession.messageSequenceNumber,
+                            encryptedMessage),
+                    senderKey.signingPrivateKey);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | BadPaddingException | IllegalBlockSizeException | SignatureException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return false;
+        }
+        clientTask.sendRaw(String.format("%s %d %s %d %d %s %s",
+                AppConfig.NetworkCommand.GROUP_SEND,
+                groupSession.groupId,
+                AppConfig.NetworkCommand.DATA_GROUP_MESSAGE,
+                senderKey.keyId,
+                groupSession.messageSequenceNumber,
+                encryptedMessage,
+                signature));
+
+        groupSession.messageByteCount += encryptedMessage.length();
+        groupSession.messageSequenceNumber++;
+        groupSession.isSenderKeyUpdateNeeded = messageKeyUpdatePolicy.isUpdateNeeded(groupSession.messageSequenceNumber,
+                groupSession.messageByteCount,
+                System.nanoTime() - groupSession.senderKeyStartTime);
+        return true;
+    }
+
+    /**
+     * This method replaces the sender key of this client, so it is given again to all the members (e.g., a removed
+     * member cannot read the later messages once the key is replaced).
+     *
+     * @return true if no error, otherwise false
+     */
+    private boolean updateSenderKey(GroupSession groupSession) {
+        if (!AppConfig.MESSAGE_CIPHER_MODE.isAead()) {
+            System.err.println(String.format("ERROR! AEAD needed for the group messages. Message cipher: %s",
+                    AppConfig.MESSAGE_CIPHER_MODE));
+            return false;
+        }
+
+        int keyId = (groupSession.senderKey == null) ? 1 : groupSession.senderKey.keyId + 1;
+        byte[] secret = new byte[AppConfig.AES_KEY_SIZE / 8];
+        AppConfig.SECURE_RANDOM.nextBytes(secret);
+        String senderKeySecret = Base64.getEncoder().encodeToString(secret);
+        AsymmetricKeyPair signingKeyPair = ed25519SignVerify.generateKeyPair();
+        try {
+            groupSession.senderKey = new GroupSession.SenderKey(keyId,
+                    deriveSenderKey(groupSession.groupId, loginClient.clientId, keyId, AppConfig.MESSAGE_CIPHER_MODE, senderKeySecret),
+                    ed25519SignVerify.decodePrivateKey(signingKeyPair.privateKey),
+                    null);
+        } catch (InvalidKeyException | InvalidKeySpecException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return false;
+        }
+        groupSession.senderKeyText = String.format("%d %d %d %s %s",
+                groupSession.groupId,
+                keyId,
+                AppConfig.MESSAGE_CIPHER_MODE.version,
+                senderKeySecret,
+                signingKeyPair.publicKey);
+        groupSession.messageSequenceNumber = 0;
+        groupSession.messageByteCount = 0;
+        groupSession.senderKeyStartTime = System.nanoTime();
+        groupSession.isSenderKeyUpdateNeeded = false;
+        groupSession.senderKeyRecipientIds.clear();
+        groupSession.senderKeyRequestedIds.clear();
+        return true;
+    }
+
+    /**
+     * The key is bound to the group, the sender, its Key_ID and the cipher, like the message keys of a session.
+     */
+    private AeadEncDec.AeadKey deriveSenderKey(int groupId, int senderClientId, int keyId,
+                                               MessageCipherMode messageCipherMode, String senderKeySecret) throws InvalidKeyException {
+        String[] derivedKeys = hkdf.deriveKeys(senderKeySecret,
+                String.format("%s %d %d %d %d",
+                        SENDER_KEY_INFO,
+                        groupId,
+                        senderClientId,
+                        keyId,
+                        messageCipherMode.version),
+                AppConfig.AES_KEY_SIZE / 8);
+        return aeadEncDec.decodeKey(messageCipherMode, derivedKeys[0]);
+    }
+
+    /**
+     * This method gives the sender key of this client to every other member not having it yet, as a message of their
+     * session. A session is requested from the server for a member without one, and the key is given once the session
+     * is invited (see {@link #onPeerSessionInvited(PeerSession)}).
+     */
+    private void distributeSenderKey(GroupSession groupSession) {
+        if (groupSession.senderKey == null || groupSession.memberIds == null) {
+            return;
+        }
+
+        for (int memberId : groupSession.memberIds) {
+            if (memberId == loginClient.clientId
+                    || groupSession.senderKeyRecipientIds.contains(memberId)
+                    || trustAndBlockListService.isClientBlocked(memberId)) {
+                continue;
+            }
+
+            PeerSession session = communicationService.getPeerSession(memberId);
+            if (session == null) {
+                if (groupSession.senderKeyRequestedIds.add(memberId)) {
+                    clientTask.sendRaw(String.format("%s %d",
+                            AppConfig.NetworkCommand.SEND_START,
+                            memberId));
+                }
+                continue;
+            }
+            if (!trustAndBlockListService.isClientPublicKeyTrusted(session.otherClientId, session.otherClientPublicKey)) {
+                // The key is given on the next message to the group once trusted
+                if (groupSession.senderKeyRequestedIds.add(memberId)) {
+                    communicationService.checkTrustListAndShowWarningIfNeeded(session);
+                }
+                continue;
+            }
+
+            groupSession.senderKeyRecipientIds.add(memberId);
+            communicationService.queueSenderKey(session, groupSession.senderKeyText);
+        }
+    }
+
+    /**
+     * @param senderKeyText decrypted <code>&lt;Group_ID&gt; &lt;Key_ID&gt; &lt;Message_Cipher_Version&gt;
+     *                      &lt;Sender_Key&gt; &lt;Signing_Public_Key&gt;</code> of DATA_SENDER_KEY
+     */
+    private boolean processSenderKey(int senderClientId, String senderKeyText) {
+        String[] senderKeyItems = senderKeyText.split(" ");
+        if (senderKeyItems.length != 5) {
+            System.err.println(String.format("Malformed sender key received from Client_ID: %d",
+                    senderClientId));
+            return false;
+        }
+        int foundGroupId;
+        int foundKeyId;
+        MessageCipherMode foundMessageCipherMode;
+        GroupSession.SenderKey foundSenderKey;
+        try {
+            foundGroupId = Integer.parseInt(senderKeyItems[0]);
+            foundKeyId = Integer.parseInt(senderKeyItems[1]);
+            foundMessageCipherMode = MessageCipherMode.fromVersion(Integer.parseInt(senderKeyItems[2]));
+            if (foundMessageCipherMode == null || !foundMessageCipherMode.isAead()) {
+                System.err.println(String.format("Unsupported sender key cipher version received! Version: %s ; Client_ID: %d",
+                        senderKeyItems[2],
+                        senderClientId));
+                return false;
+            }
+            foundSenderKey = new GroupSession.SenderKey(foundKeyId,
+                    deriveSenderKey(foundGroupId, senderClientId, foundKeyId, foundMessageCipherMode, senderKeyItems[3]),
+                    null,
+                    ed25519SignVerify.decodePublicKey(senderKeyItems[4]));
+        } catch (NumberFormatException | InvalidKeyException | InvalidKeySpecException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return false;
+        }
+
+        GroupSession groupSession = getOrCreateGroupSession(foundGroupId);
+        GroupSession.SenderKey latestSenderKey = groupSession.getOtherSenderKey(senderClientId);
+        if (latestSenderKey != null && foundKeyId <= latestSenderKey.keyId) {
+            logger.info(String.format("Old sender key ignored. Group_ID: %d ; Client_ID: %d ; Key_ID: %d",
+                    foundGroupId,
+                    senderClientId,
+                    foundKeyId));
+            return true;
+        }
+        groupSession.putOtherSenderKey(senderClientId, foundSenderKey, System.nanoTime());
+
+        // The messages received before the key are shown now
+        for (String pendingMessage : groupSession.takePendingMessages(senderClientId)) {
+            processGroupMessage(groupSession, senderClientId, pendingMessage);
+        }
+        return true;
+    }
+
+    /**
+     * @param data <code>DATA_GROUP &lt;Key_ID&gt; &lt;Seq_Num&gt; AeadEnc(&lt;Message&gt;) &lt;Signature&gt;</code>
+     */
+    private boolean processGroupMessage(GroupSession groupSession, int senderClientId, String data) {
+        String[] dataItems = data.split(" ");
+        if (dataItems.length != 5 || !dataItems[0].equals(AppConfig.NetworkCommand.DATA_GROUP_MESSAGE)) {
+            System.err.println(String.format("Malformed group message received. Group_ID: %d ; Client_ID: %d ; Data: %s",
+                    groupSession.groupId,
+                    senderClientId,
+                    data));
+            return false;
+        }
+        int foundKeyId;
+        int foundMessageSequenceNumber;
+        try {
+            foundKeyId = Integer.parseInt(dataItems[1]);
+            foundMessageSequenceNumber = Integer.parseInt(dataItems[2]);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return false;
+        }
+
+        GroupSession.SenderKey senderKey = groupSession.findOtherSenderKey(senderClientId,
+                foundKeyId,
+                System.nanoTime(),
+                CommunicationService.MESSAGE_KEY_PREVIOUS_EPOCH_TIMEOUT_NANOS);
+        if (senderKey == null) {
+            GroupSession.SenderKey latestSenderKey = groupSession.getOtherSenderKey(senderClientId);
+            if (latestSenderKey == null || foundKeyId > latestSenderKey.keyId) {
+                // The sender key is given through the session of the sender, which may be slower than the server
+                if (!groupSession.addPendingMessage(senderClientId, data, AppConfig.GROUP_PENDING_MESSAGE_COUNT)) {
+                    logger.warning(String.format("Too many group messages waiting for the sender keys. Group_ID: %d",
+                            groupSession.groupId));
+                }
+                return true;
+            }
+            System.err.println(String.format("The sender key of the group message expired! Group_ID: %d ; Client_ID: %d ; Key_ID: %d",
+                    groupSession.groupId,
+                    senderClientId,
+                    foundKeyId));
+            return false;
+        }
+        if (!CommunicationService.checkOtherClientMessageSequenceNumber(foundMessageSequenceNumber, senderKey.replayWindow)) {
+            return false;
+        }
+
+        String foundMessage;
+        try {
+            boolean isVerified = ed25519SignVerify.verify(String.format("%d %d %d %s",
+                            groupSession.groupId,
+                            foundKeyId,
+                            foundMessageSequenceNumber,
+                            dataItems[3]),
+                    dataItems[4],
+                    senderKey.signingPublicKey);
+            if (!isVerified) {
+                System.err.println("The group message signature mismatched!");
+                return false;
+            }
+            foundMessage = aeadEncDec.decrypt(dataItems[3],
+                    senderClientId,
+                    foundMessageSequenceNumber,
+                    senderKey.aeadKey);
+        } catch (AEADBadTagException e) {
+            System.err.println("The group message AEAD tag mismatched!");
+            return false;
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | SignatureException | IllegalArgumentException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            return false;
+        }
+        senderKey.replayWindow.update(foundMessageSequenceNumber);
+
+        System.out.println(String.format("[Group_ID %d][Client_ID %d] %s",
+                groupSession.groupId,
+                senderClientId,
+                foundMessage));
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package com.arnobpaul.client;
+
+import com.arnobpaul.common.collection.IntObjectHashMap;
+import com.arnobpaul.common.crypto.AeadEncDec;
+import org.jetbrains.annotations.Nullable;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * This class keeps the state of a group: its members, the sender key of this client and the sender keys of the other
+ * members. A sender key is the single key every message of a member to the group is encrypted (and signed) with, so a
+ * message is encrypted once for all the members. A member gives its sender key to every other member through their
+ * {@link PeerSession}s, and replaces it (i.e., a new Key_ID) like the message keys of a session. It is only accessed
+ * by {@link GroupService} while holding the lock of {@link CommunicationService}.
+ */
+class GroupSession {
+    /**
+     * This class is a sender key of a member, i.e., the key of the messages with its Key_ID, and the key of their
+     * signatures.
+     */
+    static class SenderKey {
+        final int keyId;
+        final AeadEncDec.AeadKey aeadKey;
+        // Only for the sender key of this client
+        final PrivateKey signingPrivateKey;
+        // Only for the sender keys of the other members
+        final PublicKey signingPublicKey;
+        // Sequence numbers received with the key, so the messages are accepted out of order but never twice
+        final ReplayWindow replayWindow = new ReplayWindow();
+        // Replacement time of the key (System.nanoTime()), or 0 if not replaced
+        long replacedTime = 0;
+
+        SenderKey(int keyId, AeadEncDec.AeadKey aeadKey,
+                  @Nullable PrivateKey signingPrivateKey, @Nullable PublicKey signingPublicKey) {
+            this.keyId = keyId;
+            this.aeadKey = aeadKey;
+            this.signingPrivateKey = signingPrivateKey;
+            this.signingPublicKey = signingPublicKey;
+        }
+    }
+
+    private static class PendingMessage {
+        final int senderClientId;
+        final String data;
+
+        PendingMessage(int senderClientId, String data) {
+            this.senderClientId = senderClientId;
+            this.data = data;
+        }
+    }
+
+    final int groupId;
+    // Client_IDs of the members (including this client) as told by the server, or null until told
+    int[] memberIds = null;
+
+    // Sender key of this client, or null until the first message, and its text given to the other members
+    SenderKey senderKey = null;
+    String senderKeyText = null;
+    int messageSequenceNumber = 0;
+    long senderKeyStartTime = 0;
+    long messageByteCount = 0;
+    boolean isSenderKeyUpdateNeeded = false;
+    // Members the sender key is given to, and the members a session (or a trust) is requested from for it
+    final Set<Integer> senderKeyRecipientIds = new HashSet<>();
+    final Set<Integer> senderKeyRequestedIds = new HashSet<>();
+
+    // Messages typed before the members are told by the server
+    final Queue<String> messageQueue = new ArrayDeque<>();
+
+    // Sender keys of the other members by Client_ID, and their previous keys (still accepted for a while)
+    private final IntObjectHashMap<SenderKey> otherSenderKeys = new IntObjectHashMap<>();
+    private final IntObjectHashMap<SenderKey> previousOtherSenderKeys = new IntObjectHashMap<>();
+
+    // Messages received before the sender key of their sender, in the order of receiving
+    private final Deque<PendingMessage> pendingMessages = new ArrayDeque<>();
+
+    GroupSession(int groupId) {
+        this.groupId = groupId;
+    }
+
+    /**
+     * @return the latest sender key of the member, or null if none
+     */
+    SenderKey getOtherSenderKey(int clientId) {
+        return otherSenderKeys.get(clientId);
+    }
+
+    /**
+     * @param senderKey a sender key of the member newer than its latest one; the latest one is kept as the previous one
+     * @param now       current time (System.nanoTime())
+     */
+    void putOtherSenderKey(int clientId, SenderKey senderKey, long now) {
+        SenderKey previousSenderKey = otherSenderKeys.put(clientId, senderKey);
+        if (previousSenderKey != null) {
+            previousSenderKey.replacedTime = now;
+            previousOtherSenderKeys.put(clientId, previousSenderKey);
+        }
+    }
+
+    /**
+     * This method forgets the sender keys of the member, e.g., as it restarted and its Key_IDs start over.
+     */
+    void removeOtherSenderKey(int clientId) {
+        otherSenderKeys.remove(clientId);
+        previousOtherSenderKeys.remove(clientId);
+    }
+
+    /**
+     * @param now                     current time (System.nanoTime())
+     * @param previousKeyTimeoutNanos time a previous key is still accepted after its replacement
+     * @return the sender key of the member with the Key_ID (the latest one, or the previous one not expired), or null
+     */
+    SenderKey findOtherSenderKey(int clientId, int keyId, long now, long previousKeyTimeoutNanos) {
+        SenderKey senderKey = otherSenderKeys.get(clientId);
+        if (senderKey != null && senderKey.keyId == keyId) {
+            return senderKey;
+        }
+
+        SenderKey previousSenderKey = previousOtherSenderKeys.get(clientId);
+        if (previousSenderKey == null || previousSenderKey.keyId != keyId) {
+            return null;
+        }
+        if (now - previousSenderKey.replacedTime > previousKeyTimeoutNanos) {
+            previousOtherSenderKeys.remove(clientId);
+            return null;
+        }
+        return previousSenderKey;
+    }
+
+    /**
+     * This method keeps a message until the sender key of its sender arrives, dropping the oldest message if full.
+     *
+     * @param maxCount maximum number of the messages kept
+     * @return true if no message is dropped, otherwise false
+     */
+    boolean addPendingMessage(int senderClientId, String data, int maxCount) {
+        boolean isDropped = false;
+        while (pendingMessages.size() >= maxCount) {
+            pendingMessages.poll();
+            isDropped = true;
+        }
+        pendingMessages.add(new PendingMessage(senderClientId, data));
+        return !isDropped;
+    }
+
+    /**
+     * @return the messages of the sender kept by {@link #addPendingMessage(int, String, int)} in the order of
+     * receiving (and removed)
+     */
+    List<String> takePendingMessages(int senderClientId) {
+        List<String> messages = new ArrayList<>();
+        Iterator<PendingMessage> iterator = pendingMessages.iterator();
+        while (iterator.hasNext()) {
+            PendingMessage pendingMessage = iterator.next();
+            if (pendingMessage.senderClientId == senderClientId) {
+                messages.add(pendingMessage.data);
+                iterator.remove();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return true if the client is a member as told by the server, otherwise false
+     */
+    boolean isMember(int clientId) {
+        if (memberIds == null) {
+            return false;
+        }
+        for (int memberId : memberIds) {
+            if (memberId == clientId) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,38 @@
+package com.arnobpaul.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class decides when a client updates the message keys (i.e., starts a new key exchange) with another client:
+ * once the messages sent with the keys, the bytes of the messages or the time with the keys reaches its limit,
+ * whichever comes first.
+ */
+class MessageKeyUpdatePolicy {
+    private final int maxMessageCount;
+    private final long maxByteCount;
+    private final long maxIntervalNanos;
+
+    /**
+     * @param maxMessageCount maximum number of the messages sent with the keys (i.e., the sequence number), or 0 for
+     *                        no limit
+     * @param maxByteCount    maximum bytes of the encrypted messages sent with the keys, or 0 for no limit
+     * @param maxInterval     maximum time with the keys in milliseconds, or 0 for no limit
+     */
+    MessageKeyUpdatePolicy(int maxMessageCount, long maxByteCount, long maxInterval) {
+        this.maxMessageCount = maxMessageCount;
+        this.maxByteCount = maxByteCount;
+        this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxInterval);
+    }
+
+    /**
+     * @param messageCount number of the messages sent with the keys
+     * @param byteCount    bytes of the encrypted messages sent with the keys
+     * @param ageNanos     time with the keys in nanoseconds
+     * @return true if the keys need to be updated, otherwise false
+     */
+    boolean isUpdateNeeded(int messageCount, long byteCount, long ageNanos) {
+        return (maxMessageCount > 0 && messageCount >= maxMessageCount)
+                || (maxByteCount > 0 && byteCount >= maxByteCount)
+                || (maxIntervalNanos > 0 && ageNanos >= maxIntervalNanos);
+    }
+}
@@ -0,0 +1,92 @@
+package com.arnobpaul.client;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.crypto.AeadEncDec;
+import com.arnobpaul.common.crypto.AsymmetricKeyPair;
+import com.arnobpaul.common.crypto.HmacGenerateVerify;
+import com.arnobpaul.common.crypto.KeyAgreementMode;
+import com.arnobpaul.common.crypto.MessageCipherMode;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class keeps the state of the communication with another client (i.e., a peer): its public key, the shared
+ * secret keys, the message sequence numbers and the messages (and the sender keys) waiting for a message key. It is
+ * only accessed while holding the lock of {@link CommunicationService} (i.e., also by {@link GroupService}).
+ */
+class PeerSession {
+    final int otherClientId;
+    final String otherClientPublicKey;
+
+    // Proposed by this client, or accepted from the other client starting the key exchange
+    KeyAgreementMode keyAgreementMode = AppConfig.MESSAGE_KEY_AGREEMENT_MODE;
+    MessageCipherMode messageCipherMode = AppConfig.MESSAGE_CIPHER_MODE;
+    boolean isMessageKeyUpdated = false;
+    String sharedSecretMessageKey = null;
+    String sharedSecretEncryptionKey = null;
+    String sharedSecretHmacKey = null;
+    // Decoded keys of the shared secret used for every message
+    SecretKey encryptionKey = null;
+    HmacGenerateVerify.HmacKey hmacKey = null;
+    // Only for an AEAD message cipher mode
+    AeadEncDec.AeadKey aeadKey = null;
+    AsymmetricKeyPair messageKey = null;
+    int messageSequenceNumber = 0;
+    String otherClientMessagePublicKey = null;
+    // Sequence numbers received from the other client, so its messages are accepted out of order but never twice
+    ReplayWindow otherClientReplayWindow = new ReplayWindow();
+    // Number of the key exchanges after the first one, the start of the current one (System.nanoTime()) and the
+    // bytes of the encrypted messages sent since then
+    int epoch = 0;
+    long epochStartTime = 0;
+    long messageByteCount = 0;
+    // Keys of the previous epoch, still accepted from the other client for a while after the key update (only for an
+    // AEAD message cipher mode)
+    AeadEncDec.AeadKey previousAeadKey = null;
+    ReplayWindow previousOtherClientReplayWindow = null;
+    long previousEpochEndTime = 0;
+    // Start nonces of DATA_DH_START accepted from the other client, so a replayed one never restarts the key exchange
+    // (kept over the restarts)
+    final Set<String> otherClientStartNonces = new HashSet<>();
+
+    final BlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
+    // Sender keys of the groups of this client (see GroupSession) waiting to be sent, before the messages
+    final Queue<String> senderKeyQueue = new ArrayDeque<>();
+
+    PeerSession(int otherClientId, @NotNull String otherClientPublicKey) {
+        this.otherClientId = otherClientId;
+        this.otherClientPublicKey = otherClientPublicKey;
+    }
+
+    /**
+     * This method drops the message keys (e.g., before a new key exchange), but keeps the waiting messages.
+     */
+    void resetMessageKeys() {
+        keyAgreementMode = AppConfig.MESSAGE_KEY_AGREEMENT_MODE;
+        messageCipherMode = AppConfig.MESSAGE_CIPHER_MODE;
+        isMessageKeyUpdated = false;
+        sharedSecretMessageKey = null;
+        sharedSecretEncryptionKey = null;
+        sharedSecretHmacKey = null;
+        encryptionKey = null;
+        hmacKey = null;
+        aeadKey = null;
+        messageKey = null;
+        otherClientMessagePublicKey = null;
+        messageSequenceNumber = 0;
+        otherClientReplayWindow = new ReplayWindow();
+        epoch = 0;
+        epochStartTime = 0;
+        messageByteCount = 0;
+        previousAeadKey = null;
+        previousOtherClientReplayWindow = null;
+        previousEpochEndTime = 0;
+    }
+}
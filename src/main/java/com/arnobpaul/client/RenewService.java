@@ -5,6 +5,7 @@ import com.arnobpaul.common.ClientEntity;
 import com.arnobpaul.common.crypto.AsymmetricKeyPair;
 import com.arnobpaul.common.crypto.RsaGenEncDec;
 import com.arnobpaul.common.crypto.RsaSignVerify;
+import com.arnobpaul.common.network.CommandRegistry;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.InvalidKeyException;
@@ -37,6 +38,8 @@ public class RenewService {
         this.signupLoginService = signupLoginService;
         this.rsaGenEncDec = rsaGenEncDec;
         this.rsaSignVerify = rsaSignVerify;
+
+        rsaGenEncDec.prepareKeyPairPool(AppConfig.RSA_KEY_SIZE);
     }
 
     synchronized public boolean requestRenew(String data) {
@@ -65,7 +68,7 @@ public class RenewService {
             return false;
         }
 
-        newAsymmetricKeyPair = rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE);
+        newAsymmetricKeyPair = rsaGenEncDec.takeKey(AppConfig.RSA_KEY_SIZE);
 
         clientTask.sendRaw(AppConfig.NetworkCommand.RENEW_KEY_REQUEST);
 
@@ -73,82 +76,91 @@ public class RenewService {
         return true;
     }
 
-    synchronized public boolean processRenew(String header, String data) {
-        switch (header) {
-            case AppConfig.NetworkCommand.RENEW_KEY_OK:
-                if (data == null) {
-                    System.err.println(String.format("Null data received for Header: %s",
-                            header));
-                    return false;
-                }
-
-                if (newAsymmetricKeyPair == null) {
-                    System.err.println(String.format("Unexpected data received for Header: %s ; Data: %s",
-                            header,
-                            data));
-                    return false;
-                }
-
-                String oldSignature;
-                try {
-                    oldSignature = rsaSignVerify.sign(newAsymmetricKeyPair.publicKey, loginClient.clientPrivateKey);
-                } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
-                    e.printStackTrace();
-                    logger.warning(e.getMessage());
-                    return false;
-                }
-
-                String[] dataItems = data.split(" ", 2);
-                if (dataItems.length != 2) {
-                    System.err.println(String.format("Data error for Header: %s ; Data: %s",
-                            header,
-                            data));
-                    return false;
-                }
-
-                String renewNonce = dataItems[0];
-                String renewTimestamp = dataItems[1];
-                String newSignature;
-                try {
-                    newSignature = rsaSignVerify.sign(renewNonce + " " + renewTimestamp, newAsymmetricKeyPair.privateKey);
-                } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
-                    e.printStackTrace();
-                    logger.warning(e.getMessage());
-                    return false;
-                }
-
-                clientTask.sendRaw(String.format("%s %s %s %s",
-                        AppConfig.NetworkCommand.RENEW_KEY,
-                        oldSignature,
-                        newAsymmetricKeyPair.publicKey,
-                        newSignature));
-                return true;
-            case AppConfig.NetworkCommand.RENEW_KEY_SUCCESS:
-                if (newAsymmetricKeyPair == null) {
-                    System.err.println(String.format("Unexpected data received for Header: %s ; Data: %s",
-                            header,
-                            data));
-                    return false;
-                }
-
-                try {
-                    dbService.updateClientKey(loginClient.clientId, newAsymmetricKeyPair);
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                    logger.warning(e.getMessage());
-                    return false;
-                }
-
-                signupLoginService.reloadLoginClient();
-
-                System.out.println("Client public key successfully renewed.");
-                return true;
-            case AppConfig.NetworkCommand.RENEW_KEY_FAILURE:
-                newAsymmetricKeyPair = null;
-
-                System.err.println("Failed to renew client public key!");
-                return false;
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.RENEW_KEY_OK, this::processRenewOk);
+        commandRegistry.register(AppConfig.NetworkCommand.RENEW_KEY_SUCCESS, this::processRenewSuccess);
+        commandRegistry.register(AppConfig.NetworkCommand.RENEW_KEY_FAILURE, this::processRenewFailure);
+    }
+
+    synchronized public boolean processRenewOk(String data) {
+        if (data == null) {
+            System.err.println(String.format("Null data received for Header: %s",
+                    AppConfig.NetworkCommand.RENEW_KEY_OK));
+            return false;
         }
+
+        if (newAsymmetricKeyPair == null) {
+            System.err.println(String.format("Unexpected data received for Header: %s ; Data: %s",
+                    AppConfig.NetworkCommand.RENEW_KEY_OK,
+                    data));
+            return false;
+        }
+
+        String oldSignature;
+        try {
+            oldSignature = rsaSignVerify.sign(newAsymmetricKeyPair.publicKey, signupLoginService.getLoginPrivateKey());
+        } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            return false;
+        }
+
+        String[] dataItems = data.split(" ", 2);
+        if (dataItems.length != 2) {
+            System.err.println(String.format("Data error for Header: %s ; Data: %s",
+                    AppConfig.NetworkCommand.RENEW_KEY_OK,
+                    data));
+            return false;
+        }
+
+        String renewNonce = dataItems[0];
+        String renewTimestamp = dataItems[1];
+        String newSignature;
+        try {
+            newSignature = rsaSignVerify.sign(renewNonce + " " + renewTimestamp, newAsymmetricKeyPair.privateKey);
+        } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            return false;
+        }
+
+        clientTask.sendRaw(String.format("%s %s %s %s",
+                AppConfig.NetworkCommand.RENEW_KEY,
+                oldSignature,
+                newAsymmetricKeyPair.publicKey,
+                newSignature));
+        return true;
+    }
+
+    synchronized public boolean processRenewSuccess(String data) {
+        if (newAsymmetricKeyPair == null) {
+            System.err.println(String.format("Unexpected data received for Header: %s ; Data: %s",
+                    AppConfig.NetworkCommand.RENEW_KEY_SUCCESS,
+                    data));
+            return false;
+        }
+
+        try {
+            dbService.updateClientKey(loginClient.clientId, newAsymmetricKeyPair);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            return false;
+        }
+
+        signupLoginService.reloadLoginClient();
+
+        System.out.println("Client public key successfully renewed.");
+        return true;
+    }
+
+    synchronized public boolean processRenewFailure(String data) {
+        newAsymmetricKeyPair = null;
+
+        System.err.println("Failed to renew client public key!");
         return false;
     }
 }
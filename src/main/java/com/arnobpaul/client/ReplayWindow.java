@@ -0,0 +1,53 @@
+package com.arnobpaul.client;
+
+/**
+ * This class is a sliding window over the sequence numbers received from another client (as the anti-replay window
+ * of IPsec and DTLS), so a message is accepted out of order, but never twice. A bitmap keeps the sequence numbers
+ * accepted up to {@link #SIZE} below the highest one, and any older one is rejected.
+ * <p>
+ * A sequence number is checked by {@link #isAcceptable(long)} before, and marked by {@link #update(long)} only after,
+ * the message is verified, so a forged message cannot move the window.
+ */
+class ReplayWindow {
+    static final int SIZE = Long.SIZE;
+
+    // Highest accepted sequence number, or -1 if none
+    private long highest = -1;
+    // Bit i is set if the sequence number (highest - i) is accepted
+    private long bitmap = 0;
+
+    /**
+     * @param sequenceNumber sequence number of a received message
+     * @return true if the sequence number is neither accepted before nor too old, otherwise false
+     */
+    boolean isAcceptable(long sequenceNumber) {
+        if (sequenceNumber < 0) {
+            return false;
+        }
+        if (sequenceNumber > highest) {
+            return true;
+        }
+        long offset = highest - sequenceNumber;
+        return offset < SIZE && (bitmap & (1L << offset)) == 0;
+    }
+
+    /**
+     * @param sequenceNumber sequence number of a verified message, accepted by {@link #isAcceptable(long)}
+     */
+    void update(long sequenceNumber) {
+        if (sequenceNumber > highest) {
+            long shift = sequenceNumber - highest;
+            bitmap = (shift < SIZE) ? (bitmap << shift) | 1 : 1;
+            highest = sequenceNumber;
+        } else {
+            bitmap |= 1L << (highest - sequenceNumber);
+        }
+    }
+
+    /**
+     * @return the highest accepted sequence number, or -1 if none
+     */
+    long getHighest() {
+        return highest;
+    }
+}
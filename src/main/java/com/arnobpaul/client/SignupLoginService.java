@@ -5,9 +5,11 @@ import com.arnobpaul.common.ClientEntity;
 import com.arnobpaul.common.crypto.AsymmetricKeyPair;
 import com.arnobpaul.common.crypto.RsaGenEncDec;
 import com.arnobpaul.common.crypto.RsaSignVerify;
+import com.arnobpaul.common.network.CommandRegistry;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.InvalidKeyException;
+import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.sql.SQLException;
@@ -28,6 +30,7 @@ public class SignupLoginService {
 
     private boolean loginDone = false;
     private ClientEntity loginClient = null;
+    private PrivateKey loginPrivateKey = null;
 
     private static final Logger logger = Logger.getLogger(SignupLoginService.class.getName());
 
@@ -39,6 +42,8 @@ public class SignupLoginService {
         this.dbService = dbService;
         this.rsaGenEncDec = rsaGenEncDec;
         this.rsaSignVerify = rsaSignVerify;
+
+        rsaGenEncDec.prepareKeyPairPool(AppConfig.RSA_KEY_SIZE);
     }
 
     synchronized public boolean requestSignup(String data) {
@@ -48,7 +53,7 @@ public class SignupLoginService {
         }
 
         signupClientName = data;
-        signupAsymmetricKeyPair = rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE);
+        signupAsymmetricKeyPair = rsaGenEncDec.takeKey(AppConfig.RSA_KEY_SIZE);
 
         clientTask.sendRaw(String.format("%s %s %s",
                 AppConfig.NetworkCommand.SIGNUP,
@@ -58,26 +63,40 @@ public class SignupLoginService {
         return true;
     }
 
-    synchronized public boolean processSignup(String header, String data) {
-        if (AppConfig.NetworkCommand.SIGNUP_SUCCESS.equals(header)) {
-            try {
-                signupClientId = Integer.parseInt(data);
-                dbService.setLoginClient(new ClientEntity(signupClientId, signupClientName, signupAsymmetricKeyPair.publicKey, signupAsymmetricKeyPair.privateKey));
-                System.out.println(String.format("Sign up success for Client_ID: %d", signupClientId));
-                signupDone = true;
-                return true;
-            } catch (NumberFormatException | SQLException e) {
-                e.printStackTrace();
-                logger.warning(e.getMessage());
-                return false;
-            }
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.SIGNUP_SUCCESS, this::processSignupSuccess);
+        commandRegistry.register(AppConfig.NetworkCommand.SIGNUP_FAILURE, this::processSignupFailure);
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN_NONCE, this::processLoginNonce);
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN_SUCCESS, this::processLoginSuccess);
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN_FAILURE, this::processLoginFailure);
+    }
+
+    synchronized public boolean processSignupSuccess(String data) {
+        try {
+            signupClientId = Integer.parseInt(data);
+            dbService.setLoginClient(new ClientEntity(signupClientId, signupClientName, signupAsymmetricKeyPair.publicKey, signupAsymmetricKeyPair.privateKey));
+            System.out.println(String.format("Sign up success for Client_ID: %d", signupClientId));
+            signupDone = true;
+            return true;
+        } catch (NumberFormatException | SQLException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            return false;
         }
+    }
+
+    synchronized public boolean processSignupFailure(String data) {
+        System.err.println(String.format("Sign up failure for Client_Name: %s", signupClientName));
         return false;
     }
 
     synchronized public boolean requestLogin() {
         try {
             loginClient = dbService.getLoginClient();
+            loginPrivateKey = null;
         } catch (SQLException e) {
             e.printStackTrace();
             logger.warning(e.getMessage());
@@ -91,38 +110,38 @@ public class SignupLoginService {
         return true;
     }
 
-    synchronized public boolean processLogin(String header, String data) {
-        switch (header) {
-            case AppConfig.NetworkCommand.LOGIN_NONCE:
-                if (data == null) return false;
-
-                String[] dataItems = data.split(" ", 2);
-                if (dataItems.length != 2) return false;
-
-                String loginNonce = dataItems[0];
-                String loginTimestamp = dataItems[1];
-                String signature;
-                try {
-                    signature = rsaSignVerify.sign(loginNonce + " " + loginTimestamp, loginClient.clientPrivateKey);
-                } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
-                    e.printStackTrace();
-                    logger.warning(e.getMessage());
-                    return false;
-                }
-
-                clientTask.sendRaw(String.format("%s %s",
-                        AppConfig.NetworkCommand.LOGIN_ACCEPT,
-                        signature));
+    synchronized public boolean processLoginNonce(String data) {
+        if (data == null) return false;
 
-                return true;
-            case AppConfig.NetworkCommand.LOGIN_SUCCESS:
-                System.out.println(String.format("Login success for Client_ID: %d", loginClient.clientId));
-                loginDone = true;
-                return true;
-            case AppConfig.NetworkCommand.LOGIN_FAILURE:
-                System.out.println(String.format("Login failure for Client_ID: %d", loginClient.clientId));
-                return false;
+        String[] dataItems = data.split(" ", 2);
+        if (dataItems.length != 2) return false;
+
+        String loginNonce = dataItems[0];
+        String loginTimestamp = dataItems[1];
+        String signature;
+        try {
+            signature = rsaSignVerify.sign(loginNonce + " " + loginTimestamp, getLoginPrivateKey());
+        } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            return false;
         }
+
+        clientTask.sendRaw(String.format("%s %s",
+                AppConfig.NetworkCommand.LOGIN_ACCEPT,
+                signature));
+
+        return true;
+    }
+
+    synchronized public boolean processLoginSuccess(String data) {
+        System.out.println(String.format("Login success for Client_ID: %d", loginClient.clientId));
+        loginDone = true;
+        return true;
+    }
+
+    synchronized public boolean processLoginFailure(String data) {
+        System.out.println(String.format("Login failure for Client_ID: %d", loginClient.clientId));
         return false;
     }
 
@@ -134,10 +153,21 @@ public class SignupLoginService {
         return loginClient;
     }
 
+    /**
+     * @return the parsed private key of the login client, which is parsed only once per login client
+     */
+    synchronized public PrivateKey getLoginPrivateKey() throws InvalidKeySpecException {
+        if (loginPrivateKey == null) {
+            loginPrivateKey = rsaSignVerify.decodePrivateKey(loginClient.clientPrivateKey);
+        }
+        return loginPrivateKey;
+    }
+
     synchronized public boolean reloadLoginClient() {
         if (loginDone) {
             try {
                 loginClient = dbService.getLoginClient();
+                loginPrivateKey = null;
                 return true;
             } catch (SQLException | NullPointerException e) {
                 e.printStackTrace();
@@ -1,17 +1,31 @@
 package com.arnobpaul.client;
 
+import com.arnobpaul.common.collection.IntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
+/**
+ * This class keeps the trust list and the block list in memory, loaded from the database once and written through on
+ * every change. A change replaces the in-memory copy instead of changing it, so the checks of every sent or received
+ * message read the lists without a lock or a query.
+ */
 public class TrustAndBlockListService {
     private final DbService dbService;
 
+    // Trusted public keys by client ID
+    private volatile IntObjectHashMap<String> trustList;
+    // Blocked client IDs in ascending order
+    private volatile int[] blockList;
+
     private static final Logger logger = Logger.getLogger(TrustAndBlockListService.class.getName());
 
-    public TrustAndBlockListService(@NotNull DbService dbService) {
+    public TrustAndBlockListService(@NotNull DbService dbService) throws SQLException {
         this.dbService = dbService;
+        this.trustList = dbService.getTrustList();
+        this.blockList = dbService.getBlockList();
     }
 
     synchronized public boolean trustClient(String data) {
@@ -37,6 +51,9 @@ public class TrustAndBlockListService {
             }
 
             dbService.insertOrUpdateToTrustList(clientId, clientPublicKey);
+            IntObjectHashMap<String> newTrustList = new IntObjectHashMap<>(trustList);
+            newTrustList.put(clientId, clientPublicKey);
+            trustList = newTrustList;
             System.out.println(String.format("Client trusted for Client_ID: %d", clientId));
             return true;
         } catch (NumberFormatException | SQLException e) {
@@ -57,6 +74,9 @@ public class TrustAndBlockListService {
 
             boolean success = dbService.deleteFromTrustList(clientId);
             if (success) {
+                IntObjectHashMap<String> newTrustList = new IntObjectHashMap<>(trustList);
+                newTrustList.remove(clientId);
+                trustList = newTrustList;
                 System.out.println(String.format("Client untrusted for Client_ID: %d", clientId));
             }
             return success;
@@ -73,14 +93,7 @@ public class TrustAndBlockListService {
             return false;
         }
 
-        try {
-            String foundClientPublicKey = dbService.getClientPublicKeyFromTrustList(clientId);
-            return clientPublicKey.equals(foundClientPublicKey);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            logger.warning(e.getMessage());
-            return false;
-        }
+        return clientPublicKey.equals(trustList.get(clientId));
     }
 
     synchronized public boolean blockClient(String data) {
@@ -95,6 +108,7 @@ public class TrustAndBlockListService {
             int clientId = Integer.parseInt(data);
 
             dbService.insertOrIgnoreToBlockList(clientId);
+            blockList = addClientId(blockList, clientId);
             System.out.println(String.format("Client blocked for Client_ID: %d", clientId));
             return true;
         } catch (NumberFormatException | SQLException e) {
@@ -115,6 +129,7 @@ public class TrustAndBlockListService {
 
             boolean success = dbService.deleteFromBlockList(clientId);
             if (success) {
+                blockList = removeClientId(blockList, clientId);
                 System.out.println(String.format("Client unblocked for Client_ID: %d", clientId));
             }
             return success;
@@ -126,12 +141,34 @@ public class TrustAndBlockListService {
     }
 
     public boolean isClientBlocked(int clientId) {
-        try {
-            return dbService.isClientIdInBlockList(clientId);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            logger.warning(e.getMessage());
-            return false;
-        }
+        return Arrays.binarySearch(blockList, clientId) >= 0;
+    }
+
+    /**
+     * @return a copy of the sorted client IDs with the client ID inserted (or the same array if already found)
+     */
+    private static int[] addClientId(int[] clientIds, int clientId) {
+        int index = Arrays.binarySearch(clientIds, clientId);
+        if (index >= 0) return clientIds;
+
+        index = -(index + 1);
+        int[] newClientIds = new int[clientIds.length + 1];
+        System.arraycopy(clientIds, 0, newClientIds, 0, index);
+        newClientIds[index] = clientId;
+        System.arraycopy(clientIds, index, newClientIds, index + 1, clientIds.length - index);
+        return newClientIds;
+    }
+
+    /**
+     * @return a copy of the sorted client IDs without the client ID (or the same array if not found)
+     */
+    private static int[] removeClientId(int[] clientIds, int clientId) {
+        int index = Arrays.binarySearch(clientIds, clientId);
+        if (index < 0) return clientIds;
+
+        int[] newClientIds = new int[clientIds.length - 1];
+        System.arraycopy(clientIds, 0, newClientIds, 0, index);
+        System.arraycopy(clientIds, index + 1, newClientIds, index, clientIds.length - index - 1);
+        return newClientIds;
     }
 }
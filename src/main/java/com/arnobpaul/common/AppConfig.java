@@ -1,5 +1,9 @@
 package com.arnobpaul.common;
 
+import com.arnobpaul.common.crypto.KeyAgreementMode;
+import com.arnobpaul.common.crypto.MessageCipherMode;
+import com.arnobpaul.common.network.Protocol;
+
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
@@ -11,10 +15,65 @@ public class AppConfig {
 
     public static final long SERVER_SIGNUP_TIMEOUT = 300000;
 
+    // Read connections of the server database (besides its single write connection)
+    public static final int SERVER_DB_READ_CONNECTION_COUNT = 4;
+    // Writes of the server database grouped into a transaction, and the time a write waits for the others
+    public static final int SERVER_DB_JOURNAL_MAX_BATCH_SIZE = 128;
+    public static final long SERVER_DB_JOURNAL_MAX_LATENCY = 5;
+    // Size of the superseded records of the server client log (i.e., the log client store) before compacting it
+    public static final long SERVER_LOG_STORE_COMPACTION_MIN_SIZE = 1024 * 1024;
+    // Messages kept for an offline client (at most per client), and the time they wait for the client to log in
+    public static final int SERVER_MAILBOX_MAX_MESSAGE_COUNT = 1000;
+    public static final long SERVER_MAILBOX_TTL = 86400000;
+    // Size of a segment file of the mailbox before starting a new one, and the messages sent to a client in a write
+    public static final long SERVER_MAILBOX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int SERVER_MAILBOX_DELIVERY_BATCH_SIZE = 64;
+    // Loopback port of the links of the cluster node 0 to the other nodes (the node i listens on the port + i)
+    public static final int CLUSTER_LINK_PORT = 35460;
+    // Maximum number of frames waiting to be written to the link of another node, and the time between the attempts
+    // to connect to it
+    public static final int CLUSTER_LINK_QUEUE_CAPACITY = 16 * 1024;
+    public static final long CLUSTER_LINK_RECONNECT_INTERVAL = 1000;
+    // Environment variable of the secret shared by the nodes of the cluster to authenticate their links, and the time
+    // a link may take to be authenticated
+    public static final String CLUSTER_SECRET_ENV = "SECURECHAT_CLUSTER_SECRET";
+    public static final int CLUSTER_LINK_HELLO_TIMEOUT = 5000;
+    // Maximum number of the members of a group
+    public static final int SERVER_GROUP_MAX_MEMBER_COUNT = 1000;
+
     public static final int RSA_KEY_SIZE = 2048;
+    // Identity keys generated ahead, so a signup or a renew (both rare) does not wait for the key generation
+    public static final int RSA_KEY_PAIR_POOL_SIZE = 1;
     public static final int AES_KEY_SIZE = 256;
-
-    public static final int MESSAGE_SEQUENCE_NUMBER_UPDATE_MIN = 5;
+    public static final int HMAC_KEY_SIZE = 256;
+
+    // Message keys are updated (i.e., a new key exchange) once the messages sent with them, the bytes of the messages
+    // or the time (in milliseconds) with them reaches its limit; 0 for no limit
+    public static final int MESSAGE_KEY_UPDATE_MESSAGE_COUNT = 100;
+    public static final long MESSAGE_KEY_UPDATE_BYTE_COUNT = 1024 * 1024;
+    public static final long MESSAGE_KEY_UPDATE_INTERVAL = 600000;
+    // Time (in milliseconds) the messages with the previous message keys are still accepted after a key update
+    public static final long MESSAGE_KEY_PREVIOUS_EPOCH_TIMEOUT = 60000;
+    // Key agreement of the message keys proposed by a client starting the key exchange
+    public static final KeyAgreementMode MESSAGE_KEY_AGREEMENT_MODE = KeyAgreementMode.X25519;
+    // Protection of the messages proposed by a client starting the key exchange
+    public static final MessageCipherMode MESSAGE_CIPHER_MODE = MessageCipherMode.AES_GCM;
+    // Group messages received before the sender key of their sender, kept (at most per group) until the key arrives
+    public static final int GROUP_PENDING_MESSAGE_COUNT = 64;
+
+    // Message keys generated ahead (per key agreement), so a key exchange does not wait for the key generation
+    public static final int DH_KEY_PAIR_POOL_SIZE = 4;
+
+    // Parsed public keys of the clients kept for verifying their signatures
+    public static final int PUBLIC_KEY_CACHE_SIZE = 10000;
+    public static final long PUBLIC_KEY_CACHE_TTL = 3600000;
+
+    // Maximum number of frames waiting to be written to a connection; more frames are rejected (backpressure)
+    public static final int OUTBOUND_QUEUE_CAPACITY = 1024;
+
+    // Protocol requested by the client; the server may accept another one (e.g., an older server accepts only TEXT)
+    public static final Protocol CLIENT_PROTOCOL = Protocol.BINARY;
+    public static final int PROTOCOL_NEGOTIATION_TIMEOUT = 5000;
 
     public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
@@ -46,9 +105,19 @@ public class AppConfig {
         // Block list
         public static final String BLOCK = "-block"; // "-block <Client_ID>"
         public static final String UNBLOCK = "-unblock"; // "-unblock <Client_ID>"
+
+        // Group
+        public static final String GROUP_CREATE = "-group_create"; // "-group_create"
+        public static final String GROUP_ADD = "-group_add"; // "-group_add <Group_ID> <Client_ID>"
+        public static final String GROUP = "-group"; // "-group <Group_ID>"
+        // Like "-send", the messages after "-group" are sent to the <Group_ID> until another "-send" or "-group" command.
     }
 
     public static class NetworkCommand {
+        // Protocol negotiation (only as the first line of a connection)
+        public static final String PROTOCOL = "PROTOCOL"; // "PROTOCOL <Protocol_Name>"
+        public static final String PROTOCOL_ACCEPT = "PROTOCOL_ACCEPT"; // "PROTOCOL_ACCEPT <Protocol_Name>"
+
         // Sign up
         public static final String SIGNUP = "SIGNUP"; // "SIGNUP <Client_Name> <Client_Public_Key>"
         public static final String SIGNUP_SUCCESS = "SIGNUP_SUCCESS"; // "SIGNUP_SUCCESS <Client_ID>"
@@ -68,12 +137,14 @@ public class AppConfig {
         public static final String SEND_FAILURE = "SEND_FAILURE"; // "SEND_FAILURE <Client_ID>"
 
         // Communication data part (Client-Client via Server)
-        public static final String DATA_DH_START = "DATA_DH_START"; // "DATA_DH_START <Signature> <Seq_Num> <Client_DH_Public_Key>"
-        public static final String DATA_DH_START_ACCEPT = "DATA_DH_START_ACCEPT"; // "DATA_DH_START_ACCEPT <Signature> <Seq_Num> <Client_DH_Public_Key>"
+        public static final String DATA_DH_START = "DATA_DH_START"; // "DATA_DH_START <Signature> <Seq_Num> <Client_DH_Public_Key> <Key_Agreement_Version> <Message_Cipher_Version>"
+        public static final String DATA_DH_START_ACCEPT = "DATA_DH_START_ACCEPT"; // "DATA_DH_START_ACCEPT <Signature> <Seq_Num> <Client_DH_Public_Key> <Key_Agreement_Version> <Message_Cipher_Version>"
         public static final String DATA_DH_CHANGE = "DATA_DH_CHANGE"; // "DATA_DH_CHANGE <HMAC> <Seq_Num> <Client_DH_Public_Key>"
         public static final String DATA_DH_CHANGE_ACCEPT = "DATA_DH_CHANGE_ACCEPT"; // "DATA_DH_CHANGE_ACCEPT <HMAC> <Seq_Num> <Client_DH_Public_Key>"
         public static final String DATA_MESSAGE = "DATA"; // "DATA Enc(<HMAC> <Seq_Num> <Message>)"
+        public static final String DATA_MESSAGE_AEAD = "DATA_AEAD"; // "DATA_AEAD <Epoch> <Seq_Num> AeadEnc(<Message>)"
         public static final String DATA_MESSAGE_ERROR = "DATA_MESSAGE_ERROR"; // "DATA_MESSAGE_ERROR"
+        public static final String DATA_SENDER_KEY = "DATA_SENDER_KEY"; // "DATA_SENDER_KEY <Epoch> <Seq_Num> AeadEnc(<Group_ID> <Key_ID> <Message_Cipher_Version> <Sender_Key> <Signing_Public_Key>)"
 
         // Renew key
         public static final String RENEW_KEY_REQUEST = "RENEW_KEY_REQUEST"; // "RENEW_KEY_REQUEST"
@@ -81,6 +152,18 @@ public class AppConfig {
         public static final String RENEW_KEY = "RENEW_KEY"; // "RENEW_KEY <Signature_Old> <New_Public_Key> <Signature_New>"
         public static final String RENEW_KEY_SUCCESS = "RENEW_KEY_SUCCESS"; // "RENEW_KEY_SUCCESS"
         public static final String RENEW_KEY_FAILURE = "RENEW_KEY_FAILURE"; // "RENEW_KEY_FAILURE"
+
+        // Group (Server-Client)
+        public static final String GROUP_CREATE = "GROUP_CREATE"; // "GROUP_CREATE"
+        public static final String GROUP_CREATE_SUCCESS = "GROUP_CREATE_SUCCESS"; // "GROUP_CREATE_SUCCESS <Group_ID>"
+        public static final String GROUP_ADD = "GROUP_ADD"; // "GROUP_ADD <Group_ID> <Client_ID>"
+        public static final String GROUP_MEMBERS = "GROUP_MEMBERS"; // "GROUP_MEMBERS <Group_ID>" to the server, "GROUP_MEMBERS <Group_ID> <Client_ID>,<Client_ID>,..." to the client
+        public static final String GROUP_SEND = "GROUP_SEND"; // "GROUP_SEND <Group_ID> <Data>"
+        public static final String GROUP_DATA = "GROUP_DATA"; // "GROUP_DATA <Group_ID> <Client_ID> <Data>"
+        public static final String GROUP_FAILURE = "GROUP_FAILURE"; // "GROUP_FAILURE <Group_ID>"
+
+        // Group data part (Client-Clients via Server)
+        public static final String DATA_GROUP_MESSAGE = "DATA_GROUP"; // "DATA_GROUP <Key_ID> <Seq_Num> AeadEnc(<Message>) <Signature>"
     }
 
     public static final SecureRandom SECURE_RANDOM = new SecureRandom();
@@ -0,0 +1,168 @@
+package com.arnobpaul.common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This enum defines which kind of threads run the blocking network loops (i.e., reading and writing).
+ * <p>
+ * Virtual threads are looked up at runtime so that the project still builds and runs on a JDK without them
+ * (before JDK 21, or JDK 19 and 20 without <code>--enable-preview</code>). In that case, {@link #VIRTUAL} is rejected
+ * at startup (see {@link #isSupported()}), never replaced by platform threads.
+ */
+public enum ThreadMode {
+    PLATFORM("platform"),
+    VIRTUAL("virtual");
+
+    public final String argName;
+
+    private static final Method OF_VIRTUAL_METHOD;
+    private static final Method BUILDER_NAME_METHOD;
+    private static final Method BUILDER_NAME_COUNTER_METHOD;
+    private static final Method BUILDER_FACTORY_METHOD;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR_METHOD;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method builderNameMethod = null;
+        Method builderNameCounterMethod = null;
+        Method builderFactoryMethod = null;
+        Method newThreadPerTaskExecutorMethod = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            builderNameMethod = builderClass.getMethod("name", String.class);
+            builderNameCounterMethod = builderClass.getMethod("name", String.class, long.class);
+            builderFactoryMethod = builderClass.getMethod("factory");
+            newThreadPerTaskExecutorMethod = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // A preview API is found, but throws if the preview features are not enabled (JDK 19 and 20)
+            ofVirtualMethod.invoke(null);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            ofVirtualMethod = null;
+        }
+        OF_VIRTUAL_METHOD = ofVirtualMethod;
+        BUILDER_NAME_METHOD = builderNameMethod;
+        BUILDER_NAME_COUNTER_METHOD = builderNameCounterMethod;
+        BUILDER_FACTORY_METHOD = builderFactoryMethod;
+        NEW_THREAD_PER_TASK_EXECUTOR_METHOD = newThreadPerTaskExecutorMethod;
+    }
+
+    ThreadMode(String argName) {
+        this.argName = argName;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL_METHOD != null;
+    }
+
+    /**
+     * @param argName the name of the thread mode given in the command line
+     * @return the matched thread mode, or null if not matched
+     */
+    public static ThreadMode fromArgName(String argName) {
+        for (ThreadMode threadMode : values()) {
+            if (threadMode.argName.equalsIgnoreCase(argName)) {
+                return threadMode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if this thread mode is supported by the running JDK, otherwise false
+     */
+    public boolean isSupported() {
+        return (this != VIRTUAL || isVirtualThreadSupported());
+    }
+
+    /**
+     * @throws IllegalStateException if this thread mode is not supported by the running JDK
+     */
+    public void checkSupported() {
+        if (!isSupported()) {
+            throw new IllegalStateException(getUnsupportedMessage());
+        }
+    }
+
+    /**
+     * @return the error message shown if this thread mode is not supported by the running JDK
+     */
+    public String getUnsupportedMessage() {
+        return String.format("Virtual threads are not supported by Java %s (Java 21 or later needed).",
+                System.getProperty("java.version"));
+    }
+
+    /**
+     * @param runnable task of the thread
+     * @param name     name of the thread
+     * @return an unstarted thread
+     */
+    public Thread newThread(Runnable runnable, String name) {
+        if (isVirtual()) {
+            return ((ThreadFactory) invokeBuilder(BUILDER_NAME_METHOD, name)).newThread(runnable);
+        }
+        return new Thread(runnable, name);
+    }
+
+    /**
+     * @param namePrefix name prefix of the created threads
+     * @return an executor that starts a new thread for each task (reusing idle threads for platform threads)
+     */
+    public ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        if (isVirtual()) {
+            ThreadFactory threadFactory = (ThreadFactory) invokeBuilder(BUILDER_NAME_COUNTER_METHOD, namePrefix, 0L);
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR_METHOD.invoke(null, threadFactory);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Executors.newCachedThreadPool(newPlatformThreadFactory(namePrefix));
+    }
+
+    /**
+     * @param name name of the thread
+     * @return an executor running all the tasks one after another on a single thread
+     */
+    public ExecutorService newSingleThreadExecutor(String name) {
+        if (isVirtual()) {
+            return Executors.newSingleThreadExecutor((ThreadFactory) invokeBuilder(BUILDER_NAME_METHOD, name));
+        }
+        return Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+    }
+
+    private boolean isVirtual() {
+        if (this == VIRTUAL) {
+            checkSupported();
+            return true;
+        }
+        return false;
+    }
+
+    private static ThreadFactory newPlatformThreadFactory(String namePrefix) {
+        return new ThreadFactory() {
+            private int threadCount = 0;
+
+            @Override
+            synchronized public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, namePrefix + (threadCount++));
+            }
+        };
+    }
+
+    /**
+     * @return the thread factory of a virtual thread builder named by the given method
+     */
+    private static Object invokeBuilder(Method builderNameMethod, Object... nameArgs) {
+        try {
+            Object builder = OF_VIRTUAL_METHOD.invoke(null);
+            builder = builderNameMethod.invoke(builder, nameArgs);
+            return BUILDER_FACTORY_METHOD.invoke(builder);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
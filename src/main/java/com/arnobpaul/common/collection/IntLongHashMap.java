@@ -0,0 +1,190 @@
+package com.arnobpaul.common.collection;
+
+import java.util.Arrays;
+
+/**
+ * This class is a hash map with primitive <code>int</code> keys and <code>long</code> values (e.g., file offsets),
+ * like {@link IntObjectHashMap}. It is not thread-safe.
+ */
+public class IntLongHashMap {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    public interface EntryConsumer {
+        void accept(int key, long value);
+    }
+
+    private final long missingValue;
+
+    private int[] keys;
+    private long[] values;
+    private boolean[] isUsed;
+    private int mask;
+    private int size = 0;
+    private int resizeThreshold;
+
+    /**
+     * @param missingValue value returned for a key not found
+     */
+    public IntLongHashMap(long missingValue) {
+        this(DEFAULT_CAPACITY, missingValue);
+    }
+
+    /**
+     * @param expectedSize expected number of the mappings (to avoid resizing)
+     * @param missingValue value returned for a key not found
+     */
+    public IntLongHashMap(int expectedSize, long missingValue) {
+        this.missingValue = missingValue;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return the value of the key, or the missing value if not found
+     */
+    public long get(int key) {
+        int index = hash(key) & mask;
+        while (isUsed[index]) {
+            if (keys[index] == key) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return missingValue;
+    }
+
+    public boolean containsKey(int key) {
+        int index = hash(key) & mask;
+        while (isUsed[index]) {
+            if (keys[index] == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return the previous value of the key, or the missing value if not found
+     */
+    public long put(int key, long value) {
+        int index = hash(key) & mask;
+        while (isUsed[index]) {
+            if (keys[index] == key) {
+                long previousValue = values[index];
+                values[index] = value;
+                return previousValue;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        isUsed[index] = true;
+        if (++size > resizeThreshold) {
+            resize(isUsed.length * 2);
+        }
+        return missingValue;
+    }
+
+    /**
+     * @return the removed value of the key, or the missing value if not found
+     */
+    public long remove(int key) {
+        int index = hash(key) & mask;
+        while (isUsed[index]) {
+            if (keys[index] == key) {
+                long value = values[index];
+                isUsed[index] = false;
+                size--;
+                shiftBack(index);
+                return value;
+            }
+            index = (index + 1) & mask;
+        }
+        return missingValue;
+    }
+
+    /**
+     * @param entryConsumer consumer of every mapping (must not modify this map)
+     */
+    public void forEach(EntryConsumer entryConsumer) {
+        for (int i = 0; i < isUsed.length; i++) {
+            if (isUsed[i]) {
+                entryConsumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(isUsed, false);
+        size = 0;
+    }
+
+    /**
+     * See {@link IntObjectHashMap} for the backward shift deletion.
+     */
+    private void shiftBack(int freedIndex) {
+        int index = freedIndex;
+        while (true) {
+            index = (index + 1) & mask;
+            if (!isUsed[index]) {
+                return;
+            }
+
+            int homeIndex = hash(keys[index]) & mask;
+            if (((index - homeIndex) & mask) >= ((index - freedIndex) & mask)) {
+                keys[freedIndex] = keys[index];
+                values[freedIndex] = values[index];
+                isUsed[freedIndex] = true;
+                isUsed[index] = false;
+                freedIndex = index;
+            }
+        }
+    }
+
+    private void resize(int newTableSize) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldIsUsed = isUsed;
+        allocate(newTableSize);
+
+        for (int i = 0; i < oldIsUsed.length; i++) {
+            if (!oldIsUsed[i]) continue;
+
+            int index = hash(oldKeys[i]) & mask;
+            while (isUsed[index]) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+            isUsed[index] = true;
+        }
+    }
+
+    private void allocate(int tableSize) {
+        keys = new int[tableSize];
+        values = new long[tableSize];
+        isUsed = new boolean[tableSize];
+        mask = tableSize - 1;
+        resizeThreshold = (int) (tableSize * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int tableSize = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 2) - 1) << 1;
+        return Math.max(tableSize, DEFAULT_CAPACITY);
+    }
+
+    private static int hash(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
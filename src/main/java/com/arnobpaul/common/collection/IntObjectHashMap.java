@@ -0,0 +1,193 @@
+package com.arnobpaul.common.collection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * This class is a hash map with primitive <code>int</code> keys (i.e., no boxed key or entry object per mapping).
+ * It uses open addressing with linear probing, and null values are not allowed. It is not thread-safe.
+ *
+ * @param <V> type of the values
+ */
+public class IntObjectHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeThreshold;
+
+    public IntObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize expected number of the mappings (to avoid resizing)
+     */
+    public IntObjectHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @param other map to be copied (e.g., to change a copy while the original is still read)
+     */
+    public IntObjectHashMap(@NotNull IntObjectHashMap<V> other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        mask = other.mask;
+        size = other.size;
+        resizeThreshold = other.resizeThreshold;
+    }
+
+    /**
+     * @return the value of the key, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(int key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value of the key, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(int key, @NotNull V value) {
+        int index = hash(key) & mask;
+        Object previousValue;
+        while ((previousValue = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return (V) previousValue;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value of the key, or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(int key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = null;
+                size--;
+                shiftBack(index);
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> entryConsumer) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                entryConsumer.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * This method moves the following entries of the probe sequence back into the freed slot, so a lookup never
+     * needs a tombstone to continue probing.
+     */
+    private void shiftBack(int freedIndex) {
+        int index = freedIndex;
+        while (true) {
+            index = (index + 1) & mask;
+            Object value = values[index];
+            if (value == null) {
+                return;
+            }
+
+            int homeIndex = hash(keys[index]) & mask;
+            // Move the entry only if its home slot is not between the freed slot and its current slot (cyclically)
+            if (((index - homeIndex) & mask) >= ((index - freedIndex) & mask)) {
+                keys[freedIndex] = keys[index];
+                values[freedIndex] = value;
+                values[index] = null;
+                freedIndex = index;
+            }
+        }
+    }
+
+    private void resize(int newTableSize) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(newTableSize);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            Object value = oldValues[i];
+            if (value == null) continue;
+
+            int index = hash(oldKeys[i]) & mask;
+            while (values[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = value;
+        }
+    }
+
+    private void allocate(int tableSize) {
+        keys = new int[tableSize];
+        values = new Object[tableSize];
+        mask = tableSize - 1;
+        resizeThreshold = (int) (tableSize * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int tableSize = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 2) - 1) << 1;
+        return Math.max(tableSize, DEFAULT_CAPACITY);
+    }
+
+    private static int hash(int key) {
+        // Spreads sequential keys (e.g., client IDs) over the table
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
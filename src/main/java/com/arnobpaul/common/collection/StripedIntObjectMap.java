@@ -0,0 +1,185 @@
+package com.arnobpaul.common.collection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class is a thread-safe map with primitive <code>int</code> keys for a read-mostly table (e.g., the presence of
+ * the clients, read on every relayed message and changed only on a login or a logout).
+ * <p>
+ * The keys are split into stripes, each a hash table of chained nodes. A lookup reads the current table of a stripe
+ * without any lock or allocation, while a change takes the lock of its stripe and only changes a single bucket: a new
+ * key is a new node at the head of its bucket, a new value replaces the value of the node, and a removal copies only
+ * the nodes before the removed one (i.e., the next node of a node is never changed once published). A stripe doubles
+ * its table once full, so a change takes amortized constant time whatever the number of the keys is.
+ *
+ * @param <V> type of the values
+ */
+public class StripedIntObjectMap<V> {
+    private static final int INITIAL_BUCKET_COUNT = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final class Node<V> {
+        final int key;
+        volatile V value;
+        final Node<V> next;
+
+        Node(int key, V value, Node<V> next) {
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private static final class Stripe<V> {
+        // Replaced by a larger table once full (while the readers of the previous table still see all its keys)
+        volatile AtomicReferenceArray<Node<V>> buckets = new AtomicReferenceArray<>(INITIAL_BUCKET_COUNT);
+        // Only changed while holding the lock of the stripe
+        volatile int size = 0;
+    }
+
+    private final Stripe<V>[] stripes;
+    private final int mask;
+
+    /**
+     * @param stripeCount number of the stripes (rounded up to a power of two)
+     */
+    @SuppressWarnings("unchecked")
+    public StripedIntObjectMap(int stripeCount) {
+        int tableSize = Integer.highestOneBit(Math.max(stripeCount, 2) - 1) << 1;
+        stripes = (Stripe<V>[]) new Stripe[tableSize];
+        for (int i = 0; i < tableSize; i++) {
+            stripes[i] = new Stripe<>();
+        }
+        mask = tableSize - 1;
+    }
+
+    /**
+     * @return the value of the key, or null if not found
+     */
+    public @Nullable V get(int key) {
+        AtomicReferenceArray<Node<V>> buckets = stripes[key & mask].buckets;
+        for (Node<V> node = buckets.get(bucketIndex(key, buckets)); node != null; node = node.next) {
+            if (node.key == key) {
+                return node.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the previous value of the key, or null if not found
+     */
+    public @Nullable V put(int key, @NotNull V value) {
+        Stripe<V> stripe = stripes[key & mask];
+        synchronized (stripe) {
+            AtomicReferenceArray<Node<V>> buckets = stripe.buckets;
+            int index = bucketIndex(key, buckets);
+            Node<V> first = buckets.get(index);
+            for (Node<V> node = first; node != null; node = node.next) {
+                if (node.key == key) {
+                    V previousValue = node.value;
+                    node.value = value;
+                    return previousValue;
+                }
+            }
+
+            buckets.set(index, new Node<>(key, value, first));
+            stripe.size++;
+            if (stripe.size > buckets.length() * LOAD_FACTOR) {
+                resize(stripe);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the removed value of the key, or null if not found
+     */
+    public @Nullable V remove(int key) {
+        Stripe<V> stripe = stripes[key & mask];
+        synchronized (stripe) {
+            return removeNode(stripe, key, null);
+        }
+    }
+
+    /**
+     * This method removes the key only if mapped to the value (e.g., not replaced by another login meanwhile).
+     *
+     * @return true if removed, otherwise false
+     */
+    public boolean remove(int key, @NotNull V value) {
+        Stripe<V> stripe = stripes[key & mask];
+        synchronized (stripe) {
+            return removeNode(stripe, key, value) != null;
+        }
+    }
+
+    /**
+     * This method visits the current table of every stripe in turn, so a change made meanwhile may not be visited.
+     */
+    public void forEach(IntObjectHashMap.EntryConsumer<? super V> entryConsumer) {
+        for (Stripe<V> stripe : stripes) {
+            AtomicReferenceArray<Node<V>> buckets = stripe.buckets;
+            for (int i = 0; i < buckets.length(); i++) {
+                for (Node<V> node = buckets.get(i); node != null; node = node.next) {
+                    entryConsumer.accept(node.key, node.value);
+                }
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    /**
+     * @param expectedValue value the key must be mapped to, or null for any value
+     * @return the removed value, or null if not removed
+     */
+    private static <V> V removeNode(Stripe<V> stripe, int key, V expectedValue) {
+        AtomicReferenceArray<Node<V>> buckets = stripe.buckets;
+        int index = bucketIndex(key, buckets);
+        Node<V> first = buckets.get(index);
+        Node<V> removedNode = first;
+        while (removedNode != null && removedNode.key != key) {
+            removedNode = removedNode.next;
+        }
+        if (removedNode == null || (expectedValue != null && removedNode.value != expectedValue)) {
+            return null;
+        }
+
+        // The nodes before the removed one are copied, so a reader walking the bucket meanwhile is not cut off
+        Node<V> newFirst = removedNode.next;
+        for (Node<V> node = first; node != removedNode; node = node.next) {
+            newFirst = new Node<>(node.key, node.value, newFirst);
+        }
+        buckets.set(index, newFirst);
+        stripe.size--;
+        return removedNode.value;
+    }
+
+    private static <V> void resize(Stripe<V> stripe) {
+        AtomicReferenceArray<Node<V>> buckets = stripe.buckets;
+        AtomicReferenceArray<Node<V>> newBuckets = new AtomicReferenceArray<>(buckets.length() * 2);
+        for (int i = 0; i < buckets.length(); i++) {
+            for (Node<V> node = buckets.get(i); node != null; node = node.next) {
+                int index = bucketIndex(node.key, newBuckets);
+                newBuckets.set(index, new Node<>(node.key, node.value, newBuckets.get(index)));
+            }
+        }
+        stripe.buckets = newBuckets;
+    }
+
+    private static int bucketIndex(int key, AtomicReferenceArray<?> buckets) {
+        // Spreads sequential keys (e.g., client IDs) over the table, as the low bits of a stripe are all the same
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (buckets.length() - 1);
+    }
+}
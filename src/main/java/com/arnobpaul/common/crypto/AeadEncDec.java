@@ -0,0 +1,131 @@
+package com.arnobpaul.common.crypto;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
+
+/**
+ * This class is for the encryption, and decryption, of the messages in every AEAD {@link MessageCipherMode}.
+ * It is thread-safe (see {@link CryptoEnginePool}).
+ * <p>
+ * The nonce is not sent, but made of the Client_ID of the sender and the sequence number, so it never repeats for
+ * a key (both of the clients share the key, and the sequence numbers start over only with a new key). The sequence
+ * number is also the associated data, so a ciphertext is not accepted with another sequence number.
+ */
+public class AeadEncDec {
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 128;
+
+    /**
+     * This class holds a decoded key with its message cipher mode.
+     */
+    public static class AeadKey {
+        private final MessageCipherMode messageCipherMode;
+        private final SecretKey secretKey;
+
+        private AeadKey(MessageCipherMode messageCipherMode, SecretKey secretKey) {
+            this.messageCipherMode = messageCipherMode;
+            this.secretKey = secretKey;
+        }
+    }
+
+    private final Map<MessageCipherMode, CryptoEnginePool<Cipher>> cipherPools = new EnumMap<>(MessageCipherMode.class);
+
+    public AeadEncDec() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        for (MessageCipherMode messageCipherMode : MessageCipherMode.values()) {
+            if (messageCipherMode.isAead()) {
+                cipherPools.put(messageCipherMode, new CryptoEnginePool<>(Cipher.getInstance(messageCipherMode.transformation),
+                        () -> Cipher.getInstance(messageCipherMode.transformation)));
+            }
+        }
+    }
+
+    /**
+     * @param plaintext      plaintext to encrypt
+     * @param senderId       Client_ID of the sender (i.e., oneself)
+     * @param sequenceNumber sequence number of the message, never used before with the key by the sender
+     * @param key            key given by {@link #decodeKey(MessageCipherMode, String)}
+     * @return base64-encoded ciphertext followed by the tag
+     */
+    public String encrypt(String plaintext, int senderId, long sequenceNumber, @NotNull AeadKey key) throws InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        return Base64.getEncoder().encodeToString(
+                doFinal(Cipher.ENCRYPT_MODE, plaintext.getBytes(DEFAULT_CHARSET), senderId, sequenceNumber, key));
+    }
+
+    /**
+     * @param ciphertext     base64-encoded ciphertext followed by the tag
+     * @param senderId       Client_ID of the sender (i.e., the other client)
+     * @param sequenceNumber sequence number of the message
+     * @param key            key given by {@link #decodeKey(MessageCipherMode, String)}
+     * @return decrypted plaintext
+     * @throws AEADBadTagException if the ciphertext, or the sequence number, is altered
+     */
+    public String decrypt(String ciphertext, int senderId, long sequenceNumber, @NotNull AeadKey key) throws InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        return new String(
+                doFinal(Cipher.DECRYPT_MODE, Base64.getDecoder().decode(ciphertext), senderId, sequenceNumber, key),
+                DEFAULT_CHARSET);
+    }
+
+    /**
+     * @param messageCipherMode an AEAD message cipher mode
+     * @param key               base64-encoded key (256 bits)
+     * @return the decoded key to be used for many texts
+     */
+    public AeadKey decodeKey(@NotNull MessageCipherMode messageCipherMode, String key) {
+        if (!messageCipherMode.isAead()) {
+            throw new IllegalArgumentException("Not an AEAD message cipher mode: " + messageCipherMode);
+        }
+        return new AeadKey(messageCipherMode,
+                new SecretKeySpec(Base64.getDecoder().decode(key), messageCipherMode.keyAlgorithm));
+    }
+
+    private byte[] doFinal(int opmode, byte[] input, int senderId, long sequenceNumber, AeadKey key) throws InvalidKeyException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException {
+        byte[] nonce = ByteBuffer.allocate(NONCE_SIZE)
+                .putInt(senderId)
+                .putLong(sequenceNumber)
+                .array();
+        AlgorithmParameterSpec parameterSpec = (key.messageCipherMode == MessageCipherMode.AES_GCM)
+                ? new GCMParameterSpec(TAG_SIZE, nonce)
+                : new IvParameterSpec(nonce);
+
+        CryptoEnginePool<Cipher> cipherPool = cipherPools.get(key.messageCipherMode);
+        Cipher cipher = cipherPool.acquire();
+        try {
+            try {
+                cipher.init(opmode, key.secretKey, parameterSpec);
+            } catch (InvalidKeyException e) {
+                if (opmode != Cipher.DECRYPT_MODE) throw e;
+                // ChaCha20-Poly1305 refuses the key and the nonce of its last initialization even for a decryption
+                // (e.g., of a message received again after a forged one), so a new engine is used instead
+                cipher = newCipher(key.messageCipherMode);
+                cipher.init(opmode, key.secretKey, parameterSpec);
+            }
+            cipher.updateAAD(ByteBuffer.allocate(Long.BYTES).putLong(sequenceNumber).array());
+            return cipher.doFinal(input);
+        } finally {
+            cipherPool.release(cipher);
+        }
+    }
+
+    private static Cipher newCipher(MessageCipherMode messageCipherMode) {
+        try {
+            return Cipher.getInstance(messageCipherMode.transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new ProviderException(e);
+        }
+    }
+}
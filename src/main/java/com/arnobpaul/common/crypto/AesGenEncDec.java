@@ -11,7 +11,7 @@ import java.util.Base64;
 import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
 
 /**
- * This class is for AES generation, encryption, and decryption.
+ * This class is for AES generation, encryption, and decryption. It is thread-safe (see {@link CryptoEnginePool}).
  */
 public class AesGenEncDec {
     private final static String ALGORITHM = "AES";
@@ -19,12 +19,14 @@ public class AesGenEncDec {
 
     private final static String IV_SEPARATOR = ":";
 
-    private final KeyGenerator keyGenerator;
-    private final Cipher cipher;
+    private final CryptoEnginePool<KeyGenerator> keyGeneratorPool;
+    private final CryptoEnginePool<Cipher> cipherPool;
 
     public AesGenEncDec() throws NoSuchAlgorithmException, NoSuchPaddingException {
-        keyGenerator = KeyGenerator.getInstance(ALGORITHM);
-        cipher = Cipher.getInstance(ALGORITHM_FULL);
+        keyGeneratorPool = new CryptoEnginePool<>(KeyGenerator.getInstance(ALGORITHM),
+                () -> KeyGenerator.getInstance(ALGORITHM));
+        cipherPool = new CryptoEnginePool<>(Cipher.getInstance(ALGORITHM_FULL),
+                () -> Cipher.getInstance(ALGORITHM_FULL));
     }
 
     /**
@@ -32,8 +34,14 @@ public class AesGenEncDec {
      * @return base64-encoded key
      */
     public String generateKey(int keySize) {
-        keyGenerator.init(keySize);
-        SecretKey secretKey = keyGenerator.generateKey();
+        SecretKey secretKey;
+        KeyGenerator keyGenerator = keyGeneratorPool.acquire();
+        try {
+            keyGenerator.init(keySize);
+            secretKey = keyGenerator.generateKey();
+        } finally {
+            keyGeneratorPool.release(keyGenerator);
+        }
         System.out.println("Key size: " + secretKey.getEncoded().length);
         return Base64.getEncoder().encodeToString(secretKey.getEncoded());
     }
@@ -44,10 +52,23 @@ public class AesGenEncDec {
      * @return encrypted ciphertext
      */
     public String encrypt(String plaintext, String key) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        cipher.init(Cipher.ENCRYPT_MODE,
-                new SecretKeySpec(Base64.getDecoder().decode(key), ALGORITHM));
-        String iv = Base64.getEncoder().encodeToString(cipher.getIV());
-        return iv + IV_SEPARATOR + Base64.getEncoder().encodeToString(cipher.doFinal(plaintext.getBytes(DEFAULT_CHARSET)));
+        return encrypt(plaintext, decodeKey(key));
+    }
+
+    /**
+     * @param plaintext plaintext to encrypt
+     * @param key       key given by {@link #decodeKey(String)}
+     * @return encrypted ciphertext
+     */
+    public String encrypt(String plaintext, SecretKey key) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        Cipher cipher = cipherPool.acquire();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            String iv = Base64.getEncoder().encodeToString(cipher.getIV());
+            return iv + IV_SEPARATOR + Base64.getEncoder().encodeToString(cipher.doFinal(plaintext.getBytes(DEFAULT_CHARSET)));
+        } finally {
+            cipherPool.release(cipher);
+        }
     }
 
     /**
@@ -56,15 +77,37 @@ public class AesGenEncDec {
      * @return decrypted plaintext
      */
     public String decrypt(String ciphertext, String key) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return decrypt(ciphertext, decodeKey(key));
+    }
+
+    /**
+     * @param ciphertext ciphertext to decrypt
+     * @param key        key given by {@link #decodeKey(String)}
+     * @return decrypted plaintext
+     */
+    public String decrypt(String ciphertext, SecretKey key) throws InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
         String[] ciphertextItems = ciphertext.split(":", 2);
         if (ciphertextItems.length != 2) {
             throw new InvalidKeyException("IV is not found.");
         }
         String iv = ciphertextItems[0];
         String ciphertextPart = ciphertextItems[1];
-        cipher.init(Cipher.DECRYPT_MODE,
-                new SecretKeySpec(Base64.getDecoder().decode(key), ALGORITHM),
-                new IvParameterSpec(Base64.getDecoder().decode(iv)));
-        return new String(cipher.doFinal(Base64.getDecoder().decode(ciphertextPart)), DEFAULT_CHARSET);
+        Cipher cipher = cipherPool.acquire();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE,
+                    key,
+                    new IvParameterSpec(Base64.getDecoder().decode(iv)));
+            return new String(cipher.doFinal(Base64.getDecoder().decode(ciphertextPart)), DEFAULT_CHARSET);
+        } finally {
+            cipherPool.release(cipher);
+        }
+    }
+
+    /**
+     * @param key base64-encoded key
+     * @return the decoded key to be used for many texts
+     */
+    public SecretKey decodeKey(String key) {
+        return new SecretKeySpec(Base64.getDecoder().decode(key), ALGORITHM);
     }
 }
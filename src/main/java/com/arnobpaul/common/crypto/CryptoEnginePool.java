@@ -0,0 +1,88 @@
+package com.arnobpaul.common.crypto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.security.GeneralSecurityException;
+import java.security.ProviderException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class hands out crypto engines (e.g., {@link java.security.Signature} or {@link javax.crypto.Cipher}),
+ * which are not thread-safe, to any number of threads. An engine is used by a single thread between
+ * {@link #acquire()} and {@link #release(Object)}, and is reused afterwards instead of looking up the provider again.
+ * <p>
+ * A pool is used instead of a per-thread engine because a client connection may be served by its own
+ * (e.g., virtual) thread, so a per-thread engine would hardly be reused.
+ *
+ * @param <T> type of the engine
+ */
+public class CryptoEnginePool<T> {
+    private static final int DEFAULT_MAX_IDLE_COUNT = 2 * Runtime.getRuntime().availableProcessors();
+
+    public interface EngineFactory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private final EngineFactory<T> engineFactory;
+    private final int maxIdleCount;
+
+    private final Queue<T> idleEngines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+
+    /**
+     * @param firstEngine   an engine created by the caller (so the caller gets the exception of a missing algorithm)
+     * @param engineFactory factory of the same kind of engine as the first one
+     */
+    public CryptoEnginePool(@NotNull T firstEngine, @NotNull EngineFactory<T> engineFactory) {
+        this(firstEngine, engineFactory, DEFAULT_MAX_IDLE_COUNT);
+    }
+
+    /**
+     * @param firstEngine   an engine created by the caller (so the caller gets the exception of a missing algorithm)
+     * @param engineFactory factory of the same kind of engine as the first one
+     * @param maxIdleCount  maximum number of the engines kept for reuse; more released engines are dropped
+     */
+    public CryptoEnginePool(@NotNull T firstEngine, @NotNull EngineFactory<T> engineFactory, int maxIdleCount) {
+        this.engineFactory = engineFactory;
+        this.maxIdleCount = maxIdleCount;
+        release(firstEngine);
+    }
+
+    /**
+     * @return an idle engine, or a new one if none is idle (must be given back by {@link #release(Object)})
+     * @throws ProviderException if a new engine cannot be created although the first one is created
+     */
+    public T acquire() {
+        T engine = idleEngines.poll();
+        if (engine != null) {
+            idleCount.decrementAndGet();
+            return engine;
+        }
+
+        try {
+            return engineFactory.create();
+        } catch (GeneralSecurityException e) {
+            throw new ProviderException(e);
+        }
+    }
+
+    /**
+     * @param engine engine given by {@link #acquire()}, which must not be used afterwards
+     */
+    public void release(@NotNull T engine) {
+        if (idleCount.incrementAndGet() > maxIdleCount) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idleEngines.offer(engine);
+    }
+
+    /**
+     * @return number of the engines kept for reuse
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
@@ -1,30 +1,131 @@
 package com.arnobpaul.common.crypto;
 
+import com.arnobpaul.common.AppConfig;
+import org.jetbrains.annotations.NotNull;
+
 import javax.crypto.KeyAgreement;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import java.math.BigInteger;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
 
+/**
+ * This class is for Diffie-Hellman key generation, and key exchange, in every {@link KeyAgreementMode}.
+ * It is thread-safe (see {@link CryptoEnginePool}).
+ * <p>
+ * The 2048-bit finite-field keys are generated in the fixed <code>ffdhe2048</code> group of RFC 7919, and the keys
+ * taken by {@link #takeKey(KeyAgreementMode)} are generated ahead by a {@link KeyPairPool}.
+ */
 public class DiffieHellmanKeyExchange {
-    private final static String ALGORITHM = "DH";
+    private static final DHParameterSpec FFDHE_2048 = new DHParameterSpec(new BigInteger(
+            "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1" +
+                    "D8B9C583CE2D3695A9E13641146433FBCC939DCE249B3EF9" +
+                    "7D2FE363630C75D8F681B202AEC4617AD3DF1ED5D5FD6561" +
+                    "2433F51F5F066ED0856365553DED1AF3B557135E7F57C935" +
+                    "984F0C70E0E68B77E2A689DAF3EFE8721DF158A136ADE735" +
+                    "30ACCA4F483A797ABC0AB182B324FB61D108A94BB2C8E3FB" +
+                    "B96ADAB760D7F4681D4F42A3DE394DF4AE56EDE76372BB19" +
+                    "0B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F61" +
+                    "9172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD73" +
+                    "3BB5FCBC2EC22005C58EF1837D1683B2C6F34A26C1B2EFFA" +
+                    "886B423861285C97FFFFFFFFFFFFFFFF", 16),
+            BigInteger.TWO,
+            // Private exponent of at least twice the strength of the group (about 103 bits), as in RFC 7919
+            256);
+
+    private static class Engines {
+        final CryptoEnginePool<KeyPairGenerator> keyPairGeneratorPool;
+        final CryptoEnginePool<KeyFactory> keyFactoryPool;
+        final CryptoEnginePool<KeyAgreement> keyAgreementPool;
+
+        Engines(String algorithm) throws NoSuchAlgorithmException {
+            keyPairGeneratorPool = new CryptoEnginePool<>(KeyPairGenerator.getInstance(algorithm),
+                    () -> KeyPairGenerator.getInstance(algorithm));
+            keyFactoryPool = new CryptoEnginePool<>(KeyFactory.getInstance(algorithm),
+                    () -> KeyFactory.getInstance(algorithm));
+            keyAgreementPool = new CryptoEnginePool<>(KeyAgreement.getInstance(algorithm),
+                    () -> KeyAgreement.getInstance(algorithm));
+        }
+    }
+
+    private final Map<KeyAgreementMode, Engines> enginesByMode = new EnumMap<>(KeyAgreementMode.class);
 
-    private final KeyPairGenerator keyPairGenerator;
-    private final KeyFactory keyFactory;
-    private final KeyAgreement keyAgreement;
+    private final CryptoEnginePool<KeyPairGenerator> keyPairGeneratorPool;
+    private final CryptoEnginePool<KeyFactory> keyFactoryPool;
+
+    // Created on demand (see prepareKeyPairPool)
+    private final Map<KeyAgreementMode, KeyPairPool> keyPairPools = new EnumMap<>(KeyAgreementMode.class);
 
     public DiffieHellmanKeyExchange() throws NoSuchAlgorithmException, NoSuchPaddingException {
-        keyPairGenerator = KeyPairGenerator.getInstance(ALGORITHM);
-        keyFactory = KeyFactory.getInstance(ALGORITHM);
-        keyAgreement = KeyAgreement.getInstance(ALGORITHM);
+        for (KeyAgreementMode keyAgreementMode : KeyAgreementMode.values()) {
+            enginesByMode.put(keyAgreementMode, new Engines(keyAgreementMode.algorithm));
+        }
+
+        Engines finiteFieldEngines = enginesByMode.get(KeyAgreementMode.FINITE_FIELD);
+        keyPairGeneratorPool = finiteFieldEngines.keyPairGeneratorPool;
+        keyFactoryPool = finiteFieldEngines.keyFactoryPool;
     }
 
+    /**
+     * @param keySize size of the finite-field key
+     */
     public AsymmetricKeyPair generateKey(int keySize) {
-        keyPairGenerator.initialize(keySize);
-        java.security.KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        return generateKey(KeyAgreementMode.FINITE_FIELD, keySize);
+    }
+
+    /**
+     * @param keyAgreementMode key agreement the key is generated for (with its default key size)
+     */
+    public AsymmetricKeyPair generateKey(@NotNull KeyAgreementMode keyAgreementMode) {
+        return generateKey(keyAgreementMode, keyAgreementMode.keySize);
+    }
+
+    /**
+     * @param keyAgreementMode key agreement the key is generated for (with its default key size)
+     * @return a key generated ahead (see {@link #prepareKeyPairPool(KeyAgreementMode)}), to be used only once
+     */
+    public AsymmetricKeyPair takeKey(@NotNull KeyAgreementMode keyAgreementMode) {
+        return prepareKeyPairPool(keyAgreementMode).take();
+    }
+
+    /**
+     * This method starts generating the keys of the key agreement ahead, if not yet started.
+     *
+     * @return the pool of the keys generated ahead
+     */
+    public KeyPairPool prepareKeyPairPool(@NotNull KeyAgreementMode keyAgreementMode) {
+        synchronized (keyPairPools) {
+            return keyPairPools.computeIfAbsent(keyAgreementMode, mode -> new KeyPairPool(
+                    "DhKeyPairPool-" + mode,
+                    AppConfig.DH_KEY_PAIR_POOL_SIZE,
+                    () -> generateKey(mode)));
+        }
+    }
+
+    private AsymmetricKeyPair generateKey(KeyAgreementMode keyAgreementMode, int keySize) {
+        Engines engines = enginesByMode.get(keyAgreementMode);
+
+        java.security.KeyPair keyPair;
+        KeyPairGenerator keyPairGenerator = engines.keyPairGeneratorPool.acquire();
+        try {
+            if (keyAgreementMode == KeyAgreementMode.FINITE_FIELD && keySize == FFDHE_2048.getP().bitLength()) {
+                keyPairGenerator.initialize(FFDHE_2048);
+            } else {
+                keyPairGenerator.initialize(keySize);
+            }
+            keyPair = keyPairGenerator.generateKeyPair();
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new ProviderException(e);
+        } finally {
+            engines.keyPairGeneratorPool.release(keyPairGenerator);
+        }
 
         return new AsymmetricKeyPair(
                 Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()),
@@ -36,8 +137,16 @@ public class DiffieHellmanKeyExchange {
      * @return asymmetric key pair
      */
     public AsymmetricKeyPair generateKey(String otherPublicKey) throws InvalidKeySpecException, InvalidAlgorithmParameterException {
-        keyPairGenerator.initialize(((DHPublicKey) keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(otherPublicKey)))).getParams());
-        java.security.KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        DHPublicKey dhPublicKey = (DHPublicKey) generatePublic(keyFactoryPool, otherPublicKey);
+
+        java.security.KeyPair keyPair;
+        KeyPairGenerator keyPairGenerator = keyPairGeneratorPool.acquire();
+        try {
+            keyPairGenerator.initialize(dhPublicKey.getParams());
+            keyPair = keyPairGenerator.generateKeyPair();
+        } finally {
+            keyPairGeneratorPool.release(keyPairGenerator);
+        }
 
         return new AsymmetricKeyPair(
                 Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()),
@@ -50,8 +159,43 @@ public class DiffieHellmanKeyExchange {
      * @return base64-encoded shared secret key
      */
     public String getSharedSecretKey(AsymmetricKeyPair ownKeyPair, String otherPublicKey) throws InvalidKeySpecException, InvalidKeyException {
-        keyAgreement.init(keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(ownKeyPair.privateKey))));
-        keyAgreement.doPhase(keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(otherPublicKey))), true);
-        return Base64.getEncoder().encodeToString(keyAgreement.generateSecret());
+        return getSharedSecretKey(KeyAgreementMode.FINITE_FIELD, ownKeyPair, otherPublicKey);
+    }
+
+    /**
+     * @param keyAgreementMode key agreement both of the keys are generated for
+     * @param ownKeyPair       asymmetric key pair generated by oneself
+     * @param otherPublicKey   base64-encoded public key from the other party
+     * @return base64-encoded shared secret key
+     */
+    public String getSharedSecretKey(@NotNull KeyAgreementMode keyAgreementMode, AsymmetricKeyPair ownKeyPair, String otherPublicKey) throws InvalidKeySpecException, InvalidKeyException {
+        Engines engines = enginesByMode.get(keyAgreementMode);
+
+        PrivateKey privateKey;
+        KeyFactory keyFactory = engines.keyFactoryPool.acquire();
+        try {
+            privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(ownKeyPair.privateKey)));
+        } finally {
+            engines.keyFactoryPool.release(keyFactory);
+        }
+        PublicKey publicKey = generatePublic(engines.keyFactoryPool, otherPublicKey);
+
+        KeyAgreement keyAgreement = engines.keyAgreementPool.acquire();
+        try {
+            keyAgreement.init(privateKey);
+            keyAgreement.doPhase(publicKey, true);
+            return Base64.getEncoder().encodeToString(keyAgreement.generateSecret());
+        } finally {
+            engines.keyAgreementPool.release(keyAgreement);
+        }
+    }
+
+    private static PublicKey generatePublic(CryptoEnginePool<KeyFactory> keyFactoryPool, String publicKey) throws InvalidKeySpecException {
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            return keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
     }
 }
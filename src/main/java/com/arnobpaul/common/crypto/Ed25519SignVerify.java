@@ -0,0 +1,105 @@
+package com.arnobpaul.common.crypto;
+
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
+
+/**
+ * This class is for Ed25519 signing, and verification, of the group messages. Unlike {@link RsaSignVerify}, a key
+ * pair is cheap to generate and a signature is small, so every sender key of a group has its own key pair.
+ * It is thread-safe (see {@link CryptoEnginePool}).
+ */
+public class Ed25519SignVerify {
+    private static final String ALGORITHM = "Ed25519";
+
+    private final CryptoEnginePool<Signature> signaturePool;
+    private final CryptoEnginePool<KeyFactory> keyFactoryPool;
+    private final CryptoEnginePool<KeyPairGenerator> keyPairGeneratorPool;
+
+    public Ed25519SignVerify() throws NoSuchAlgorithmException {
+        signaturePool = new CryptoEnginePool<>(Signature.getInstance(ALGORITHM),
+                () -> Signature.getInstance(ALGORITHM));
+        keyFactoryPool = new CryptoEnginePool<>(KeyFactory.getInstance(ALGORITHM),
+                () -> KeyFactory.getInstance(ALGORITHM));
+        keyPairGeneratorPool = new CryptoEnginePool<>(KeyPairGenerator.getInstance(ALGORITHM),
+                () -> KeyPairGenerator.getInstance(ALGORITHM));
+    }
+
+    /**
+     * @return a new key pair (base64-encoded)
+     */
+    public AsymmetricKeyPair generateKeyPair() {
+        KeyPairGenerator keyPairGenerator = keyPairGeneratorPool.acquire();
+        try {
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            return new AsymmetricKeyPair(
+                    Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()),
+                    Base64.getEncoder().encodeToString(keyPair.getPrivate().getEncoded()));
+        } finally {
+            keyPairGeneratorPool.release(keyPairGenerator);
+        }
+    }
+
+    /**
+     * @param text text to sign
+     * @param key  private key given by {@link #decodePrivateKey(String)}
+     * @return base64-encoded signature of the text
+     */
+    public String sign(String text, PrivateKey key) throws InvalidKeyException, SignatureException {
+        Signature signature = signaturePool.acquire();
+        try {
+            signature.initSign(key);
+            signature.update(text.getBytes(DEFAULT_CHARSET));
+            return Base64.getEncoder().encodeToString(signature.sign());
+        } finally {
+            signaturePool.release(signature);
+        }
+    }
+
+    /**
+     * @param text          text to verify
+     * @param signatureText base64-encoded signature of the text
+     * @param key           public key given by {@link #decodePublicKey(String)}
+     * @return true if verification result of the signature of the text succeeds
+     */
+    public boolean verify(String text, String signatureText, PublicKey key) throws InvalidKeyException, SignatureException {
+        Signature signature = signaturePool.acquire();
+        try {
+            signature.initVerify(key);
+            signature.update(text.getBytes(DEFAULT_CHARSET));
+            return signature.verify(Base64.getDecoder().decode(signatureText));
+        } finally {
+            signaturePool.release(signature);
+        }
+    }
+
+    /**
+     * @param privateKey base64-encoded private key
+     * @return the parsed key to be used for signing many texts without parsing the key again
+     */
+    public PrivateKey decodePrivateKey(String privateKey) throws InvalidKeySpecException {
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey)));
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
+    }
+
+    /**
+     * @param publicKey base64-encoded public key
+     * @return the parsed key to be used for verifying many texts without parsing the key again
+     */
+    public PublicKey decodePublicKey(String publicKey) throws InvalidKeySpecException {
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            return keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
+    }
+}
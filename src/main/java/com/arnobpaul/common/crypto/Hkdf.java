@@ -0,0 +1,102 @@
+package com.arnobpaul.common.crypto;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
+
+/**
+ * This class is for HKDF (RFC 5869) with HMAC-SHA-256, which derives keys from a shared secret.
+ * It is thread-safe (see {@link CryptoEnginePool}).
+ */
+public class Hkdf {
+    private static final String ALGORITHM = "HMACSHA256";
+    private static final int HASH_SIZE = 32;
+
+    private final CryptoEnginePool<Mac> macPool;
+
+    public Hkdf() throws NoSuchAlgorithmException {
+        macPool = new CryptoEnginePool<>(Mac.getInstance(ALGORITHM),
+                () -> Mac.getInstance(ALGORITHM));
+    }
+
+    /**
+     * This method derives all of the keys in one pass, i.e., from a single extract and a single expand.
+     *
+     * @param secret   base64-encoded shared secret (e.g., of a key agreement)
+     * @param info     context of the keys, so the same secret gives other keys in another context
+     * @param keySizes sizes of the keys in bytes
+     * @return base64-encoded keys in the order of the sizes
+     */
+    public String[] deriveKeys(String secret, String info, int... keySizes) throws InvalidKeyException {
+        int totalSize = 0;
+        for (int keySize : keySizes) {
+            totalSize += keySize;
+        }
+        byte[] keyMaterial = expand(extract(null, Base64.getDecoder().decode(secret)),
+                info.getBytes(DEFAULT_CHARSET),
+                totalSize);
+
+        String[] keys = new String[keySizes.length];
+        int offset = 0;
+        for (int i = 0; i < keySizes.length; i++) {
+            keys[i] = Base64.getEncoder().encodeToString(Arrays.copyOfRange(keyMaterial, offset, offset + keySizes[i]));
+            offset += keySizes[i];
+        }
+        return keys;
+    }
+
+    /**
+     * @param salt             salt, or null (i.e., a string of zeros)
+     * @param inputKeyMaterial input keying material (e.g., a shared secret)
+     * @return pseudorandom key
+     */
+    public byte[] extract(@Nullable byte[] salt, byte[] inputKeyMaterial) throws InvalidKeyException {
+        if (salt == null || salt.length == 0) {
+            salt = new byte[HASH_SIZE];
+        }
+        Mac mac = macPool.acquire();
+        try {
+            mac.init(new SecretKeySpec(salt, ALGORITHM));
+            return mac.doFinal(inputKeyMaterial);
+        } finally {
+            macPool.release(mac);
+        }
+    }
+
+    /**
+     * @param pseudoRandomKey pseudorandom key given by {@link #extract(byte[], byte[])}
+     * @param info            context of the output keying material
+     * @param length          length of the output keying material in bytes (at most 255 times 32)
+     * @return output keying material
+     */
+    public byte[] expand(byte[] pseudoRandomKey, byte[] info, int length) throws InvalidKeyException {
+        if (length < 0 || length > 255 * HASH_SIZE) {
+            throw new IllegalArgumentException("Invalid HKDF output length: " + length);
+        }
+
+        byte[] outputKeyMaterial = new byte[length];
+        Mac mac = macPool.acquire();
+        try {
+            mac.init(new SecretKeySpec(pseudoRandomKey, ALGORITHM));
+            byte[] block = new byte[0];
+            for (int offset = 0, counter = 1; offset < length; offset += HASH_SIZE, counter++) {
+                // T(i) = HMAC(PRK, T(i - 1) | info | i)
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                System.arraycopy(block, 0, outputKeyMaterial, offset, Math.min(HASH_SIZE, length - offset));
+            }
+        } finally {
+            macPool.release(mac);
+        }
+        return outputKeyMaterial;
+    }
+}
@@ -3,18 +3,35 @@ package com.arnobpaul.common.crypto;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 
 import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
 
+/**
+ * This class is for HMAC generation, and verification. It is thread-safe (see {@link CryptoEnginePool}).
+ */
 public class HmacGenerateVerify {
     private static final String ALGORITHM = "HMACSHA256";
 
-    private final Mac mac;
+    /**
+     * This class holds a decoded key with its own {@link Mac} initialized once, so a tag is generated without
+     * decoding the key or initializing the {@link Mac} again.
+     */
+    public static class HmacKey {
+        private final Mac mac;
+
+        private HmacKey(Mac mac) {
+            this.mac = mac;
+        }
+    }
+
+    private final CryptoEnginePool<Mac> macPool;
 
     public HmacGenerateVerify() throws NoSuchAlgorithmException {
-        mac = Mac.getInstance(ALGORITHM);
+        macPool = new CryptoEnginePool<>(Mac.getInstance(ALGORITHM),
+                () -> Mac.getInstance(ALGORITHM));
     }
 
     /**
@@ -23,8 +40,48 @@ public class HmacGenerateVerify {
      * @return base64-encoded signature of the text
      */
     public String generateTag(String text, String key) throws InvalidKeyException {
+        Mac mac = macPool.acquire();
+        try {
+            mac.init(new SecretKeySpec(Base64.getDecoder().decode(key), ALGORITHM));
+            return Base64.getEncoder().encodeToString(mac.doFinal(text.getBytes(DEFAULT_CHARSET)));
+        } finally {
+            macPool.release(mac);
+        }
+    }
+
+    /**
+     * @param text text to sign
+     * @param key  key given by {@link #decodeKey(String)}
+     * @return base64-encoded signature of the text
+     */
+    public String generateTag(String text, HmacKey key) {
+        byte[] tag;
+        synchronized (key) {
+            // doFinal() resets the Mac with the same key
+            tag = key.mac.doFinal(text.getBytes(DEFAULT_CHARSET));
+        }
+        return Base64.getEncoder().encodeToString(tag);
+    }
+
+    /**
+     * @param text text to verify
+     * @param tag  base64-encoded tag of the text
+     * @param key  key given by {@link #decodeKey(String)}
+     * @return true if verification result of the tag of the text succeeds
+     */
+    public boolean verifyTag(String text, String tag, HmacKey key) {
+        return (tag != null && isTagEqual(tag, generateTag(text, key)));
+    }
+
+    /**
+     * @param key base64-encoded key
+     * @return the decoded key to be used for many texts
+     */
+    public HmacKey decodeKey(String key) throws InvalidKeyException {
+        // The Mac is owned by the key, so it is not given back to the pool
+        Mac mac = macPool.acquire();
         mac.init(new SecretKeySpec(Base64.getDecoder().decode(key), ALGORITHM));
-        return Base64.getEncoder().encodeToString(mac.doFinal(text.getBytes(DEFAULT_CHARSET)));
+        return new HmacKey(mac);
     }
 
     /**
@@ -34,6 +91,13 @@ public class HmacGenerateVerify {
      * @return true if verification result of the tag of the text succeeds
      */
     public boolean verifyTag(String text, String tag, String key) throws InvalidKeyException {
-        return (tag != null && tag.equals(generateTag(text, key)));
+        return (tag != null && isTagEqual(tag, generateTag(text, key)));
+    }
+
+    /**
+     * This method compares in constant time, so the time taken does not tell how much of a forged tag is correct.
+     */
+    private static boolean isTagEqual(String tag, String expectedTag) {
+        return MessageDigest.isEqual(tag.getBytes(DEFAULT_CHARSET), expectedTag.getBytes(DEFAULT_CHARSET));
     }
 }
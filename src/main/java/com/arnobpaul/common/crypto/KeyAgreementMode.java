@@ -0,0 +1,39 @@
+package com.arnobpaul.common.crypto;
+
+/**
+ * This enum defines the key agreement of the message keys, sent as a version in <code>DATA_DH_START</code>.
+ */
+public enum KeyAgreementMode {
+    /**
+     * Finite-field Diffie-Hellman with 2048-bit keys. It is also used by a client not sending the version.
+     */
+    FINITE_FIELD(1, "DH", 2048),
+
+    /**
+     * Elliptic-curve Diffie-Hellman over Curve25519 (RFC 7748), with 32-byte keys and much faster key generation.
+     */
+    X25519(2, "X25519", 255);
+
+    public final int version;
+    final String algorithm;
+    final int keySize;
+
+    KeyAgreementMode(int version, String algorithm, int keySize) {
+        this.version = version;
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+    }
+
+    /**
+     * @param version the version received from the other client
+     * @return the matched key agreement mode, or null if not matched
+     */
+    public static KeyAgreementMode fromVersion(int version) {
+        for (KeyAgreementMode keyAgreementMode : values()) {
+            if (keyAgreementMode.version == version) {
+                return keyAgreementMode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,111 @@
+package com.arnobpaul.common.crypto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps a few single-use key pairs generated ahead on a background thread, so taking a key pair does not
+ * wait for its generation (unless the pool is depleted, e.g., by a burst of takes, or right after the start). A taken
+ * key pair is never given again, and the pool is refilled right after every take.
+ */
+public class KeyPairPool {
+    private final String name;
+    private final BlockingQueue<AsymmetricKeyPair> keyPairs;
+    private final Supplier<AsymmetricKeyPair> keyPairGenerator;
+    private final Thread refillThread;
+
+    private final LongAdder takenCount = new LongAdder();
+    private final LongAdder depletedCount = new LongAdder();
+
+    // Interval of checking whether the refilling thread is still alive while waiting for a key pair
+    private static final long REFILL_CHECK_INTERVAL = 100;
+
+    private static final Logger logger = Logger.getLogger(KeyPairPool.class.getName());
+
+    /**
+     * @param name             name of the refilling thread
+     * @param capacity         number of the key pairs generated ahead
+     * @param keyPairGenerator generator of a new key pair (called by the refilling thread, or by a take if the
+     *                         refilling thread is terminated)
+     */
+    public KeyPairPool(@NotNull String name, int capacity, @NotNull Supplier<AsymmetricKeyPair> keyPairGenerator) {
+        this.name = name;
+        this.keyPairs = new ArrayBlockingQueue<>(capacity);
+        this.keyPairGenerator = keyPairGenerator;
+
+        this.refillThread = new Thread(this::refill, name);
+        refillThread.setDaemon(true);
+        refillThread.setPriority(Thread.MIN_PRIORITY);
+        refillThread.start();
+    }
+
+    /**
+     * @return a key pair generated ahead, or the next one generated if the pool is depleted
+     */
+    public AsymmetricKeyPair take() {
+        takenCount.increment();
+        AsymmetricKeyPair keyPair = keyPairs.poll();
+        if (keyPair != null) {
+            return keyPair;
+        }
+
+        depletedCount.increment();
+        logger.info(String.format("%s is depleted (%d of %d takes)", name, depletedCount.sum(), takenCount.sum()));
+
+        // Waits for the key pair being generated by the refilling thread, which is ready sooner than a new one
+        // generated alongside it (e.g., on a single CPU)
+        try {
+            while (refillThread.isAlive()) {
+                keyPair = keyPairs.poll(REFILL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (keyPair != null) {
+                    return keyPair;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warning(e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        return keyPairGenerator.get();
+    }
+
+    /**
+     * @return the number of the key pairs ready to be taken
+     */
+    public int getReadyCount() {
+        return keyPairs.size();
+    }
+
+    public long getTakenCount() {
+        return takenCount.sum();
+    }
+
+    /**
+     * @return the number of the takes which found the pool depleted (i.e., waited for a key generation)
+     */
+    public long getDepletedCount() {
+        return depletedCount.sum();
+    }
+
+    private void refill() {
+        while (true) {
+            try {
+                // Blocks while the pool is full
+                keyPairs.put(keyPairGenerator.get());
+            } catch (InterruptedException e) {
+                logger.warning(e.getMessage());
+                break;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+                break;
+            }
+        }
+        logger.info("KeyPairPool is terminated");
+    }
+}
@@ -0,0 +1,52 @@
+package com.arnobpaul.common.crypto;
+
+/**
+ * This enum defines the protection of the chat messages, sent as a version in <code>DATA_DH_START</code>.
+ */
+public enum MessageCipherMode {
+    /**
+     * AES-256 in CBC mode with an HMAC-SHA-256 tag inside the ciphertext (see {@link AesGenEncDec}). It is also used
+     * by a client not sending the version, so its keys are derived as by such a client (i.e., not by {@link Hkdf}).
+     */
+    CBC_HMAC(1, null, null),
+
+    /**
+     * AES-256 in GCM mode (AEAD), which is fast on a CPU with the AES instructions.
+     */
+    AES_GCM(2, "AES/GCM/NoPadding", "AES"),
+
+    /**
+     * ChaCha20-Poly1305 (AEAD, RFC 8439), which is fast on a CPU without the AES instructions.
+     */
+    CHACHA20_POLY1305(3, "ChaCha20-Poly1305", "ChaCha20");
+
+    public final int version;
+    final String transformation;
+    final String keyAlgorithm;
+
+    MessageCipherMode(int version, String transformation, String keyAlgorithm) {
+        this.version = version;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * @return true if the mode is an AEAD (see {@link AeadEncDec}), i.e., no separate HMAC tag is needed
+     */
+    public boolean isAead() {
+        return (transformation != null);
+    }
+
+    /**
+     * @param version the version received from the other client
+     * @return the matched message cipher mode, or null if not matched
+     */
+    public static MessageCipherMode fromVersion(int version) {
+        for (MessageCipherMode messageCipherMode : values()) {
+            if (messageCipherMode.version == version) {
+                return messageCipherMode;
+            }
+        }
+        return null;
+    }
+}
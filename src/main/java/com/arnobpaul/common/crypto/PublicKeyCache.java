@@ -0,0 +1,108 @@
+package com.arnobpaul.common.crypto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the parsed public keys of the clients by client ID, so a signature of a known client is verified
+ * without decoding and parsing its base64-encoded key again. The least recently used key is evicted if the cache is
+ * full, and a key expires after the given time.
+ * <p>
+ * An entry is only used for the same encoded key it was parsed from, so a changed key of a client is never verified
+ * with the old one even before {@link #invalidate(int)} is called.
+ */
+public class PublicKeyCache {
+    private static class Entry {
+        final String encodedPublicKey;
+        final PublicKey publicKey;
+        final long expiryTime;
+
+        Entry(String encodedPublicKey, PublicKey publicKey, long expiryTime) {
+            this.encodedPublicKey = encodedPublicKey;
+            this.publicKey = publicKey;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param maxSize maximum number of the keys
+     * @param ttl     time to live of a key in milliseconds
+     */
+    public PublicKeyCache(int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > PublicKeyCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param clientId         client ID of the owner of the key
+     * @param encodedPublicKey base64-encoded public key
+     * @return the parsed key if cached and not expired, otherwise null
+     */
+    synchronized public @Nullable PublicKey get(int clientId, @NotNull String encodedPublicKey) {
+        Entry entry = entries.get(clientId);
+        if (entry == null || !entry.encodedPublicKey.equals(encodedPublicKey)) {
+            missCount.increment();
+            return null;
+        }
+        if (System.nanoTime() - entry.expiryTime > 0) {
+            entries.remove(clientId);
+            missCount.increment();
+            return null;
+        }
+
+        hitCount.increment();
+        return entry.publicKey;
+    }
+
+    /**
+     * @param clientId         client ID of the owner of the key
+     * @param encodedPublicKey base64-encoded public key
+     * @param publicKey        the parsed key of the encoded key (replaces the previous key of the client if any)
+     */
+    synchronized public void put(int clientId, @NotNull String encodedPublicKey, @NotNull PublicKey publicKey) {
+        entries.put(clientId, new Entry(encodedPublicKey, publicKey, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * This method must be called once the key of the client is changed or removed.
+     */
+    synchronized public void invalidate(int clientId) {
+        entries.remove(clientId);
+    }
+
+    synchronized public void clear() {
+        entries.clear();
+    }
+
+    synchronized public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+}
@@ -1,54 +1,103 @@
 package com.arnobpaul.common.crypto;
 
+import com.arnobpaul.common.AppConfig;
+
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
+import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
 
 /**
- * This class is for RSA generation, encryption, and decryption.
+ * This class is for RSA generation, encryption, and decryption. It is thread-safe (see {@link CryptoEnginePool}).
+ * <p>
+ * The keys taken by {@link #takeKey(int)} are generated ahead by a {@link KeyPairPool}.
  */
 public class RsaGenEncDec {
     private final static String ALGORITHM = "RSA";
 
-    private final KeyPairGenerator keyPairGenerator;
-    private final Cipher cipher;
-    private final KeyFactory keyFactory;
+    private final CryptoEnginePool<KeyPairGenerator> keyPairGeneratorPool;
+    private final CryptoEnginePool<Cipher> cipherPool;
+    private final CryptoEnginePool<KeyFactory> keyFactoryPool;
+
+    // Created on demand per key size (see prepareKeyPairPool)
+    private final Map<Integer, KeyPairPool> keyPairPools = new HashMap<>();
 
     public RsaGenEncDec() throws NoSuchAlgorithmException, NoSuchPaddingException {
-        keyPairGenerator = KeyPairGenerator.getInstance(ALGORITHM);
-        cipher = Cipher.getInstance(ALGORITHM);
-        keyFactory = KeyFactory.getInstance(ALGORITHM);
+        keyPairGeneratorPool = new CryptoEnginePool<>(KeyPairGenerator.getInstance(ALGORITHM),
+                () -> KeyPairGenerator.getInstance(ALGORITHM));
+        cipherPool = new CryptoEnginePool<>(Cipher.getInstance(ALGORITHM),
+                () -> Cipher.getInstance(ALGORITHM));
+        keyFactoryPool = new CryptoEnginePool<>(KeyFactory.getInstance(ALGORITHM),
+                () -> KeyFactory.getInstance(ALGORITHM));
     }
 
     public AsymmetricKeyPair generateKey(int keySize) {
-        keyPairGenerator.initialize(keySize);
-        java.security.KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        java.security.KeyPair keyPair;
+        KeyPairGenerator keyPairGenerator = keyPairGeneratorPool.acquire();
+        try {
+            keyPairGenerator.initialize(keySize);
+            keyPair = keyPairGenerator.generateKeyPair();
+        } finally {
+            keyPairGeneratorPool.release(keyPairGenerator);
+        }
 
         return new AsymmetricKeyPair(
                 Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()),
                 Base64.getEncoder().encodeToString(keyPair.getPrivate().getEncoded()));
     }
 
+    /**
+     * @param keySize size of the key
+     * @return a key generated ahead (see {@link #prepareKeyPairPool(int)}), to be used only once
+     */
+    public AsymmetricKeyPair takeKey(int keySize) {
+        return prepareKeyPairPool(keySize).take();
+    }
+
+    /**
+     * This method starts generating the keys of the size ahead, if not yet started.
+     *
+     * @return the pool of the keys generated ahead
+     */
+    public KeyPairPool prepareKeyPairPool(int keySize) {
+        synchronized (keyPairPools) {
+            return keyPairPools.computeIfAbsent(keySize, size -> new KeyPairPool(
+                    "RsaKeyPairPool-" + size,
+                    AppConfig.RSA_KEY_PAIR_POOL_SIZE,
+                    () -> generateKey(size)));
+        }
+    }
+
     /**
      * @param plaintext plaintext to encrypt
      * @param publicKey base64-encoded public key
      * @return encrypted ciphertext
      */
     public String encrypt(String plaintext, String publicKey) throws InvalidKeySpecException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        cipher.init(Cipher.ENCRYPT_MODE,
-                keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey))));
-        return Base64.getEncoder().encodeToString(cipher.doFinal(plaintext.getBytes(DEFAULT_CHARSET)));
+        PublicKey key;
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            key = keyFactory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
+
+        Cipher cipher = cipherPool.acquire();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return Base64.getEncoder().encodeToString(cipher.doFinal(plaintext.getBytes(DEFAULT_CHARSET)));
+        } finally {
+            cipherPool.release(cipher);
+        }
     }
 
     /**
@@ -57,8 +106,20 @@ public class RsaGenEncDec {
      * @return decrypted plaintext
      */
     public String decrypt(String ciphertext, String privateKey) throws InvalidKeySpecException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        cipher.init(Cipher.DECRYPT_MODE,
-                keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey))));
-        return new String(cipher.doFinal(Base64.getDecoder().decode(ciphertext)), DEFAULT_CHARSET);
+        PrivateKey key;
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            key = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey)));
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
+
+        Cipher cipher = cipherPool.acquire();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return new String(cipher.doFinal(Base64.getDecoder().decode(ciphertext)), DEFAULT_CHARSET);
+        } finally {
+            cipherPool.release(cipher);
+        }
     }
 }
@@ -1,5 +1,8 @@
 package com.arnobpaul.common.crypto;
 
+import com.arnobpaul.common.AppConfig;
+import org.jetbrains.annotations.NotNull;
+
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
@@ -9,18 +12,30 @@ import java.util.Base64;
 import static com.arnobpaul.common.AppConfig.DEFAULT_CHARSET;
 
 /**
- * This class is for RSA signing, and verification.
+ * This class is for RSA signing, and verification. It is thread-safe (see {@link CryptoEnginePool}).
  */
 public class RsaSignVerify {
     private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
     private static final String KEY_ALGORITHM = "RSA";
 
-    private final Signature signature;
-    private final KeyFactory keyFactory;
+    private final CryptoEnginePool<Signature> signaturePool;
+    private final CryptoEnginePool<KeyFactory> keyFactoryPool;
+
+    private final PublicKeyCache publicKeyCache;
 
     public RsaSignVerify() throws NoSuchAlgorithmException {
-        signature = Signature.getInstance(SIGNATURE_ALGORITHM);
-        keyFactory = KeyFactory.getInstance(KEY_ALGORITHM);
+        this(new PublicKeyCache(AppConfig.PUBLIC_KEY_CACHE_SIZE, AppConfig.PUBLIC_KEY_CACHE_TTL));
+    }
+
+    /**
+     * @param publicKeyCache cache of the parsed public keys used by {@link #verify(String, String, int, String)}
+     */
+    public RsaSignVerify(@NotNull PublicKeyCache publicKeyCache) throws NoSuchAlgorithmException {
+        this.publicKeyCache = publicKeyCache;
+        signaturePool = new CryptoEnginePool<>(Signature.getInstance(SIGNATURE_ALGORITHM),
+                () -> Signature.getInstance(SIGNATURE_ALGORITHM));
+        keyFactoryPool = new CryptoEnginePool<>(KeyFactory.getInstance(KEY_ALGORITHM),
+                () -> KeyFactory.getInstance(KEY_ALGORITHM));
     }
 
     /**
@@ -29,10 +44,23 @@ public class RsaSignVerify {
      * @return base64-encoded signature of the text
      */
     public String sign(String text, String privateKey) throws InvalidKeySpecException, InvalidKeyException, SignatureException {
-        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey));
-        signature.initSign(keyFactory.generatePrivate(keySpec));
-        signature.update(text.getBytes(DEFAULT_CHARSET));
-        return Base64.getEncoder().encodeToString(signature.sign());
+        return sign(text, decodePrivateKey(privateKey));
+    }
+
+    /**
+     * @param text text to sign
+     * @param key  private key given by {@link #decodePrivateKey(String)}
+     * @return base64-encoded signature of the text
+     */
+    public String sign(String text, PrivateKey key) throws InvalidKeyException, SignatureException {
+        Signature signature = signaturePool.acquire();
+        try {
+            signature.initSign(key);
+            signature.update(text.getBytes(DEFAULT_CHARSET));
+            return Base64.getEncoder().encodeToString(signature.sign());
+        } finally {
+            signaturePool.release(signature);
+        }
     }
 
     /**
@@ -43,8 +71,67 @@ public class RsaSignVerify {
      */
     public boolean verify(String text, String signatureText, String publicKey) throws InvalidKeySpecException, InvalidKeyException, SignatureException {
         X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey));
-        signature.initVerify(keyFactory.generatePublic(keySpec));
-        signature.update(text.getBytes(DEFAULT_CHARSET));
-        return signature.verify(Base64.getDecoder().decode(signatureText));
+        return verify(text, signatureText, generatePublic(keySpec));
+    }
+
+    /**
+     * This method is the same as {@link #verify(String, String, String)}, but the parsed public key is cached by
+     * the client ID (see {@link #getPublicKeyCache()}). So it must only be used for the current key of a client
+     * (e.g., not for a new key before it is stored).
+     *
+     * @param text          text to verify
+     * @param signatureText base64-encoded signature of the text
+     * @param clientId      client ID of the owner of the public key
+     * @param publicKey     base64-encoded public key
+     * @return true if verification result of the signature of the text succeeds
+     */
+    public boolean verify(String text, String signatureText, int clientId, String publicKey) throws InvalidKeySpecException, InvalidKeyException, SignatureException {
+        PublicKey key = publicKeyCache.get(clientId, publicKey);
+        if (key == null) {
+            key = generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+            publicKeyCache.put(clientId, publicKey, key);
+        }
+        return verify(text, signatureText, key);
+    }
+
+    private boolean verify(String text, String signatureText, PublicKey key) throws InvalidKeyException, SignatureException {
+        Signature signature = signaturePool.acquire();
+        try {
+            signature.initVerify(key);
+            signature.update(text.getBytes(DEFAULT_CHARSET));
+            return signature.verify(Base64.getDecoder().decode(signatureText));
+        } finally {
+            signaturePool.release(signature);
+        }
+    }
+
+    /**
+     * @param privateKey base64-encoded private key
+     * @return the parsed key to be used for signing many texts without parsing the key again
+     */
+    public PrivateKey decodePrivateKey(String privateKey) throws InvalidKeySpecException {
+        return generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey)));
+    }
+
+    public PublicKeyCache getPublicKeyCache() {
+        return publicKeyCache;
+    }
+
+    private PrivateKey generatePrivate(PKCS8EncodedKeySpec keySpec) throws InvalidKeySpecException {
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            return keyFactory.generatePrivate(keySpec);
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
+    }
+
+    private PublicKey generatePublic(X509EncodedKeySpec keySpec) throws InvalidKeySpecException {
+        KeyFactory keyFactory = keyFactoryPool.acquire();
+        try {
+            return keyFactory.generatePublic(keySpec);
+        } finally {
+            keyFactoryPool.release(keyFactory);
+        }
     }
 }
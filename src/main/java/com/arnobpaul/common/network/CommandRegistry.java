@@ -0,0 +1,125 @@
+package com.arnobpaul.common.network;
+
+import com.arnobpaul.common.AppConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class dispatches every received frame of a connection to the handler registered for its exact command.
+ * The handlers are kept in a table indexed by opcode (see {@link FrameCodec#peekOpcode(ByteBuffer, Protocol)}),
+ * so the dispatch is a single array lookup for any number of commands, and the read loops are never changed for a
+ * new command.
+ * <p>
+ * The opcodes and the fields of the commands are part of the protocol, so they are not given here: a new command
+ * needs its header in {@link AppConfig.NetworkCommand} and its fields appended to the command table of
+ * {@link FrameCodec} (known to both ends), and only then a handler registered here.
+ */
+public class CommandRegistry {
+    private static final int TABLE_SIZE = 256;
+
+    public interface CommandHandler {
+        /**
+         * @param data the fields of the command (i.e., the line without the header), or null if no field
+         */
+        void handle(String data);
+    }
+
+    public interface RawCommandHandler {
+        /**
+         * @param frame    the frame of the command (must not be modified; may be kept after returning)
+         * @param protocol protocol of the frame
+         * @return true if handled, otherwise false to fall back to the {@link CommandHandler} of the command
+         */
+        boolean handle(@NotNull ByteBuffer frame, @NotNull Protocol protocol);
+    }
+
+    private final String[] headers = new String[TABLE_SIZE];
+    private final CommandHandler[] commandHandlers = new CommandHandler[TABLE_SIZE];
+    private final RawCommandHandler[] rawCommandHandlers = new RawCommandHandler[TABLE_SIZE];
+
+    private final Supplier<String> sourceSupplier;
+
+    private static final Logger logger = Logger.getLogger(CommandRegistry.class.getName());
+
+    /**
+     * @param sourceSupplier supplier of the remote address of the connection (only for logging)
+     */
+    public CommandRegistry(@NotNull Supplier<String> sourceSupplier) {
+        this.sourceSupplier = sourceSupplier;
+    }
+
+    /**
+     * @param header         a header of {@link AppConfig.NetworkCommand} (replaces the previous handler if any)
+     * @param commandHandler handler receiving the decoded fields of the command
+     * @throws IllegalArgumentException if the header is not in the command table of {@link FrameCodec}
+     */
+    public void register(@NotNull String header, @NotNull CommandHandler commandHandler) {
+        int index = getIndex(header);
+        headers[index] = header;
+        commandHandlers[index] = commandHandler;
+    }
+
+    /**
+     * @param header            a header of {@link AppConfig.NetworkCommand} (replaces the previous handler if any)
+     * @param rawCommandHandler handler receiving the undecoded frame of the command, tried before the
+     *                          {@link CommandHandler} of the command
+     * @throws IllegalArgumentException if the header is not in the command table of {@link FrameCodec}
+     */
+    public void registerRaw(@NotNull String header, @NotNull RawCommandHandler rawCommandHandler) {
+        int index = getIndex(header);
+        headers[index] = header;
+        rawCommandHandlers[index] = rawCommandHandler;
+    }
+
+    /**
+     * @param frame    frame given by {@link FrameDecoder}
+     * @param protocol protocol of the connection
+     * @return true if a handler is found, otherwise false (i.e., the frame is ignored)
+     * @throws ProtocolException if the frame is malformed
+     */
+    public boolean dispatch(@NotNull ByteBuffer frame, @NotNull Protocol protocol) throws ProtocolException {
+        int index = Byte.toUnsignedInt(FrameCodec.peekOpcode(frame, protocol));
+        String header = headers[index];
+        if (header == null) {
+            logger.warning(String.format("No handler for the frame from %s",
+                    sourceSupplier.get()));
+            return false;
+        }
+
+        RawCommandHandler rawCommandHandler = rawCommandHandlers[index];
+        if (rawCommandHandler != null && rawCommandHandler.handle(frame, protocol)) {
+            return true;
+        }
+
+        CommandHandler commandHandler = commandHandlers[index];
+        if (commandHandler == null) {
+            logger.warning(String.format("No handler for \"%s\" from %s",
+                    header,
+                    sourceSupplier.get()));
+            return false;
+        }
+
+        String data = FrameCodec.decodeData(frame, protocol);
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("Received \"%s%s\" from %s",
+                    header,
+                    (data == null) ? "" : " " + data,
+                    sourceSupplier.get()));
+        }
+        commandHandler.handle(data);
+        return true;
+    }
+
+    private static int getIndex(String header) {
+        byte opcode = FrameCodec.getOpcode(header);
+        if (opcode == FrameCodec.OPCODE_TEXT_LINE) {
+            throw new IllegalArgumentException(String.format("No opcode for the header: %s", header));
+        }
+        return Byte.toUnsignedInt(opcode);
+    }
+}
@@ -0,0 +1,824 @@
+package com.arnobpaul.common.network;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.AppConfig.NetworkCommand;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class converts the lines of the text protocol to the frames of a {@link Protocol} and vice versa, so that
+ * the services keep working with lines regardless of the protocol of a connection.
+ * <p>
+ * A binary frame is: <code>&lt;u32 Length&gt; &lt;u8 Opcode&gt; &lt;Fields&gt;</code>, where the length counts the
+ * opcode and the fields. Every {@link NetworkCommand} has a one-byte opcode and a fixed list of typed fields:
+ * <ul>
+ *     <li>{@link FieldType#INT}, {@link FieldType#LONG}: big-endian, 4 and 8 bytes</li>
+ *     <li>{@link FieldType#BYTES}: <code>&lt;u16 Length&gt; &lt;Raw_Bytes&gt;</code> of a base64 field in text</li>
+ *     <li>{@link FieldType#TEXT}: <code>&lt;u16 Length&gt; &lt;UTF-8_Bytes&gt;</code></li>
+ *     <li>{@link FieldType#REST}: the optional remaining UTF-8 bytes of the frame (only as the last field)</li>
+ *     <li>{@link FieldType#DATA}: the optional remaining bytes of the frame (only as the last field), i.e., the
+ *     end-to-end data of the clients relayed as is by the server, as UTF-8 bytes or packed (see below)</li>
+ * </ul>
+ * A line that does not fit the fields of its command (e.g., a malformed line) is sent as
+ * {@link #OPCODE_TEXT_LINE}, i.e., the UTF-8 bytes of the whole line, so every line can be sent in any protocol.
+ * <p>
+ * The data of the clients mostly consists of base64 tokens (e.g., ciphertexts and signatures), so it is packed in the
+ * binary protocol to save their overhead: <code>&lt;u8 0&gt; &lt;Runs&gt;</code>, where a run is
+ * <code>&lt;u8 Kind&gt; &lt;u16 Length&gt; &lt;Bytes&gt;</code>, i.e., the UTF-8 bytes of a text, or the raw bytes of
+ * a base64 token, and the runs are separated by a field separator in text. The server relays the packed data as is
+ * between the connections of the binary protocol, and unpacks it only for a connection of the text protocol
+ * (see {@link #encodeSendData(int, ByteBuffer, Protocol)}). Unpacked data starting with a NUL byte is escaped with
+ * another NUL byte in the binary protocol (a run is never of kind 0), so it is not taken for packed data.
+ */
+public class FrameCodec {
+    public static final int LENGTH_PREFIX_SIZE = Integer.BYTES;
+
+    public static final byte OPCODE_TEXT_LINE = 0;
+
+    private static final int MAX_FIELD_SIZE = 0xFFFF;
+
+    // Also escapes the unpacked data starting with the marker itself
+    private static final byte PACKED_DATA_MARKER = 0;
+    private static final byte PACKED_RUN_TEXT = 1;
+    private static final byte PACKED_RUN_BYTES = 2;
+    // A shorter base64 token is kept in text, as its run would save (almost) nothing
+    private static final int MIN_PACKED_TOKEN_LENGTH = 24;
+
+    private static final char FIELD_SEPARATOR = ' ';
+    private static final byte LINE_SEPARATOR = '\n';
+
+    public enum FieldType {
+        INT, LONG, BYTES, TEXT, REST, DATA
+    }
+
+    private static class CommandSchema {
+        private final byte opcode;
+        private final String header;
+        private final byte[] headerBytes;
+        private final FieldType[] fieldTypes;
+
+        private CommandSchema(byte opcode, String header, FieldType... fieldTypes) {
+            this.opcode = opcode;
+            this.header = header;
+            this.headerBytes = header.getBytes(AppConfig.DEFAULT_CHARSET);
+            this.fieldTypes = fieldTypes;
+        }
+    }
+
+    // The index is the opcode; the opcodes are part of the protocol, so new commands must be appended only
+    private static final CommandSchema[] COMMAND_SCHEMAS;
+    private static final Map<String, CommandSchema> HEADER_TO_COMMAND_SCHEMA_MAP = new HashMap<>();
+
+    // Collision-free (i.e., perfect) hash table of the header bytes, to find the opcode of a text line without decoding
+    private static final CommandSchema[] HEADER_HASH_TABLE;
+    private static final int HEADER_HASH_TABLE_MASK;
+
+    private static final byte SEND_DATA_OPCODE;
+    private static final byte[] SEND_DATA_PREFIX = (NetworkCommand.SEND_DATA + FIELD_SEPARATOR)
+            .getBytes(AppConfig.DEFAULT_CHARSET);
+    private static final byte GROUP_SEND_OPCODE;
+    private static final byte[] GROUP_SEND_PREFIX = (NetworkCommand.GROUP_SEND + FIELD_SEPARATOR)
+            .getBytes(AppConfig.DEFAULT_CHARSET);
+    private static final byte GROUP_DATA_OPCODE;
+    private static final ByteBuffer LINE_SEPARATOR_BUFFER = ByteBuffer.wrap(new byte[]{LINE_SEPARATOR});
+
+    static {
+        Object[][] commands = {
+                {null},
+                {NetworkCommand.PROTOCOL, FieldType.TEXT},
+                {NetworkCommand.PROTOCOL_ACCEPT, FieldType.TEXT},
+                {NetworkCommand.SIGNUP, FieldType.TEXT, FieldType.BYTES},
+                {NetworkCommand.SIGNUP_SUCCESS, FieldType.INT},
+                {NetworkCommand.SIGNUP_FAILURE},
+                {NetworkCommand.LOGIN, FieldType.TEXT},
+                {NetworkCommand.LOGIN_NONCE, FieldType.LONG, FieldType.LONG},
+                {NetworkCommand.LOGIN_ACCEPT, FieldType.BYTES},
+                {NetworkCommand.LOGIN_SUCCESS},
+                {NetworkCommand.LOGIN_FAILURE},
+                {NetworkCommand.SEND_START, FieldType.INT},
+                {NetworkCommand.SEND_INVITE, FieldType.INT, FieldType.BYTES},
+                {NetworkCommand.SEND_DATA, FieldType.INT, FieldType.DATA},
+                {NetworkCommand.SEND_FAILURE, FieldType.REST},
+                {NetworkCommand.RENEW_KEY_REQUEST},
+                {NetworkCommand.RENEW_KEY_OK, FieldType.LONG, FieldType.LONG},
+                {NetworkCommand.RENEW_KEY, FieldType.BYTES, FieldType.BYTES, FieldType.BYTES},
+                {NetworkCommand.RENEW_KEY_SUCCESS},
+                {NetworkCommand.RENEW_KEY_FAILURE},
+                {NetworkCommand.GROUP_CREATE},
+                {NetworkCommand.GROUP_CREATE_SUCCESS, FieldType.INT},
+                {NetworkCommand.GROUP_ADD, FieldType.INT, FieldType.INT},
+                {NetworkCommand.GROUP_MEMBERS, FieldType.INT, FieldType.REST},
+                {NetworkCommand.GROUP_SEND, FieldType.INT, FieldType.DATA},
+                {NetworkCommand.GROUP_DATA, FieldType.INT, FieldType.INT, FieldType.DATA},
+                {NetworkCommand.GROUP_FAILURE, FieldType.REST},
+        };
+
+        COMMAND_SCHEMAS = new CommandSchema[commands.length];
+        for (int opcode = 1; opcode < commands.length; opcode++) {
+            FieldType[] fieldTypes = new FieldType[commands[opcode].length - 1];
+            for (int i = 0; i < fieldTypes.length; i++) {
+                fieldTypes[i] = (FieldType) commands[opcode][i + 1];
+            }
+            CommandSchema commandSchema = new CommandSchema((byte) opcode, (String) commands[opcode][0], fieldTypes);
+            COMMAND_SCHEMAS[opcode] = commandSchema;
+            HEADER_TO_COMMAND_SCHEMA_MAP.put(commandSchema.header, commandSchema);
+        }
+        SEND_DATA_OPCODE = getOpcode(NetworkCommand.SEND_DATA);
+        GROUP_SEND_OPCODE = getOpcode(NetworkCommand.GROUP_SEND);
+        GROUP_DATA_OPCODE = getOpcode(NetworkCommand.GROUP_DATA);
+
+        int tableSize = Integer.highestOneBit(COMMAND_SCHEMAS.length) * 2;
+        CommandSchema[] headerHashTable;
+        while ((headerHashTable = buildHeaderHashTable(tableSize)) == null) {
+            tableSize *= 2;
+        }
+        HEADER_HASH_TABLE = headerHashTable;
+        HEADER_HASH_TABLE_MASK = tableSize - 1;
+    }
+
+    /**
+     * @return the hash table, or null if any two headers collide in the table size
+     */
+    private static CommandSchema[] buildHeaderHashTable(int tableSize) {
+        CommandSchema[] headerHashTable = new CommandSchema[tableSize];
+        for (int opcode = 1; opcode < COMMAND_SCHEMAS.length; opcode++) {
+            CommandSchema commandSchema = COMMAND_SCHEMAS[opcode];
+            ByteBuffer headerBytes = ByteBuffer.wrap(commandSchema.headerBytes);
+            int index = hash(headerBytes, 0, headerBytes.limit()) & (tableSize - 1);
+            if (headerHashTable[index] != null) {
+                return null;
+            }
+            headerHashTable[index] = commandSchema;
+        }
+        return headerHashTable;
+    }
+
+    /**
+     * @param header a header of {@link NetworkCommand}
+     * @return the opcode of the header, or {@link #OPCODE_TEXT_LINE} if the header has no opcode
+     */
+    public static byte getOpcode(String header) {
+        CommandSchema commandSchema = HEADER_TO_COMMAND_SCHEMA_MAP.get(header);
+        return (commandSchema == null) ? OPCODE_TEXT_LINE : commandSchema.opcode;
+    }
+
+    /**
+     * @param line     line to be sent (without the line separator)
+     * @param protocol protocol of the connection
+     * @return the encoded frame of the line (including the line separator or the length prefix)
+     */
+    public static ByteBuffer encode(@NotNull String line, @NotNull Protocol protocol) {
+        if (protocol == Protocol.BINARY) {
+            return encodeBinary(line);
+        }
+        return ByteBuffer.wrap((line + (char) LINE_SEPARATOR).getBytes(AppConfig.DEFAULT_CHARSET));
+    }
+
+    /**
+     * @param frame    frame given by {@link FrameDecoder} (its position is moved to its limit)
+     * @param protocol protocol of the connection
+     * @return the line of the frame (trimmed)
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static String decode(@NotNull ByteBuffer frame, @NotNull Protocol protocol) throws ProtocolException {
+        if (protocol == Protocol.BINARY) {
+            return decodeBinary(frame, true);
+        }
+        return readUtf8(frame, frame.remaining()).trim();
+    }
+
+    /**
+     * @param frame    frame given by {@link FrameDecoder} (its position is not changed)
+     * @param protocol protocol of the connection
+     * @return the opcode of the frame (without decoding the frame), or {@link #OPCODE_TEXT_LINE} if the header
+     * of the frame has no opcode
+     */
+    public static byte peekOpcode(@NotNull ByteBuffer frame, @NotNull Protocol protocol) {
+        if (protocol == Protocol.BINARY) {
+            if (!frame.hasRemaining()) {
+                return OPCODE_TEXT_LINE;
+            }
+            byte opcode = frame.get(frame.position());
+            return (opcode == OPCODE_TEXT_LINE) ? peekTextOpcode(frame, frame.position() + 1) : opcode;
+        }
+        return peekTextOpcode(frame, frame.position());
+    }
+
+    /**
+     * @param frame    frame given by {@link FrameDecoder} (its position is moved to its limit)
+     * @param protocol protocol of the connection
+     * @return the fields of the frame as in a line (i.e., without the header), or null if no field
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static String decodeData(@NotNull ByteBuffer frame, @NotNull Protocol protocol) throws ProtocolException {
+        if (protocol == Protocol.BINARY) {
+            return decodeBinary(frame, false);
+        }
+        return decodeTextData(frame);
+    }
+
+    /**
+     * This class is a parsed <code>SEND &lt;Client_ID&gt; &lt;Data&gt;</code> frame whose data is not decoded.
+     */
+    public static class SendData {
+        public final int clientId;
+        public final ByteBuffer data;
+
+        private SendData(int clientId, ByteBuffer data) {
+            this.clientId = clientId;
+            this.data = data;
+        }
+    }
+
+    /**
+     * This method parses only the header and the client ID of a SEND frame, so that its (end-to-end encrypted) data
+     * can be relayed as opaque bytes.
+     *
+     * @param frame    frame given by {@link FrameDecoder} (its position is not changed)
+     * @param protocol protocol of the connection
+     * @return the client ID and a slice of the non-empty data (sharing the frame), or null if the frame is not
+     * a well-formed SEND frame (or its data in the text protocol starts with a NUL byte, to be escaped by decoding)
+     */
+    public static SendData sliceSendData(@NotNull ByteBuffer frame, @NotNull Protocol protocol) {
+        return sliceIdAndData(frame, protocol, SEND_DATA_OPCODE, SEND_DATA_PREFIX);
+    }
+
+    /**
+     * This class is a parsed <code>GROUP_SEND &lt;Group_ID&gt; &lt;Data&gt;</code> frame whose data is not decoded.
+     */
+    public static class GroupSendData {
+        public final int groupId;
+        public final ByteBuffer data;
+
+        private GroupSendData(int groupId, ByteBuffer data) {
+            this.groupId = groupId;
+            this.data = data;
+        }
+    }
+
+    /**
+     * This method is the same as {@link #sliceSendData(ByteBuffer, Protocol)}, but for a GROUP_SEND frame.
+     *
+     * @return the group ID and a slice of the non-empty data (sharing the frame), or null if the frame is not
+     * a well-formed GROUP_SEND frame
+     */
+    public static GroupSendData sliceGroupSendData(@NotNull ByteBuffer frame, @NotNull Protocol protocol) {
+        SendData sendData = sliceIdAndData(frame, protocol, GROUP_SEND_OPCODE, GROUP_SEND_PREFIX);
+        return (sendData == null) ? null : new GroupSendData(sendData.clientId, sendData.data);
+    }
+
+    /**
+     * @param opcode opcode of a command of an ID followed by the data
+     * @param prefix header of the command followed by the field separator
+     */
+    private static SendData sliceIdAndData(ByteBuffer frame, Protocol protocol, byte opcode, byte[] prefix) {
+        int position = frame.position();
+        int limit = frame.limit();
+
+        if (protocol == Protocol.BINARY) {
+            if (limit - position <= 1 + Integer.BYTES || frame.get(position) != opcode) {
+                return null;
+            }
+            return new SendData(frame.getInt(position + 1), slice(frame, position + 1 + Integer.BYTES, limit));
+        }
+
+        // Text protocol: "<Header> <ID> <Data>", where the line is trimmed like the other lines
+        while (limit > position && Byte.toUnsignedInt(frame.get(limit - 1)) <= ' ') {
+            limit--;
+        }
+        int index = position;
+        for (byte b : prefix) {
+            if (index >= limit || frame.get(index++) != b) {
+                return null;
+            }
+        }
+        long id = 0;
+        int digitCount = 0;
+        while (index < limit && frame.get(index) >= '0' && frame.get(index) <= '9' && digitCount < 10) {
+            id = id * 10 + (frame.get(index++) - '0');
+            digitCount++;
+        }
+        if (digitCount == 0 || id > Integer.MAX_VALUE
+                || index >= limit || frame.get(index++) != FIELD_SEPARATOR || index >= limit) {
+            return null;
+        }
+        if (frame.get(index) == PACKED_DATA_MARKER) {
+            // Left to be decoded, so the data is escaped once encoded for the binary protocol
+            return null;
+        }
+        return new SendData((int) id, slice(frame, index, limit));
+    }
+
+    /**
+     * This method encodes <code>SEND &lt;Client_ID&gt; &lt;Data&gt;</code> without copying the data.
+     *
+     * @param clientId client ID to be set in the frame
+     * @param data     data given by {@link #sliceSendData(ByteBuffer, Protocol)} (may be in any protocol)
+     * @param protocol protocol of the connection to send to
+     * @return the parts of the encoded frame (the data is one of them unless unpacked for the text protocol), or null
+     * if the data cannot be sent in the protocol (i.e., a line separator in the data, or malformed packed data, for
+     * the text protocol)
+     */
+    public static ByteBuffer[] encodeSendData(int clientId, @NotNull ByteBuffer data, @NotNull Protocol protocol) {
+        if (protocol == Protocol.BINARY) {
+            ByteBuffer prefix = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + 1 + Integer.BYTES);
+            prefix.putInt(1 + Integer.BYTES + data.remaining());
+            prefix.put(SEND_DATA_OPCODE);
+            prefix.putInt(clientId);
+            prefix.flip();
+            return new ByteBuffer[]{prefix, data};
+        }
+
+        data = unpackData(data);
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.wrap((NetworkCommand.SEND_DATA + FIELD_SEPARATOR + clientId + FIELD_SEPARATOR)
+                .getBytes(AppConfig.DEFAULT_CHARSET));
+        return new ByteBuffer[]{prefix, data, LINE_SEPARATOR_BUFFER.duplicate()};
+    }
+
+    /**
+     * This method encodes <code>GROUP_DATA &lt;Group_ID&gt; &lt;Client_ID&gt; &lt;Data&gt;</code> without copying the
+     * data, so a frame encoded once can be sent to many connections of the protocol.
+     *
+     * @param groupId        group ID to be set in the frame
+     * @param senderClientId client ID of the sender to be set in the frame
+     * @param data           data given by {@link #sliceGroupSendData(ByteBuffer, Protocol)} (may be in any protocol)
+     * @param protocol       protocol of the connections to send to
+     * @return the parts of the encoded frame (the data is one of them unless unpacked for the text protocol), or null
+     * if the data cannot be sent in the protocol (see {@link #encodeSendData(int, ByteBuffer, Protocol)})
+     */
+    public static ByteBuffer[] encodeGroupData(int groupId, int senderClientId, @NotNull ByteBuffer data,
+                                               @NotNull Protocol protocol) {
+        if (protocol == Protocol.BINARY) {
+            ByteBuffer prefix = ByteBuffer.allocate(LENGTH_PREFIX_SIZE + 1 + 2 * Integer.BYTES);
+            prefix.putInt(1 + 2 * Integer.BYTES + data.remaining());
+            prefix.put(GROUP_DATA_OPCODE);
+            prefix.putInt(groupId);
+            prefix.putInt(senderClientId);
+            prefix.flip();
+            return new ByteBuffer[]{prefix, data};
+        }
+
+        data = unpackData(data);
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer prefix = ByteBuffer.wrap((NetworkCommand.GROUP_DATA + FIELD_SEPARATOR + groupId + FIELD_SEPARATOR
+                + senderClientId + FIELD_SEPARATOR).getBytes(AppConfig.DEFAULT_CHARSET));
+        return new ByteBuffer[]{prefix, data, LINE_SEPARATOR_BUFFER.duplicate()};
+    }
+
+    /**
+     * @param data data of a client in any protocol
+     * @return the data in the text protocol (the same buffer unless packed), or null if it cannot be sent in the text
+     * protocol (i.e., a line separator in the data, or malformed packed data)
+     */
+    private static ByteBuffer unpackData(ByteBuffer data) {
+        if (isEscapedData(data)) {
+            data = slice(data, data.position() + 1, data.limit());
+        } else if (data.hasRemaining() && data.get(data.position()) == PACKED_DATA_MARKER) {
+            try {
+                data = ByteBuffer.wrap(readPackedData(data.duplicate()).getBytes(AppConfig.DEFAULT_CHARSET));
+            } catch (ProtocolException | BufferUnderflowException e) {
+                return null;
+            }
+        }
+        for (int i = data.position(); i < data.limit(); i++) {
+            if (data.get(i) == LINE_SEPARATOR) {
+                return null;
+            }
+        }
+        return data;
+    }
+
+    private static ByteBuffer slice(ByteBuffer frame, int from, int to) {
+        ByteBuffer slice = frame.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice.slice();
+    }
+
+    private static ByteBuffer encodeBinary(String line) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(line.length() + 16);
+        DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+        try {
+            dataOutputStream.writeInt(0); // length prefix; set at the end
+
+            String[] lineItems = line.split(String.valueOf(FIELD_SEPARATOR), 2);
+            CommandSchema commandSchema = HEADER_TO_COMMAND_SCHEMA_MAP.get(lineItems[0]);
+            if (commandSchema == null
+                    || !writeFields(dataOutputStream, commandSchema, (lineItems.length == 2) ? lineItems[1] : null)) {
+                byteArrayOutputStream.reset();
+                dataOutputStream.writeInt(0);
+                dataOutputStream.writeByte(OPCODE_TEXT_LINE);
+                dataOutputStream.write(line.getBytes(AppConfig.DEFAULT_CHARSET));
+            }
+        } catch (IOException e) {
+            // Not possible for ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+        frame.putInt(0, frame.remaining() - LENGTH_PREFIX_SIZE);
+        return frame;
+    }
+
+    /**
+     * @return true if the fields match the command schema, otherwise false (nothing is guaranteed to be written)
+     */
+    private static boolean writeFields(DataOutputStream dataOutputStream, CommandSchema commandSchema, String fields)
+            throws IOException {
+        dataOutputStream.writeByte(commandSchema.opcode);
+
+        FieldType[] fieldTypes = commandSchema.fieldTypes;
+        String remaining = fields;
+        for (int i = 0; i < fieldTypes.length; i++) {
+            if (fieldTypes[i] == FieldType.REST) {
+                if (remaining != null) {
+                    dataOutputStream.write(remaining.getBytes(AppConfig.DEFAULT_CHARSET));
+                }
+                return true;
+            }
+            if (fieldTypes[i] == FieldType.DATA) {
+                if (remaining != null) {
+                    writeData(dataOutputStream, remaining);
+                }
+                return true;
+            }
+            if (remaining == null) {
+                return false;
+            }
+
+            // The last field takes the remaining text like the text protocol parsers do
+            String field = remaining;
+            remaining = null;
+            if (i < fieldTypes.length - 1) {
+                int separatorIndex = field.indexOf(FIELD_SEPARATOR);
+                if (separatorIndex >= 0) {
+                    remaining = field.substring(separatorIndex + 1);
+                    field = field.substring(0, separatorIndex);
+                }
+            }
+
+            if (!writeField(dataOutputStream, fieldTypes[i], field)) {
+                return false;
+            }
+        }
+        return remaining == null;
+    }
+
+    private static boolean writeField(DataOutputStream dataOutputStream, FieldType fieldType, String field)
+            throws IOException {
+        try {
+            switch (fieldType) {
+                case INT:
+                    int intValue = Integer.parseInt(field);
+                    if (!Integer.toString(intValue).equals(field)) {
+                        return false;
+                    }
+                    dataOutputStream.writeInt(intValue);
+                    return true;
+                case LONG:
+                    long longValue = Long.parseLong(field);
+                    if (!Long.toString(longValue).equals(field)) {
+                        return false;
+                    }
+                    dataOutputStream.writeLong(longValue);
+                    return true;
+                case BYTES:
+                    // Base64 fields may be signed, so they must be restored exactly
+                    if (!isCanonicalBase64(field, 0, field.length())) {
+                        return false;
+                    }
+                    byte[] bytes = Base64.getDecoder().decode(field);
+                    if (bytes.length > MAX_FIELD_SIZE) {
+                        return false;
+                    }
+                    dataOutputStream.writeShort(bytes.length);
+                    dataOutputStream.write(bytes);
+                    return true;
+                case TEXT:
+                    byte[] textBytes = field.getBytes(AppConfig.DEFAULT_CHARSET);
+                    if (textBytes.length > MAX_FIELD_SIZE) {
+                        return false;
+                    }
+                    dataOutputStream.writeShort(textBytes.length);
+                    dataOutputStream.write(textBytes);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (IllegalArgumentException e) {
+            // Including NumberFormatException
+            return false;
+        }
+    }
+
+    /**
+     * This method writes the data packed (see {@link FrameCodec}) if any of its tokens is worth packing, otherwise as
+     * UTF-8 bytes.
+     */
+    private static void writeData(DataOutputStream dataOutputStream, String data) throws IOException {
+        ByteArrayOutputStream packedDataOutputStream = new ByteArrayOutputStream(data.length());
+        DataOutputStream packedOutputStream = new DataOutputStream(packedDataOutputStream);
+        packedOutputStream.writeByte(PACKED_DATA_MARKER);
+
+        boolean isPacked = false;
+        int runStart = 0;
+        int tokenStart = 0;
+        while (tokenStart <= data.length()) {
+            int tokenEnd = data.indexOf(FIELD_SEPARATOR, tokenStart);
+            if (tokenEnd < 0) {
+                tokenEnd = data.length();
+            }
+            byte[] tokenBytes = decodePackableToken(data, tokenStart, tokenEnd);
+            if (tokenBytes != null) {
+                if (tokenStart > runStart) {
+                    // The text before the token, without the field separator
+                    byte[] textBytes = data.substring(runStart, tokenStart - 1).getBytes(AppConfig.DEFAULT_CHARSET);
+                    if (textBytes.length > MAX_FIELD_SIZE) {
+                        writeUnpackedData(dataOutputStream, data);
+                        return;
+                    }
+                    writePackedRun(packedOutputStream, PACKED_RUN_TEXT, textBytes);
+                }
+                writePackedRun(packedOutputStream, PACKED_RUN_BYTES, tokenBytes);
+                runStart = tokenEnd + 1;
+                isPacked = true;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+        if (!isPacked) {
+            writeUnpackedData(dataOutputStream, data);
+            return;
+        }
+        if (runStart <= data.length()) {
+            byte[] textBytes = data.substring(runStart).getBytes(AppConfig.DEFAULT_CHARSET);
+            if (textBytes.length > MAX_FIELD_SIZE) {
+                writeUnpackedData(dataOutputStream, data);
+                return;
+            }
+            writePackedRun(packedOutputStream, PACKED_RUN_TEXT, textBytes);
+        }
+        packedDataOutputStream.writeTo(dataOutputStream);
+    }
+
+    private static void writeUnpackedData(DataOutputStream dataOutputStream, String data) throws IOException {
+        if (!data.isEmpty() && data.charAt(0) == PACKED_DATA_MARKER) {
+            dataOutputStream.writeByte(PACKED_DATA_MARKER);
+        }
+        dataOutputStream.write(data.getBytes(AppConfig.DEFAULT_CHARSET));
+    }
+
+    private static void writePackedRun(DataOutputStream dataOutputStream, byte kind, byte[] bytes) throws IOException {
+        dataOutputStream.writeByte(kind);
+        dataOutputStream.writeShort(bytes.length);
+        dataOutputStream.write(bytes);
+    }
+
+    /**
+     * @return the raw bytes of the token if it is a canonical base64 token long enough to be packed, otherwise null
+     */
+    private static byte[] decodePackableToken(String data, int tokenStart, int tokenEnd) {
+        if (tokenEnd - tokenStart < MIN_PACKED_TOKEN_LENGTH || tokenEnd - tokenStart > MAX_FIELD_SIZE
+                || !isCanonicalBase64(data, tokenStart, tokenEnd)) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(data.substring(tokenStart, tokenEnd));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This method checks only the length and the last characters, which a decoder accepts in more than one way, so
+     * that the decoded bytes of a text accepted by a decoder are encoded back to exactly the same text.
+     *
+     * @return true if the text is encoded exactly as by the base64 encoder (if decodable), otherwise false
+     */
+    private static boolean isCanonicalBase64(String text, int from, int to) {
+        int length = to - from;
+        if (length % 4 != 0) {
+            return false;
+        }
+        if (length == 0 || text.charAt(to - 1) != '=') {
+            return true;
+        }
+
+        int paddingLength = (text.charAt(to - 2) == '=') ? 2 : 1;
+        // The unused bits of the last character before the padding are zero
+        int lastValue = getBase64Value(text.charAt(to - paddingLength - 1));
+        return lastValue >= 0 && (lastValue & ((paddingLength == 2) ? 0x0F : 0x03)) == 0;
+    }
+
+    private static int getBase64Value(char c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a' + 26;
+        if (c >= '0' && c <= '9') return c - '0' + 52;
+        if (c == '+') return 62;
+        if (c == '/') return 63;
+        return -1;
+    }
+
+    /**
+     * @param frame the data of a client (its position is moved to its limit)
+     * @return the data in text
+     */
+    private static String readData(ByteBuffer frame) throws ProtocolException {
+        if (isEscapedData(frame)) {
+            frame.get(); // PACKED_DATA_MARKER
+        } else if (frame.get(frame.position()) == PACKED_DATA_MARKER) {
+            return readPackedData(frame);
+        }
+        return readUtf8(frame, frame.remaining());
+    }
+
+    /**
+     * @return true if the data is unpacked data starting with the packed data marker, escaped by another one
+     */
+    private static boolean isEscapedData(ByteBuffer data) {
+        return data.remaining() >= 2
+                && data.get(data.position()) == PACKED_DATA_MARKER
+                && data.get(data.position() + 1) == PACKED_DATA_MARKER;
+    }
+
+    /**
+     * @param frame packed data (its position is moved to its limit)
+     * @return the data in text
+     */
+    private static String readPackedData(ByteBuffer frame) throws ProtocolException {
+        frame.get(); // PACKED_DATA_MARKER
+        StringBuilder data = new StringBuilder();
+        boolean isFirstRun = true;
+        while (frame.hasRemaining()) {
+            if (!isFirstRun) {
+                data.append(FIELD_SEPARATOR);
+            }
+            isFirstRun = false;
+            byte kind = frame.get();
+            int length = Short.toUnsignedInt(frame.getShort());
+            if (kind == PACKED_RUN_TEXT) {
+                data.append(readUtf8(frame, length));
+            } else if (kind == PACKED_RUN_BYTES) {
+                byte[] bytes = new byte[length];
+                frame.get(bytes);
+                data.append(Base64.getEncoder().encodeToString(bytes));
+            } else {
+                throw new ProtocolException(String.format("Unknown run of packed data: %d", kind));
+            }
+        }
+        return data.toString();
+    }
+
+    /**
+     * @param isHeaderIncluded true for the whole line, otherwise false for only the fields (null if no field)
+     */
+    private static String decodeBinary(ByteBuffer frame, boolean isHeaderIncluded) throws ProtocolException {
+        try {
+            byte opcode = frame.get();
+            if (opcode == OPCODE_TEXT_LINE) {
+                return isHeaderIncluded
+                        ? readUtf8(frame, frame.remaining()).trim()
+                        : decodeTextData(frame);
+            }
+            if (opcode < 0 || opcode >= COMMAND_SCHEMAS.length) {
+                throw new ProtocolException(String.format("Unknown opcode: %d", opcode));
+            }
+
+            CommandSchema commandSchema = COMMAND_SCHEMAS[opcode];
+            StringBuilder line = new StringBuilder();
+            if (isHeaderIncluded) {
+                line.append(commandSchema.header);
+            }
+            for (FieldType fieldType : commandSchema.fieldTypes) {
+                if ((fieldType == FieldType.REST || fieldType == FieldType.DATA) && !frame.hasRemaining()) {
+                    break;
+                }
+                if (isHeaderIncluded || line.length() > 0) {
+                    line.append(FIELD_SEPARATOR);
+                }
+                switch (fieldType) {
+                    case INT:
+                        line.append(frame.getInt());
+                        break;
+                    case LONG:
+                        line.append(frame.getLong());
+                        break;
+                    case BYTES:
+                        byte[] bytes = new byte[Short.toUnsignedInt(frame.getShort())];
+                        frame.get(bytes);
+                        line.append(Base64.getEncoder().encodeToString(bytes));
+                        break;
+                    case TEXT:
+                        line.append(readUtf8(frame, Short.toUnsignedInt(frame.getShort())));
+                        break;
+                    case REST:
+                        line.append(readUtf8(frame, frame.remaining()));
+                        break;
+                    case DATA:
+                        line.append(readData(frame));
+                        break;
+                }
+            }
+            if (frame.hasRemaining()) {
+                throw new ProtocolException(String.format("Unexpected %d bytes after %s",
+                        frame.remaining(), commandSchema.header));
+            }
+            return (isHeaderIncluded || line.length() > 0) ? line.toString() : null;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame.");
+        }
+    }
+
+    /**
+     * This method decodes the fields of a text line like <code>line.trim().split(" ", 2)[1]</code>.
+     */
+    private static String decodeTextData(ByteBuffer frame) {
+        int limit = getTrimmedLimit(frame);
+        int headerEnd = getHeaderEnd(frame, skipWhitespace(frame, frame.position(), limit), limit);
+        frame.position(frame.limit());
+        if (headerEnd >= limit) {
+            return null;
+        }
+        return new String(frame.array(), frame.arrayOffset() + headerEnd + 1, limit - headerEnd - 1,
+                AppConfig.DEFAULT_CHARSET);
+    }
+
+    /**
+     * This method finds the opcode of a text header with one lookup in {@link #HEADER_HASH_TABLE}.
+     */
+    private static byte peekTextOpcode(ByteBuffer frame, int from) {
+        int limit = getTrimmedLimit(frame);
+        int headerStart = skipWhitespace(frame, from, limit);
+        int headerEnd = getHeaderEnd(frame, headerStart, limit);
+
+        CommandSchema commandSchema = HEADER_HASH_TABLE[hash(frame, headerStart, headerEnd) & HEADER_HASH_TABLE_MASK];
+        if (commandSchema == null || commandSchema.headerBytes.length != headerEnd - headerStart) {
+            return OPCODE_TEXT_LINE;
+        }
+        for (int i = 0; i < commandSchema.headerBytes.length; i++) {
+            if (commandSchema.headerBytes[i] != frame.get(headerStart + i)) {
+                return OPCODE_TEXT_LINE;
+            }
+        }
+        return commandSchema.opcode;
+    }
+
+    private static int hash(ByteBuffer bytes, int from, int to) {
+        int hash = 0x811C9DC5; // FNV-1a
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ (bytes.get(i) & 0xFF)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int getTrimmedLimit(ByteBuffer frame) {
+        int limit = frame.limit();
+        while (limit > frame.position() && Byte.toUnsignedInt(frame.get(limit - 1)) <= ' ') {
+            limit--;
+        }
+        return limit;
+    }
+
+    private static int skipWhitespace(ByteBuffer frame, int from, int limit) {
+        while (from < limit && Byte.toUnsignedInt(frame.get(from)) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int getHeaderEnd(ByteBuffer frame, int headerStart, int limit) {
+        int headerEnd = headerStart;
+        while (headerEnd < limit && frame.get(headerEnd) != FIELD_SEPARATOR) {
+            headerEnd++;
+        }
+        return headerEnd;
+    }
+
+    private static String readUtf8(ByteBuffer frame, int length) {
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (!frame.hasArray()) {
+            // e.g., the data of a client read from a file
+            byte[] bytes = new byte[length];
+            frame.get(bytes);
+            return new String(bytes, AppConfig.DEFAULT_CHARSET);
+        }
+        String text = new String(frame.array(), frame.arrayOffset() + frame.position(), length, AppConfig.DEFAULT_CHARSET);
+        frame.position(frame.position() + length);
+        return text;
+    }
+}
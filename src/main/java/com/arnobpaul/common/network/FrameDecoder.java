@@ -0,0 +1,149 @@
+package com.arnobpaul.common.network;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class splits the received bytes of a connection into frames according to the current {@link Protocol}.
+ * <p>
+ * The bytes may be fed in chunks of any size (e.g., from a blocking stream or from a non-blocking channel).
+ * Every complete frame is passed to the {@link FrameHandler} immediately, so if the handler switches the protocol,
+ * the following bytes are already split with the new protocol.
+ * <p>
+ * The frame passed to the handler is owned by the handler (i.e., it is never reused by this decoder).
+ */
+public class FrameDecoder {
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    private static final int INITIAL_LINE_BUFFER_SIZE = 256;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte LINE_SEPARATOR = '\n';
+
+    public interface FrameHandler {
+        /**
+         * @param frame a text line (without the line separator) or a binary frame (without the length prefix)
+         */
+        void onFrame(@NotNull ByteBuffer frame);
+    }
+
+    private final FrameHandler frameHandler;
+
+    private volatile Protocol protocol = Protocol.TEXT;
+
+    // Text protocol: the incomplete line
+    private byte[] lineBuffer = null;
+    private int lineLength = 0;
+
+    // Binary protocol: the length prefix, and then the incomplete frame
+    private final byte[] lengthBuffer = new byte[FrameCodec.LENGTH_PREFIX_SIZE];
+    private int lengthBufferLength = 0;
+    private byte[] frameBuffer = null;
+    private int frameLength = 0;
+
+    public FrameDecoder(@NotNull FrameHandler frameHandler) {
+        this.frameHandler = frameHandler;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * This method must be called between two frames (i.e., from the frame handler, before receiving any frame, or
+     * while the peer sends nothing until it is told the new protocol).
+     */
+    public void setProtocol(@NotNull Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * This method reads from the stream until the end of the stream.
+     */
+    public void readFrom(@NotNull InputStream inputStream) throws IOException {
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        int readCount;
+        while ((readCount = inputStream.read(readBuffer)) >= 0) {
+            feed(ByteBuffer.wrap(readBuffer, 0, readCount));
+        }
+    }
+
+    /**
+     * @param bytes received bytes (consumed completely)
+     */
+    public void feed(@NotNull ByteBuffer bytes) throws ProtocolException {
+        while (bytes.hasRemaining()) {
+            if (protocol == Protocol.BINARY) {
+                feedBinary(bytes);
+            } else {
+                feedText(bytes);
+            }
+        }
+    }
+
+    /**
+     * This method consumes bytes until the end of a line (or the end of the bytes).
+     */
+    private void feedText(ByteBuffer bytes) throws ProtocolException {
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (b == LINE_SEPARATOR) {
+                ByteBuffer frame = (lineBuffer == null)
+                        ? ByteBuffer.allocate(0)
+                        : ByteBuffer.wrap(lineBuffer, 0, lineLength);
+                lineBuffer = null;
+                lineLength = 0;
+                frameHandler.onFrame(frame);
+                return;
+            }
+
+            if (lineBuffer == null) {
+                lineBuffer = new byte[INITIAL_LINE_BUFFER_SIZE];
+            } else if (lineLength == lineBuffer.length) {
+                if (lineBuffer.length >= MAX_FRAME_SIZE) {
+                    throw new ProtocolException("Line too long.");
+                }
+                lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+            }
+            lineBuffer[lineLength++] = b;
+        }
+    }
+
+    /**
+     * This method consumes bytes until the end of a frame (or the end of the bytes).
+     */
+    private void feedBinary(ByteBuffer bytes) throws ProtocolException {
+        if (frameBuffer == null) {
+            while (lengthBufferLength < lengthBuffer.length && bytes.hasRemaining()) {
+                lengthBuffer[lengthBufferLength++] = bytes.get();
+            }
+            if (lengthBufferLength < lengthBuffer.length) {
+                return;
+            }
+
+            int length = ByteBuffer.wrap(lengthBuffer).getInt();
+            if (length <= 0 || length > MAX_FRAME_SIZE) {
+                throw new ProtocolException(String.format("Invalid frame length: %d", length));
+            }
+            frameBuffer = new byte[length];
+            frameLength = 0;
+            lengthBufferLength = 0;
+        }
+
+        int copyCount = Math.min(bytes.remaining(), frameBuffer.length - frameLength);
+        bytes.get(frameBuffer, frameLength, copyCount);
+        frameLength += copyCount;
+
+        if (frameLength == frameBuffer.length) {
+            ByteBuffer frame = ByteBuffer.wrap(frameBuffer);
+            frameBuffer = null;
+            frameLength = 0;
+            frameHandler.onFrame(frame);
+        }
+    }
+}
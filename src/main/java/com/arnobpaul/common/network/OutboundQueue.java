@@ -0,0 +1,148 @@
+package com.arnobpaul.common.network;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * This class is the outbound pipeline of a connection. Any thread may offer encoded frames to a bounded queue,
+ * and a single writer drains it: all the pending frames are gathered into one buffer of a fixed size, written once it
+ * is full (a large heap frame part is written as it is, without a copy), and flushed once per batch (instead of a
+ * write and a flush per frame). So a burst of large frames does not leave a large buffer behind on the connection.
+ * <p>
+ * The writer is not a dedicated thread. A drain task is submitted to the shared writer executor only when the
+ * queue becomes non-empty, so an idle connection does not hold any thread.
+ * <p>
+ * If the queue is full (i.e., the receiver is slower than the senders), {@link #offer(ByteBuffer...)} returns false
+ * so that the caller can report the backpressure instead of buffering without limit.
+ */
+public class OutboundQueue {
+    private static final int MAX_BATCH_FRAMES = 256;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final BlockingQueue<ByteBuffer[]> frameQueue;
+    private final OutputStream outputStream;
+    private final Executor writerExecutor;
+
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private volatile boolean isClosed = false;
+
+    // Only accessed by the writer
+    private final List<ByteBuffer[]> batch = new ArrayList<>();
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+
+    private static final Logger logger = Logger.getLogger(OutboundQueue.class.getName());
+
+    /**
+     * @param outputStream   unbuffered output stream of the connection
+     * @param writerExecutor executor running the drain tasks (may be shared by many connections)
+     * @param capacity       maximum number of pending frames
+     */
+    public OutboundQueue(@NotNull OutputStream outputStream, @NotNull Executor writerExecutor, int capacity) {
+        this.frameQueue = new ArrayBlockingQueue<>(capacity);
+        this.outputStream = outputStream;
+        this.writerExecutor = writerExecutor;
+    }
+
+    /**
+     * @param frameParts parts of an encoded frame to be written together (e.g., a prefix and a relayed payload);
+     *                   their positions and limits are not changed, so they may be shared
+     * @return true if the frame is queued, otherwise false (i.e., the queue is full or closed)
+     */
+    public boolean offer(@NotNull ByteBuffer... frameParts) {
+        if (isClosed || !frameQueue.offer(frameParts)) {
+            return false;
+        }
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * @param line line to be sent (without the line separator)
+     * @return the encoded frame of the line
+     */
+    public static ByteBuffer encodeLine(@NotNull String line) {
+        return FrameCodec.encode(line, Protocol.TEXT);
+    }
+
+    public void close() {
+        isClosed = true;
+        frameQueue.clear();
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * @return number of pending frames
+     */
+    public int size() {
+        return frameQueue.size();
+    }
+
+    private void drain() {
+        try {
+            while (!isClosed) {
+                frameQueue.drainTo(batch, MAX_BATCH_FRAMES);
+                if (batch.isEmpty()) {
+                    isDrainScheduled.set(false);
+                    // A frame may have been offered after draining but before clearing the flag
+                    if (frameQueue.isEmpty() || !isDrainScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                writeBatch();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            logger.warning(e.getMessage());
+            close();
+        }
+        batch.clear();
+        isDrainScheduled.set(false);
+    }
+
+    private void writeBatch() throws IOException {
+        int offset = 0;
+        for (ByteBuffer[] frameParts : batch) {
+            for (ByteBuffer framePart : frameParts) {
+                int position = framePart.position();
+                int limit = framePart.limit();
+                if (framePart.hasArray() && limit - position >= writeBuffer.length) {
+                    // Written as it is, as copying it would only split it into the writes of the buffer
+                    outputStream.write(writeBuffer, 0, offset);
+                    offset = 0;
+                    outputStream.write(framePart.array(), framePart.arrayOffset() + position, limit - position);
+                    continue;
+                }
+
+                while (position < limit) {
+                    if (offset == writeBuffer.length) {
+                        outputStream.write(writeBuffer, 0, offset);
+                        offset = 0;
+                    }
+                    int length = Math.min(limit - position, writeBuffer.length - offset);
+                    framePart.get(position, writeBuffer, offset, length);
+                    position += length;
+                    offset += length;
+                }
+            }
+        }
+
+        outputStream.write(writeBuffer, 0, offset);
+        outputStream.flush();
+    }
+}
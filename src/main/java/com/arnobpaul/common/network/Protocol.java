@@ -0,0 +1,38 @@
+package com.arnobpaul.common.network;
+
+/**
+ * This enum defines the wire protocols. Every connection starts with {@link #TEXT}; the client may request
+ * another protocol as its very first line (i.e., <code>PROTOCOL &lt;Protocol_Name&gt;</code>), and both sides
+ * switch after the server replies <code>PROTOCOL_ACCEPT &lt;Protocol_Name&gt;</code>.
+ */
+public enum Protocol {
+    /**
+     * Every frame is a UTF-8 line of space-separated fields; binary data are base64-encoded.
+     */
+    TEXT("TEXT"),
+
+    /**
+     * Every frame is length-prefixed with a one-byte opcode and typed fields; binary data are sent raw.
+     * See {@link FrameCodec} for the details.
+     */
+    BINARY("BINARY/1");
+
+    public final String protocolName;
+
+    Protocol(String protocolName) {
+        this.protocolName = protocolName;
+    }
+
+    /**
+     * @param protocolName the name of the protocol sent over the network
+     * @return the matched protocol, or null if not matched
+     */
+    public static Protocol fromProtocolName(String protocolName) {
+        for (Protocol protocol : values()) {
+            if (protocol.protocolName.equals(protocolName)) {
+                return protocol;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,297 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.network.CommandRegistry;
+import com.arnobpaul.common.network.FrameCodec;
+import com.arnobpaul.common.network.FrameDecoder;
+import com.arnobpaul.common.network.Protocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class represents a connected client inside the server. It owns the per-client services and dispatches
+ * every received frame to them, regardless of how the underlying connection is served
+ * (i.e., a dedicated thread or a shared event loop).
+ * <p>
+ * The received bytes are split by {@link #getFrameDecoder()} and every frame is dispatched by
+ * {@link #getCommandRegistry()} to the handler registered by a service for its command, so the services are
+ * independent of the {@link Protocol} of the connection. The protocol is negotiated by the first line.
+ */
+public abstract class ClientConnection implements Mailbox.Recipient {
+    private final SignupLoginService signupLoginService;
+    private final CommunicationService communicationService;
+    private final RenewService renewService;
+    private final GroupService groupService;
+
+    private final FrameDecoder frameDecoder = new FrameDecoder(this::onFrame);
+    private final CommandRegistry commandRegistry = new CommandRegistry(this::getRemoteAddress);
+    private long receivedFrameCount = 0;
+
+    private static final Logger logger = Logger.getLogger(ClientConnection.class.getName());
+
+    protected ClientConnection(@NotNull ServerTask serverTask) {
+        this.signupLoginService = new SignupLoginService(
+                this,
+                serverTask.getClientStore(),
+                serverTask.getRsaSignVerify(),
+                serverTask.getRouter(),
+                serverTask.getMailbox()
+        );
+
+        this.communicationService = new CommunicationService(
+                this,
+                signupLoginService,
+                serverTask.getClientStore(),
+                serverTask.getRouter(),
+                serverTask.getMailbox()
+        );
+
+        this.renewService = new RenewService(
+                this,
+                serverTask.getClientStore(),
+                signupLoginService,
+                serverTask.getRsaSignVerify()
+        );
+
+        this.groupService = new GroupService(
+                this,
+                signupLoginService,
+                serverTask.getClientStore(),
+                serverTask.getGroupStore(),
+                serverTask.getRouter()
+        );
+
+        commandRegistry.register(AppConfig.NetworkCommand.PROTOCOL, this::processProtocol);
+        signupLoginService.registerCommandHandlers(commandRegistry);
+        communicationService.registerCommandHandlers(commandRegistry);
+        renewService.registerCommandHandlers(commandRegistry);
+        groupService.registerCommandHandlers(commandRegistry);
+    }
+
+    /**
+     * This method is called by {@link #getFrameDecoder()} for every received frame. The frame is processed at once by
+     * default, and a connection served by a shared thread may hand it over to another thread instead (keeping the order
+     * of the frames).
+     */
+    protected void onFrame(ByteBuffer frame) {
+        processFrame(frame);
+    }
+
+    /**
+     * This method dispatches the frame to the handler of its command, which may block (e.g., reading the client store).
+     */
+    protected void processFrame(ByteBuffer frame) {
+        receivedFrameCount++;
+        try {
+            commandRegistry.dispatch(frame, frameDecoder.getProtocol());
+        } catch (ProtocolException e) {
+            logger.warning(String.format("Malformed frame from %s: %s",
+                    getRemoteAddress(),
+                    e.getMessage()));
+        } catch (RuntimeException e) {
+            // An error of a single frame must not stop the connection (or the event loop serving the others)
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+        }
+    }
+
+    /**
+     * This method accepts the requested protocol if supported (otherwise {@link Protocol#TEXT}). The reply is still
+     * sent in the text protocol, and the following frames in both directions use the accepted protocol.
+     * <p>
+     * The client sends nothing else until the reply, so the protocol of the decoder is switched before the reply
+     * even if the frames are processed by another thread than the one feeding the decoder.
+     */
+    private void processProtocol(String protocolName) {
+        if (receivedFrameCount != 1) {
+            logger.warning(String.format("Protocol negotiation after the first line from %s is ignored",
+                    getRemoteAddress()));
+            return;
+        }
+
+        Protocol protocol = Protocol.fromProtocolName(protocolName);
+        if (protocol == null) {
+            protocol = Protocol.TEXT;
+        }
+
+        String reply = String.format("%s %s",
+                AppConfig.NetworkCommand.PROTOCOL_ACCEPT,
+                protocol.protocolName);
+        ByteBuffer replyFrame = FrameCodec.encode(reply, Protocol.TEXT);
+        frameDecoder.setProtocol(protocol);
+        if (sendFrame(replyFrame)) {
+            if (logger.isLoggable(Level.INFO)) {
+                logger.info(String.format("Sent \"%s\" to %s",
+                        reply,
+                        getRemoteAddress()));
+            }
+        }
+    }
+
+    /**
+     * @param dataToSend a line to be sent to the client (without the line separator)
+     * @return the encoded frame of the line in the protocol of the connection
+     */
+    protected ByteBuffer encodeFrame(String dataToSend) {
+        return FrameCodec.encode(dataToSend, frameDecoder.getProtocol());
+    }
+
+    /**
+     * @return the protocol of the connection (i.e., {@link Protocol#TEXT} until negotiated)
+     */
+    public Protocol getProtocol() {
+        return frameDecoder.getProtocol();
+    }
+
+    /**
+     * @return the registry of the command handlers of the connection (e.g., to add a handler of a command of {@link FrameCodec})
+     */
+    public CommandRegistry getCommandRegistry() {
+        return commandRegistry;
+    }
+
+    /**
+     * @return the decoder to be fed with every received byte
+     */
+    protected FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    /**
+     * This method must be called once the connection is closed.
+     */
+    protected void stopServices() {
+        signupLoginService.stopService();
+    }
+
+    /**
+     * @param dataToSend a line to be sent to the client (without the line separator)
+     * @return true if the line is accepted for sending, otherwise false (i.e., the connection is closed)
+     */
+    public boolean sendRaw(String dataToSend) {
+        if (!sendFrame(encodeFrame(dataToSend))) {
+            return false;
+        }
+
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("Sent \"%s\" to %s",
+                    dataToSend,
+                    getRemoteAddress()));
+        }
+        return true;
+    }
+
+    /**
+     * This method sends <code>SEND &lt;Client_ID&gt; &lt;Data&gt;</code> without decoding or copying the data.
+     *
+     * @param clientId client ID of the sender
+     * @param data     opaque data given by {@link FrameCodec#sliceSendData(ByteBuffer, Protocol)}
+     * @return true if the frame is accepted for sending, otherwise false (i.e., the connection is closed, or
+     * the data cannot be sent in the protocol of the connection)
+     */
+    public boolean sendData(int clientId, ByteBuffer data) {
+        // The frame parts are consumed by the write, so the data of the caller is left untouched
+        int dataSize = data.remaining();
+        ByteBuffer[] frameParts = FrameCodec.encodeSendData(clientId, data.duplicate(), frameDecoder.getProtocol());
+        if (frameParts == null || !sendFrame(frameParts)) {
+            return false;
+        }
+
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("Sent \"%s %d\" with %d bytes of data to %s",
+                    AppConfig.NetworkCommand.SEND_DATA,
+                    clientId,
+                    dataSize,
+                    getRemoteAddress()));
+        }
+        return true;
+    }
+
+    /**
+     * This method sends many <code>SEND &lt;Client_ID&gt; &lt;Data&gt;</code> frames (e.g., the messages waiting in
+     * the {@link Mailbox}) copied into a single buffer, so they are written at once. A frame that cannot be sent in
+     * the protocol of the connection is dropped.
+     */
+    @Override
+    public boolean sendDataBatch(int[] clientIds, ByteBuffer[] data, int count) {
+        Protocol protocol = frameDecoder.getProtocol();
+        ByteBuffer[][] frames = new ByteBuffer[count][];
+        int batchSize = 0;
+        for (int i = 0; i < count; i++) {
+            frames[i] = FrameCodec.encodeSendData(clientIds[i], data[i], protocol);
+            if (frames[i] == null) {
+                logger.warning(String.format("Dropped a waiting frame from Client_ID %d not sendable to %s",
+                        clientIds[i],
+                        getRemoteAddress()));
+                continue;
+            }
+            for (ByteBuffer framePart : frames[i]) {
+                batchSize += framePart.remaining();
+            }
+        }
+
+        if (batchSize == 0) {
+            return true;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(batchSize);
+        for (ByteBuffer[] frameParts : frames) {
+            if (frameParts == null) continue;
+            for (ByteBuffer framePart : frameParts) {
+                batch.put(framePart.duplicate());
+            }
+        }
+        batch.flip();
+        if (!sendFrame(batch)) {
+            return false;
+        }
+
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("Sent %d waiting \"%s\" frames with %d bytes to %s",
+                    count,
+                    AppConfig.NetworkCommand.SEND_DATA,
+                    batchSize,
+                    getRemoteAddress()));
+        }
+        return true;
+    }
+
+    /**
+     * This method sends a frame encoded once for many connections (e.g., by
+     * {@link FrameCodec#encodeGroupData(int, int, ByteBuffer, Protocol)}) without copying it.
+     *
+     * @param frameParts parts of the frame encoded in the protocol of the connection (only duplicated, so they may be
+     *                   sent to other connections too)
+     * @return true if the frame is accepted for sending, otherwise false (i.e., the connection is closed)
+     */
+    public boolean sendSharedFrame(ByteBuffer[] frameParts) {
+        ByteBuffer[] duplicateFrameParts = new ByteBuffer[frameParts.length];
+        for (int i = 0; i < frameParts.length; i++) {
+            duplicateFrameParts[i] = frameParts[i].duplicate();
+        }
+        return sendFrame(duplicateFrameParts);
+    }
+
+    @Override
+    public boolean isLoginDone() {
+        return signupLoginService.isLoginDone();
+    }
+
+    /**
+     * @param frameParts parts of an encoded frame to be written together (must not be modified afterwards)
+     * @return true if the frame is accepted for sending, otherwise false (i.e., the connection is closed)
+     */
+    protected abstract boolean sendFrame(ByteBuffer... frameParts);
+
+    /**
+     * @return the remote address in <code>host:port</code> format (only for logging)
+     */
+    protected abstract String getRemoteAddress();
+
+    public SignupLoginService getSignupLoginService() {
+        return signupLoginService;
+    }
+}
@@ -0,0 +1,127 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.collection.IntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the signed-up clients in memory by client ID, in front of the <code>client_data</code> table.
+ * It is filled by {@link DbService} (i.e., warmed up with all the clients, filled on a miss, and written through on
+ * every change), so a login reads the client without a query and concurrent logins only share a read lock.
+ */
+public class ClientDirectory {
+    private final IntObjectHashMap<ClientEntity> clients;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Incremented on every change, to reject a fill read from the database before the change
+    private long modificationCount = 0;
+
+    public ClientDirectory(int expectedSize) {
+        this.clients = new IntObjectHashMap<>(expectedSize);
+    }
+
+    /**
+     * @return the client, or null if not in memory
+     */
+    public @Nullable ClientEntity get(int clientId) {
+        lock.readLock().lock();
+        try {
+            return clients.get(clientId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param clients all the clients read from the database
+     */
+    public void putAll(@NotNull Collection<ClientEntity> clients) {
+        lock.writeLock().lock();
+        try {
+            for (ClientEntity client : clients) {
+                this.clients.put(client.clientId, client);
+            }
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method writes a changed client through.
+     */
+    public void put(@NotNull ClientEntity client) {
+        lock.writeLock().lock();
+        try {
+            clients.put(client.clientId, client);
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int clientId) {
+        lock.writeLock().lock();
+        try {
+            clients.remove(clientId);
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method drops all the clients (e.g., possibly changed by another process), so they are filled again on a miss.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clients.clear();
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the count to be given to {@link #fill(ClientEntity, long)} (must be taken before reading the database)
+     */
+    public long getModificationCount() {
+        lock.readLock().lock();
+        try {
+            return modificationCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method keeps a client read from the database after a miss, unless the directory is changed meanwhile
+     * (i.e., the read client may be stale).
+     *
+     * @param modificationCount the count taken by {@link #getModificationCount()} before reading the database
+     */
+    public void fill(@NotNull ClientEntity client, long modificationCount) {
+        lock.writeLock().lock();
+        try {
+            if (this.modificationCount == modificationCount) {
+                clients.put(client.clientId, client);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return clients.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.ClientEntity;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface is the storage of the signed-up clients. The writes are asynchronous: the future of a write is
+ * completed only after the write is durable, and a completed write is visible to {@link #getClient(int)}.
+ */
+public interface ClientStore {
+    /**
+     * @return the future completed with the new client ID once durable
+     */
+    CompletableFuture<Integer> insert(@NotNull String clientName, @NotNull String clientPublicKey);
+
+    /**
+     * @return the future completed once durable, or completed exceptionally if the client is not found
+     */
+    CompletableFuture<Boolean> updateClientPublicKey(int clientId, @NotNull String newClientPublicKey);
+
+    /**
+     * @return the client (never null)
+     * @throws ClientStoreException if the client is not found or could not be read
+     */
+    @NotNull ClientEntity getClient(int clientId) throws ClientStoreException;
+
+    /**
+     * @return the future completed with true if deleted, once durable
+     */
+    CompletableFuture<Boolean> delete(int clientId);
+
+    /**
+     * This method waits for the writes submitted before to be durable, and releases the store (e.g., its thread).
+     */
+    void close();
+}
@@ -0,0 +1,16 @@
+package com.arnobpaul.server;
+
+/**
+ * This exception is thrown by a {@link ClientStore}, independently of its backend.
+ */
+public class ClientStoreException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ClientStoreException(String message) {
+        super(message);
+    }
+
+    public ClientStoreException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
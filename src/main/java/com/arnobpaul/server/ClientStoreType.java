@@ -0,0 +1,35 @@
+package com.arnobpaul.server;
+
+/**
+ * This enum defines the backend of the {@link ClientStore} of the server.
+ */
+public enum ClientStoreType {
+    /**
+     * The clients are stored in the SQLite database <code>server.db</code> (see {@link DbService}).
+     */
+    SQLITE("sqlite"),
+
+    /**
+     * The clients are stored in the append-only log file <code>server_clients.log</code> (see {@link LogClientStore}).
+     */
+    LOG("log");
+
+    public final String argName;
+
+    ClientStoreType(String argName) {
+        this.argName = argName;
+    }
+
+    /**
+     * @param argName the name of the client store type given in the command line
+     * @return the matched client store type, or null if not matched
+     */
+    public static ClientStoreType fromArgName(String argName) {
+        for (ClientStoreType clientStoreType : values()) {
+            if (clientStoreType.argName.equalsIgnoreCase(argName)) {
+                return clientStoreType;
+            }
+        }
+        return null;
+    }
+}
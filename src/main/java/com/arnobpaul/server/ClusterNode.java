@@ -0,0 +1,694 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ThreadMode;
+import com.arnobpaul.common.network.FrameCodec;
+import com.arnobpaul.common.network.FrameDecoder;
+import com.arnobpaul.common.network.OutboundQueue;
+import com.arnobpaul.common.network.Protocol;
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+/**
+ * This class links a server process (i.e., a node) to the other nodes of a cluster on the same host, so that a client
+ * can send to a client logged in to another node. The nodes share the client store and accept the clients on the
+ * same port, while every node keeps its own {@link Router} and {@link Mailbox}.
+ * <p>
+ * Every node listens on the loopback address for the links of the other nodes, and connects to every other node.
+ * A link is one-way: a node only writes to the links it connected (see {@link RemoteNode}), and only reads the links
+ * it accepted, once the link is authenticated. The first frames of a link name its node and the clients logged in to
+ * it; every login and logout is then announced on all the links. Once a link is closed, the clients of its node are forgotten until it reconnects.
+ * <p>
+ * Every change of a client committed by a node (e.g., its public key), or of a group (e.g., a new member), is
+ * announced on all the links too, so the other nodes drop the client (or the group) kept in memory. A node accepting a
+ * link drops all the clients and the groups kept in memory, as the changes of the linked node may be missed while not
+ * linked (or while its link was full).
+ * <p>
+ * A link frame is: <code>&lt;u32 Length&gt; &lt;u8 Type&gt; &lt;Fields&gt;</code> (split like
+ * {@link Protocol#BINARY}), where the fields are:
+ * <ul>
+ *     <li>{@link #FRAME_HELLO}: <code>&lt;i32 Node_Index&gt; &lt;Challenge&gt; &lt;Tag&gt;</code> (see below)</li>
+ *     <li>{@link #FRAME_LOGIN}, {@link #FRAME_LOGOUT}: <code>&lt;i32 Client_ID&gt;</code></li>
+ *     <li>{@link #FRAME_DATA}: <code>&lt;i32 Recipient_Client_ID&gt; &lt;i32 Sender_Client_ID&gt; &lt;Data&gt;</code>
+ *     (i.e., the data of a SEND frame)</li>
+ *     <li>{@link #FRAME_LINE}: <code>&lt;i32 Recipient_Client_ID&gt; &lt;UTF-8_Line&gt;</code></li>
+ *     <li>{@link #FRAME_GROUP_DATA}: <code>&lt;i32 Group_ID&gt; &lt;i32 Sender_Client_ID&gt; &lt;Data&gt;</code>
+ *     (i.e., the data of a GROUP_SEND frame, sent once to a node for all the members logged in to it)</li>
+ *     <li>{@link #FRAME_CLIENT_CHANGED}: <code>&lt;i32 Client_ID&gt;</code></li>
+ *     <li>{@link #FRAME_GROUP_CHANGED}: <code>&lt;i32 Group_ID&gt;</code></li>
+ * </ul>
+ * The links are bound only to the loopback address, and authenticated by a secret shared by all the nodes: the node
+ * accepting a link first writes a random challenge, the connecting node replies with {@link #FRAME_HELLO} carrying
+ * its own challenge and an HMAC tag of both of the challenges, and the node accepting the link writes a tag of them
+ * back (i.e., without a length prefix), so either node closes the link of a process not knowing the secret.
+ */
+public class ClusterNode implements Router.PresenceListener {
+    private static final byte FRAME_HELLO = 1;
+    private static final byte FRAME_LOGIN = 2;
+    private static final byte FRAME_LOGOUT = 3;
+    private static final byte FRAME_DATA = 4;
+    private static final byte FRAME_LINE = 5;
+    private static final byte FRAME_GROUP_DATA = 6;
+    private static final byte FRAME_CLIENT_CHANGED = 7;
+    private static final byte FRAME_GROUP_CHANGED = 8;
+
+    private static final int FRAME_HEADER_SIZE = FrameCodec.LENGTH_PREFIX_SIZE + 1;
+
+    private static final String TAG_ALGORITHM = "HmacSHA256";
+    private static final int TAG_SIZE = 32;
+    private static final int CHALLENGE_SIZE = 16;
+    // Tags of the connecting node and of the node accepting the link differ, so one is never echoed as the other
+    private static final byte TAG_HELLO = 1;
+    private static final byte TAG_HELLO_ACCEPT = 2;
+
+    public interface Handler {
+        /**
+         * @param data data sent to a client of this node by a client of another node
+         */
+        void onForwardedData(int recipientClientId, int senderClientId, @NotNull ByteBuffer data);
+
+        /**
+         * @param line line (e.g., <code>SEND_INVITE</code>) sent to a client of this node by another node
+         */
+        void onForwardedLine(int recipientClientId, @NotNull String line);
+
+        /**
+         * @param data data sent to the members of a group logged in to this node by a client of another node
+         */
+        void onForwardedGroupData(int groupId, int senderClientId, @NotNull ByteBuffer data);
+
+        /**
+         * This method is called once a client logs in to another node (e.g., to send its waiting messages).
+         */
+        void onRemoteLogin(int clientId, @NotNull RemoteNode remoteNode);
+
+        /**
+         * This method is called once a change of a client (e.g., its public key) is committed by another node, so the
+         * client kept in memory by this node is dropped.
+         */
+        void onRemoteClientChanged(int clientId);
+
+        /**
+         * This method is called once a change of a group (e.g., a new member) is committed by another node, so the
+         * members kept in memory by this node are dropped.
+         */
+        void onRemoteGroupChanged(int groupId);
+
+        /**
+         * This method is called once a link is accepted from another node, whose changes of the clients (and the
+         * groups) may be missed while not linked, so all the clients and the groups kept in memory by this node are
+         * dropped.
+         */
+        void onRemoteNodeLinked(@NotNull RemoteNode remoteNode);
+    }
+
+    private final int nodeIndex;
+    private final int[] linkPorts;
+    private final SecretKeySpec clusterSecretKey;
+    private final Router router;
+    private final Handler handler;
+
+    // The other nodes by node index (null for this node)
+    private final RemoteNode[] remoteNodes;
+
+    // Shared by all the links to drain their outbound queues
+    private final ExecutorService writerExecutorService;
+
+    private ServerSocket serverSocket = null;
+    private final Set<Socket> inboundSockets = ConcurrentHashMap.newKeySet();
+    private volatile boolean isRunning = true;
+
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+    /**
+     * @param nodeIndex     index of this node in the link ports
+     * @param linkPorts     loopback ports of the links of all the nodes, by node index
+     * @param clusterSecret secret shared by all the nodes (not empty)
+     * @param router        router of this node (its logins and logouts are announced to the other nodes)
+     * @param handler       handler of the frames sent by the other nodes to the clients of this node
+     */
+    public ClusterNode(int nodeIndex, @NotNull int[] linkPorts, @NotNull String clusterSecret,
+                       @NotNull Router router, @NotNull Handler handler) {
+        this.nodeIndex = nodeIndex;
+        this.linkPorts = linkPorts;
+        this.clusterSecretKey = new SecretKeySpec(clusterSecret.getBytes(AppConfig.DEFAULT_CHARSET), TAG_ALGORITHM);
+        this.router = router;
+        this.handler = handler;
+
+        this.remoteNodes = new RemoteNode[linkPorts.length];
+        for (int i = 0; i < linkPorts.length; i++) {
+            if (i != nodeIndex) {
+                remoteNodes[i] = new RemoteNode(i);
+            }
+        }
+
+        this.writerExecutorService = ThreadMode.PLATFORM.newThreadPerTaskExecutor("ClusterLinkWriter-");
+    }
+
+    /**
+     * @return the loopback ports of the links of a cluster of the given number of nodes
+     */
+    public static int[] getLinkPorts(int nodeCount) {
+        int[] linkPorts = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            linkPorts[i] = AppConfig.CLUSTER_LINK_PORT + i;
+        }
+        return linkPorts;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(linkPorts[nodeIndex], 0, InetAddress.getLoopbackAddress());
+
+        // Every login after this is announced on the links connected (the earlier ones are sent on connecting)
+        router.setPresenceListener(this);
+
+        new Thread(this::acceptLinks, "ClusterNode-" + nodeIndex).start();
+        for (RemoteNode remoteNode : remoteNodes) {
+            if (remoteNode != null) {
+                new Thread(remoteNode::connect, "ClusterLink-" + remoteNode.nodeIndex).start();
+            }
+        }
+        System.out.println(String.format("Cluster node %d of %d started.", nodeIndex, linkPorts.length));
+    }
+
+    public void stop() {
+        isRunning = false;
+        router.setPresenceListener(null);
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+        }
+        for (RemoteNode remoteNode : remoteNodes) {
+            if (remoteNode != null) {
+                remoteNode.close();
+            }
+        }
+        for (Socket socket : inboundSockets) {
+            closeSocket(socket);
+        }
+        writerExecutorService.shutdown();
+    }
+
+    /**
+     * @return the other node, or null for this node
+     */
+    RemoteNode getRemoteNode(int nodeIndex) {
+        return remoteNodes[nodeIndex];
+    }
+
+    /**
+     * This method announces a login or a logout of this node on every link connected.
+     */
+    @Override
+    synchronized public void onPresenceChanged(int clientId, boolean isOnline) {
+        ByteBuffer frame = encodeFrame(isOnline ? FRAME_LOGIN : FRAME_LOGOUT, clientId);
+        for (RemoteNode remoteNode : remoteNodes) {
+            if (remoteNode == null) continue;
+
+            OutboundQueue outboundQueue = remoteNode.outboundQueue;
+            if (outboundQueue != null && !outboundQueue.offer(frame)) {
+                logger.warning(String.format("Cluster link to node %d full; dropped the presence of Client_ID %d",
+                        remoteNode.nodeIndex,
+                        clientId));
+            }
+        }
+    }
+
+    /**
+     * This method announces a committed change of a client on every link connected. A link not accepting it is closed,
+     * so the node drops all the clients kept in memory once linked again.
+     */
+    public void announceClientChange(int clientId) {
+        announceChange(FRAME_CLIENT_CHANGED, clientId, "Client_ID");
+    }
+
+    /**
+     * This method announces a committed change of a group like {@link #announceClientChange(int)}.
+     */
+    public void announceGroupChange(int groupId) {
+        announceChange(FRAME_GROUP_CHANGED, groupId, "Group_ID");
+    }
+
+    synchronized private void announceChange(byte frameType, int id, String idName) {
+        ByteBuffer frame = encodeFrame(frameType, id);
+        for (RemoteNode remoteNode : remoteNodes) {
+            if (remoteNode == null) continue;
+
+            OutboundQueue outboundQueue = remoteNode.outboundQueue;
+            if (outboundQueue != null && !outboundQueue.offer(frame)) {
+                logger.warning(String.format("Cluster link to node %d full; closed it for the change of %s %d",
+                        remoteNode.nodeIndex,
+                        idName,
+                        id));
+                remoteNode.close();
+            }
+        }
+    }
+
+    private void acceptLinks() {
+        while (isRunning) {
+            try {
+                Socket socket = serverSocket.accept();
+                new Thread(() -> readLink(socket), "ClusterLinkReader").start();
+            } catch (IOException e) {
+                if (isRunning) {
+                    e.printStackTrace();
+                    logger.severe(e.getMessage());
+                }
+            }
+        }
+        logger.info("ClusterNode is terminated");
+    }
+
+    private void readLink(Socket socket) {
+        InboundLink inboundLink = new InboundLink(socket);
+        FrameDecoder frameDecoder = new FrameDecoder(inboundLink);
+        frameDecoder.setProtocol(Protocol.BINARY);
+        inboundSockets.add(socket);
+        try (socket) {
+            // Until the hello is authenticated
+            socket.setSoTimeout(AppConfig.CLUSTER_LINK_HELLO_TIMEOUT);
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(inboundLink.challenge);
+            outputStream.flush();
+
+            frameDecoder.readFrom(socket.getInputStream());
+        } catch (IOException e) {
+            logger.warning(e.getMessage());
+        }
+        inboundSockets.remove(socket);
+        inboundLink.close();
+    }
+
+    /**
+     * This class reads a link accepted from another node.
+     */
+    private class InboundLink implements FrameDecoder.FrameHandler {
+        private final Socket socket;
+        private final byte[] challenge = generateChallenge();
+        private RemoteNode remoteNode = null;
+
+        private InboundLink(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void onFrame(@NotNull ByteBuffer frame) {
+            if (remoteNode == null) {
+                // Nothing is read from a process not knowing the secret
+                try {
+                    if (frame.get() != FRAME_HELLO || !processHello(frame)) {
+                        logger.warning("Cluster link not authenticated; closed it");
+                        closeSocket(socket);
+                    }
+                } catch (BufferUnderflowException | IOException e) {
+                    logger.warning(String.format("Cluster link not authenticated; closed it: %s", e.getMessage()));
+                    closeSocket(socket);
+                }
+                return;
+            }
+
+            try {
+                byte frameType = frame.get();
+
+                switch (frameType) {
+                    case FRAME_LOGIN:
+                    case FRAME_LOGOUT:
+                        processPresence(frame.getInt(), frameType == FRAME_LOGIN);
+                        break;
+                    case FRAME_DATA:
+                        int recipientClientId = frame.getInt();
+                        int senderClientId = frame.getInt();
+                        handler.onForwardedData(recipientClientId, senderClientId, frame.slice());
+                        break;
+                    case FRAME_LINE:
+                        int lineRecipientClientId = frame.getInt();
+                        handler.onForwardedLine(lineRecipientClientId, AppConfig.DEFAULT_CHARSET.decode(frame).toString());
+                        break;
+                    case FRAME_GROUP_DATA:
+                        int groupId = frame.getInt();
+                        int groupSenderClientId = frame.getInt();
+                        handler.onForwardedGroupData(groupId, groupSenderClientId, frame.slice());
+                        break;
+                    case FRAME_CLIENT_CHANGED:
+                        handler.onRemoteClientChanged(frame.getInt());
+                        break;
+                    case FRAME_GROUP_CHANGED:
+                        handler.onRemoteGroupChanged(frame.getInt());
+                        break;
+                    default:
+                        logger.warning(String.format("Unknown cluster link frame type: %d", frameType));
+                }
+            } catch (BufferUnderflowException e) {
+                logger.warning("Truncated cluster link frame.");
+            } catch (RuntimeException e) {
+                // An error of a single frame must not stop the link
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+            }
+        }
+
+        /**
+         * @return true if the hello is authenticated, otherwise false
+         */
+        private boolean processHello(ByteBuffer frame) throws IOException {
+            int remoteNodeIndex = frame.getInt();
+            byte[] remoteChallenge = new byte[CHALLENGE_SIZE];
+            frame.get(remoteChallenge);
+            byte[] tag = new byte[TAG_SIZE];
+            frame.get(tag);
+            if (remoteNodeIndex < 0 || remoteNodeIndex >= remoteNodes.length || remoteNodes[remoteNodeIndex] == null) {
+                logger.warning(String.format("Unknown cluster node: %d", remoteNodeIndex));
+                return false;
+            }
+            if (!MessageDigest.isEqual(tag, generateTag(TAG_HELLO, challenge, remoteChallenge, remoteNodeIndex))) {
+                return false;
+            }
+            socket.getOutputStream().write(generateTag(TAG_HELLO_ACCEPT, challenge, remoteChallenge, remoteNodeIndex));
+            socket.getOutputStream().flush();
+            socket.setSoTimeout(0);
+
+            remoteNode = remoteNodes[remoteNodeIndex];
+            synchronized (remoteNode) {
+                // A new link of a restarted node replaces the old one, whose clients are stale
+                remoteNode.inboundLink = this;
+                router.deregisterRemoteClients(remoteNode);
+            }
+            handler.onRemoteNodeLinked(remoteNode);
+            System.out.println(String.format("Cluster link accepted from node %d", remoteNodeIndex));
+            return true;
+        }
+
+        private void processPresence(int clientId, boolean isOnline) {
+            synchronized (remoteNode) {
+                if (remoteNode.inboundLink != this) return;
+
+                if (isOnline) {
+                    router.registerRemoteClient(clientId, remoteNode);
+                } else {
+                    router.deregisterRemoteClient(clientId, remoteNode);
+                }
+            }
+            if (isOnline) {
+                handler.onRemoteLogin(clientId, remoteNode);
+            }
+        }
+
+        private void close() {
+            if (remoteNode == null) return;
+
+            synchronized (remoteNode) {
+                if (remoteNode.inboundLink != this) return;
+
+                remoteNode.inboundLink = null;
+                router.deregisterRemoteClients(remoteNode);
+            }
+            System.out.println(String.format("Cluster link closed from node %d", remoteNode.nodeIndex));
+        }
+    }
+
+    /**
+     * This class represents another node of the cluster, and writes to the link connected to it.
+     */
+    public class RemoteNode {
+        public final int nodeIndex;
+
+        // Queue of the link connected, or null if not connected
+        private volatile OutboundQueue outboundQueue = null;
+        private volatile Socket socket = null;
+
+        // The link accepted from the node (guarded by this)
+        private InboundLink inboundLink = null;
+
+        private RemoteNode(int nodeIndex) {
+            this.nodeIndex = nodeIndex;
+        }
+
+        public boolean isConnected() {
+            return outboundQueue != null;
+        }
+
+        /**
+         * This method forwards <code>SEND &lt;Client_ID&gt; &lt;Data&gt;</code> without copying the data.
+         *
+         * @param data opaque data (its position and limit are not changed)
+         * @return true if the frame is accepted for sending, otherwise false (i.e., the link is not connected or full)
+         */
+        public boolean forwardData(int recipientClientId, int senderClientId, @NotNull ByteBuffer data) {
+            OutboundQueue outboundQueue = this.outboundQueue;
+            if (outboundQueue == null) {
+                return false;
+            }
+
+            ByteBuffer prefix = ByteBuffer.allocate(FRAME_HEADER_SIZE + 2 * Integer.BYTES);
+            prefix.putInt(1 + 2 * Integer.BYTES + data.remaining());
+            prefix.put(FRAME_DATA);
+            prefix.putInt(recipientClientId);
+            prefix.putInt(senderClientId);
+            prefix.flip();
+            return outboundQueue.offer(prefix, data);
+        }
+
+        /**
+         * This method forwards <code>GROUP_SEND &lt;Group_ID&gt; &lt;Data&gt;</code> once for all the members logged
+         * in to the node, without copying the data.
+         *
+         * @param data opaque data (its position and limit are not changed)
+         * @return true if the frame is accepted for sending, otherwise false (i.e., the link is not connected or full)
+         */
+        public boolean forwardGroupData(int groupId, int senderClientId, @NotNull ByteBuffer data) {
+            OutboundQueue outboundQueue = this.outboundQueue;
+            if (outboundQueue == null) {
+                return false;
+            }
+
+            ByteBuffer prefix = ByteBuffer.allocate(FRAME_HEADER_SIZE + 2 * Integer.BYTES);
+            prefix.putInt(1 + 2 * Integer.BYTES + data.remaining());
+            prefix.put(FRAME_GROUP_DATA);
+            prefix.putInt(groupId);
+            prefix.putInt(senderClientId);
+            prefix.flip();
+            return outboundQueue.offer(prefix, data);
+        }
+
+        /**
+         * @param line a line to be sent to the client (without the line separator)
+         * @return true if the frame is accepted for sending, otherwise false (i.e., the link is not connected or full)
+         */
+        public boolean forwardLine(int recipientClientId, @NotNull String line) {
+            OutboundQueue outboundQueue = this.outboundQueue;
+            if (outboundQueue == null) {
+                return false;
+            }
+
+            byte[] lineBytes = line.getBytes(AppConfig.DEFAULT_CHARSET);
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + Integer.BYTES + lineBytes.length);
+            frame.putInt(1 + Integer.BYTES + lineBytes.length);
+            frame.put(FRAME_LINE);
+            frame.putInt(recipientClientId);
+            frame.put(lineBytes);
+            frame.flip();
+            return outboundQueue.offer(frame);
+        }
+
+        /**
+         * @return a recipient forwarding the waiting messages of the {@link Mailbox} of this node to a client of the
+         * remote node, in a single write
+         */
+        public Mailbox.Recipient asRecipient(int recipientClientId) {
+            return new Mailbox.Recipient() {
+                @Override
+                public boolean isLoginDone() {
+                    return isConnected();
+                }
+
+                @Override
+                public boolean sendDataBatch(int[] clientIds, ByteBuffer[] data, int count) {
+                    OutboundQueue outboundQueue = RemoteNode.this.outboundQueue;
+                    if (outboundQueue == null) {
+                        return false;
+                    }
+
+                    int batchSize = 0;
+                    for (int i = 0; i < count; i++) {
+                        batchSize += FRAME_HEADER_SIZE + 2 * Integer.BYTES + data[i].remaining();
+                    }
+                    ByteBuffer batch = ByteBuffer.allocate(batchSize);
+                    for (int i = 0; i < count; i++) {
+                        batch.putInt(1 + 2 * Integer.BYTES + data[i].remaining());
+                        batch.put(FRAME_DATA);
+                        batch.putInt(recipientClientId);
+                        batch.putInt(clientIds[i]);
+                        batch.put(data[i].duplicate());
+                    }
+                    batch.flip();
+                    return outboundQueue.offer(batch);
+                }
+            };
+        }
+
+        /**
+         * This method keeps the link to the node connected until this node is stopped.
+         */
+        private void connect() {
+            while (isRunning) {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), linkPorts[nodeIndex])) {
+                    this.socket = socket;
+                    if (!isRunning) break;
+
+                    // Nothing is forwarded to a process not knowing the secret
+                    socket.setSoTimeout(AppConfig.CLUSTER_LINK_HELLO_TIMEOUT);
+                    authenticate(socket);
+                    socket.setSoTimeout(0);
+
+                    OutboundQueue outboundQueue = new OutboundQueue(socket.getOutputStream(), writerExecutorService,
+                            AppConfig.CLUSTER_LINK_QUEUE_CAPACITY);
+                    synchronized (ClusterNode.this) {
+                        // No login or logout is announced in between, so the node sees them in order
+                        outboundQueue.offer(encodeLogins());
+                        this.outboundQueue = outboundQueue;
+                    }
+                    System.out.println(String.format("Cluster link connected to node %d", nodeIndex));
+
+                    // The node never writes to the link, so the read returns only once the link is closed
+                    InputStream inputStream = socket.getInputStream();
+                    while (inputStream.read() >= 0) ;
+                } catch (IOException e) {
+                    logger.info(String.format("Cluster link to node %d failed: %s", nodeIndex, e.getMessage()));
+                }
+
+                OutboundQueue outboundQueue = this.outboundQueue;
+                if (outboundQueue != null) {
+                    this.outboundQueue = null;
+                    outboundQueue.close();
+                    System.out.println(String.format("Cluster link disconnected from node %d", nodeIndex));
+                }
+
+                try {
+                    Thread.sleep(AppConfig.CLUSTER_LINK_RECONNECT_INTERVAL);
+                } catch (InterruptedException e) {
+                    logger.warning(e.getMessage());
+                    break;
+                }
+            }
+        }
+
+        /**
+         * This method reads the challenge of the node, writes the hello, and reads the tag of the node.
+         *
+         * @throws IOException if the node is not authenticated (or the link failed)
+         */
+        private void authenticate(Socket socket) throws IOException {
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            byte[] remoteChallenge = new byte[CHALLENGE_SIZE];
+            inputStream.readFully(remoteChallenge);
+
+            byte[] challenge = generateChallenge();
+            ByteBuffer hello = ByteBuffer.allocate(FRAME_HEADER_SIZE + Integer.BYTES + CHALLENGE_SIZE + TAG_SIZE);
+            hello.putInt(1 + Integer.BYTES + CHALLENGE_SIZE + TAG_SIZE);
+            hello.put(FRAME_HELLO);
+            hello.putInt(ClusterNode.this.nodeIndex);
+            hello.put(challenge);
+            hello.put(generateTag(TAG_HELLO, remoteChallenge, challenge, ClusterNode.this.nodeIndex));
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(hello.array());
+            outputStream.flush();
+
+            byte[] tag = new byte[TAG_SIZE];
+            inputStream.readFully(tag);
+            if (!MessageDigest.isEqual(tag, generateTag(TAG_HELLO_ACCEPT, remoteChallenge, challenge, ClusterNode.this.nodeIndex))) {
+                throw new IOException(String.format("Cluster node %d not authenticated", nodeIndex));
+            }
+        }
+
+        private void close() {
+            Socket socket = this.socket;
+            if (socket != null) {
+                closeSocket(socket);
+            }
+        }
+    }
+
+    private static byte[] generateChallenge() {
+        byte[] challenge = new byte[CHALLENGE_SIZE];
+        AppConfig.SECURE_RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * @param acceptingChallenge challenge of the node accepting the link
+     * @param connectingChallenge challenge of the node connecting the link
+     * @param connectingNodeIndex index of the node connecting the link
+     * @return the HMAC tag of the challenges with the secret of the cluster
+     */
+    private byte[] generateTag(byte tagType, byte[] acceptingChallenge, byte[] connectingChallenge,
+                               int connectingNodeIndex) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(TAG_ALGORITHM);
+            mac.init(clusterSecretKey);
+            mac.update(tagType);
+            mac.update(acceptingChallenge);
+            mac.update(connectingChallenge);
+            mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(connectingNodeIndex).array());
+            return mac.doFinal();
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+        }
+    }
+
+    /**
+     * @return a login of every client of this node, in a single buffer
+     */
+    private ByteBuffer encodeLogins() {
+        List<Integer> clientIds = new ArrayList<>();
+        router.forEachClientId(clientIds::add);
+
+        ByteBuffer frames = ByteBuffer.allocate(clientIds.size() * (FRAME_HEADER_SIZE + Integer.BYTES));
+        for (int clientId : clientIds) {
+            frames.put(encodeFrame(FRAME_LOGIN, clientId));
+        }
+        frames.flip();
+        return frames;
+    }
+
+    private static ByteBuffer encodeFrame(byte frameType, int field) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + Integer.BYTES);
+        frame.putInt(1 + Integer.BYTES);
+        frame.put(frameType);
+        frame.putInt(field);
+        frame.flip();
+        return frame;
+    }
+}
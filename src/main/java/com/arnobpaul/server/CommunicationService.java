@@ -2,127 +2,326 @@ package com.arnobpaul.server;
 
 import com.arnobpaul.common.AppConfig;
 import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.network.CommandRegistry;
+import com.arnobpaul.common.network.FrameCodec;
+import com.arnobpaul.common.network.Protocol;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class CommunicationService {
-    private final ServerTask.PerClientRunnable perClientRunnable;
+    private final ClientConnection clientConnection;
 
     private final SignupLoginService signupLoginService;
 
+    private final ClientStore clientStore;
+
     private final Router router;
 
+    private final Mailbox mailbox;
+
     private ClientEntity loginClient = null;
 
-    private ServerTask.PerClientRunnable otherClientRunnable = null;
+    private ClientConnection otherClientConnection = null;
     private int otherClientId = 0;
     private ClientEntity otherClient = null;
+    // Node of the other client if logged in to another node of the cluster, otherwise null
+    private ClusterNode.RemoteNode otherClientNode = null;
 
     private static final Logger logger = Logger.getLogger(CommunicationService.class.getName());
 
-    public CommunicationService(@NotNull ServerTask.PerClientRunnable perClientRunnable,
+    public CommunicationService(@NotNull ClientConnection clientConnection,
                                 @NotNull SignupLoginService signupLoginService,
-                                @NotNull Router router) {
-        this.perClientRunnable = perClientRunnable;
+                                @NotNull ClientStore clientStore,
+                                @NotNull Router router,
+                                @NotNull Mailbox mailbox) {
+        this.clientConnection = clientConnection;
         this.signupLoginService = signupLoginService;
+        this.clientStore = clientStore;
         this.router = router;
+        this.mailbox = mailbox;
     }
 
-    synchronized public boolean processSend(String header, String data) {
-        if (data == null) {
-            perClientRunnable.sendRaw(AppConfig.NetworkCommand.SEND_FAILURE);
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_START, this::processSendStart);
+        commandRegistry.registerRaw(AppConfig.NetworkCommand.SEND_DATA, this::processSendFrame);
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_DATA, this::processSend);
+    }
 
-            System.err.println(String.format("Send failure for null data; Data: %s null",
-                    header));
+    synchronized public boolean processSendStart(String data) {
+        if (!checkDataNotNull(AppConfig.NetworkCommand.SEND_START, data)) return false;
+
+        String[] dataItems = data.split(" ", 2);
+        if (!checkBothClientsAndPerformAction(AppConfig.NetworkCommand.SEND_START, dataItems[0])) return false;
+
+        clientConnection.sendRaw(String.format("%s %d %s",
+                AppConfig.NetworkCommand.SEND_INVITE,
+                otherClientId,
+                otherClient.clientPublicKey));
+
+        String sendInvite = String.format("%s %d %s",
+                AppConfig.NetworkCommand.SEND_INVITE,
+                loginClient.clientId,
+                loginClient.clientPublicKey);
+        if (otherClientNode != null) {
+            otherClientNode.forwardLine(otherClientId, sendInvite);
+        } else {
+            otherClientConnection.sendRaw(sendInvite);
+        }
+
+        System.out.println(String.format("Client_Public_Key info exchanged for the clients: %d and %d",
+                loginClient.clientId,
+                otherClientId));
+        return true;
+    }
+
+    /**
+     * This method relays a well-formed SEND frame without decoding its data, since the data is end-to-end encrypted
+     * anyway. Any other SEND frame is left to {@link #processSend(String)}.
+     *
+     * @return true if the frame is handled, otherwise false
+     */
+    private boolean processSendFrame(ByteBuffer frame, Protocol protocol) {
+        FrameCodec.SendData sendData = FrameCodec.sliceSendData(frame, protocol);
+        if (sendData == null) {
             return false;
         }
-        String[] dataItems = data.split(" ", 2);
-        if (header.equals(AppConfig.NetworkCommand.SEND_START)) {
-            if (!checkBothClientsAndPerformAction(header, dataItems[0])) return false;
 
-            perClientRunnable.sendRaw(String.format("%s %d %s",
-                    AppConfig.NetworkCommand.SEND_INVITE,
-                    otherClientId,
-                    otherClient.clientPublicKey));
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("Received \"%s %d\" with %d bytes of data from %s",
+                    AppConfig.NetworkCommand.SEND_DATA,
+                    sendData.clientId,
+                    sendData.data.remaining(),
+                    clientConnection.getRemoteAddress()));
+        }
 
-            otherClientRunnable.sendRaw(String.format("%s %d %s",
-                    AppConfig.NetworkCommand.SEND_INVITE,
-                    loginClient.clientId,
-                    loginClient.clientPublicKey));
+        processSendData(sendData.clientId, sendData.data);
+        return true;
+    }
 
-            System.out.println(String.format("Client_Public_Key info exchanged for the clients: %d and %d",
-                    loginClient.clientId,
+    synchronized public boolean processSend(String data) {
+        if (!checkDataNotNull(AppConfig.NetworkCommand.SEND_DATA, data)) return false;
+
+        String[] dataItems = data.split(" ", 2);
+        Integer clientId = parseClientId(dataItems[0]);
+        if (clientId == null) return false;
+        if (!checkLoginClient(AppConfig.NetworkCommand.SEND_DATA, clientId)) return false;
+
+        if (dataItems.length != 2) {
+            clientConnection.sendRaw(String.format("%s %d",
+                    AppConfig.NetworkCommand.SEND_FAILURE,
                     otherClientId));
-            return true;
-        } else if (header.equals(AppConfig.NetworkCommand.SEND_DATA)) {
-            if (!checkBothClientsAndPerformAction(header, dataItems[0])) return false;
+            System.err.println(String.format("Send failure for null data; Data: %s %s",
+                    AppConfig.NetworkCommand.SEND_DATA, data));
+            return false;
+        }
+
+        return relayOrQueueData(clientId, ByteBuffer.wrap(dataItems[1].getBytes(AppConfig.DEFAULT_CHARSET)));
+    }
+
+    /**
+     * This method relays <code>SEND &lt;Client_ID&gt; &lt;Data&gt;</code> without decoding the data.
+     *
+     * @param clientId client ID of the other client
+     * @param data     opaque non-empty data (sent as it is)
+     * @return true if the data is relayed, otherwise false
+     */
+    synchronized public boolean processSendData(int clientId, ByteBuffer data) {
+        if (!checkLoginClient(AppConfig.NetworkCommand.SEND_DATA, clientId)) return false;
+
+        return relayOrQueueData(clientId, data);
+    }
+
+    /**
+     * This method relays the data if the other client is logged in (or forwards it to the node the other client is
+     * logged in to), otherwise keeps it in the {@link Mailbox} until the other client logs in.
+     */
+    private boolean relayOrQueueData(int clientId, ByteBuffer data) {
+        if (findOtherClient(clientId)) {
+            return relayData(data);
+        }
+        ClusterNode.RemoteNode remoteNode = router.getRemoteClientNode(clientId);
+        if (remoteNode != null) {
+            return forwardData(remoteNode, clientId, data);
+        }
+
+        try {
+            clientStore.getClient(clientId);
+        } catch (ClientStoreException | NullPointerException e) {
+            clientConnection.sendRaw(String.format("%s %d",
+                    AppConfig.NetworkCommand.SEND_FAILURE,
+                    clientId));
+            System.err.println(String.format("Send failure for other client not found; Data: %s %d",
+                    AppConfig.NetworkCommand.SEND_DATA, clientId));
+            return false;
+        }
 
-            if (dataItems.length != 2) {
-                perClientRunnable.sendRaw(String.format("%s %d",
+        int senderClientId = loginClient.clientId;
+        int dataSize = data.remaining();
+        mailbox.append(clientId, senderClientId, data).whenComplete((isQueued, throwable) -> {
+            if (throwable != null) {
+                throwable.printStackTrace();
+                logger.severe(throwable.getMessage());
+            }
+            if (throwable != null || !isQueued) {
+                clientConnection.sendRaw(String.format("%s %d",
                         AppConfig.NetworkCommand.SEND_FAILURE,
-                        otherClientId));
-                System.err.println(String.format("Send failure for null data; Data: %s %s",
-                        header, data));
-                return false;
+                        clientId));
+                System.err.println(String.format("Send failure for other client's mailbox full; From Client_ID %d To Client_ID %d",
+                        senderClientId,
+                        clientId));
             }
+        });
 
-            otherClientRunnable.sendRaw(String.format("%s %d %s",
-                    AppConfig.NetworkCommand.SEND_DATA,
-                    loginClient.clientId,
-                    dataItems[1]));
+        System.out.println(String.format("Data queued: From Client_ID %d To Client_ID %d; Data: %d bytes",
+                senderClientId,
+                clientId,
+                dataSize));
+        return true;
+    }
 
-            System.out.println(String.format("Data passing: From Client_ID %d To Client_ID %d; Data: %s",
-                    loginClient.clientId,
-                    otherClientId,
-                    dataItems[1]));
-            return true;
+    private boolean checkDataNotNull(String header, String data) {
+        if (data == null) {
+            clientConnection.sendRaw(AppConfig.NetworkCommand.SEND_FAILURE);
+
+            System.err.println(String.format("Send failure for null data; Data: %s null",
+                    header));
+            return false;
         }
-        return false;
+        return true;
     }
 
-    private boolean checkBothClientsAndPerformAction(String header, String data) {
-        // Check for initiator client logged in
-        loginClient = signupLoginService.getLoginClient();
-        if (loginClient == null) {
-            perClientRunnable.sendRaw(String.format("%s %s",
+    private boolean relayData(ByteBuffer data) {
+        int dataSize = data.remaining();
+        if (!otherClientConnection.sendData(loginClient.clientId, data)) {
+            // The other client is too slow (or just disconnected); let the sender know instead of buffering
+            clientConnection.sendRaw(String.format("%s %d",
                     AppConfig.NetworkCommand.SEND_FAILURE,
-                    data));
+                    otherClientId));
+            System.err.println(String.format("Send failure for other client not accepting data; From Client_ID %d To Client_ID %d",
+                    loginClient.clientId,
+                    otherClientId));
+            return false;
+        }
+
+        System.out.println(String.format("Data passing: From Client_ID %d To Client_ID %d; Data: %d bytes",
+                loginClient.clientId,
+                otherClientId,
+                dataSize));
+        return true;
+    }
 
-            System.err.println(String.format("Send failure for not logged in; Data: %s %s",
-                    header, data));
+    private boolean forwardData(ClusterNode.RemoteNode remoteNode, int clientId, ByteBuffer data) {
+        int dataSize = data.remaining();
+        if (!remoteNode.forwardData(clientId, loginClient.clientId, data)) {
+            // The link to the other node is too slow (or just closed); let the sender know instead of buffering
+            clientConnection.sendRaw(String.format("%s %d",
+                    AppConfig.NetworkCommand.SEND_FAILURE,
+                    clientId));
+            System.err.println(String.format("Send failure for other node not accepting data; From Client_ID %d To Client_ID %d",
+                    loginClient.clientId,
+                    clientId));
             return false;
         }
 
-        // Initiator client logged in; Check for the other client
+        System.out.println(String.format("Data forwarding: From Client_ID %d To Client_ID %d on node %d; Data: %d bytes",
+                loginClient.clientId,
+                clientId,
+                remoteNode.nodeIndex,
+                dataSize));
+        return true;
+    }
+
+    private boolean checkBothClientsAndPerformAction(String header, String data) {
+        Integer clientId = parseClientId(data);
+        if (clientId == null) return false;
+
+        return checkBothClientsAndPerformAction(header, clientId);
+    }
+
+    /**
+     * @return the client ID, or null (with the failure sent) if malformed
+     */
+    private Integer parseClientId(String data) {
         try {
-            otherClientId = Integer.parseInt(data);
+            return Integer.parseInt(data);
         } catch (NumberFormatException e) {
             e.printStackTrace();
             logger.warning(e.getMessage());
 
-            perClientRunnable.sendRaw(String.format("%s %s",
+            clientConnection.sendRaw(String.format("%s %s",
                     AppConfig.NetworkCommand.SEND_FAILURE,
                     data));
-            return false;
+            return null;
         }
-        otherClientRunnable = router.getClientRunnable(otherClientId);
-        if (otherClientRunnable == null) {
-            perClientRunnable.sendRaw(String.format("%s %s",
+    }
+
+    private boolean checkBothClientsAndPerformAction(String header, int clientId) {
+        if (!checkLoginClient(header, clientId)) return false;
+
+        // Initiator client logged in; Check for the other client (on this node, or on another node of the cluster)
+        if (!findOtherClient(clientId) && !findRemoteOtherClient(clientId)) {
+            clientConnection.sendRaw(String.format("%s %d",
                     AppConfig.NetworkCommand.SEND_FAILURE,
-                    data));
-            System.err.println(String.format("Send failure for other client not connected; Data: %s %s",
-                    header, data));
+                    clientId));
+            System.err.println(String.format("Send failure for other client %s; Data: %s %d",
+                    (otherClientConnection == null) ? "not connected" : "not logged in",
+                    header, clientId));
             return false;
         }
-        if ((otherClient = otherClientRunnable.getSignupLoginService().getLoginClient()) == null) {
-            perClientRunnable.sendRaw(String.format("%s %s",
+        return true;
+    }
+
+    private boolean checkLoginClient(String header, int clientId) {
+        loginClient = signupLoginService.getLoginClient();
+        if (loginClient == null) {
+            clientConnection.sendRaw(String.format("%s %d",
                     AppConfig.NetworkCommand.SEND_FAILURE,
-                    data));
-            System.err.println(String.format("Send failure for other client not logged in; Data: %s %s",
-                    header, data));
+                    clientId));
+
+            System.err.println(String.format("Send failure for not logged in; Data: %s %d",
+                    header, clientId));
             return false;
         }
         return true;
     }
+
+    /**
+     * @return true if the other client is logged in (i.e., {@link #otherClientConnection} and {@link #otherClient}
+     * are set), otherwise false
+     */
+    private boolean findOtherClient(int clientId) {
+        otherClientId = clientId;
+        otherClientNode = null;
+        otherClientConnection = router.getClientConnection(otherClientId);
+        otherClient = (otherClientConnection != null)
+                ? otherClientConnection.getSignupLoginService().getLoginClient()
+                : null;
+        return (otherClient != null);
+    }
+
+    /**
+     * @return true if the other client is logged in to another node of the cluster (i.e., {@link #otherClientNode}
+     * and {@link #otherClient} are set), otherwise false
+     */
+    private boolean findRemoteOtherClient(int clientId) {
+        otherClientNode = router.getRemoteClientNode(clientId);
+        if (otherClientNode == null) {
+            return false;
+        }
+
+        try {
+            otherClient = clientStore.getClient(clientId);
+        } catch (ClientStoreException | NullPointerException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            otherClient = null;
+        }
+        return (otherClient != null);
+    }
 }
@@ -0,0 +1,199 @@
+package com.arnobpaul.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps a few read connections and a single write connection to a SQLite database in WAL mode, so the
+ * readers run concurrently with each other and with the writer, while the writes are serialized here instead of
+ * contending on the database lock. Every connection caches its prepared statements.
+ */
+public class DbConnectionPool {
+    private static final String[] CONNECTION_PRAGMAS = {
+            "PRAGMA journal_mode = WAL",
+            // Every commit is durable; the writes are grouped into few commits by WriteBehindJournal
+            "PRAGMA synchronous = FULL",
+            "PRAGMA mmap_size = 268435456",
+            "PRAGMA busy_timeout = 5000",
+            "PRAGMA temp_store = MEMORY"
+    };
+
+    public interface DbTask<T> {
+        T run(DbConnection dbConnection) throws SQLException;
+    }
+
+    /**
+     * This class is a connection with its cached prepared statements. It must only be used by the task given it.
+     */
+    public static class DbConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+
+        private DbConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @param sql SQL of the statement
+         * @return the cached statement of the SQL with its parameters cleared (must not be closed by the caller)
+         */
+        public PreparedStatement prepareStatement(@NotNull String sql) throws SQLException {
+            PreparedStatement statement = preparedStatements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                preparedStatements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * @return a new statement (must be closed by the caller)
+         */
+        public Statement createStatement() throws SQLException {
+            return connection.createStatement();
+        }
+
+        /**
+         * This method starts a transaction, which must be ended by {@link #commit()} or {@link #rollback()}.
+         */
+        public void beginTransaction() throws SQLException {
+            connection.setAutoCommit(false);
+        }
+
+        public void commit() throws SQLException {
+            try {
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+
+        public void rollback() throws SQLException {
+            try {
+                connection.rollback();
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+
+        public Savepoint setSavepoint() throws SQLException {
+            return connection.setSavepoint();
+        }
+
+        /**
+         * This method undoes the changes after the savepoint, without ending the transaction.
+         */
+        public void rollback(Savepoint savepoint) throws SQLException {
+            connection.rollback(savepoint);
+        }
+
+        public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+            connection.releaseSavepoint(savepoint);
+        }
+
+        /**
+         * This method closes the connection with its cached statements.
+         */
+        private void close() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+            }
+        }
+    }
+
+    private final BlockingQueue<DbConnection> readConnections;
+    private final DbConnection writeConnection;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private static final Logger logger = Logger.getLogger(DbConnectionPool.class.getName());
+
+    /**
+     * @param databaseUrl         JDBC URL of the database
+     * @param readConnectionCount number of the read connections
+     */
+    public DbConnectionPool(@NotNull String databaseUrl, int readConnectionCount) throws SQLException {
+        // The writer is opened first to switch the database into WAL mode before the readers are opened
+        writeConnection = openConnection(databaseUrl, false);
+
+        readConnections = new ArrayBlockingQueue<>(readConnectionCount);
+        for (int i = 0; i < readConnectionCount; i++) {
+            readConnections.add(openConnection(databaseUrl, true));
+        }
+    }
+
+    /**
+     * @param dbTask task reading the database (it must not write)
+     * @return the result of the task
+     */
+    public <T> T read(@NotNull DbTask<T> dbTask) throws SQLException {
+        DbConnection dbConnection;
+        try {
+            dbConnection = readConnections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection.", e);
+        }
+
+        try {
+            return dbTask.run(dbConnection);
+        } finally {
+            readConnections.add(dbConnection);
+        }
+    }
+
+    /**
+     * @param dbTask task writing the database, run after the previous write tasks
+     * @return the result of the task
+     */
+    public <T> T write(@NotNull DbTask<T> dbTask) throws SQLException {
+        writeLock.lock();
+        try {
+            return dbTask.run(writeConnection);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * This method closes the connections after the running write, and the read connections not taken (i.e., it must
+     * be called once the reads are done).
+     */
+    public void close() {
+        writeLock.lock();
+        try {
+            writeConnection.close();
+        } finally {
+            writeLock.unlock();
+        }
+
+        DbConnection dbConnection;
+        while ((dbConnection = readConnections.poll()) != null) {
+            dbConnection.close();
+        }
+    }
+
+    private static DbConnection openConnection(String databaseUrl, boolean isReadOnly) throws SQLException {
+        Connection connection = DriverManager.getConnection(databaseUrl);
+        try (Statement statement = connection.createStatement()) {
+            for (String pragma : CONNECTION_PRAGMAS) {
+                statement.execute(pragma);
+            }
+            if (isReadOnly) {
+                statement.execute("PRAGMA query_only = ON");
+            }
+        }
+        return new DbConnection(connection);
+    }
+}
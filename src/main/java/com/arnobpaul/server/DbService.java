@@ -1,11 +1,36 @@
 package com.arnobpaul.server;
 
+import com.arnobpaul.common.AppConfig;
 import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.crypto.PublicKeyCache;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
-public class DbService {
+/**
+ * This class is the {@link ClientStore} (and the {@link GroupStore}) on the SQLite database <code>server.db</code>.
+ */
+public class DbService implements ClientStore, GroupStore {
+    public interface ClientChangeListener {
+        /**
+         * This method is called once a change of the public key, or a deletion, of a client is committed.
+         */
+        void onClientChanged(int clientId);
+    }
+
+    public interface GroupChangeListener {
+        /**
+         * This method is called once a new group, or a new member of a group, is committed.
+         */
+        void onGroupChanged(int groupId);
+    }
+
     private static final String DATABASE_URL = "jdbc:sqlite:server.db";
 
     private static final String CLIENT_DATA_TABLE = "client_data";
@@ -13,82 +38,375 @@ public class DbService {
     private static final String CLIENT_NAME_COL = "client_name";
     private static final String CLIENT_PUBLIC_KEY_COL = "public_key";
 
-    private final Connection dbConnection;
+    private static final String GROUP_DATA_TABLE = "group_data";
+    private static final String GROUP_ID_COL = "id";
+    private static final String GROUP_OWNER_ID_COL = "owner_id";
+
+    private static final String GROUP_MEMBER_TABLE = "group_member";
+    private static final String GROUP_MEMBER_GROUP_ID_COL = "group_id";
+    private static final String GROUP_MEMBER_CLIENT_ID_COL = "client_id";
+
+    private final DbConnectionPool dbConnectionPool;
+    private final WriteBehindJournal writeBehindJournal;
+
+    private final PublicKeyCache publicKeyCache;
+
+    private final ClientDirectory clientDirectory;
+    private final GroupDirectory groupDirectory = new GroupDirectory();
+
+    // Told every committed change of a client (e.g., the other nodes of a cluster sharing server.db)
+    private volatile ClientChangeListener clientChangeListener = null;
+    // Told every committed change of a group, like the changes of the clients
+    private volatile GroupChangeListener groupChangeListener = null;
 
     private static final Logger logger = Logger.getLogger(DbService.class.getName());
 
-    public DbService() throws SQLException {
-        dbConnection = DriverManager.getConnection(DATABASE_URL);
+    /**
+     * @param publicKeyCache cache of the parsed public keys to be invalidated once a public key is changed
+     */
+    public DbService(@NotNull PublicKeyCache publicKeyCache) throws SQLException {
+        this.publicKeyCache = publicKeyCache;
+        dbConnectionPool = new DbConnectionPool(DATABASE_URL, AppConfig.SERVER_DB_READ_CONNECTION_COUNT);
 
-        dbConnection.createStatement().execute(
-                "CREATE TABLE IF NOT EXISTS " + CLIENT_DATA_TABLE + " (\n"
-                        + CLIENT_ID_COL + " integer PRIMARY KEY,\n"
-                        + CLIENT_NAME_COL + " text NOT NULL,\n"
-                        + CLIENT_PUBLIC_KEY_COL + " text NOT NULL\n"
-                        + ");");
+        dbConnectionPool.write(dbConnection -> {
+            try (Statement statement = dbConnection.createStatement()) {
+                return statement.execute(
+                        "CREATE TABLE IF NOT EXISTS " + CLIENT_DATA_TABLE + " (\n"
+                                + CLIENT_ID_COL + " integer PRIMARY KEY,\n"
+                                + CLIENT_NAME_COL + " text NOT NULL,\n"
+                                + CLIENT_PUBLIC_KEY_COL + " text NOT NULL\n"
+                                + ");");
+            }
+        });
+        dbConnectionPool.write(dbConnection -> {
+            try (Statement statement = dbConnection.createStatement()) {
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS " + GROUP_DATA_TABLE + " (\n"
+                                + GROUP_ID_COL + " integer PRIMARY KEY,\n"
+                                + GROUP_OWNER_ID_COL + " integer NOT NULL\n"
+                                + ");");
+                // Clustered by the group, so the members of a group are read from adjacent rows
+                return statement.execute(
+                        "CREATE TABLE IF NOT EXISTS " + GROUP_MEMBER_TABLE + " (\n"
+                                + GROUP_MEMBER_GROUP_ID_COL + " integer NOT NULL,\n"
+                                + GROUP_MEMBER_CLIENT_ID_COL + " integer NOT NULL,\n"
+                                + "PRIMARY KEY (" + GROUP_MEMBER_GROUP_ID_COL + "," + GROUP_MEMBER_CLIENT_ID_COL + ")\n"
+                                + ") WITHOUT ROWID;");
+            }
+        });
+
+        List<ClientEntity> clients = getAllClients();
+        clientDirectory = new ClientDirectory(clients.size());
+        clientDirectory.putAll(clients);
+        logger.info(String.format("Client directory warmed up with %d clients", clients.size()));
+
+        writeBehindJournal = new WriteBehindJournal(dbConnectionPool,
+                AppConfig.SERVER_DB_JOURNAL_MAX_BATCH_SIZE,
+                AppConfig.SERVER_DB_JOURNAL_MAX_LATENCY);
+        writeBehindJournal.start();
     }
 
-    public int insert(String clientName, String clientPublicKey) throws SQLException {
+    /**
+     * @return the future completed with the client ID once committed
+     */
+    @Override
+    public CompletableFuture<Integer> insert(@NotNull String clientName, @NotNull String clientPublicKey) {
         final String sql = "INSERT INTO " + CLIENT_DATA_TABLE +
                 " (" + CLIENT_NAME_COL + "," + CLIENT_PUBLIC_KEY_COL + ") VALUES(?,?)";
 
-        PreparedStatement statement = dbConnection.prepareStatement(sql);
-        statement.setString(1, clientName);
-        statement.setString(2, clientPublicKey);
-        int affectedRows = statement.executeUpdate();
-
-        if (affectedRows == 0) {
-            throw new SQLException("Insert failed.");
-        }
+        return writeBehindJournal.submit(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(sql);
+            statement.setString(1, clientName);
+            statement.setString(2, clientPublicKey);
+            int affectedRows = statement.executeUpdate();
 
-        try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
-            if (generatedKeys.next()) {
-                return generatedKeys.getInt(1);
-            } else {
+            if (affectedRows == 0) {
                 throw new SQLException("Insert failed.");
             }
-        }
+
+            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                if (generatedKeys.next()) {
+                    return generatedKeys.getInt(1);
+                } else {
+                    throw new SQLException("Insert failed.");
+                }
+            }
+        }, clientId -> clientDirectory.put(new ClientEntity(clientId, clientName, clientPublicKey)));
     }
 
-    public boolean updateClientPublicKey(int clientId, String newClientPublicKey) throws SQLException {
+    /**
+     * @return the future completed once committed
+     */
+    @Override
+    public CompletableFuture<Boolean> updateClientPublicKey(int clientId, @NotNull String newClientPublicKey) {
         final String sql = "UPDATE " + CLIENT_DATA_TABLE + " SET " +
                 CLIENT_PUBLIC_KEY_COL + " = ? WHERE " + CLIENT_ID_COL + " = ?";
 
-        PreparedStatement statement = dbConnection.prepareStatement(sql);
-        statement.setString(1, newClientPublicKey);
-        statement.setInt(2, clientId);
-        int affectedRows = statement.executeUpdate();
+        return writeBehindJournal.submit(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(sql);
+            statement.setString(1, newClientPublicKey);
+            statement.setInt(2, clientId);
+            int affectedRows = statement.executeUpdate();
 
-        if (affectedRows != 1) {
-            throw new SQLException("Update failed.");
+            if (affectedRows != 1) {
+                throw new SQLException("Update failed.");
+            }
+
+            return true;
+        }, isUpdated -> {
+            // Written through after the commit, in the same order as the commits
+            publicKeyCache.invalidate(clientId);
+            ClientEntity client = clientDirectory.get(clientId);
+            if (client != null) {
+                clientDirectory.put(new ClientEntity(clientId, client.clientName, newClientPublicKey));
+            } else {
+                clientDirectory.remove(clientId);
+            }
+            notifyClientChanged(clientId);
+        });
+    }
+
+    /**
+     * This method reads the client from {@link ClientDirectory}, and only queries the database on a miss.
+     */
+    @Override
+    public @NotNull ClientEntity getClient(int clientId) throws ClientStoreException {
+        ClientEntity client = clientDirectory.get(clientId);
+        if (client != null) {
+            return client;
         }
 
-        return true;
+        try {
+            return readClient(clientId);
+        } catch (SQLException e) {
+            throw new ClientStoreException(e.getMessage(), e);
+        }
     }
 
-    public ClientEntity getClient(int clientId) throws SQLException {
+    private ClientEntity readClient(int clientId) throws SQLException {
         final String sql = "SELECT * FROM " + CLIENT_DATA_TABLE + " WHERE " + CLIENT_ID_COL + " = ?";
 
-        PreparedStatement statement = dbConnection.prepareStatement(sql);
-        statement.setInt(1, clientId);
-        ResultSet clientSet = statement.executeQuery();
+        long modificationCount = clientDirectory.getModificationCount();
+        ClientEntity client = dbConnectionPool.read(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(sql);
+            statement.setInt(1, clientId);
+            try (ResultSet clientSet = statement.executeQuery()) {
+                if (clientSet.next()) {
+                    return new ClientEntity(clientId,
+                            clientSet.getString(CLIENT_NAME_COL),
+                            clientSet.getString(CLIENT_PUBLIC_KEY_COL));
+                } else {
+                    throw new SQLException("Could not be fetched.");
+                }
+            }
+        });
 
-        if (clientSet.next()) {
-            return new ClientEntity(clientId,
-                    clientSet.getString(CLIENT_NAME_COL),
-                    clientSet.getString(CLIENT_PUBLIC_KEY_COL));
-        } else {
-            throw new SQLException("Could not be fetched.");
-        }
+        clientDirectory.fill(client, modificationCount);
+        return client;
     }
 
-    public boolean delete(int clientId) throws SQLException {
+    private List<ClientEntity> getAllClients() throws SQLException {
+        final String sql = "SELECT * FROM " + CLIENT_DATA_TABLE;
+
+        return dbConnectionPool.read(dbConnection -> {
+            List<ClientEntity> clients = new ArrayList<>();
+            try (Statement statement = dbConnection.createStatement();
+                 ResultSet clientSet = statement.executeQuery(sql)) {
+                while (clientSet.next()) {
+                    clients.add(new ClientEntity(clientSet.getInt(CLIENT_ID_COL),
+                            clientSet.getString(CLIENT_NAME_COL),
+                            clientSet.getString(CLIENT_PUBLIC_KEY_COL)));
+                }
+            }
+            return clients;
+        });
+    }
+
+    /**
+     * @return the future completed with true if deleted, once committed
+     */
+    @Override
+    public CompletableFuture<Boolean> delete(int clientId) {
         final String sql = "DELETE FROM " + CLIENT_DATA_TABLE + " WHERE " + CLIENT_ID_COL + " = ?";
 
-        PreparedStatement statement = dbConnection.prepareStatement(sql);
-        statement.setInt(1, clientId);
-        int deletedRows = statement.executeUpdate();
+        return writeBehindJournal.submit(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(sql);
+            statement.setInt(1, clientId);
+            int deletedRows = statement.executeUpdate();
+
+            return (deletedRows > 0);
+        }, isDeleted -> {
+            publicKeyCache.invalidate(clientId);
+            clientDirectory.remove(clientId);
+            notifyClientChanged(clientId);
+        });
+    }
+
+    public void setClientChangeListener(@Nullable ClientChangeListener clientChangeListener) {
+        this.clientChangeListener = clientChangeListener;
+    }
+
+    private void notifyClientChanged(int clientId) {
+        ClientChangeListener clientChangeListener = this.clientChangeListener;
+        if (clientChangeListener != null) {
+            clientChangeListener.onClientChanged(clientId);
+        }
+    }
+
+    /**
+     * This method drops the client kept in memory (e.g., changed by another process sharing server.db), so it is read
+     * from the database again.
+     */
+    public void evictClient(int clientId) {
+        clientDirectory.remove(clientId);
+        publicKeyCache.invalidate(clientId);
+    }
+
+    /**
+     * This method drops all the clients kept in memory (e.g., possibly changed by another process sharing server.db
+     * while not linked to it).
+     */
+    public void evictAllClients() {
+        clientDirectory.clear();
+        publicKeyCache.clear();
+    }
+
+    public void setGroupChangeListener(@Nullable GroupChangeListener groupChangeListener) {
+        this.groupChangeListener = groupChangeListener;
+    }
+
+    private void notifyGroupChanged(int groupId) {
+        GroupChangeListener groupChangeListener = this.groupChangeListener;
+        if (groupChangeListener != null) {
+            groupChangeListener.onGroupChanged(groupId);
+        }
+    }
+
+    /**
+     * This method drops the members of the group kept in memory (e.g., changed by another process sharing server.db),
+     * so they are read from the database again.
+     */
+    public void evictGroup(int groupId) {
+        groupDirectory.remove(groupId);
+    }
+
+    /**
+     * This method drops the members of all the groups kept in memory (e.g., possibly changed by another process
+     * sharing server.db while not linked to it).
+     */
+    public void evictAllGroups() {
+        groupDirectory.clear();
+    }
+
+    /**
+     * @return the future completed with the group ID once committed (along with the owner as a member)
+     */
+    @Override
+    public CompletableFuture<Integer> createGroup(int ownerClientId) {
+        final String groupSql = "INSERT INTO " + GROUP_DATA_TABLE + " (" + GROUP_OWNER_ID_COL + ") VALUES(?)";
+        final String memberSql = "INSERT INTO " + GROUP_MEMBER_TABLE +
+                " (" + GROUP_MEMBER_GROUP_ID_COL + "," + GROUP_MEMBER_CLIENT_ID_COL + ") VALUES(?,?)";
+
+        return writeBehindJournal.submit(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(groupSql);
+            statement.setInt(1, ownerClientId);
+            if (statement.executeUpdate() == 0) {
+                throw new SQLException("Insert failed.");
+            }
 
-        return (deletedRows > 0);
+            int groupId;
+            try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                if (generatedKeys.next()) {
+                    groupId = generatedKeys.getInt(1);
+                } else {
+                    throw new SQLException("Insert failed.");
+                }
+            }
+
+            PreparedStatement memberStatement = dbConnection.prepareStatement(memberSql);
+            memberStatement.setInt(1, groupId);
+            memberStatement.setInt(2, ownerClientId);
+            memberStatement.executeUpdate();
+            return groupId;
+        }, groupId -> {
+            groupDirectory.put(groupId, new int[]{ownerClientId});
+            notifyGroupChanged(groupId);
+        });
+    }
+
+    /**
+     * @return the future completed with true if added (or false if already a member) once committed
+     */
+    @Override
+    public CompletableFuture<Boolean> addGroupMember(int groupId, int clientId) {
+        final String sql = "INSERT OR IGNORE INTO " + GROUP_MEMBER_TABLE +
+                " (" + GROUP_MEMBER_GROUP_ID_COL + "," + GROUP_MEMBER_CLIENT_ID_COL + ") VALUES(?,?)";
+
+        return writeBehindJournal.submit(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(sql);
+            statement.setInt(1, groupId);
+            statement.setInt(2, clientId);
+            return (statement.executeUpdate() > 0);
+        }, isAdded -> {
+            // Written through after the commit, in the same order as the commits
+            groupDirectory.addMember(groupId, clientId);
+            notifyGroupChanged(groupId);
+        });
+    }
+
+    /**
+     * This method reads the members from {@link GroupDirectory}, and only queries the database on a miss. The members
+     * added by another node of the cluster sharing the database are seen once the node announces the change (see
+     * {@link #evictGroup(int)}).
+     */
+    @Override
+    public @NotNull int[] getGroupMembers(int groupId) throws ClientStoreException {
+        int[] memberIds = groupDirectory.get(groupId);
+        if (memberIds != null) {
+            return memberIds;
+        }
+
+        try {
+            return readGroupMembers(groupId);
+        } catch (SQLException e) {
+            throw new ClientStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * This method waits for the submitted writes to be committed, and closes the database connections.
+     */
+    @Override
+    public void close() {
+        writeBehindJournal.close();
+        dbConnectionPool.close();
+    }
+
+    private int[] readGroupMembers(int groupId) throws SQLException {
+        final String sql = "SELECT " + GROUP_MEMBER_CLIENT_ID_COL + " FROM " + GROUP_MEMBER_TABLE +
+                " WHERE " + GROUP_MEMBER_GROUP_ID_COL + " = ? ORDER BY " + GROUP_MEMBER_CLIENT_ID_COL;
+
+        long modificationCount = groupDirectory.getModificationCount();
+        int[] memberIds = dbConnectionPool.read(dbConnection -> {
+            PreparedStatement statement = dbConnection.prepareStatement(sql);
+            statement.setInt(1, groupId);
+            int[] foundMemberIds = new int[8];
+            int memberCount = 0;
+            try (ResultSet memberSet = statement.executeQuery()) {
+                while (memberSet.next()) {
+                    if (memberCount == foundMemberIds.length) {
+                        foundMemberIds = Arrays.copyOf(foundMemberIds, memberCount * 2);
+                    }
+                    foundMemberIds[memberCount++] = memberSet.getInt(1);
+                }
+            }
+            return Arrays.copyOf(foundMemberIds, memberCount);
+        });
+
+        // A group not found is not kept, so the IDs of the groups not existing do not fill the memory
+        if (memberIds.length > 0) {
+            groupDirectory.fill(groupId, memberIds, modificationCount);
+        }
+        return memberIds;
     }
 }
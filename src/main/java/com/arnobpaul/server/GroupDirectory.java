@@ -0,0 +1,127 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.collection.IntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the members of the groups in memory by group ID, in front of the <code>group_member</code> table.
+ * Like {@link ClientDirectory}, it is filled by {@link DbService} on a miss and written through on every change, so a
+ * relayed group message reads the members without a query.
+ * <p>
+ * The member arrays are kept in ascending order, and are never changed once kept (i.e., a new member replaces the
+ * array), so they are shared with the callers.
+ */
+public class GroupDirectory {
+    private final IntObjectHashMap<int[]> groupMembers = new IntObjectHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Incremented on every change, to reject a fill read from the database before the change
+    private long modificationCount = 0;
+
+    /**
+     * @return the client IDs of the members in ascending order (must not be changed), or null if not in memory
+     */
+    public @Nullable int[] get(int groupId) {
+        lock.readLock().lock();
+        try {
+            return groupMembers.get(groupId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method writes a new group through.
+     *
+     * @param memberIds client IDs of the members in ascending order
+     */
+    public void put(int groupId, @NotNull int[] memberIds) {
+        lock.writeLock().lock();
+        try {
+            groupMembers.put(groupId, memberIds);
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method writes a new member through, if the group is in memory.
+     */
+    public void addMember(int groupId, int clientId) {
+        lock.writeLock().lock();
+        try {
+            int[] memberIds = groupMembers.get(groupId);
+            if (memberIds != null) {
+                int index = Arrays.binarySearch(memberIds, clientId);
+                if (index < 0) {
+                    index = -index - 1;
+                    int[] newMemberIds = new int[memberIds.length + 1];
+                    System.arraycopy(memberIds, 0, newMemberIds, 0, index);
+                    newMemberIds[index] = clientId;
+                    System.arraycopy(memberIds, index, newMemberIds, index + 1, memberIds.length - index);
+                    groupMembers.put(groupId, newMemberIds);
+                }
+            }
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int groupId) {
+        lock.writeLock().lock();
+        try {
+            groupMembers.remove(groupId);
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method drops all the groups (e.g., possibly changed by another process), so they are filled again on a miss.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            groupMembers.clear();
+            modificationCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the count to be given to {@link #fill(int, int[], long)} (must be taken before reading the database)
+     */
+    public long getModificationCount() {
+        lock.readLock().lock();
+        try {
+            return modificationCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method keeps the members read from the database after a miss, unless the directory is changed meanwhile
+     * (i.e., the read members may be stale).
+     *
+     * @param modificationCount the count taken by {@link #getModificationCount()} before reading the database
+     */
+    public void fill(int groupId, @NotNull int[] memberIds, long modificationCount) {
+        lock.writeLock().lock();
+        try {
+            if (this.modificationCount == modificationCount) {
+                groupMembers.put(groupId, memberIds);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
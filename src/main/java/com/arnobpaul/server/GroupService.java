@@ -0,0 +1,370 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.network.CommandRegistry;
+import com.arnobpaul.common.network.FrameCodec;
+import com.arnobpaul.common.network.Protocol;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class serves the groups of a client: creating a group, adding a member, and sending a message to all the
+ * members at once. A group message is end-to-end encrypted once by its sender (with the sender key of the sender), so
+ * the server never decodes it, but passes the single uploaded copy to every member logged in (see
+ * {@link #sendToMembers(Router, int[], int, int, ByteBuffer)}).
+ */
+public class GroupService {
+    private final ClientConnection clientConnection;
+
+    private final SignupLoginService signupLoginService;
+
+    private final ClientStore clientStore;
+
+    // Store of the groups, or null if the client store keeps no groups (i.e., the log client store)
+    private final GroupStore groupStore;
+
+    private final Router router;
+
+    private ClientEntity loginClient = null;
+
+    private static final Logger logger = Logger.getLogger(GroupService.class.getName());
+
+    public GroupService(@NotNull ClientConnection clientConnection,
+                        @NotNull SignupLoginService signupLoginService,
+                        @NotNull ClientStore clientStore,
+                        @Nullable GroupStore groupStore,
+                        @NotNull Router router) {
+        this.clientConnection = clientConnection;
+        this.signupLoginService = signupLoginService;
+        this.clientStore = clientStore;
+        this.groupStore = groupStore;
+        this.router = router;
+    }
+
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_CREATE, this::processGroupCreate);
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_ADD, this::processGroupAdd);
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_MEMBERS, this::processGroupMembers);
+        commandRegistry.registerRaw(AppConfig.NetworkCommand.GROUP_SEND, this::processGroupSendFrame);
+        commandRegistry.register(AppConfig.NetworkCommand.GROUP_SEND, this::processGroupSend);
+    }
+
+    /**
+     * This method only submits the new group; the reply is sent once the group is committed.
+     */
+    synchronized public boolean processGroupCreate(String data) {
+        if (!checkLoginClientAndGroupStore(AppConfig.NetworkCommand.GROUP_CREATE, 0)) return false;
+
+        int ownerClientId = loginClient.clientId;
+        groupStore.createGroup(ownerClientId).whenComplete((groupId, throwable) -> {
+            if (throwable != null) {
+                throwable.printStackTrace();
+                logger.severe(throwable.getMessage());
+                sendFailure(0);
+                return;
+            }
+
+            clientConnection.sendRaw(String.format("%s %d",
+                    AppConfig.NetworkCommand.GROUP_CREATE_SUCCESS,
+                    groupId));
+            clientConnection.sendRaw(formatGroupMembers(groupId, new int[]{ownerClientId}));
+            System.out.println(String.format("Group created: Group_ID %d by Client_ID %d",
+                    groupId,
+                    ownerClientId));
+        });
+        return true;
+    }
+
+    /**
+     * This method only submits the new member; once committed, the new members of the group are sent to every member
+     * logged in (including the new one), so their clients send their sender keys to it.
+     */
+    synchronized public boolean processGroupAdd(String data) {
+        int[] ids = parseIds(AppConfig.NetworkCommand.GROUP_ADD, data, 2);
+        if (ids == null) return false;
+        int groupId = ids[0];
+        int clientId = ids[1];
+
+        int[] memberIds = getMembersOfLoginClient(AppConfig.NetworkCommand.GROUP_ADD, groupId);
+        if (memberIds == null) return false;
+
+        if (memberIds.length >= AppConfig.SERVER_GROUP_MAX_MEMBER_COUNT) {
+            sendFailure(groupId);
+            System.err.println(String.format("Group failure for group full; Data: %s %s",
+                    AppConfig.NetworkCommand.GROUP_ADD, data));
+            return false;
+        }
+        try {
+            clientStore.getClient(clientId);
+        } catch (ClientStoreException | NullPointerException e) {
+            sendFailure(groupId);
+            System.err.println(String.format("Group failure for client not found; Data: %s %s",
+                    AppConfig.NetworkCommand.GROUP_ADD, data));
+            return false;
+        }
+
+        int adderClientId = loginClient.clientId;
+        groupStore.addGroupMember(groupId, clientId).whenComplete((isAdded, throwable) -> {
+            int[] newMemberIds;
+            try {
+                if (throwable != null) {
+                    throw throwable;
+                }
+                newMemberIds = groupStore.getGroupMembers(groupId);
+            } catch (Throwable e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+                sendFailure(groupId);
+                return;
+            }
+
+            sendLineToMembers(newMemberIds, formatGroupMembers(groupId, newMemberIds));
+            System.out.println(String.format("Group member %s: Group_ID %d; Client_ID %d by Client_ID %d",
+                    isAdded ? "added" : "already added",
+                    groupId,
+                    clientId,
+                    adderClientId));
+        });
+        return true;
+    }
+
+    synchronized public boolean processGroupMembers(String data) {
+        int[] ids = parseIds(AppConfig.NetworkCommand.GROUP_MEMBERS, data, 1);
+        if (ids == null) return false;
+
+        int[] memberIds = getMembersOfLoginClient(AppConfig.NetworkCommand.GROUP_MEMBERS, ids[0]);
+        if (memberIds == null) return false;
+
+        return clientConnection.sendRaw(formatGroupMembers(ids[0], memberIds));
+    }
+
+    /**
+     * This method relays a well-formed GROUP_SEND frame without decoding its data. Any other GROUP_SEND frame is left
+     * to {@link #processGroupSend(String)}.
+     *
+     * @return true if the frame is handled, otherwise false
+     */
+    private boolean processGroupSendFrame(ByteBuffer frame, Protocol protocol) {
+        FrameCodec.GroupSendData groupSendData = FrameCodec.sliceGroupSendData(frame, protocol);
+        if (groupSendData == null) {
+            return false;
+        }
+
+        if (logger.isLoggable(Level.INFO)) {
+            logger.info(String.format("Received \"%s %d\" with %d bytes of data from %s",
+                    AppConfig.NetworkCommand.GROUP_SEND,
+                    groupSendData.groupId,
+                    groupSendData.data.remaining(),
+                    clientConnection.getRemoteAddress()));
+        }
+
+        processGroupData(groupSendData.groupId, groupSendData.data);
+        return true;
+    }
+
+    /**
+     * This method only rejects a malformed GROUP_SEND frame (i.e., not handled by
+     * {@link #processGroupSendFrame(ByteBuffer, Protocol)}).
+     */
+    synchronized public boolean processGroupSend(String data) {
+        sendFailure(0);
+        System.err.println(String.format("Group failure for malformed data; Data: %s %s",
+                AppConfig.NetworkCommand.GROUP_SEND, data));
+        return false;
+    }
+
+    /**
+     * This method sends <code>GROUP_DATA &lt;Group_ID&gt; &lt;Client_ID&gt; &lt;Data&gt;</code> to every other member
+     * logged in to this node, and forwards the data once to every other node of the cluster any member is logged in
+     * to. A member not logged in misses the data (i.e., it is not kept in the {@link Mailbox}).
+     *
+     * @param groupId group ID of a group of the login client
+     * @param data    opaque non-empty data (sent as it is)
+     * @return true if the data is relayed, otherwise false
+     */
+    synchronized public boolean processGroupData(int groupId, ByteBuffer data) {
+        int[] memberIds = getMembersOfLoginClient(AppConfig.NetworkCommand.GROUP_SEND, groupId);
+        if (memberIds == null) return false;
+
+        int senderClientId = loginClient.clientId;
+        int dataSize = data.remaining();
+        int sentCount = sendToMembers(router, memberIds, groupId, senderClientId, data);
+
+        List<ClusterNode.RemoteNode> remoteNodes = new ArrayList<>();
+        for (int memberId : memberIds) {
+            ClusterNode.RemoteNode remoteNode = router.getRemoteClientNode(memberId);
+            if (memberId == senderClientId || remoteNode == null || remoteNodes.contains(remoteNode)) continue;
+
+            remoteNodes.add(remoteNode);
+            if (!remoteNode.forwardGroupData(groupId, senderClientId, data)) {
+                logger.warning(String.format("Cluster link to node %d not accepting data; dropped the data of Group_ID %d",
+                        remoteNode.nodeIndex,
+                        groupId));
+            }
+        }
+
+        System.out.println(String.format("Group data passing: From Client_ID %d To Group_ID %d; Data: %d bytes; Sent: %d members, %d other nodes",
+                senderClientId,
+                groupId,
+                dataSize,
+                sentCount,
+                remoteNodes.size()));
+        return true;
+    }
+
+    /**
+     * This method sends <code>GROUP_DATA &lt;Group_ID&gt; &lt;Client_ID&gt; &lt;Data&gt;</code> to every member (except
+     * the sender) logged in to this node. The frame is encoded once per protocol, and the encoded parts (including the
+     * data, which is never copied) are shared by all the connections of the protocol.
+     *
+     * @return the number of the members the data is sent to
+     */
+    static int sendToMembers(@NotNull Router router, @NotNull int[] memberIds, int groupId, int senderClientId,
+                             @NotNull ByteBuffer data) {
+        ByteBuffer[][] framePartsByProtocol = new ByteBuffer[Protocol.values().length][];
+        boolean[] isEncodedByProtocol = new boolean[Protocol.values().length];
+
+        int sentCount = 0;
+        for (int memberId : memberIds) {
+            if (memberId == senderClientId) continue;
+            ClientConnection clientConnection = router.getClientConnection(memberId);
+            if (clientConnection == null || !clientConnection.isLoginDone()) continue;
+
+            int protocolIndex = clientConnection.getProtocol().ordinal();
+            if (!isEncodedByProtocol[protocolIndex]) {
+                framePartsByProtocol[protocolIndex] = FrameCodec.encodeGroupData(groupId, senderClientId, data,
+                        clientConnection.getProtocol());
+                isEncodedByProtocol[protocolIndex] = true;
+            }
+            ByteBuffer[] frameParts = framePartsByProtocol[protocolIndex];
+            if (frameParts == null || !clientConnection.sendSharedFrame(frameParts)) {
+                logger.warning(String.format("Dropped the data of Group_ID %d not accepted by Client_ID %d",
+                        groupId,
+                        memberId));
+                continue;
+            }
+            sentCount++;
+        }
+        return sentCount;
+    }
+
+    /**
+     * This method sends a line to every member logged in, on this node or on another node of the cluster.
+     */
+    private void sendLineToMembers(int[] memberIds, String line) {
+        for (int memberId : memberIds) {
+            ClientConnection memberConnection = router.getClientConnection(memberId);
+            if (memberConnection != null) {
+                memberConnection.sendRaw(line);
+                continue;
+            }
+            ClusterNode.RemoteNode remoteNode = router.getRemoteClientNode(memberId);
+            if (remoteNode != null) {
+                remoteNode.forwardLine(memberId, line);
+            }
+        }
+    }
+
+    /**
+     * @return <code>GROUP_MEMBERS &lt;Group_ID&gt; &lt;Client_ID&gt;,&lt;Client_ID&gt;,...</code>
+     */
+    private static String formatGroupMembers(int groupId, int[] memberIds) {
+        StringBuilder line = new StringBuilder(AppConfig.NetworkCommand.GROUP_MEMBERS)
+                .append(' ')
+                .append(groupId)
+                .append(' ');
+        for (int i = 0; i < memberIds.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(memberIds[i]);
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the members of the group, or null (with the failure sent) if the login client is not a member
+     */
+    private int[] getMembersOfLoginClient(String header, int groupId) {
+        if (!checkLoginClientAndGroupStore(header, groupId)) return null;
+
+        int[] memberIds;
+        try {
+            memberIds = groupStore.getGroupMembers(groupId);
+        } catch (ClientStoreException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            sendFailure(groupId);
+            return null;
+        }
+
+        if (Arrays.binarySearch(memberIds, loginClient.clientId) < 0) {
+            sendFailure(groupId);
+            System.err.println(String.format("Group failure for not a member; Data: %s %d ; Client_ID: %d",
+                    header, groupId, loginClient.clientId));
+            return null;
+        }
+        return memberIds;
+    }
+
+    private boolean checkLoginClientAndGroupStore(String header, int groupId) {
+        loginClient = signupLoginService.getLoginClient();
+        if (loginClient == null) {
+            sendFailure(groupId);
+            System.err.println(String.format("Group failure for not logged in; Data: %s %d",
+                    header, groupId));
+            return false;
+        }
+        if (groupStore == null) {
+            sendFailure(groupId);
+            System.err.println(String.format("Group failure for no group store; Data: %s %d",
+                    header, groupId));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param count number of the IDs expected
+     * @return the IDs, or null (with the failure sent) if malformed
+     */
+    private int[] parseIds(String header, String data, int count) {
+        String[] dataItems = (data == null) ? new String[0] : data.split(" ");
+        if (dataItems.length != count) {
+            sendFailure(0);
+            System.err.println(String.format("Group failure for malformed data; Data: %s %s",
+                    header, data));
+            return null;
+        }
+
+        int[] ids = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                ids[i] = Integer.parseInt(dataItems[i]);
+            }
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            sendFailure(0);
+            return null;
+        }
+        return ids;
+    }
+
+    private void sendFailure(int groupId) {
+        clientConnection.sendRaw(String.format("%s %d",
+                AppConfig.NetworkCommand.GROUP_FAILURE,
+                groupId));
+    }
+}
@@ -0,0 +1,29 @@
+package com.arnobpaul.server;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface is the storage of the groups and their members. Like {@link ClientStore}, the future of a write is
+ * completed only after the write is durable, and a completed write is visible to {@link #getGroupMembers(int)}.
+ */
+public interface GroupStore {
+    /**
+     * @param ownerClientId client ID of the client creating the group, which is its first member
+     * @return the future completed with the new group ID once durable
+     */
+    CompletableFuture<Integer> createGroup(int ownerClientId);
+
+    /**
+     * @return the future completed with true if added, or false if already a member, once durable
+     */
+    CompletableFuture<Boolean> addGroupMember(int groupId, int clientId);
+
+    /**
+     * @return the client IDs of the members in ascending order (never null; empty if the group is not found), which
+     * must not be changed
+     * @throws ClientStoreException if the members could not be read
+     */
+    @NotNull int[] getGroupMembers(int groupId) throws ClientStoreException;
+}
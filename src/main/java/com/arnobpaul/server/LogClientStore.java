@@ -0,0 +1,631 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.collection.IntLongHashMap;
+import com.arnobpaul.common.crypto.PublicKeyCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class stores the clients in an append-only log file instead of a database. Every change appends a record
+ * (i.e., the whole client, or a tombstone of a deleted client), and an in-memory index keeps the offset of the latest
+ * record of every client, so a lookup reads a single record from the memory-mapped file without any query. The file
+ * is only mapped again once the records appended after the mapping grow large, and those are read from the file
+ * meanwhile.
+ * <p>
+ * The writes run on a dedicated thread, and the writes submitted close together are forced to the disk at once (like
+ * {@link WriteBehindJournal}). Once the superseded records take more than half of the file, the live records are
+ * compacted into a new file, which atomically replaces the old one; the lookups continue on the old mapping meanwhile.
+ * Once closed, the writes submitted before are still forced, and the thread stops after them.
+ * <p>
+ * Record format: <code>[length: int][crc32: int][type: byte][client ID: int]</code>, followed by
+ * <code>[name length: short][name][public key length: short][public key]</code> (UTF-8) if not a tombstone.
+ * A torn record at the end of the file (e.g., after a crash) is truncated on opening.
+ */
+public class LogClientStore implements ClientStore, Runnable {
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+
+    private static final int RECORD_HEADER_SIZE = 8; // length and crc32
+    private static final int RECORD_MIN_LENGTH = 5; // type and client ID
+
+    // Maximum size of the records appended after the mapping before mapping the file again
+    private static final long MAX_UNMAPPED_SIZE = 1024 * 1024;
+
+    private static final long NOT_FOUND = -1;
+    // Marks a client deleted in the current batch (not yet in the index)
+    private static final long DELETED = -2;
+
+    private enum WriteType {INSERT, UPDATE, DELETE}
+
+    private static class Write<T> {
+        final WriteType type;
+        final int clientId;
+        final String clientName;
+        final String clientPublicKey;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        T result = null;
+        Exception exception = null;
+
+        Write(WriteType type, int clientId, String clientName, String clientPublicKey) {
+            this.type = type;
+            this.clientId = clientId;
+            this.clientName = clientName;
+            this.clientPublicKey = clientPublicKey;
+        }
+    }
+
+    private final Path logPath;
+    private final Path compactionPath;
+    private final PublicKeyCache publicKeyCache;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final long compactionMinSize;
+
+    // Taken by the writer after all the writes submitted before closing
+    private static final Write<Object> CLOSE = new Write<>(null, 0, null, null);
+
+    private final BlockingQueue<Write<?>> writeQueue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean isClosed = false;
+
+    // The index, the mapping and the file are read under the read lock, and only changed by the writer under the write
+    // lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private IntLongHashMap offsets = new IntLongHashMap(NOT_FOUND);
+    private MappedByteBuffer mappedLog = null;
+    private FileChannel logChannel;
+
+    // Only accessed by the writer thread (after opening)
+    private long logSize = 0;
+    private long garbageSize = 0;
+    private int nextClientId = 1;
+    private final IntLongHashMap batchOffsets = new IntLongHashMap(NOT_FOUND);
+    private final CRC32 crc32 = new CRC32();
+
+    private static final Logger logger = Logger.getLogger(LogClientStore.class.getName());
+
+    /**
+     * @param logPath        path of the log file (created if not found)
+     * @param publicKeyCache cache of the parsed public keys to be invalidated once a public key is changed
+     */
+    public LogClientStore(@NotNull Path logPath, @NotNull PublicKeyCache publicKeyCache) throws ClientStoreException {
+        this(logPath, publicKeyCache,
+                AppConfig.SERVER_DB_JOURNAL_MAX_BATCH_SIZE,
+                AppConfig.SERVER_DB_JOURNAL_MAX_LATENCY,
+                AppConfig.SERVER_LOG_STORE_COMPACTION_MIN_SIZE);
+    }
+
+    /**
+     * @param maxBatchSize      maximum number of the writes forced to the disk at once
+     * @param maxLatency        maximum time in milliseconds a write waits for other writes to join its batch
+     * @param compactionMinSize minimum size in bytes of the superseded records before compacting the log
+     */
+    public LogClientStore(@NotNull Path logPath, @NotNull PublicKeyCache publicKeyCache,
+                          int maxBatchSize, long maxLatency, long compactionMinSize) throws ClientStoreException {
+        this.logPath = logPath;
+        this.compactionPath = logPath.resolveSibling(logPath.getFileName() + ".compact");
+        this.publicKeyCache = publicKeyCache;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+        this.compactionMinSize = compactionMinSize;
+
+        try {
+            Files.deleteIfExists(compactionPath);
+            logChannel = FileChannel.open(logPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+        } catch (IOException e) {
+            throw new ClientStoreException("Could not open the client log.", e);
+        }
+        logger.info(String.format("Client log loaded with %d clients", offsets.size()));
+
+        thread = new Thread(this, "ServerLogStore");
+        thread.start();
+    }
+
+    @Override
+    public CompletableFuture<Integer> insert(@NotNull String clientName, @NotNull String clientPublicKey) {
+        return submit(new Write<>(WriteType.INSERT, 0, clientName, clientPublicKey));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> updateClientPublicKey(int clientId, @NotNull String newClientPublicKey) {
+        return submit(new Write<>(WriteType.UPDATE, clientId, null, newClientPublicKey));
+    }
+
+    @Override
+    public @NotNull ClientEntity getClient(int clientId) throws ClientStoreException {
+        lock.readLock().lock();
+        try {
+            long offset = offsets.get(clientId);
+            if (offset == NOT_FOUND) {
+                throw new ClientStoreException("Could not be fetched.");
+            }
+            if (offset < mappedLog.capacity()) {
+                return readClient(mappedLog, offset);
+            }
+            return readClient(logChannel, offset);
+        } catch (IOException e) {
+            throw new ClientStoreException("Could not be fetched.", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(int clientId) {
+        return submit(new Write<>(WriteType.DELETE, clientId, null, null));
+    }
+
+    /**
+     * @return the number of the stored clients
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return offsets.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method waits for the writes submitted before to be forced, stops the writer, and closes the log file.
+     */
+    @Override
+    synchronized public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        writeQueue.add(CLOSE);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning(e.getMessage());
+        }
+
+        lock.writeLock().lock();
+        try {
+            logChannel.force(false);
+            logChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Write<T> write) {
+        if (isClosed) {
+            return CompletableFuture.failedFuture(new ClientStoreException("The client log is closed."));
+        }
+        writeQueue.add(write);
+        return write.future;
+    }
+
+    @Override
+    public void run() {
+        List<Write<?>> batch = new ArrayList<>(maxBatchSize);
+        boolean isStopped = false;
+        while (!isStopped) {
+            try {
+                Write<?> write = writeQueue.take();
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (write != CLOSE) {
+                    batch.add(write);
+                    if (batch.size() == maxBatchSize) break;
+                    write = writeQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (write == null) break;
+                }
+                isStopped = (write == CLOSE);
+            } catch (InterruptedException e) {
+                logger.warning(e.getMessage());
+                isStopped = true;
+            }
+
+            if (batch.isEmpty()) {
+                continue;
+            }
+            writeBatch(batch);
+            batch.clear();
+
+            if (garbageSize >= compactionMinSize && garbageSize * 2 > logSize) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    logger.severe(e.getMessage());
+                }
+            }
+        }
+
+        // A write submitted while closing is not left waiting
+        Write<?> write;
+        while ((write = writeQueue.poll()) != null) {
+            write.future.completeExceptionally(new ClientStoreException("The client log is closed."));
+        }
+        logger.info("LogClientStore is terminated");
+    }
+
+    private void writeBatch(List<Write<?>> batch) {
+        long batchStartSize = logSize;
+        long batchStartGarbageSize = garbageSize;
+        int batchStartNextClientId = nextClientId;
+
+        IOException writeException = null;
+        try {
+            for (Write<?> write : batch) {
+                append(write);
+            }
+            logChannel.force(false);
+
+            // The records appended after the mapping are read from the file until they grow large
+            MappedByteBuffer newMappedLog = (logSize - mappedLog.capacity() > MAX_UNMAPPED_SIZE)
+                    ? logChannel.map(FileChannel.MapMode.READ_ONLY, 0, logSize)
+                    : mappedLog;
+            lock.writeLock().lock();
+            try {
+                batchOffsets.forEach((clientId, offset) -> {
+                    if (offset == DELETED) {
+                        offsets.remove(clientId);
+                    } else {
+                        offsets.put(clientId, offset);
+                    }
+                });
+                mappedLog = newMappedLog;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            writeException = e;
+
+            // Drops the partially written batch, which is not visible to the lookups
+            logSize = batchStartSize;
+            garbageSize = batchStartGarbageSize;
+            nextClientId = batchStartNextClientId;
+            try {
+                logChannel.truncate(batchStartSize);
+            } catch (IOException truncateException) {
+                truncateException.printStackTrace();
+                logger.severe(truncateException.getMessage());
+            }
+        }
+        batchOffsets.clear();
+
+        for (Write<?> write : batch) {
+            if (writeException != null) {
+                write.future.completeExceptionally(writeException);
+            } else if (write.exception != null) {
+                write.future.completeExceptionally(write.exception);
+            } else {
+                try {
+                    if (write.type != WriteType.INSERT) {
+                        publicKeyCache.invalidate(write.clientId);
+                    }
+                } finally {
+                    completeWrite(write);
+                }
+            }
+        }
+        if (writeException == null) {
+            logger.info(String.format("Forced %d writes", batch.size()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void completeWrite(Write<T> write) {
+        write.future.complete(write.result);
+    }
+
+    /**
+     * This method appends the record of the write (not forced), and keeps its offset in the batch.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void append(Write<T> write) throws IOException {
+        long previousOffset = (write.type == WriteType.INSERT) ? NOT_FOUND : findOffset(write.clientId);
+
+        ByteBuffer record;
+        if (write.type == WriteType.DELETE) {
+            if (previousOffset == NOT_FOUND) {
+                write.result = (T) Boolean.FALSE;
+                return;
+            }
+            record = encodeRecord(RECORD_DELETE, write.clientId, null, null);
+            write.result = (T) Boolean.TRUE;
+        } else if (write.type == WriteType.INSERT) {
+            try {
+                record = encodeRecord(RECORD_PUT, nextClientId, write.clientName, write.clientPublicKey);
+            } catch (IllegalArgumentException e) {
+                write.exception = e;
+                return;
+            }
+            write.result = (T) Integer.valueOf(nextClientId++);
+        } else {
+            if (previousOffset == NOT_FOUND) {
+                write.exception = new ClientStoreException("Update failed.");
+                return;
+            }
+            try {
+                ClientEntity client = readClient(logChannel, previousOffset);
+                record = encodeRecord(RECORD_PUT, write.clientId, client.clientName, write.clientPublicKey);
+            } catch (IllegalArgumentException e) {
+                write.exception = e;
+                return;
+            }
+            write.result = (T) Boolean.TRUE;
+        }
+
+        long offset = logSize;
+        int recordSize = record.remaining();
+        while (record.hasRemaining()) {
+            logChannel.write(record, logSize + (recordSize - record.remaining()));
+        }
+        logSize += recordSize;
+
+        int clientId = (write.type == WriteType.INSERT) ? (Integer) write.result : write.clientId;
+        if (previousOffset != NOT_FOUND) {
+            garbageSize += readRecordSize(previousOffset);
+        }
+        if (write.type == WriteType.DELETE) {
+            // A tombstone is only needed until the next compaction
+            garbageSize += recordSize;
+            batchOffsets.put(clientId, DELETED);
+        } else {
+            batchOffsets.put(clientId, offset);
+        }
+    }
+
+    /**
+     * @return the offset of the latest record of the client including the current batch, or NOT_FOUND if not found
+     */
+    private long findOffset(int clientId) {
+        long offset = batchOffsets.get(clientId);
+        if (offset == DELETED) {
+            return NOT_FOUND;
+        } else if (offset != NOT_FOUND) {
+            return offset;
+        }
+        // The index is only changed by this thread
+        return offsets.get(clientId);
+    }
+
+    /**
+     * This method rewrites the live records into a new file, and replaces the log with it.
+     */
+    private void compact() throws IOException {
+        long startTime = System.currentTimeMillis();
+        long oldLogSize = logSize;
+
+        IntLongHashMap newOffsets = new IntLongHashMap(offsets.size(), NOT_FOUND);
+        long[] newLogSize = {0};
+        FileChannel newLogChannel = FileChannel.open(compactionPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            IOException[] copyException = {null};
+            offsets.forEach((clientId, offset) -> {
+                if (copyException[0] != null) return;
+                try {
+                    int recordSize = readRecordSize(offset);
+                    if (buffer.remaining() < recordSize) {
+                        writeFully(newLogChannel, buffer, newLogSize[0] - buffer.position());
+                    }
+                    newOffsets.put(clientId, newLogSize[0]);
+                    ByteBuffer record;
+                    if (offset < mappedLog.capacity()) {
+                        record = mappedLog.slice((int) offset, recordSize);
+                    } else {
+                        record = ByteBuffer.allocate(recordSize);
+                        readFully(logChannel, record, offset);
+                        record.flip();
+                    }
+                    if (recordSize > buffer.capacity()) {
+                        writeFully(newLogChannel, record, newLogSize[0]);
+                    } else {
+                        buffer.put(record);
+                    }
+                    newLogSize[0] += recordSize;
+                } catch (IOException e) {
+                    copyException[0] = e;
+                }
+            });
+            if (copyException[0] != null) {
+                throw copyException[0];
+            }
+            writeFully(newLogChannel, buffer, newLogSize[0] - buffer.position());
+            newLogChannel.force(false);
+
+            Files.move(compactionPath, logPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            newLogChannel.close();
+            Files.deleteIfExists(compactionPath);
+            throw e;
+        }
+
+        MappedByteBuffer newMappedLog = newLogChannel.map(FileChannel.MapMode.READ_ONLY, 0, newLogSize[0]);
+        FileChannel oldLogChannel = logChannel;
+        lock.writeLock().lock();
+        try {
+            offsets = newOffsets;
+            mappedLog = newMappedLog;
+            logChannel = newLogChannel;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        oldLogChannel.close();
+        logSize = newLogSize[0];
+        garbageSize = 0;
+
+        logger.info(String.format("Client log compacted from %d to %d bytes in %d ms",
+                oldLogSize, logSize, System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * This method writes the flipped buffer at the position, and clears the buffer.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * This method loads the index from the log, and truncates a torn record at the end.
+     */
+    private void recover() throws IOException {
+        long fileSize = logChannel.size();
+        MappedByteBuffer mapped = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= fileSize) {
+            int length = mapped.getInt((int) offset);
+            int crc = mapped.getInt((int) offset + 4);
+            long end = offset + RECORD_HEADER_SIZE + length;
+            if (length < RECORD_MIN_LENGTH || end > fileSize) break;
+
+            crc32.reset();
+            crc32.update(mapped.slice((int) offset + RECORD_HEADER_SIZE, length));
+            if ((int) crc32.getValue() != crc) break;
+
+            byte type = mapped.get((int) offset + RECORD_HEADER_SIZE);
+            int clientId = mapped.getInt((int) offset + RECORD_HEADER_SIZE + 1);
+            long previousOffset = (type == RECORD_DELETE) ? offsets.remove(clientId) : offsets.put(clientId, offset);
+            if (previousOffset != NOT_FOUND) {
+                garbageSize += RECORD_HEADER_SIZE + mapped.getInt((int) previousOffset);
+            }
+            if (type == RECORD_DELETE) {
+                garbageSize += end - offset;
+            }
+            offset = end;
+        }
+
+        if (offset < fileSize) {
+            logger.warning(String.format("Truncated a torn record of the client log at %d of %d bytes",
+                    offset, fileSize));
+            logChannel.truncate(offset);
+            logChannel.force(false);
+            mapped = logChannel.map(FileChannel.MapMode.READ_ONLY, 0, offset);
+        }
+
+        logSize = offset;
+        mappedLog = mapped;
+        // Like the SQLite row IDs, a new client ID is one more than the largest one
+        int[] maxClientId = {0};
+        offsets.forEach((clientId, clientOffset) -> maxClientId[0] = Math.max(maxClientId[0], clientId));
+        nextClientId = maxClientId[0] + 1;
+    }
+
+    private int readRecordSize(long offset) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(logChannel, lengthBuffer, offset);
+        return RECORD_HEADER_SIZE + lengthBuffer.getInt(0);
+    }
+
+    /**
+     * This method reads a record from the file (e.g., appended after the mapping).
+     */
+    private static ClientEntity readClient(FileChannel channel, long offset) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(channel, lengthBuffer, offset);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + lengthBuffer.getInt(0));
+        readFully(channel, record, offset);
+        return readClient(record, 0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the client log.");
+            }
+        }
+    }
+
+    /**
+     * This method decodes a record with the absolute methods only, so concurrent lookups share the buffer.
+     */
+    private static ClientEntity readClient(ByteBuffer buffer, long offset) {
+        int position = (int) offset + RECORD_HEADER_SIZE;
+        int clientId = buffer.getInt(position + 1);
+        position += RECORD_MIN_LENGTH;
+
+        int clientNameLength = Short.toUnsignedInt(buffer.getShort(position));
+        position += 2;
+        byte[] clientName = new byte[clientNameLength];
+        buffer.get(position, clientName);
+        position += clientNameLength;
+
+        int clientPublicKeyLength = Short.toUnsignedInt(buffer.getShort(position));
+        position += 2;
+        byte[] clientPublicKey = new byte[clientPublicKeyLength];
+        buffer.get(position, clientPublicKey);
+
+        return new ClientEntity(clientId,
+                new String(clientName, StandardCharsets.UTF_8),
+                new String(clientPublicKey, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the record ready to be written
+     * @throws IllegalArgumentException if the name or the public key is too long
+     */
+    private ByteBuffer encodeRecord(byte type, int clientId, String clientName, String clientPublicKey) {
+        byte[] clientNameBytes = (clientName != null) ? clientName.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] clientPublicKeyBytes = (clientPublicKey != null) ? clientPublicKey.getBytes(StandardCharsets.UTF_8) : null;
+
+        int length = RECORD_MIN_LENGTH;
+        if (type == RECORD_PUT) {
+            if (clientNameBytes.length > 0xFFFF || clientPublicKeyBytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Client name or public key is too long.");
+            }
+            length += 2 + clientNameBytes.length + 2 + clientPublicKeyBytes.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        record.put(type);
+        record.putInt(clientId);
+        if (type == RECORD_PUT) {
+            record.putShort((short) clientNameBytes.length);
+            record.put(clientNameBytes);
+            record.putShort((short) clientPublicKeyBytes.length);
+            record.put(clientPublicKeyBytes);
+        }
+
+        crc32.reset();
+        crc32.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc32.getValue());
+        record.flip();
+        return record;
+    }
+}
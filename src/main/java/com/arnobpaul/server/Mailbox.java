@@ -0,0 +1,658 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.collection.IntObjectHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps the data sent to an offline client (i.e., not logged in) until the client logs in. The data is
+ * opaque (end-to-end encrypted anyway) and appended to segment files, and an in-memory index keeps the waiting
+ * messages of every client in the order received, so they are sent to the client right after its login, many frames
+ * in a single write. A message is sent once, and dropped without being sent after the given time to live.
+ * <p>
+ * The appends and the deliveries run on a dedicated thread in the order submitted, and the appends submitted close
+ * together are forced to the disk at once (like {@link LogClientStore}). A new segment is started once the last one
+ * is full, and the oldest segments are deleted once none of their messages is waiting. Once closed, the tasks
+ * submitted before are still run, and the thread stops after them.
+ * <p>
+ * Record format: <code>[length: int][crc32: int][type: byte][recipient client ID: int][message ID: long]</code>,
+ * followed by <code>[sender client ID: int][timestamp: long][data]</code> for a message. A delivery record marks
+ * the messages of the recipient up to the message ID as sent. A torn record at the end of the last segment (e.g.,
+ * after a crash) is truncated on opening.
+ */
+public class Mailbox implements Runnable {
+    /**
+     * This interface is a connected client the waiting messages are sent to (i.e., {@link ClientConnection}).
+     */
+    public interface Recipient {
+        /**
+         * @return true if the client is logged in, otherwise false
+         */
+        boolean isLoginDone();
+
+        /**
+         * @param clientIds client IDs of the senders
+         * @param data      opaque data of the messages, in the same order
+         * @param count     number of the messages
+         * @return true if the messages are accepted for sending, otherwise false (i.e., none of them)
+         */
+        boolean sendDataBatch(int[] clientIds, ByteBuffer[] data, int count);
+    }
+
+    private static final byte RECORD_MESSAGE = 1;
+    private static final byte RECORD_DELIVERED = 2;
+
+    private static final int RECORD_HEADER_SIZE = 8; // length and crc32
+    private static final int RECORD_MIN_LENGTH = 13; // type, recipient client ID and message ID
+    private static final int MESSAGE_FIELDS_SIZE = 12; // sender client ID and timestamp
+
+    private static final String SEGMENT_FILE_PREFIX = "mailbox-";
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+    // Time between the checks of the expired messages while idle
+    private static final long EXPIRY_CHECK_INTERVAL = 60000;
+
+    private static class Segment {
+        final long number;
+        final Path path;
+        final FileChannel channel;
+        long size = 0;
+        int waitingCount = 0;
+        boolean isForced = true;
+
+        Segment(long number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static class Message {
+        final long messageId;
+        final int recipientClientId;
+        final int senderClientId;
+        final long timestamp;
+        final Segment segment;
+        final long dataOffset;
+        final int dataLength;
+        boolean isDone = false;
+
+        Message(long messageId, int recipientClientId, int senderClientId, long timestamp,
+                Segment segment, long dataOffset, int dataLength) {
+            this.messageId = messageId;
+            this.recipientClientId = recipientClientId;
+            this.senderClientId = senderClientId;
+            this.timestamp = timestamp;
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+    }
+
+    private static class Task {
+        final int recipientClientId;
+        final int senderClientId;
+        // An append if the data is not null, otherwise a delivery
+        final byte[] data;
+        final Recipient recipient;
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        Task(int recipientClientId, int senderClientId, byte[] data, Recipient recipient) {
+            this.recipientClientId = recipientClientId;
+            this.senderClientId = senderClientId;
+            this.data = data;
+            this.recipient = recipient;
+        }
+    }
+
+    private final Path directory;
+    private final IntFunction<? extends Recipient> recipientLookup;
+    private final int maxMessageCount;
+    private final long ttl;
+    private final long segmentSize;
+    private final int deliveryBatchSize;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+
+    // Taken by the writer after all the tasks submitted before closing
+    private static final Task CLOSE = new Task(0, 0, null, null);
+
+    private final BlockingQueue<Task> taskQueue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean isClosed = false;
+
+    // Only accessed by the writer thread (after opening)
+    private final IntObjectHashMap<ArrayDeque<Message>> waitingMessages = new IntObjectHashMap<>();
+    // Every message not yet expired in the order received (including the sent ones, dropped on the next check)
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextMessageId = 1;
+    private final CRC32 crc32 = new CRC32();
+
+    private volatile int waitingCount = 0;
+
+    private static final Logger logger = Logger.getLogger(Mailbox.class.getName());
+
+    /**
+     * @param directory       directory of the segment files (created if not found)
+     * @param recipientLookup finds the connection of a client, or null if not connected (e.g., by {@link Router})
+     */
+    public Mailbox(@NotNull Path directory, @NotNull IntFunction<? extends Recipient> recipientLookup) throws IOException {
+        this(directory, recipientLookup,
+                AppConfig.SERVER_MAILBOX_MAX_MESSAGE_COUNT,
+                AppConfig.SERVER_MAILBOX_TTL,
+                AppConfig.SERVER_MAILBOX_SEGMENT_SIZE,
+                AppConfig.SERVER_MAILBOX_DELIVERY_BATCH_SIZE,
+                AppConfig.SERVER_DB_JOURNAL_MAX_BATCH_SIZE,
+                AppConfig.SERVER_DB_JOURNAL_MAX_LATENCY);
+    }
+
+    /**
+     * @param maxMessageCount   maximum number of the waiting messages of a client
+     * @param ttl               time in milliseconds a message waits for its recipient
+     * @param segmentSize       size in bytes of a segment file before starting a new one
+     * @param deliveryBatchSize maximum number of the messages sent to a client in a single write
+     * @param maxBatchSize      maximum number of the appends forced to the disk at once
+     * @param maxLatency        maximum time in milliseconds an append waits for other appends to join its batch
+     */
+    public Mailbox(@NotNull Path directory, @NotNull IntFunction<? extends Recipient> recipientLookup,
+                   int maxMessageCount, long ttl, long segmentSize, int deliveryBatchSize,
+                   int maxBatchSize, long maxLatency) throws IOException {
+        this.directory = directory;
+        this.recipientLookup = recipientLookup;
+        this.maxMessageCount = maxMessageCount;
+        this.ttl = ttl;
+        this.segmentSize = segmentSize;
+        this.deliveryBatchSize = deliveryBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+
+        Files.createDirectories(directory);
+        recover();
+        logger.info(String.format("Mailbox loaded with %d waiting messages in %d segments",
+                waitingCount, segments.size()));
+
+        thread = new Thread(this, "ServerMailbox");
+        thread.start();
+    }
+
+    /**
+     * @param recipientClientId client ID of the offline client
+     * @param senderClientId    client ID of the sender
+     * @param data              opaque data (copied before returning)
+     * @return future of true once the message is stored, or false if the recipient has too many waiting messages
+     */
+    public CompletableFuture<Boolean> append(int recipientClientId, int senderClientId, @NotNull ByteBuffer data) {
+        byte[] dataBytes = new byte[data.remaining()];
+        data.duplicate().get(dataBytes);
+        return submit(new Task(recipientClientId, senderClientId, dataBytes, null))
+                .thenApply(Boolean.class::cast);
+    }
+
+    /**
+     * This method sends the waiting messages of a client just logged in.
+     *
+     * @return future of the number of the sent messages
+     */
+    public CompletableFuture<Integer> deliver(int recipientClientId, @NotNull Recipient recipient) {
+        return submit(new Task(recipientClientId, 0, null, recipient))
+                .thenApply(Integer.class::cast);
+    }
+
+    /**
+     * @return the number of the waiting messages of all the clients
+     */
+    public int getWaitingCount() {
+        return waitingCount;
+    }
+
+    /**
+     * This method waits for the tasks submitted before, stops the writer, and closes the segment files.
+     */
+    synchronized public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        taskQueue.add(CLOSE);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning(e.getMessage());
+            return;
+        }
+
+        // The writer is stopped, so the segments are not accessed meanwhile
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+            }
+        }
+    }
+
+    private CompletableFuture<Object> submit(Task task) {
+        if (isClosed) {
+            return CompletableFuture.failedFuture(new IOException("The mailbox is closed."));
+        }
+        taskQueue.add(task);
+        return task.future;
+    }
+
+    @Override
+    public void run() {
+        List<Task> batch = new ArrayList<>(maxBatchSize);
+        boolean isStopped = false;
+        while (!isStopped) {
+            try {
+                Task task = taskQueue.poll(Math.min(ttl, EXPIRY_CHECK_INTERVAL), TimeUnit.MILLISECONDS);
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (task != null && task != CLOSE) {
+                    batch.add(task);
+                    if (batch.size() == maxBatchSize) break;
+                    task = taskQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                isStopped = (task == CLOSE);
+            } catch (InterruptedException e) {
+                logger.warning(e.getMessage());
+                isStopped = true;
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    runBatch(batch);
+                } else {
+                    cleanUp();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+                for (Task task : batch) {
+                    task.future.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+
+        // A task submitted while closing is not left waiting
+        Task task;
+        while ((task = taskQueue.poll()) != null) {
+            task.future.completeExceptionally(new IOException("The mailbox is closed."));
+        }
+        logger.info("Mailbox is terminated");
+    }
+
+    private void runBatch(List<Task> batch) throws IOException {
+        // Recipients to send the messages to, once the appends are forced (i.e., a recipient logged in meanwhile too)
+        Map<Integer, Recipient> recipients = new LinkedHashMap<>();
+        boolean isAppended = false;
+        for (Task task : batch) {
+            if (task.data != null) {
+                boolean isStored = appendMessage(task);
+                isAppended |= isStored;
+                if (isStored) {
+                    Recipient recipient = recipientLookup.apply(task.recipientClientId);
+                    if (recipient != null && recipient.isLoginDone()) {
+                        recipients.putIfAbsent(task.recipientClientId, recipient);
+                    }
+                }
+            } else {
+                recipients.put(task.recipientClientId, task.recipient);
+            }
+        }
+        if (isAppended) {
+            forceSegments();
+            logger.info(String.format("Forced %d mailbox tasks", batch.size()));
+        }
+
+        Map<Integer, Integer> sentCounts = new HashMap<>();
+        for (Map.Entry<Integer, Recipient> entry : recipients.entrySet()) {
+            sentCounts.put(entry.getKey(), deliverMessages(entry.getKey(), entry.getValue()));
+        }
+        if (!sentCounts.isEmpty()) {
+            // The delivery records are forced too, so a sent message is not sent again after a restart
+            forceSegments();
+        }
+        cleanUp();
+
+        // An append already completed (i.e., rejected) is not changed
+        for (Task task : batch) {
+            if (task.data != null) {
+                task.future.complete(Boolean.TRUE);
+            } else {
+                task.future.complete(sentCounts.getOrDefault(task.recipientClientId, 0));
+            }
+        }
+    }
+
+    /**
+     * @return true if the message is appended (not forced), or false (with the future completed) if the recipient
+     * has too many waiting messages
+     */
+    private boolean appendMessage(Task task) throws IOException {
+        ArrayDeque<Message> queue = waitingMessages.get(task.recipientClientId);
+        if (queue != null && queue.size() >= maxMessageCount) {
+            task.future.complete(Boolean.FALSE);
+            return false;
+        }
+
+        long timestamp = System.currentTimeMillis();
+        long messageId = nextMessageId++;
+        ByteBuffer record = encodeRecord(RECORD_MESSAGE, task.recipientClientId, messageId,
+                task.senderClientId, timestamp, task.data);
+        Segment segment = appendRecord(record);
+        long dataOffset = segment.size - task.data.length;
+
+        Message message = new Message(messageId, task.recipientClientId, task.senderClientId, timestamp,
+                segment, dataOffset, task.data.length);
+        addMessage(message);
+        return true;
+    }
+
+    /**
+     * @return the number of the sent messages
+     */
+    private int deliverMessages(int recipientClientId, Recipient recipient) throws IOException {
+        ArrayDeque<Message> queue = waitingMessages.get(recipientClientId);
+        if (queue == null) {
+            return 0;
+        }
+
+        int[] senderClientIds = new int[deliveryBatchSize];
+        ByteBuffer[] data = new ByteBuffer[deliveryBatchSize];
+        List<Message> sentMessages = new ArrayList<>(deliveryBatchSize);
+        long expiryTime = System.currentTimeMillis() - ttl;
+        long lastMessageId = 0;
+        int sentCount = 0;
+        while (!queue.isEmpty()) {
+            sentMessages.clear();
+            for (Message message : queue) {
+                if (sentMessages.size() == deliveryBatchSize) break;
+                if (message.timestamp < expiryTime) continue;
+
+                ByteBuffer messageData = ByteBuffer.allocate(message.dataLength);
+                readFully(message.segment.channel, messageData, message.dataOffset);
+                messageData.flip();
+                senderClientIds[sentMessages.size()] = message.senderClientId;
+                data[sentMessages.size()] = messageData;
+                sentMessages.add(message);
+            }
+            if (!sentMessages.isEmpty()
+                    && !recipient.sendDataBatch(senderClientIds, data, sentMessages.size())) {
+                // The rest waits for the next login
+                break;
+            }
+
+            // The expired messages before the last sent one are dropped along with the sent ones
+            Message lastSentMessage = sentMessages.isEmpty() ? queue.getLast() : sentMessages.get(sentMessages.size() - 1);
+            Message message;
+            do {
+                message = queue.pollFirst();
+                markDone(message);
+            } while (message != lastSentMessage);
+            lastMessageId = lastSentMessage.messageId;
+            sentCount += sentMessages.size();
+        }
+        if (queue.isEmpty()) {
+            waitingMessages.remove(recipientClientId);
+        }
+
+        if (lastMessageId != 0) {
+            // Not forced yet; see runBatch()
+            appendRecord(encodeRecord(RECORD_DELIVERED, recipientClientId, lastMessageId, 0, 0, null));
+        }
+        if (sentCount > 0) {
+            System.out.println(String.format("Queued data passing: To Client_ID %d; %d messages",
+                    recipientClientId,
+                    sentCount));
+        }
+        return sentCount;
+    }
+
+    private void addMessage(Message message) {
+        ArrayDeque<Message> queue = waitingMessages.get(message.recipientClientId);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            waitingMessages.put(message.recipientClientId, queue);
+        }
+        queue.addLast(message);
+        messages.addLast(message);
+        message.segment.waitingCount++;
+    }
+
+    private void markDone(Message message) {
+        message.isDone = true;
+        message.segment.waitingCount--;
+    }
+
+    /**
+     * This method drops the expired messages, and forgets the sent ones, in the order received.
+     */
+    private void dropExpiredMessages() {
+        long expiryTime = System.currentTimeMillis() - ttl;
+        while (!messages.isEmpty() && (messages.peekFirst().isDone || messages.peekFirst().timestamp < expiryTime)) {
+            Message message = messages.pollFirst();
+            if (message.isDone) continue;
+
+            ArrayDeque<Message> queue = waitingMessages.get(message.recipientClientId);
+            // The oldest waiting message of the recipient is the oldest one received
+            queue.remove(message);
+            if (queue.isEmpty()) {
+                waitingMessages.remove(message.recipientClientId);
+            }
+            markDone(message);
+            logger.info(String.format("Expired a message to Client_ID %d",
+                    message.recipientClientId));
+        }
+    }
+
+    /**
+     * This method drops the expired messages and deletes the old segments, before a batch is completed.
+     */
+    private void cleanUp() throws IOException {
+        dropExpiredMessages();
+        deleteOldSegments();
+        waitingCount = countWaitingMessages();
+    }
+
+    private int countWaitingMessages() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.waitingCount;
+        }
+        return count;
+    }
+
+    /**
+     * This method deletes the oldest segments without any waiting message. Only the oldest ones are deleted, so a
+     * delivery record is never lost while a message it marks is still in a segment.
+     */
+    private void deleteOldSegments() throws IOException {
+        while (segments.size() > 1 && segments.peekFirst().waitingCount == 0) {
+            Segment segment = segments.pollFirst();
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            logger.info(String.format("Deleted the mailbox segment %d", segment.number));
+        }
+    }
+
+    /**
+     * @return the segment the record is appended to (not forced)
+     */
+    private Segment appendRecord(ByteBuffer record) throws IOException {
+        Segment segment = segments.getLast();
+        if (segment.size >= segmentSize) {
+            segment = openSegment(segment.number + 1);
+            segments.addLast(segment);
+        }
+        int recordSize = record.remaining();
+        while (record.hasRemaining()) {
+            segment.channel.write(record, segment.size + (recordSize - record.remaining()));
+        }
+        segment.size += recordSize;
+        segment.isForced = false;
+        return segment;
+    }
+
+    private void forceSegments() throws IOException {
+        for (Segment segment : segments) {
+            if (!segment.isForced) {
+                segment.channel.force(false);
+                segment.isForced = true;
+            }
+        }
+    }
+
+    private Segment openSegment(long number) throws IOException {
+        Path path = directory.resolve(SEGMENT_FILE_PREFIX + number + SEGMENT_FILE_SUFFIX);
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(number, path, channel);
+    }
+
+    /**
+     * This method loads the waiting messages from the segments, and truncates a torn record at the end.
+     */
+    private void recover() throws IOException {
+        List<Long> segmentNumbers = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.forEach(path -> {
+                String fileName = path.getFileName().toString();
+                if (fileName.startsWith(SEGMENT_FILE_PREFIX) && fileName.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    try {
+                        segmentNumbers.add(Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(),
+                                fileName.length() - SEGMENT_FILE_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        logger.warning(String.format("Ignored the file in the mailbox: %s", fileName));
+                    }
+                }
+            });
+        }
+        segmentNumbers.sort(null);
+
+        for (int i = 0; i < segmentNumbers.size(); i++) {
+            Segment segment = openSegment(segmentNumbers.get(i));
+            segments.addLast(segment);
+            recoverSegment(segment, i == segmentNumbers.size() - 1);
+        }
+        if (segments.isEmpty()) {
+            segments.addLast(openSegment(1));
+        }
+        cleanUp();
+    }
+
+    private void recoverSegment(Segment segment, boolean isLastSegment) throws IOException {
+        long fileSize = segment.channel.size();
+        MappedByteBuffer mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+
+        long offset = 0;
+        while (offset + RECORD_HEADER_SIZE <= fileSize) {
+            int length = mapped.getInt((int) offset);
+            int crc = mapped.getInt((int) offset + 4);
+            long end = offset + RECORD_HEADER_SIZE + length;
+            if (length < RECORD_MIN_LENGTH || end > fileSize) break;
+
+            crc32.reset();
+            crc32.update(mapped.slice((int) offset + RECORD_HEADER_SIZE, length));
+            if ((int) crc32.getValue() != crc) break;
+
+            int position = (int) offset + RECORD_HEADER_SIZE;
+            byte type = mapped.get(position);
+            int recipientClientId = mapped.getInt(position + 1);
+            long messageId = mapped.getLong(position + 5);
+            nextMessageId = Math.max(nextMessageId, messageId + 1);
+            if (type == RECORD_MESSAGE && length >= RECORD_MIN_LENGTH + MESSAGE_FIELDS_SIZE) {
+                int senderClientId = mapped.getInt(position + RECORD_MIN_LENGTH);
+                long timestamp = mapped.getLong(position + RECORD_MIN_LENGTH + 4);
+                int dataLength = length - RECORD_MIN_LENGTH - MESSAGE_FIELDS_SIZE;
+                addMessage(new Message(messageId, recipientClientId, senderClientId, timestamp,
+                        segment, end - dataLength, dataLength));
+            } else if (type == RECORD_DELIVERED) {
+                ArrayDeque<Message> queue = waitingMessages.get(recipientClientId);
+                while (queue != null && !queue.isEmpty() && queue.peekFirst().messageId <= messageId) {
+                    markDone(queue.pollFirst());
+                }
+                if (queue != null && queue.isEmpty()) {
+                    waitingMessages.remove(recipientClientId);
+                }
+            }
+            offset = end;
+        }
+
+        if (offset < fileSize) {
+            if (isLastSegment) {
+                logger.warning(String.format("Truncated a torn record of the mailbox segment %d at %d of %d bytes",
+                        segment.number, offset, fileSize));
+                segment.channel.truncate(offset);
+                segment.channel.force(false);
+            } else {
+                logger.warning(String.format("Ignored a corrupted record of the mailbox segment %d at %d of %d bytes",
+                        segment.number, offset, fileSize));
+            }
+        }
+        segment.size = isLastSegment ? offset : fileSize;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the mailbox segment.");
+            }
+        }
+    }
+
+    /**
+     * @return the record ready to be written
+     */
+    private ByteBuffer encodeRecord(byte type, int recipientClientId, long messageId,
+                                    int senderClientId, long timestamp, byte[] data) {
+        int length = RECORD_MIN_LENGTH;
+        if (type == RECORD_MESSAGE) {
+            length += MESSAGE_FIELDS_SIZE + data.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.position(RECORD_HEADER_SIZE);
+        record.put(type);
+        record.putInt(recipientClientId);
+        record.putLong(messageId);
+        if (type == RECORD_MESSAGE) {
+            record.putInt(senderClientId);
+            record.putLong(timestamp);
+            record.put(data);
+        }
+
+        crc32.reset();
+        crc32.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc32.getValue());
+        record.flip();
+        return record;
+    }
+}
@@ -0,0 +1,436 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.AppConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * This class serves all the connected clients with a small set of non-blocking event loops
+ * (instead of a thread per client). Every event loop owns a {@link Selector} and only reads and writes.
+ * The received frames are processed by the same per-client services used by {@link ServerTask.PerClientRunnable}
+ * on a shared pool of handler threads, as a handler may block (e.g., reading the client store or verifying an RSA
+ * signature), so a slow client never stalls the other clients of its event loop. The frames of a client are still
+ * processed one after another in the order received.
+ * So an idle client only costs its {@link NioClientConnection} object (a few hundred bytes) instead of a thread.
+ */
+public class NioServerEngine implements Runnable {
+    private static final int EVENT_LOOP_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_GATHERING_WRITE = 64;
+    // The handlers mostly wait for the client store, so there are more of them than the processors
+    private static final int HANDLER_THREAD_COUNT = 4 * Runtime.getRuntime().availableProcessors();
+    // Reading a client stops while this many of its frames are waiting for a handler thread
+    private static final int MAX_QUEUED_FRAME_COUNT = 256;
+
+    private final ServerTask serverTask;
+
+    private final EventLoop[] eventLoops;
+    private int nextEventLoopIndex = 0;
+
+    private final ExecutorService handlerExecutorService;
+
+    private ServerSocketChannel serverSocketChannel = null;
+
+    private static final Logger logger = Logger.getLogger(NioServerEngine.class.getName());
+
+    public NioServerEngine(@NotNull ServerTask serverTask) {
+        this.serverTask = serverTask;
+        this.eventLoops = new EventLoop[EVENT_LOOP_COUNT];
+        this.handlerExecutorService = Executors.newFixedThreadPool(HANDLER_THREAD_COUNT, new ThreadFactory() {
+            private int threadCount = 0;
+
+            @Override
+            synchronized public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "ServerHandler-" + (threadCount++));
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        if (serverTask.isClusterMode()) {
+            // The nodes of the cluster share the port, and the connections are spread over them
+            serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocketChannel.bind(new InetSocketAddress(AppConfig.SERVER_PORT));
+
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            new Thread(eventLoops[i], "ServerEventLoop-" + i).start();
+        }
+
+        new Thread(this, "ServerLoop").start();
+    }
+
+    public void stop() {
+        try {
+            serverSocketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        handlerExecutorService.shutdown();
+    }
+
+    /**
+     * This is the accept loop. The accepted channels are distributed over the event loops in round-robin manner.
+     */
+    @Override
+    public void run() {
+        while (serverTask.isRunning()) {
+            try {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                socketChannel.configureBlocking(false);
+
+                EventLoop eventLoop = eventLoops[nextEventLoopIndex];
+                nextEventLoopIndex = (nextEventLoopIndex + 1) % eventLoops.length;
+
+                eventLoop.register(new NioClientConnection(socketChannel, eventLoop, handlerExecutorService, serverTask));
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+            }
+        }
+
+        logger.info("NioServerEngine is terminated");
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+
+        // The read buffer is shared by all the connections of this event loop because a connection only needs
+        // its own buffer for an incomplete line.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(NioClientConnection nioClientConnection) {
+            execute(() -> {
+                try {
+                    nioClientConnection.selectionKey = nioClientConnection.socketChannel.register(
+                            selector, SelectionKey.OP_READ, nioClientConnection);
+                } catch (ClosedChannelException e) {
+                    nioClientConnection.close();
+                }
+            });
+        }
+
+        /**
+         * @param task task to be run on this event loop thread
+         */
+        void execute(Runnable task) {
+            taskQueue.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (serverTask.isRunning()) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    logger.severe(e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = taskQueue.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> selectionKeyIterator = selector.selectedKeys().iterator();
+                while (selectionKeyIterator.hasNext()) {
+                    SelectionKey selectionKey = selectionKeyIterator.next();
+                    selectionKeyIterator.remove();
+
+                    NioClientConnection nioClientConnection = (NioClientConnection) selectionKey.attachment();
+                    if (selectionKey.isValid() && selectionKey.isWritable()) {
+                        nioClientConnection.flushWrites();
+                    }
+                    if (selectionKey.isValid() && selectionKey.isReadable()) {
+                        nioClientConnection.handleRead(readBuffer);
+                    }
+                }
+            }
+
+            try {
+                for (SelectionKey selectionKey : selector.keys()) {
+                    ((NioClientConnection) selectionKey.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+            }
+            logger.info("EventLoop is terminated");
+        }
+    }
+
+    public static class NioClientConnection extends ClientConnection {
+        private final SocketChannel socketChannel;
+        private final EventLoop eventLoop;
+        private final Executor handlerExecutor;
+        private final String remoteAddress;
+
+        private SelectionKey selectionKey = null;
+        private volatile boolean isClosed = false;
+
+        // Received frames waiting for a handler thread, processed by at most one handler thread at a time
+        private final Queue<ByteBuffer> frameQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedFrameCount = new AtomicInteger(0);
+        private final AtomicBoolean isProcessScheduled = new AtomicBoolean(false);
+        // Only accessed from the event loop thread
+        private boolean isReadPaused = false;
+
+        // Only accessed from the event loop thread
+        private final ArrayDeque<ByteBuffer[]> pendingWrites = new ArrayDeque<>();
+        private final ByteBuffer[] gatheringBuffers = new ByteBuffer[MAX_GATHERING_WRITE];
+
+        // Accessed from any thread
+        private final Queue<ByteBuffer[]> writeQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingWriteCount = new AtomicInteger(0);
+        private final AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+
+        private NioClientConnection(SocketChannel socketChannel, EventLoop eventLoop, Executor handlerExecutor,
+                                    ServerTask serverTask) throws IOException {
+            super(serverTask);
+
+            this.socketChannel = socketChannel;
+            this.eventLoop = eventLoop;
+            this.handlerExecutor = handlerExecutor;
+
+            InetSocketAddress inetSocketAddress = (InetSocketAddress) socketChannel.getRemoteAddress();
+            this.remoteAddress = inetSocketAddress.getAddress().getHostAddress() + ":" + inetSocketAddress.getPort();
+
+            logger.info(String.format("Server connected to %s",
+                    remoteAddress));
+        }
+
+        private void handleRead(ByteBuffer readBuffer) {
+            while (true) {
+                readBuffer.clear();
+                int readCount;
+                try {
+                    readCount = socketChannel.read(readBuffer);
+                } catch (IOException e) {
+                    logger.warning(e.getMessage());
+                    close();
+                    return;
+                }
+                if (readCount < 0) {
+                    close();
+                    return;
+                }
+                if (readCount == 0) {
+                    return;
+                }
+
+                readBuffer.flip();
+                try {
+                    getFrameDecoder().feed(readBuffer);
+                } catch (ProtocolException e) {
+                    logger.warning(String.format("%s from %s", e.getMessage(), remoteAddress));
+                    close();
+                    return;
+                }
+                if (isClosed) return;
+
+                if (queuedFrameCount.get() >= MAX_QUEUED_FRAME_COUNT) {
+                    // The frames are not processed as fast as received; the rest stays in the socket buffer
+                    isReadPaused = true;
+                    selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                if (readCount < readBuffer.capacity()) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * This method queues the frame to be processed by a handler thread, as a handler may block.
+         * It is called from the event loop thread.
+         */
+        @Override
+        protected void onFrame(ByteBuffer frame) {
+            frameQueue.add(frame);
+            queuedFrameCount.incrementAndGet();
+            if (isProcessScheduled.compareAndSet(false, true)) {
+                handlerExecutor.execute(this::processFrames);
+            }
+        }
+
+        /**
+         * This method processes the queued frames in order. It is called from a handler thread.
+         */
+        private void processFrames() {
+            while (true) {
+                ByteBuffer frame;
+                while ((frame = frameQueue.poll()) != null) {
+                    if (!isClosed) {
+                        processFrame(frame);
+                    }
+                    if (queuedFrameCount.decrementAndGet() == MAX_QUEUED_FRAME_COUNT / 2) {
+                        eventLoop.execute(this::resumeRead);
+                    }
+                }
+
+                isProcessScheduled.set(false);
+                if (frameQueue.isEmpty() || !isProcessScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * This method reads the client again once enough of its frames are processed.
+         * It must be called from the event loop thread.
+         */
+        private void resumeRead() {
+            if (isClosed || !isReadPaused) return;
+
+            isReadPaused = false;
+            selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+        }
+
+        @Override
+        protected boolean sendFrame(ByteBuffer... frameParts) {
+            if (isClosed) {
+                return false;
+            }
+
+            if (pendingWriteCount.incrementAndGet() > AppConfig.OUTBOUND_QUEUE_CAPACITY) {
+                pendingWriteCount.decrementAndGet();
+                logger.warning(String.format("Outbound queue full; dropped a frame to %s",
+                        remoteAddress));
+                return false;
+            }
+
+            writeQueue.add(frameParts);
+            if (isFlushScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::flushWrites);
+            }
+            return true;
+        }
+
+        /**
+         * This method writes the queued frames with gathering writes until the socket buffer is full.
+         * It must be called from the event loop thread.
+         */
+        private void flushWrites() {
+            if (isClosed || selectionKey == null) return;
+
+            while (true) {
+                ByteBuffer[] frameParts;
+                while ((frameParts = writeQueue.poll()) != null) {
+                    pendingWrites.add(frameParts);
+                }
+
+                while (!pendingWrites.isEmpty()) {
+                    int length = 0;
+                    for (ByteBuffer[] pendingFrameParts : pendingWrites) {
+                        if (length > 0 && length + pendingFrameParts.length > gatheringBuffers.length) break;
+                        for (ByteBuffer framePart : pendingFrameParts) {
+                            gatheringBuffers[length++] = framePart;
+                        }
+                    }
+                    ByteBuffer lastBuffer = gatheringBuffers[length - 1];
+                    try {
+                        socketChannel.write(gatheringBuffers, 0, length);
+                    } catch (IOException e) {
+                        logger.warning(e.getMessage());
+                        close();
+                        return;
+                    } finally {
+                        Arrays.fill(gatheringBuffers, 0, length, null);
+                    }
+                    while (!pendingWrites.isEmpty() && isWritten(pendingWrites.peek())) {
+                        pendingWrites.poll();
+                        pendingWriteCount.decrementAndGet();
+                    }
+                    if (lastBuffer.hasRemaining()) {
+                        // The socket buffer is full; wait for the socket to be writable
+                        selectionKey.interestOps(getReadInterestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                selectionKey.interestOps(getReadInterestOps());
+                isFlushScheduled.set(false);
+                if (writeQueue.isEmpty() || !isFlushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private int getReadInterestOps() {
+            return isReadPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        private static boolean isWritten(ByteBuffer[] frameParts) {
+            // The parts are written in order, so the frame is written if its last part is written
+            return !frameParts[frameParts.length - 1].hasRemaining();
+        }
+
+        private void close() {
+            if (isClosed) return;
+            isClosed = true;
+
+            if (selectionKey != null) {
+                selectionKey.cancel();
+            }
+            try {
+                socketChannel.close();
+            } catch (IOException e) {
+                logger.warning(e.getMessage());
+            }
+            writeQueue.clear();
+            pendingWrites.clear();
+            // The frames being processed are still processed, and the rest are dropped by the handler thread
+
+            // Stopped by a handler thread, as stopping the services may block (e.g., on the lock of a login), which
+            // would stall every connection of the event loop
+            try {
+                handlerExecutor.execute(this::stopServices);
+            } catch (RejectedExecutionException e) {
+                // The engine is stopping, so the event loop has no other connection to serve meanwhile
+                stopServices();
+            }
+            logger.info(String.format("NioClientConnection is terminated for %s", remoteAddress));
+        }
+
+        @Override
+        protected String getRemoteAddress() {
+            return remoteAddress;
+        }
+    }
+}
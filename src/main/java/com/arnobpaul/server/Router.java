@@ -1,33 +1,124 @@
 package com.arnobpaul.server;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import com.arnobpaul.common.collection.StripedIntObjectMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
 import java.util.logging.Logger;
 
 /**
  * This class helps to access/operate any client (i.e., passing data from a client to another client)
  * from a client instance inside the server.
+ * <p>
+ * The clients are kept in {@link StripedIntObjectMap}s, so a lookup (i.e., once per relayed message) takes no lock
+ * and allocates nothing. In cluster mode, the clients logged in to the other nodes are kept too, and every login and
+ * logout of this node is passed to the {@link PresenceListener} (i.e., the {@link ClusterNode}).
  */
 public class Router {
-    private final Map<Integer, ServerTask.PerClientRunnable> clientIdToClientRunnableMap = new ConcurrentHashMap<>();
+    private static final int STRIPE_COUNT = 16;
+
+    public interface PresenceListener {
+        /**
+         * @param isOnline true for a login, otherwise false for a logout
+         */
+        void onPresenceChanged(int clientId, boolean isOnline);
+    }
+
+    private final StripedIntObjectMap<ClientConnection> clientConnections = new StripedIntObjectMap<>(STRIPE_COUNT);
+
+    // Clients logged in to the other nodes of the cluster (always empty if not in cluster mode)
+    private final StripedIntObjectMap<ClusterNode.RemoteNode> remoteClients = new StripedIntObjectMap<>(STRIPE_COUNT);
+
+    private volatile PresenceListener presenceListener = null;
 
     private static final Logger logger = Logger.getLogger(Router.class.getName());
 
-    public void registerClientRunnable(int clientId, ServerTask.PerClientRunnable perClientRunnable) {
-        logger.info(String.format("PerClientRunnable registered for Client_ID: %d", clientId));
+    /**
+     * @param presenceListener listener of the logins and the logouts of this node, or null for none
+     */
+    public void setPresenceListener(@Nullable PresenceListener presenceListener) {
+        this.presenceListener = presenceListener;
+    }
+
+    public void registerClientConnection(int clientId, ClientConnection clientConnection) {
+        logger.info(String.format("ClientConnection registered for Client_ID: %d", clientId));
+
+        clientConnections.put(clientId, clientConnection);
+
+        PresenceListener presenceListener = this.presenceListener;
+        if (presenceListener != null) {
+            presenceListener.onPresenceChanged(clientId, true);
+        }
+    }
+
+    public ClientConnection getClientConnection(int clientId) {
+        return clientConnections.get(clientId);
+    }
+
+    public ClientConnection deregisterClientConnection(int clientId) {
+        logger.info(String.format("ClientConnection deregistered for Client_ID: %d", clientId));
+
+        ClientConnection clientConnection = clientConnections.remove(clientId);
+
+        PresenceListener presenceListener = this.presenceListener;
+        if (clientConnection != null && presenceListener != null) {
+            presenceListener.onPresenceChanged(clientId, false);
+        }
+        return clientConnection;
+    }
+
+    /**
+     * @param clientIdConsumer consumer of the client ID of every client logged in to this node
+     */
+    public void forEachClientId(@NotNull IntConsumer clientIdConsumer) {
+        clientConnections.forEach((clientId, clientConnection) -> clientIdConsumer.accept(clientId));
+    }
+
+    public void registerRemoteClient(int clientId, @NotNull ClusterNode.RemoteNode remoteNode) {
+        logger.info(String.format("Remote client registered for Client_ID: %d on node %d",
+                clientId,
+                remoteNode.nodeIndex));
+
+        remoteClients.put(clientId, remoteNode);
+    }
 
-        clientIdToClientRunnableMap.put(clientId, perClientRunnable);
+    /**
+     * @return the node the client is logged in to, or null if not logged in to another node
+     */
+    public @Nullable ClusterNode.RemoteNode getRemoteClientNode(int clientId) {
+        return remoteClients.get(clientId);
     }
 
-    public ServerTask.PerClientRunnable getClientRunnable(int clientId) {
-        logger.info(String.format("PerClientRunnable accessed for Client_ID: %d", clientId));
+    /**
+     * This method deregisters the client only if still logged in to the node (i.e., not moved to another node).
+     */
+    public void deregisterRemoteClient(int clientId, @NotNull ClusterNode.RemoteNode remoteNode) {
+        logger.info(String.format("Remote client deregistered for Client_ID: %d on node %d",
+                clientId,
+                remoteNode.nodeIndex));
 
-        return clientIdToClientRunnableMap.get(clientId);
+        remoteClients.remove(clientId, remoteNode);
     }
 
-    public ServerTask.PerClientRunnable deregisterClientRunnable(int clientId) {
-        logger.info(String.format("PerClientRunnable deregistered for Client_ID: %d", clientId));
+    /**
+     * This method deregisters all the clients of a node (e.g., its link is closed).
+     */
+    public void deregisterRemoteClients(@NotNull ClusterNode.RemoteNode remoteNode) {
+        List<Integer> clientIds = new ArrayList<>();
+        remoteClients.forEach((clientId, clientRemoteNode) -> {
+            if (clientRemoteNode == remoteNode) {
+                clientIds.add(clientId);
+            }
+        });
+        for (int clientId : clientIds) {
+            remoteClients.remove(clientId, remoteNode);
+        }
 
-        return clientIdToClientRunnableMap.remove(clientId);
+        logger.info(String.format("Remote clients deregistered for node %d: %d",
+                remoteNode.nodeIndex,
+                clientIds.size()));
     }
 }
@@ -0,0 +1,41 @@
+package com.arnobpaul.server;
+
+/**
+ * This enum defines how the server serves the connected clients.
+ */
+public enum ServerMode {
+    /**
+     * Every connection is served by a dedicated thread (from a fixed thread pool) blocked on reading.
+     */
+    THREAD_POOL("pool"),
+
+    /**
+     * Every connection is served by a dedicated virtual thread blocked on reading, and its writes by another one.
+     * So there is no limit of concurrent clients, while the services keep their blocking style.
+     */
+    VIRTUAL_THREAD("virtual"),
+
+    /**
+     * All connections are multiplexed over a small set of non-blocking event loops.
+     */
+    NIO("nio");
+
+    public final String argName;
+
+    ServerMode(String argName) {
+        this.argName = argName;
+    }
+
+    /**
+     * @param argName the name of the server mode given in the command line
+     * @return the matched server mode, or null if not matched
+     */
+    public static ServerMode fromArgName(String argName) {
+        for (ServerMode serverMode : values()) {
+            if (serverMode.argName.equalsIgnoreCase(argName)) {
+                return serverMode;
+            }
+        }
+        return null;
+    }
+}
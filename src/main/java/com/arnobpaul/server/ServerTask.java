@@ -1,50 +1,135 @@
 package com.arnobpaul.server;
 
 import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.ThreadMode;
+import com.arnobpaul.common.crypto.PublicKeyCache;
 import com.arnobpaul.common.crypto.RsaSignVerify;
+import com.arnobpaul.common.network.OutboundQueue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.crypto.NoSuchPaddingException;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Logger;
 
 public class ServerTask implements Runnable {
     private static final int CONCURRENT_CLIENT = 100;
+    private static final String LOG_CLIENT_STORE_FILE = "server_clients.log";
+    private static final String MAILBOX_DIRECTORY = "server_mailbox";
+
+    private final ServerMode serverMode;
+    private final ThreadMode threadMode;
 
     private ServerSocket serverSocket = null;
+    private NioServerEngine nioServerEngine = null;
     private volatile boolean isRunning = true;
 
-    private final DbService dbService;
+    private final ClientStore clientStore;
+
+    // Store of the groups (i.e., the client store itself), or null if the client store keeps no groups
+    private final GroupStore groupStore;
 
     private final RsaSignVerify rsaSignVerify;
 
     private final Router router;
 
+    private final Mailbox mailbox;
+
+    // Link to the other server processes of the cluster, or null if not in cluster mode
+    private final ClusterNode clusterNode;
+
+    // Shared by all the blocking connections to drain their outbound queues
+    private final ExecutorService writerExecutorService;
+
     private static final Logger logger = Logger.getLogger(ServerTask.class.getName());
 
-    public ServerTask() throws SQLException, NoSuchPaddingException, NoSuchAlgorithmException {
-        this.dbService = new DbService();
+    public ServerTask(@NotNull ServerMode serverMode, @NotNull ClientStoreType clientStoreType)
+            throws ClientStoreException, IOException, NoSuchPaddingException, NoSuchAlgorithmException {
+        this(serverMode, clientStoreType, 0, 1, null);
+    }
+
+    /**
+     * @param nodeIndex     index of this server process in the cluster
+     * @param nodeCount     number of the server processes of the cluster on this host, or 1 if not in cluster mode
+     * @param clusterSecret secret shared by all the server processes of the cluster (only needed in cluster mode)
+     */
+    public ServerTask(@NotNull ServerMode serverMode, @NotNull ClientStoreType clientStoreType, int nodeIndex, int nodeCount,
+                      @Nullable String clusterSecret)
+            throws ClientStoreException, IOException, NoSuchPaddingException, NoSuchAlgorithmException {
+        this.serverMode = serverMode;
+        this.threadMode = (serverMode == ServerMode.VIRTUAL_THREAD) ? ThreadMode.VIRTUAL : ThreadMode.PLATFORM;
+        threadMode.checkSupported();
 
         this.rsaSignVerify = new RsaSignVerify();
 
+        this.clientStore = openClientStore(clientStoreType, rsaSignVerify.getPublicKeyCache());
+        this.groupStore = (clientStore instanceof GroupStore) ? (GroupStore) clientStore : null;
+
         this.router = new Router();
+
+        // Every node keeps its own mailbox, and sends its waiting messages to another node once the client logs in there
+        this.mailbox = new Mailbox(Path.of((nodeCount > 1) ? MAILBOX_DIRECTORY + "_" + nodeIndex : MAILBOX_DIRECTORY),
+                router::getClientConnection);
+
+        this.clusterNode = (nodeCount > 1)
+                ? new ClusterNode(nodeIndex, ClusterNode.getLinkPorts(nodeCount), Objects.requireNonNull(clusterSecret),
+                router, new ClusterHandler())
+                : null;
+        if (clusterNode != null && clientStore instanceof DbService) {
+            // The other nodes keep the clients (and the groups) in memory too
+            ((DbService) clientStore).setClientChangeListener(clusterNode::announceClientChange);
+            ((DbService) clientStore).setGroupChangeListener(clusterNode::announceGroupChange);
+        }
+
+        this.writerExecutorService = threadMode.newThreadPerTaskExecutor("ServerClientWriter-");
+    }
+
+    private static ClientStore openClientStore(ClientStoreType clientStoreType, PublicKeyCache publicKeyCache)
+            throws ClientStoreException {
+        if (clientStoreType == ClientStoreType.LOG) {
+            return new LogClientStore(Path.of(LOG_CLIENT_STORE_FILE), publicKeyCache);
+        }
+
+        try {
+            return new DbService(publicKeyCache);
+        } catch (SQLException e) {
+            throw new ClientStoreException(e.getMessage(), e);
+        }
     }
 
     public void startServer() {
-        System.out.println("Starting server...");
+        System.out.println(String.format("Starting server in %s mode...", serverMode));
 
         try {
-            serverSocket = new ServerSocket(AppConfig.SERVER_PORT);
+            if (clusterNode != null) {
+                clusterNode.start();
+            }
+
+            if (serverMode == ServerMode.NIO) {
+                nioServerEngine = new NioServerEngine(this);
+                nioServerEngine.start();
+            } else {
+                serverSocket = new ServerSocket();
+                if (isClusterMode()) {
+                    // The nodes of the cluster share the port, and the connections are spread over them
+                    serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                serverSocket.bind(new InetSocketAddress(AppConfig.SERVER_PORT));
+                new Thread(this, "ServerLoop").start();
+            }
             System.out.println("Server started.");
-            new Thread(this, "ServerLoop").start();
         } catch (IOException e) {
             e.printStackTrace();
             logger.severe(e.getMessage());
@@ -53,7 +138,10 @@ public class ServerTask implements Runnable {
 
     @Override
     public void run() {
-        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(CONCURRENT_CLIENT);
+        // With virtual threads, a blocked connection is cheap enough to have no limit of concurrent clients
+        ExecutorService executorService = (serverMode == ServerMode.VIRTUAL_THREAD)
+                ? threadMode.newThreadPerTaskExecutor("ServerClientLoop-")
+                : Executors.newFixedThreadPool(CONCURRENT_CLIENT);
 
         while (isRunning) {
             try {
@@ -61,122 +149,220 @@ public class ServerTask implements Runnable {
 
                 Runnable perClientRunnable = new PerClientRunnable(socket, this);
 
-                threadPoolExecutor.submit(perClientRunnable);
+                executorService.submit(perClientRunnable);
             } catch (IOException e) {
                 e.printStackTrace();
                 logger.severe(e.getMessage());
             }
         }
 
-        threadPoolExecutor.shutdown();
+        executorService.shutdown();
+        writerExecutorService.shutdown();
         logger.info("ServerTask is terminated");
     }
 
     public void stopServer() {
         isRunning = false;
+
+        if (nioServerEngine != null) {
+            nioServerEngine.stop();
+        }
+        if (clusterNode != null) {
+            clusterNode.stop();
+        }
+        // After the engines, so no write is submitted once closed
+        mailbox.close();
+        clientStore.close();
     }
 
-    public static class PerClientRunnable implements Runnable {
-        private final Socket socket;
-        private final Scanner scanner;
-        private final PrintWriter printWriter;
+    boolean isRunning() {
+        return isRunning;
+    }
 
-        private final ServerTask serverTask;
+    boolean isClusterMode() {
+        return clusterNode != null;
+    }
 
-        private final ThreadPoolExecutor threadPoolExecutor;
+    ClientStore getClientStore() {
+        return clientStore;
+    }
 
-        private final SignupLoginService signupLoginService;
-        private final CommunicationService communicationService;
-        private final RenewService renewService;
+    @Nullable GroupStore getGroupStore() {
+        return groupStore;
+    }
 
-        public PerClientRunnable(Socket socket, ServerTask serverTask) throws IOException {
-            this.socket = socket;
-            this.scanner = new Scanner(socket.getInputStream());
-            this.printWriter = new PrintWriter(socket.getOutputStream(), true);
+    RsaSignVerify getRsaSignVerify() {
+        return rsaSignVerify;
+    }
 
-            this.serverTask = serverTask;
+    Router getRouter() {
+        return router;
+    }
 
-            logger.info(String.format("Server connected to %s:%s",
-                    socket.getInetAddress().getHostAddress(),
-                    socket.getPort()));
+    Mailbox getMailbox() {
+        return mailbox;
+    }
 
-            threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+    /**
+     * This class passes the frames forwarded by the other nodes of the cluster to the clients of this node.
+     */
+    private class ClusterHandler implements ClusterNode.Handler {
+        @Override
+        public void onForwardedData(int recipientClientId, int senderClientId, @NotNull ByteBuffer data) {
+            ClientConnection clientConnection = router.getClientConnection(recipientClientId);
+            if (clientConnection == null || !clientConnection.isLoginDone()) {
+                // The client logged out meanwhile, so the data waits here until it logs in again
+                mailbox.append(recipientClientId, senderClientId, data).whenComplete((isQueued, throwable) -> {
+                    if (throwable != null) {
+                        throwable.printStackTrace();
+                        logger.severe(throwable.getMessage());
+                    }
+                    if (throwable != null || !isQueued) {
+                        sendFailureToRemoteClient(senderClientId, recipientClientId);
+                    }
+                });
+                return;
+            }
 
-            this.signupLoginService = new SignupLoginService(
-                    this,
-                    serverTask.dbService,
-                    serverTask.rsaSignVerify,
-                    serverTask.router
-            );
+            int dataSize = data.remaining();
+            if (!clientConnection.sendData(senderClientId, data)) {
+                sendFailureToRemoteClient(senderClientId, recipientClientId);
+                return;
+            }
 
-            this.communicationService = new CommunicationService(
-                    this,
-                    signupLoginService,
-                    serverTask.router
-            );
+            System.out.println(String.format("Forwarded data passing: From Client_ID %d To Client_ID %d; Data: %d bytes",
+                    senderClientId,
+                    recipientClientId,
+                    dataSize));
+        }
 
-            this.renewService = new RenewService(
-                    this,
-                    serverTask.dbService,
-                    signupLoginService,
-                    serverTask.rsaSignVerify
-            );
+        @Override
+        public void onForwardedLine(int recipientClientId, @NotNull String line) {
+            ClientConnection clientConnection = router.getClientConnection(recipientClientId);
+            if (clientConnection == null || !clientConnection.isLoginDone() || !clientConnection.sendRaw(line)) {
+                logger.warning(String.format("Dropped a forwarded line to Client_ID %d not logged in",
+                        recipientClientId));
+            }
         }
 
         @Override
-        public void run() {
-            while (serverTask.isRunning) {
-                try {
-                    String dataReceived = scanner.nextLine().trim();
-
-                    logger.info(String.format("Received \"%s\" from %s:%s",
-                            dataReceived,
-                            socket.getInetAddress().getHostAddress(),
-                            socket.getPort()));
-
-                    String[] dataReceivedItems = dataReceived.split(" ", 2);
-                    String header = dataReceivedItems[0];
-                    String data = null;
-                    if (dataReceivedItems.length == 2) {
-                        data = dataReceivedItems[1];
-                    }
+        public void onForwardedGroupData(int groupId, int senderClientId, @NotNull ByteBuffer data) {
+            if (groupStore == null) return;
 
-                    if (header.startsWith(AppConfig.NetworkCommand.SIGNUP)) {
-                        signupLoginService.processSignup(header, data);
-                    } else if (header.startsWith(AppConfig.NetworkCommand.LOGIN)) {
-                        signupLoginService.processLogin(header, data);
-                    } else if (header.startsWith(AppConfig.NetworkCommand.SEND_DATA)) {
-                        communicationService.processSend(header, data);
-                    } else if (header.startsWith(AppConfig.NetworkCommand.RENEW_KEY)) {
-                        renewService.processRenew(header, data);
-                    }
-                } catch (NoSuchElementException e) {
-                    e.printStackTrace();
-                    threadPoolExecutor.shutdown();
-                    signupLoginService.stopService();
-                    break;
+            int[] memberIds;
+            try {
+                memberIds = groupStore.getGroupMembers(groupId);
+            } catch (ClientStoreException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+                return;
+            }
+
+            int dataSize = data.remaining();
+            int sentCount = GroupService.sendToMembers(router, memberIds, groupId, senderClientId, data);
+            System.out.println(String.format("Forwarded group data passing: From Client_ID %d To Group_ID %d; Data: %d bytes; Sent: %d members",
+                    senderClientId,
+                    groupId,
+                    dataSize,
+                    sentCount));
+        }
+
+        @Override
+        public void onRemoteLogin(int clientId, @NotNull ClusterNode.RemoteNode remoteNode) {
+            mailbox.deliver(clientId, remoteNode.asRecipient(clientId)).whenComplete((sentCount, throwable) -> {
+                if (throwable != null) {
+                    throwable.printStackTrace();
+                    logger.severe(throwable.getMessage());
                 }
+            });
+        }
+
+        @Override
+        public void onRemoteClientChanged(int clientId) {
+            if (clientStore instanceof DbService) {
+                ((DbService) clientStore).evictClient(clientId);
             }
+        }
 
-            logger.info("PerClientRunnable is terminated");
+        @Override
+        public void onRemoteGroupChanged(int groupId) {
+            if (clientStore instanceof DbService) {
+                ((DbService) clientStore).evictGroup(groupId);
+            }
         }
 
-        public boolean sendRaw(String dataToSend) {
-            if (!threadPoolExecutor.isShutdown()) {
-                threadPoolExecutor.submit(() -> printWriter.println(dataToSend));
+        @Override
+        public void onRemoteNodeLinked(@NotNull ClusterNode.RemoteNode remoteNode) {
+            if (clientStore instanceof DbService) {
+                ((DbService) clientStore).evictAllClients();
+                ((DbService) clientStore).evictAllGroups();
+            }
+        }
 
-                logger.info(String.format("Sent \"%s\" to %s:%s",
-                        dataToSend,
-                        socket.getInetAddress().getHostAddress(),
-                        socket.getPort()));
+        /**
+         * This method lets the sender (on the node it logged in to) know the data is not sent.
+         */
+        private void sendFailureToRemoteClient(int senderClientId, int recipientClientId) {
+            ClusterNode.RemoteNode remoteNode = router.getRemoteClientNode(senderClientId);
+            if (remoteNode != null) {
+                remoteNode.forwardLine(senderClientId, String.format("%s %d",
+                        AppConfig.NetworkCommand.SEND_FAILURE,
+                        recipientClientId));
+            }
+            System.err.println(String.format("Send failure for forwarded data; From Client_ID %d To Client_ID %d",
+                    senderClientId,
+                    recipientClientId));
+        }
+    }
+
+    public static class PerClientRunnable extends ClientConnection implements Runnable {
+        private final Socket socket;
+        private final InputStream inputStream;
+        private final OutboundQueue outboundQueue;
 
+        public PerClientRunnable(Socket socket, ServerTask serverTask) throws IOException {
+            super(serverTask);
+
+            this.socket = socket;
+            this.inputStream = socket.getInputStream();
+            this.outboundQueue = new OutboundQueue(
+                    socket.getOutputStream(),
+                    serverTask.writerExecutorService,
+                    AppConfig.OUTBOUND_QUEUE_CAPACITY);
+
+            logger.info(String.format("Server connected to %s",
+                    getRemoteAddress()));
+        }
+
+        @Override
+        public void run() {
+            try {
+                getFrameDecoder().readFrom(inputStream);
+            } catch (IOException e) {
+                e.printStackTrace();
+                logger.warning(e.getMessage());
+            }
+            outboundQueue.close();
+            stopServices();
+
+            logger.info("PerClientRunnable is terminated");
+        }
+
+        @Override
+        protected boolean sendFrame(ByteBuffer... frameParts) {
+            if (outboundQueue.offer(frameParts)) {
                 return true;
             }
+            if (!outboundQueue.isClosed()) {
+                logger.warning(String.format("Outbound queue full; dropped a frame to %s",
+                        getRemoteAddress()));
+            }
             return false;
         }
 
-        public SignupLoginService getSignupLoginService() {
-            return signupLoginService;
+        @Override
+        protected String getRemoteAddress() {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
         }
     }
 }
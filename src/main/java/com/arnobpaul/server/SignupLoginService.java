@@ -3,30 +3,35 @@ package com.arnobpaul.server;
 import com.arnobpaul.common.AppConfig;
 import com.arnobpaul.common.ClientEntity;
 import com.arnobpaul.common.crypto.RsaSignVerify;
+import com.arnobpaul.common.network.CommandRegistry;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.sql.SQLException;
 import java.util.logging.Logger;
 
 public class SignupLoginService {
-    private final ServerTask.PerClientRunnable perClientRunnable;
+    private final ClientConnection clientConnection;
 
-    private final DbService dbService;
+    private final ClientStore clientStore;
 
     private final RsaSignVerify rsaSignVerify;
 
     private final Router router;
 
+    private final Mailbox mailbox;
+
     private int clientId = 0;
     private String clientName = null;
     private String clientPublicKey = null;
 
     private boolean signupDone = false;
+    private boolean signupPending = false;
     private long signupTimestamp = 0;
 
+    private boolean stopped = false;
+
     private boolean loginDone = false;
     private ClientEntity loginClient = null;
     private long loginNonce = 0;
@@ -34,18 +39,33 @@ public class SignupLoginService {
 
     private static final Logger logger = Logger.getLogger(SignupLoginService.class.getName());
 
-    public SignupLoginService(@NotNull ServerTask.PerClientRunnable perClientRunnable,
-                              @NotNull DbService dbService,
+    public SignupLoginService(@NotNull ClientConnection clientConnection,
+                              @NotNull ClientStore clientStore,
                               @NotNull RsaSignVerify rsaSignVerify,
-                              @NotNull Router router) {
-        this.perClientRunnable = perClientRunnable;
-        this.dbService = dbService;
+                              @NotNull Router router,
+                              @NotNull Mailbox mailbox) {
+        this.clientConnection = clientConnection;
+        this.clientStore = clientStore;
         this.rsaSignVerify = rsaSignVerify;
         this.router = router;
+        this.mailbox = mailbox;
     }
 
-    synchronized public boolean processSignup(String header, String data) {
-        if (!signupDone && header.equals(AppConfig.NetworkCommand.SIGNUP)) {
+    /**
+     * @param commandRegistry registry of the connection to register the handlers of this service
+     */
+    public void registerCommandHandlers(@NotNull CommandRegistry commandRegistry) {
+        commandRegistry.register(AppConfig.NetworkCommand.SIGNUP, this::processSignup);
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN, this::processLogin);
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN_ACCEPT, this::processLoginAccept);
+    }
+
+    /**
+     * This method only submits the new client; the reply is sent by {@link #processSignupCommit(Integer, Throwable)}
+     * once the client is committed.
+     */
+    synchronized public boolean processSignup(String data) {
+        if (!signupDone && !signupPending) {
             if (data == null) return false;
 
             String[] dataItems = data.split(" ", 2);
@@ -53,120 +73,137 @@ public class SignupLoginService {
                 clientName = dataItems[0];
                 clientPublicKey = dataItems[1];
 
-                try {
-                    clientId = dbService.insert(clientName, clientPublicKey);
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                    logger.severe(e.getMessage());
-                    perClientRunnable.sendRaw(AppConfig.NetworkCommand.SIGNUP_FAILURE);
-                    return false;
-                }
-
-                signupTimestamp = System.currentTimeMillis();
-                perClientRunnable.sendRaw(String.format("%s %d",
-                        AppConfig.NetworkCommand.SIGNUP_SUCCESS,
-                        clientId));
-
-                System.out.println(String.format("Sign up done for Client_ID: %d",
-                        clientId));
-                signupDone = true;
+                signupPending = true;
+                clientStore.insert(clientName, clientPublicKey)
+                        .whenComplete(this::processSignupCommit);
                 return true;
             }
         }
-        perClientRunnable.sendRaw(AppConfig.NetworkCommand.SIGNUP_FAILURE);
+        clientConnection.sendRaw(AppConfig.NetworkCommand.SIGNUP_FAILURE);
         return false;
     }
 
-    synchronized public boolean processLogin(String header, String data) {
-        if (header.equals(AppConfig.NetworkCommand.LOGIN)) {
-            if (data == null) return false;
+    synchronized private void processSignupCommit(Integer insertedClientId, Throwable throwable) {
+        signupPending = false;
 
-            try {
-                clientId = Integer.parseInt(data);
-            } catch (NumberFormatException e) {
-                e.printStackTrace();
-                logger.warning(e.getMessage());
-                perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
-                resetService();
-                return false;
-            }
+        if (throwable != null) {
+            throwable.printStackTrace();
+            logger.severe(throwable.getMessage());
+            clientConnection.sendRaw(AppConfig.NetworkCommand.SIGNUP_FAILURE);
+            return;
+        }
 
-            try {
-                loginClient = dbService.getClient(clientId);
-            } catch (SQLException | NullPointerException e) {
-                e.printStackTrace();
-                logger.severe(e.getMessage());
-                perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
-                resetService();
-                return false;
-            }
+        if (stopped) {
+            // The connection is closed before the commit, so nobody can login as the new client
+            deleteClient(insertedClientId);
+            return;
+        }
 
-            loginNonce = AppConfig.SECURE_RANDOM.nextLong();
-            loginTimestamp = System.currentTimeMillis();
-            perClientRunnable.sendRaw(String.format("%s %d %d",
-                    AppConfig.NetworkCommand.LOGIN_NONCE,
-                    loginNonce,
-                    loginTimestamp));
+        clientId = insertedClientId;
+        signupTimestamp = System.currentTimeMillis();
+        clientConnection.sendRaw(String.format("%s %d",
+                AppConfig.NetworkCommand.SIGNUP_SUCCESS,
+                clientId));
 
-            router.registerClientRunnable(clientId, perClientRunnable);
-            return true;
-        } else if (header.equals(AppConfig.NetworkCommand.LOGIN_ACCEPT)) {
-            if (data == null) return false;
+        System.out.println(String.format("Sign up done for Client_ID: %d",
+                clientId));
+        signupDone = true;
+    }
 
-            //noinspection UnnecessaryLocalVariable
-            String signature = data;
+    synchronized public boolean processLogin(String data) {
+        if (data == null) return false;
 
-            if (loginClient == null) {
-                perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
-                System.err.println(String.format("Login failure for Client_ID: %d",
-                        clientId));
-                resetService();
-                return false;
-            }
+        try {
+            clientId = Integer.parseInt(data);
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            logger.warning(e.getMessage());
+            clientConnection.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
+            resetService();
+            return false;
+        }
 
-            boolean isVerified;
-            try {
-                isVerified = rsaSignVerify.verify(String.format("%d %d", loginNonce, loginTimestamp), signature, loginClient.clientPublicKey);
-            } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
-                e.printStackTrace();
-                logger.severe(e.getMessage());
-                perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
-                resetService();
-                return false;
-            }
+        try {
+            loginClient = clientStore.getClient(clientId);
+        } catch (ClientStoreException | NullPointerException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            clientConnection.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
+            resetService();
+            return false;
+        }
 
-            if (isVerified) {
-                perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_SUCCESS);
-                System.out.println(String.format("Login success for Client_ID: %d",
-                        loginClient.clientId));
-                loginDone = true;
-                return true;
-            } else {
-                perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
-                System.err.println(String.format("Login failure for Client_ID: %d",
-                        loginClient.clientId));
-                resetService();
-                return false;
-            }
+        loginNonce = AppConfig.SECURE_RANDOM.nextLong();
+        loginTimestamp = System.currentTimeMillis();
+        clientConnection.sendRaw(String.format("%s %d %d",
+                AppConfig.NetworkCommand.LOGIN_NONCE,
+                loginNonce,
+                loginTimestamp));
+        return true;
+    }
+
+    synchronized public boolean processLoginAccept(String data) {
+        if (data == null) return false;
+
+        //noinspection UnnecessaryLocalVariable
+        String signature = data;
+
+        if (loginClient == null) {
+            clientConnection.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
+            System.err.println(String.format("Login failure for Client_ID: %d",
+                    clientId));
+            resetService();
+            return false;
+        }
+
+        boolean isVerified;
+        try {
+            isVerified = rsaSignVerify.verify(String.format("%d %d", loginNonce, loginTimestamp), signature,
+                    loginClient.clientId, loginClient.clientPublicKey);
+        } catch (InvalidKeySpecException | InvalidKeyException | SignatureException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            clientConnection.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
+            resetService();
+            return false;
+        }
+
+        if (isVerified) {
+            clientConnection.sendRaw(AppConfig.NetworkCommand.LOGIN_SUCCESS);
+            System.out.println(String.format("Login success for Client_ID: %d",
+                    loginClient.clientId));
+            loginDone = true;
+
+            // Registered only once logged in, since the login is announced to the other nodes in cluster mode
+            router.registerClientConnection(loginClient.clientId, clientConnection);
+
+            // The data sent while the client was offline follows the login reply
+            mailbox.deliver(loginClient.clientId, clientConnection).whenComplete((sentCount, throwable) -> {
+                if (throwable != null) {
+                    throwable.printStackTrace();
+                    logger.severe(throwable.getMessage());
+                }
+            });
+            return true;
+        } else {
+            clientConnection.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
+            System.err.println(String.format("Login failure for Client_ID: %d",
+                    loginClient.clientId));
+            resetService();
+            return false;
         }
-        perClientRunnable.sendRaw(AppConfig.NetworkCommand.LOGIN_FAILURE);
-        return false;
     }
 
     /**
      * This method deletes the signup entry if not logged in.
      */
     synchronized public void stopService() {
+        stopped = true;
         if (signupDone && !loginDone) {
-            try {
-                dbService.delete(clientId);
-            } catch (SQLException e) {
-                e.printStackTrace();
-                logger.severe(e.getMessage());
-            }
+            deleteClient(clientId);
         }
         if (loginDone) {
-            router.deregisterClientRunnable(clientId);
+            router.deregisterClientConnection(clientId);
         }
     }
 
@@ -183,9 +220,9 @@ public class SignupLoginService {
         if (loginDone) {
             clientId = loginClient.clientId;
             try {
-                loginClient = dbService.getClient(clientId);
+                loginClient = clientStore.getClient(clientId);
                 return true;
-            } catch (SQLException | NullPointerException e) {
+            } catch (ClientStoreException | NullPointerException e) {
                 e.printStackTrace();
                 logger.severe(e.getMessage());
                 return false;
@@ -201,13 +238,17 @@ public class SignupLoginService {
     private void resetService() {
         if (signupDone && !loginDone) {
             if ((System.currentTimeMillis() - signupTimestamp) >= AppConfig.SERVER_SIGNUP_TIMEOUT) {
-                try {
-                    dbService.delete(clientId);
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                    logger.severe(e.getMessage());
-                }
+                deleteClient(clientId);
             }
         }
     }
+
+    private void deleteClient(int clientIdToBeDeleted) {
+        clientStore.delete(clientIdToBeDeleted).whenComplete((isDeleted, throwable) -> {
+            if (throwable != null) {
+                throwable.printStackTrace();
+                logger.severe(throwable.getMessage());
+            }
+        });
+    }
 }
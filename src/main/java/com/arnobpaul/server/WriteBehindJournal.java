@@ -0,0 +1,203 @@
+package com.arnobpaul.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * This class runs the database writes on a dedicated thread, and groups the writes submitted close together into a
+ * single transaction, so a burst of writes (e.g., a signup wave) costs a few commits (i.e., fsyncs) instead of one per
+ * write. The future of a write is completed only after its transaction is committed.
+ * <p>
+ * A batch is written once it has <code>maxBatchSize</code> writes, or <code>maxLatency</code> milliseconds after its
+ * first write is submitted. Every write runs in its own savepoint, so a failed write does not fail the others.
+ * <p>
+ * Once closed, the writes submitted before are still written, and the thread stops after them.
+ */
+public class WriteBehindJournal implements Runnable {
+    private static class Write<T> {
+        final DbConnectionPool.DbTask<T> dbTask;
+        final Consumer<T> commitListener;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        T result = null;
+        Exception exception = null;
+
+        Write(DbConnectionPool.DbTask<T> dbTask, Consumer<T> commitListener) {
+            this.dbTask = dbTask;
+            this.commitListener = commitListener;
+        }
+
+        void run(DbConnectionPool.DbConnection dbConnection) throws SQLException {
+            Savepoint savepoint = dbConnection.setSavepoint();
+            try {
+                result = dbTask.run(dbConnection);
+                dbConnection.releaseSavepoint(savepoint);
+            } catch (SQLException | RuntimeException e) {
+                exception = e;
+                dbConnection.rollback(savepoint);
+            }
+        }
+
+        void complete(@Nullable SQLException commitException) {
+            if (commitException != null) {
+                future.completeExceptionally(commitException);
+            } else if (exception != null) {
+                future.completeExceptionally(exception);
+            } else {
+                try {
+                    if (commitListener != null) {
+                        commitListener.accept(result);
+                    }
+                } finally {
+                    future.complete(result);
+                }
+            }
+        }
+    }
+
+    private final DbConnectionPool dbConnectionPool;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+
+    // Taken by the thread after all the writes submitted before closing
+    private static final Write<Object> CLOSE = new Write<>(null, null);
+
+    private final BlockingQueue<Write<?>> writeQueue = new LinkedBlockingQueue<>();
+
+    private volatile boolean isClosed = false;
+    private Thread thread = null;
+
+    private static final Logger logger = Logger.getLogger(WriteBehindJournal.class.getName());
+
+    /**
+     * @param dbConnectionPool pool whose write connection is used
+     * @param maxBatchSize     maximum number of the writes in a transaction
+     * @param maxLatency       maximum time in milliseconds a write waits for other writes to join its transaction
+     */
+    public WriteBehindJournal(@NotNull DbConnectionPool dbConnectionPool, int maxBatchSize, long maxLatency) {
+        this.dbConnectionPool = dbConnectionPool;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+    }
+
+    synchronized public void start() {
+        thread = new Thread(this, "ServerDbJournal");
+        thread.start();
+    }
+
+    /**
+     * This method waits for the writes submitted before (i.e., until committed), and stops the thread.
+     */
+    synchronized public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        writeQueue.add(CLOSE);
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warning(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param dbTask         task writing the database (it must not commit)
+     * @param commitListener listener run with the result after the commit and before the future is completed, in the
+     *                       order of the commits (e.g., to update an in-memory copy); or null
+     * @return the future completed with the result of the task once committed, or with the exception of the task or
+     * the commit (or completed exceptionally at once if closed)
+     */
+    public <T> CompletableFuture<T> submit(@NotNull DbConnectionPool.DbTask<T> dbTask, @Nullable Consumer<T> commitListener) {
+        if (isClosed) {
+            return CompletableFuture.failedFuture(new SQLException("The journal is closed."));
+        }
+        Write<T> write = new Write<>(dbTask, commitListener);
+        writeQueue.add(write);
+        return write.future;
+    }
+
+    @Override
+    public void run() {
+        List<Write<?>> batch = new ArrayList<>(maxBatchSize);
+        boolean isStopped = false;
+        while (!isStopped) {
+            try {
+                Write<?> write = writeQueue.take();
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (write != CLOSE) {
+                    batch.add(write);
+                    if (batch.size() == maxBatchSize) break;
+                    write = writeQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (write == null) break;
+                }
+                isStopped = (write == CLOSE);
+            } catch (InterruptedException e) {
+                logger.warning(e.getMessage());
+                isStopped = true;
+            }
+
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+
+        // A write submitted while closing is not left waiting
+        Write<?> write;
+        while ((write = writeQueue.poll()) != null) {
+            write.complete(new SQLException("The journal is closed."));
+        }
+        logger.info("WriteBehindJournal is terminated");
+    }
+
+    private void writeBatch(List<Write<?>> batch) {
+        SQLException commitException = null;
+        try {
+            dbConnectionPool.write(dbConnection -> {
+                dbConnection.beginTransaction();
+                try {
+                    for (Write<?> write : batch) {
+                        write.run(dbConnection);
+                    }
+                    dbConnection.commit();
+                } catch (SQLException e) {
+                    dbConnection.rollback();
+                    throw e;
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            logger.severe(e.getMessage());
+            commitException = e;
+        }
+
+        for (Write<?> write : batch) {
+            try {
+                write.complete(commitException);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                logger.severe(e.getMessage());
+            }
+        }
+        if (commitException == null) {
+            logger.info(String.format("Committed %d writes", batch.size()));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.arnobpaul.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+class GroupSessionTest {
+    @Test
+    void previousSenderKey() {
+        GroupSession groupSession = new GroupSession(1);
+        GroupSession.SenderKey firstSenderKey = new GroupSession.SenderKey(1, null, null, null);
+        GroupSession.SenderKey secondSenderKey = new GroupSession.SenderKey(2, null, null, null);
+        groupSession.putOtherSenderKey(7, firstSenderKey, 100);
+        groupSession.putOtherSenderKey(7, secondSenderKey, 200);
+
+        Assertions.assertSame(secondSenderKey, groupSession.getOtherSenderKey(7));
+        Assertions.assertSame(secondSenderKey, groupSession.findOtherSenderKey(7, 2, 1000, 50));
+        Assertions.assertSame(firstSenderKey, groupSession.findOtherSenderKey(7, 1, 250, 50));
+        Assertions.assertNull(groupSession.findOtherSenderKey(7, 3, 250, 50));
+        Assertions.assertNull(groupSession.findOtherSenderKey(8, 1, 250, 50));
+
+        // Expired, and never accepted again
+        Assertions.assertNull(groupSession.findOtherSenderKey(7, 1, 251, 50));
+        Assertions.assertNull(groupSession.findOtherSenderKey(7, 1, 250, 50));
+
+        groupSession.removeOtherSenderKey(7);
+        Assertions.assertNull(groupSession.getOtherSenderKey(7));
+    }
+
+    @Test
+    void pendingMessages() {
+        GroupSession groupSession = new GroupSession(1);
+        Assertions.assertTrue(groupSession.addPendingMessage(7, "a", 3));
+        Assertions.assertTrue(groupSession.addPendingMessage(8, "b", 3));
+        Assertions.assertTrue(groupSession.addPendingMessage(7, "c", 3));
+        // The oldest message is dropped
+        Assertions.assertFalse(groupSession.addPendingMessage(7, "d", 3));
+
+        Assertions.assertEquals(List.of("c", "d"), groupSession.takePendingMessages(7));
+        Assertions.assertEquals(List.of(), groupSession.takePendingMessages(7));
+        Assertions.assertEquals(List.of("b"), groupSession.takePendingMessages(8));
+    }
+
+    @Test
+    void isMember() {
+        GroupSession groupSession = new GroupSession(1);
+        Assertions.assertFalse(groupSession.isMember(7));
+
+        groupSession.memberIds = new int[]{3, 7};
+        Assertions.assertTrue(groupSession.isMember(7));
+        Assertions.assertFalse(groupSession.isMember(8));
+    }
+}
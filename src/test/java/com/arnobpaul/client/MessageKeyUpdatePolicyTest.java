@@ -0,0 +1,26 @@
+package com.arnobpaul.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+class MessageKeyUpdatePolicyTest {
+    @Test
+    void isUpdateNeeded() {
+        MessageKeyUpdatePolicy messageKeyUpdatePolicy = new MessageKeyUpdatePolicy(10, 1000, 60000);
+        long ageNanos = TimeUnit.SECONDS.toNanos(1);
+
+        Assertions.assertFalse(messageKeyUpdatePolicy.isUpdateNeeded(9, 999, ageNanos));
+        Assertions.assertTrue(messageKeyUpdatePolicy.isUpdateNeeded(10, 0, ageNanos));
+        Assertions.assertTrue(messageKeyUpdatePolicy.isUpdateNeeded(1, 1000, ageNanos));
+        Assertions.assertTrue(messageKeyUpdatePolicy.isUpdateNeeded(1, 0, TimeUnit.MINUTES.toNanos(1)));
+    }
+
+    @Test
+    void isUpdateNeededWithoutLimit() {
+        MessageKeyUpdatePolicy messageKeyUpdatePolicy = new MessageKeyUpdatePolicy(0, 0, 0);
+
+        Assertions.assertFalse(messageKeyUpdatePolicy.isUpdateNeeded(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,56 @@
+package com.arnobpaul.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ReplayWindowTest {
+    @Test
+    void inOrder() {
+        ReplayWindow replayWindow = new ReplayWindow();
+        Assertions.assertEquals(-1, replayWindow.getHighest());
+
+        for (int i = 0; i < 3 * ReplayWindow.SIZE; i++) {
+            Assertions.assertTrue(replayWindow.isAcceptable(i));
+            replayWindow.update(i);
+            Assertions.assertFalse(replayWindow.isAcceptable(i));
+        }
+        Assertions.assertEquals(3 * ReplayWindow.SIZE - 1, replayWindow.getHighest());
+        Assertions.assertFalse(replayWindow.isAcceptable(-1));
+    }
+
+    @Test
+    void outOfOrder() {
+        ReplayWindow replayWindow = new ReplayWindow();
+        replayWindow.update(2);
+        replayWindow.update(5);
+
+        Assertions.assertTrue(replayWindow.isAcceptable(0));
+        Assertions.assertTrue(replayWindow.isAcceptable(1));
+        Assertions.assertFalse(replayWindow.isAcceptable(2));
+        Assertions.assertTrue(replayWindow.isAcceptable(3));
+        Assertions.assertTrue(replayWindow.isAcceptable(4));
+        Assertions.assertFalse(replayWindow.isAcceptable(5));
+
+        replayWindow.update(3);
+        Assertions.assertFalse(replayWindow.isAcceptable(3));
+        Assertions.assertTrue(replayWindow.isAcceptable(4));
+        Assertions.assertEquals(5, replayWindow.getHighest());
+    }
+
+    @Test
+    void tooOld() {
+        ReplayWindow replayWindow = new ReplayWindow();
+        replayWindow.update(0);
+        replayWindow.update(ReplayWindow.SIZE);
+
+        // Only the last SIZE sequence numbers are kept, i.e., 1 to SIZE
+        Assertions.assertTrue(replayWindow.isAcceptable(1));
+        Assertions.assertFalse(replayWindow.isAcceptable(0));
+
+        // A jump over the whole window forgets every sequence number
+        replayWindow.update(3L * ReplayWindow.SIZE);
+        Assertions.assertFalse(replayWindow.isAcceptable(2L * ReplayWindow.SIZE));
+        Assertions.assertTrue(replayWindow.isAcceptable(2L * ReplayWindow.SIZE + 1));
+        Assertions.assertFalse(replayWindow.isAcceptable(3L * ReplayWindow.SIZE));
+    }
+}
@@ -0,0 +1,79 @@
+package com.arnobpaul.common.collection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+class IntObjectHashMapTest {
+    @Test
+    void putGetRemove() {
+        IntObjectHashMap<String> intObjectHashMap = new IntObjectHashMap<>();
+        Assertions.assertNull(intObjectHashMap.put(1, "a"));
+        Assertions.assertNull(intObjectHashMap.put(-1, "b"));
+        Assertions.assertNull(intObjectHashMap.put(0, "c"));
+        Assertions.assertEquals("a", intObjectHashMap.put(1, "d"));
+        Assertions.assertEquals(3, intObjectHashMap.size());
+
+        Assertions.assertEquals("d", intObjectHashMap.get(1));
+        Assertions.assertEquals("b", intObjectHashMap.get(-1));
+        Assertions.assertEquals("c", intObjectHashMap.get(0));
+        Assertions.assertNull(intObjectHashMap.get(2));
+
+        Assertions.assertEquals("b", intObjectHashMap.remove(-1));
+        Assertions.assertNull(intObjectHashMap.remove(-1));
+        Assertions.assertFalse(intObjectHashMap.containsKey(-1));
+        Assertions.assertEquals(2, intObjectHashMap.size());
+
+        intObjectHashMap.clear();
+        Assertions.assertTrue(intObjectHashMap.isEmpty());
+        Assertions.assertNull(intObjectHashMap.get(1));
+    }
+
+    @Test
+    void copy() {
+        IntObjectHashMap<String> intObjectHashMap = new IntObjectHashMap<>();
+        intObjectHashMap.put(1, "a");
+        intObjectHashMap.put(2, "b");
+
+        IntObjectHashMap<String> copiedIntObjectHashMap = new IntObjectHashMap<>(intObjectHashMap);
+        copiedIntObjectHashMap.put(3, "c");
+        copiedIntObjectHashMap.remove(1);
+
+        // The original is not changed by changing the copy
+        Assertions.assertEquals(2, intObjectHashMap.size());
+        Assertions.assertEquals("a", intObjectHashMap.get(1));
+        Assertions.assertNull(intObjectHashMap.get(3));
+
+        Assertions.assertEquals(2, copiedIntObjectHashMap.size());
+        Assertions.assertNull(copiedIntObjectHashMap.get(1));
+        Assertions.assertEquals("b", copiedIntObjectHashMap.get(2));
+        Assertions.assertEquals("c", copiedIntObjectHashMap.get(3));
+    }
+
+    @Test
+    void compareWithHashMap() {
+        // A small key range makes long probe sequences with many removals in the middle of them
+        Random random = new Random(1);
+        IntObjectHashMap<Integer> intObjectHashMap = new IntObjectHashMap<>(4);
+        Map<Integer, Integer> hashMap = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                Assertions.assertEquals(hashMap.remove(key), intObjectHashMap.remove(key));
+            } else {
+                Assertions.assertEquals(hashMap.put(key, i), intObjectHashMap.put(key, i));
+            }
+            Assertions.assertEquals(hashMap.size(), intObjectHashMap.size());
+        }
+        for (int key = -1000; key < 1000; key++) {
+            Assertions.assertEquals(hashMap.get(key), intObjectHashMap.get(key));
+        }
+
+        Map<Integer, Integer> entries = new HashMap<>();
+        intObjectHashMap.forEach(entries::put);
+        Assertions.assertEquals(hashMap, entries);
+    }
+}
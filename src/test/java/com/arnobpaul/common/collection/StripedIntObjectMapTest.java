@@ -0,0 +1,136 @@
+package com.arnobpaul.common.collection;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class StripedIntObjectMapTest {
+    @Test
+    void putGetRemove() {
+        StripedIntObjectMap<String> stripedIntObjectMap = new StripedIntObjectMap<>(4);
+        Assertions.assertNull(stripedIntObjectMap.put(1, "a"));
+        Assertions.assertNull(stripedIntObjectMap.put(-1, "b"));
+        Assertions.assertNull(stripedIntObjectMap.put(5, "c"));
+        Assertions.assertEquals("a", stripedIntObjectMap.put(1, "d"));
+        Assertions.assertEquals(3, stripedIntObjectMap.size());
+
+        Assertions.assertEquals("d", stripedIntObjectMap.get(1));
+        Assertions.assertEquals("b", stripedIntObjectMap.get(-1));
+        Assertions.assertEquals("c", stripedIntObjectMap.get(5));
+        Assertions.assertNull(stripedIntObjectMap.get(2));
+
+        Assertions.assertEquals("b", stripedIntObjectMap.remove(-1));
+        Assertions.assertNull(stripedIntObjectMap.remove(-1));
+
+        // Removed only if still mapped to the value
+        Assertions.assertFalse(stripedIntObjectMap.remove(1, "a"));
+        Assertions.assertTrue(stripedIntObjectMap.remove(1, "d"));
+        Assertions.assertNull(stripedIntObjectMap.get(1));
+
+        Map<Integer, String> entries = new HashMap<>();
+        stripedIntObjectMap.forEach(entries::put);
+        Assertions.assertEquals(Map.of(5, "c"), entries);
+    }
+
+    @Test
+    void concurrentChanges() throws InterruptedException {
+        StripedIntObjectMap<Integer> stripedIntObjectMap = new StripedIntObjectMap<>(4);
+        Map<Integer, Integer> failures = new ConcurrentHashMap<>();
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int threadIndex = t;
+            threads[t] = new Thread(() -> {
+                // Every thread changes its own keys, which share the stripes with the keys of the other threads
+                for (int i = 0; i < 2000; i++) {
+                    int key = i * threads.length + threadIndex;
+                    stripedIntObjectMap.put(key, i);
+                    if (!Integer.valueOf(i).equals(stripedIntObjectMap.get(key))) {
+                        failures.put(key, i);
+                    }
+                    if (i % 2 == 1) {
+                        stripedIntObjectMap.remove(key);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertTrue(failures.isEmpty());
+        Assertions.assertEquals(threads.length * 1000, stripedIntObjectMap.size());
+        for (int i = 0; i < 2000; i++) {
+            Assertions.assertEquals((i % 2 == 0) ? Integer.valueOf(i) : null, stripedIntObjectMap.get(i * threads.length));
+        }
+    }
+
+    @Test
+    void manyKeys() throws InterruptedException {
+        // A login storm of 100000 clients (with the stripes of the router), each logged out and in again once
+        int keyCount = 100_000;
+        StripedIntObjectMap<Integer> stripedIntObjectMap = new StripedIntObjectMap<>(16);
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int threadIndex = t;
+            threads[t] = new Thread(() -> {
+                for (int key = threadIndex + 1; key <= keyCount; key += threads.length) {
+                    stripedIntObjectMap.put(key, key);
+                }
+                for (int key = threadIndex + 1; key <= keyCount; key += threads.length) {
+                    stripedIntObjectMap.remove(key, key);
+                    stripedIntObjectMap.put(key, -key);
+                }
+            });
+            threads[t].start();
+        }
+        for (int key = 1; key <= keyCount; key++) {
+            // Read meanwhile, as on every relayed message
+            stripedIntObjectMap.get(key);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertEquals(keyCount, stripedIntObjectMap.size());
+        for (int key = 1; key <= keyCount; key++) {
+            Assertions.assertEquals(Integer.valueOf(-key), stripedIntObjectMap.get(key));
+        }
+        int[] visitedCount = {0};
+        stripedIntObjectMap.forEach((key, value) -> visitedCount[0]++);
+        Assertions.assertEquals(keyCount, visitedCount[0]);
+    }
+
+    @Test
+    void changeAllocatesLittle() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+        int keyCount = 100_000;
+        String value = "value";
+        StripedIntObjectMap<String> stripedIntObjectMap = new StripedIntObjectMap<>(16);
+        long threadId = Thread.currentThread().getId();
+        long startBytes = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int key = 1; key <= keyCount; key++) {
+            stripedIntObjectMap.put(key, value);
+        }
+        for (int key = 1; key <= keyCount; key++) {
+            stripedIntObjectMap.remove(key);
+            stripedIntObjectMap.put(key, value);
+        }
+        long allocatedBytes = allocationMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        // A change must not copy its whole stripe (i.e., gigabytes of copies in total here), only a node or so (and
+        // the tables doubled once in a while)
+        Assertions.assertTrue(allocatedBytes < 300L * keyCount, "Allocated " + allocatedBytes + " bytes");
+    }
+}
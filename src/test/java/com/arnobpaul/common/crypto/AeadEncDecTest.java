@@ -0,0 +1,89 @@
+package com.arnobpaul.common.crypto;
+
+import com.arnobpaul.common.AppConfig;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import java.util.Base64;
+import java.util.Random;
+
+class AeadEncDecTest {
+    @Test
+    void decrypt() throws Exception {
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        String key = aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE);
+        AeadEncDec aeadEncDec1 = new AeadEncDec();
+        AeadEncDec aeadEncDec2 = new AeadEncDec();
+        Random random = new Random();
+        for (MessageCipherMode messageCipherMode : new MessageCipherMode[]{MessageCipherMode.AES_GCM, MessageCipherMode.CHACHA20_POLY1305}) {
+            AeadEncDec.AeadKey aeadKey1 = aeadEncDec1.decodeKey(messageCipherMode, key);
+            AeadEncDec.AeadKey aeadKey2 = aeadEncDec2.decodeKey(messageCipherMode, key);
+            for (int i = 0; i < 100; i++) {
+                String plaintext = RandomStringUtils.randomAscii(random.nextInt(1000) + 1);
+                String ciphertext = aeadEncDec1.encrypt(plaintext, 1, i, aeadKey1);
+                Assertions.assertEquals(plaintext, aeadEncDec2.decrypt(ciphertext, 1, i, aeadKey2));
+            }
+        }
+    }
+
+    @Test
+    void encrypt() throws Exception {
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        AeadEncDec aeadEncDec = new AeadEncDec();
+        AeadEncDec.AeadKey aeadKey = aeadEncDec.decodeKey(MessageCipherMode.AES_GCM, aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE));
+        String plaintext = "$ABCD 1234.........";
+
+        // Only the 16-byte tag is added, as the nonce is not sent
+        String ciphertext = aeadEncDec.encrypt(plaintext, 1, 0, aeadKey);
+        Assertions.assertEquals(plaintext.length() + 16, Base64.getDecoder().decode(ciphertext).length);
+
+        // Both of the clients share the key, so the nonce depends on the sender too
+        Assertions.assertNotEquals(ciphertext, aeadEncDec.encrypt(plaintext, 2, 0, aeadKey));
+        Assertions.assertNotEquals(ciphertext, aeadEncDec.encrypt(plaintext, 1, 1, aeadKey));
+    }
+
+    @Test
+    void decryptAltered() throws Exception {
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        AeadEncDec aeadEncDec = new AeadEncDec();
+        String key = aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE);
+        for (MessageCipherMode messageCipherMode : new MessageCipherMode[]{MessageCipherMode.AES_GCM, MessageCipherMode.CHACHA20_POLY1305}) {
+            AeadEncDec.AeadKey aeadKey = aeadEncDec.decodeKey(messageCipherMode, key);
+            String ciphertext = aeadEncDec.encrypt("$ABCD 1234.........", 1, 5, aeadKey);
+
+            // Replayed with another sequence number, or from another sender
+            Assertions.assertThrows(AEADBadTagException.class, () -> aeadEncDec.decrypt(ciphertext, 1, 6, aeadKey));
+            Assertions.assertThrows(AEADBadTagException.class, () -> aeadEncDec.decrypt(ciphertext, 2, 5, aeadKey));
+
+            byte[] alteredCiphertext = Base64.getDecoder().decode(ciphertext);
+            alteredCiphertext[0] ^= 1;
+            Assertions.assertThrows(AEADBadTagException.class, () -> aeadEncDec.decrypt(
+                    Base64.getEncoder().encodeToString(alteredCiphertext), 1, 5, aeadKey));
+        }
+    }
+
+    @Test
+    void decryptAgain() throws Exception {
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        AeadEncDec aeadEncDec = new AeadEncDec();
+        String key = aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE);
+        for (MessageCipherMode messageCipherMode : new MessageCipherMode[]{MessageCipherMode.AES_GCM, MessageCipherMode.CHACHA20_POLY1305}) {
+            AeadEncDec.AeadKey aeadKey = aeadEncDec.decodeKey(messageCipherMode, key);
+            String plaintext = "$ABCD 1234.........";
+            String ciphertext = aeadEncDec.encrypt(plaintext, 1, 0, aeadKey);
+            // The same key and nonce as the last initialization of the engine
+            Assertions.assertEquals(plaintext, aeadEncDec.decrypt(ciphertext, 1, 0, aeadKey));
+            Assertions.assertEquals(plaintext, aeadEncDec.decrypt(ciphertext, 1, 0, aeadKey));
+        }
+    }
+
+    @Test
+    void decodeKey() throws Exception {
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        AeadEncDec aeadEncDec = new AeadEncDec();
+        String key = aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> aeadEncDec.decodeKey(MessageCipherMode.CBC_HMAC, key));
+    }
+}
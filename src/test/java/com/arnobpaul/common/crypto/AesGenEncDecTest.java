@@ -5,6 +5,7 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import javax.crypto.SecretKey;
 import java.util.Base64;
 import java.util.Random;
 
@@ -39,4 +40,14 @@ class AesGenEncDecTest {
             Assertions.assertEquals(plaintext, aesGenEncDec2.decrypt(ciphertext, key));
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void decryptWithDecodedKey() throws Exception {
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        String key = aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE);
+        SecretKey secretKey = aesGenEncDec.decodeKey(key);
+        String plaintext = "$ABCD 1234.........";
+        Assertions.assertEquals(plaintext, aesGenEncDec.decrypt(aesGenEncDec.encrypt(plaintext, secretKey), key));
+        Assertions.assertEquals(plaintext, aesGenEncDec.decrypt(aesGenEncDec.encrypt(plaintext, key), secretKey));
+    }
+}
@@ -0,0 +1,34 @@
+package com.arnobpaul.common.crypto;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class CryptoEnginePoolTest {
+    @Test
+    void acquireRelease() {
+        AtomicInteger createdCount = new AtomicInteger(0);
+        CryptoEnginePool<Object> cryptoEnginePool = new CryptoEnginePool<>(new Object(), () -> {
+            createdCount.incrementAndGet();
+            return new Object();
+        }, 2);
+        Assertions.assertEquals(1, cryptoEnginePool.getIdleCount());
+
+        Object engine1 = cryptoEnginePool.acquire();
+        Object engine2 = cryptoEnginePool.acquire();
+        Object engine3 = cryptoEnginePool.acquire();
+        Assertions.assertEquals(2, createdCount.get());
+        Assertions.assertEquals(0, cryptoEnginePool.getIdleCount());
+
+        cryptoEnginePool.release(engine1);
+        cryptoEnginePool.release(engine2);
+        cryptoEnginePool.release(engine3);
+        Assertions.assertEquals(2, cryptoEnginePool.getIdleCount());
+
+        // Released engines are reused
+        Object engine = cryptoEnginePool.acquire();
+        Assertions.assertTrue(engine == engine1 || engine == engine2);
+        Assertions.assertEquals(2, createdCount.get());
+    }
+}
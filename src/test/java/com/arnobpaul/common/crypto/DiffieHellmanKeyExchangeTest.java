@@ -4,6 +4,13 @@ import com.arnobpaul.common.AppConfig;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import javax.crypto.interfaces.DHPublicKey;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
 class DiffieHellmanKeyExchangeTest {
     @Test
     void generateKey() throws Exception {
@@ -22,4 +29,44 @@ class DiffieHellmanKeyExchangeTest {
                 diffieHellmanKeyExchange1.getSharedSecretKey(asymmetricKeyPair1, asymmetricKeyPair2.publicKey),
                 diffieHellmanKeyExchange2.getSharedSecretKey(asymmetricKeyPair2, asymmetricKeyPair1.publicKey));
     }
-}
\ No newline at end of file
+
+    @Test
+    void getSharedSecretKeyX25519() throws Exception {
+        DiffieHellmanKeyExchange diffieHellmanKeyExchange1 = new DiffieHellmanKeyExchange();
+        AsymmetricKeyPair asymmetricKeyPair1 = diffieHellmanKeyExchange1.generateKey(KeyAgreementMode.X25519);
+        DiffieHellmanKeyExchange diffieHellmanKeyExchange2 = new DiffieHellmanKeyExchange();
+        AsymmetricKeyPair asymmetricKeyPair2 = diffieHellmanKeyExchange2.generateKey(KeyAgreementMode.X25519);
+
+        String sharedSecretKey = diffieHellmanKeyExchange1.getSharedSecretKey(KeyAgreementMode.X25519,
+                asymmetricKeyPair1, asymmetricKeyPair2.publicKey);
+        Assertions.assertEquals(sharedSecretKey,
+                diffieHellmanKeyExchange2.getSharedSecretKey(KeyAgreementMode.X25519,
+                        asymmetricKeyPair2, asymmetricKeyPair1.publicKey));
+        // 32-byte shared secret
+        Assertions.assertEquals(32, Base64.getDecoder().decode(sharedSecretKey).length);
+
+        // A key of the other key agreement is rejected
+        AsymmetricKeyPair finiteFieldKeyPair = diffieHellmanKeyExchange2.generateKey(KeyAgreementMode.FINITE_FIELD);
+        Assertions.assertThrows(InvalidKeySpecException.class,
+                () -> diffieHellmanKeyExchange1.getSharedSecretKey(KeyAgreementMode.X25519,
+                        asymmetricKeyPair1, finiteFieldKeyPair.publicKey));
+    }
+
+    @Test
+    void takeKeyFfdhe2048() throws Exception {
+        DiffieHellmanKeyExchange diffieHellmanKeyExchange1 = new DiffieHellmanKeyExchange();
+        AsymmetricKeyPair asymmetricKeyPair1 = diffieHellmanKeyExchange1.takeKey(KeyAgreementMode.FINITE_FIELD);
+        DiffieHellmanKeyExchange diffieHellmanKeyExchange2 = new DiffieHellmanKeyExchange();
+        AsymmetricKeyPair asymmetricKeyPair2 = diffieHellmanKeyExchange2.takeKey(KeyAgreementMode.FINITE_FIELD);
+        Assertions.assertEquals(
+                diffieHellmanKeyExchange1.getSharedSecretKey(asymmetricKeyPair1, asymmetricKeyPair2.publicKey),
+                diffieHellmanKeyExchange2.getSharedSecretKey(asymmetricKeyPair2, asymmetricKeyPair1.publicKey));
+
+        // Both of the keys are in the RFC 7919 ffdhe2048 group (i.e., its last 64 bits are all one, and g = 2)
+        DHPublicKey publicKey = (DHPublicKey) KeyFactory.getInstance("DH").generatePublic(
+                new X509EncodedKeySpec(Base64.getDecoder().decode(asymmetricKeyPair1.publicKey)));
+        Assertions.assertEquals(2048, publicKey.getParams().getP().bitLength());
+        Assertions.assertEquals(BigInteger.TWO, publicKey.getParams().getG());
+        Assertions.assertEquals(-1L, publicKey.getParams().getP().longValue());
+    }
+}
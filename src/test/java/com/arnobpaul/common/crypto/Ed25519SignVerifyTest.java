@@ -0,0 +1,27 @@
+package com.arnobpaul.common.crypto;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+class Ed25519SignVerifyTest {
+    @Test
+    void signVerify() throws Exception {
+        Ed25519SignVerify ed25519SignVerify = new Ed25519SignVerify();
+        AsymmetricKeyPair asymmetricKeyPair = ed25519SignVerify.generateKeyPair();
+        PrivateKey privateKey = ed25519SignVerify.decodePrivateKey(asymmetricKeyPair.privateKey);
+        PublicKey publicKey = ed25519SignVerify.decodePublicKey(asymmetricKeyPair.publicKey);
+
+        String text = "7 0 12 $ABCD 1234.........";
+        String signature = ed25519SignVerify.sign(text, privateKey);
+        // Deterministic like every EdDSA signature
+        Assertions.assertEquals(signature, ed25519SignVerify.sign(text, privateKey));
+        Assertions.assertTrue(new Ed25519SignVerify().verify(text, signature, publicKey));
+
+        Assertions.assertFalse(ed25519SignVerify.verify("7 0 13 $ABCD 1234.........", signature, publicKey));
+        PublicKey otherPublicKey = ed25519SignVerify.decodePublicKey(ed25519SignVerify.generateKeyPair().publicKey);
+        Assertions.assertFalse(ed25519SignVerify.verify(text, signature, otherPublicKey));
+    }
+}
@@ -0,0 +1,54 @@
+package com.arnobpaul.common.crypto;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Base64;
+
+class HkdfTest {
+    @Test
+    void extractAndExpand() throws Exception {
+        // Test case 1 of RFC 5869
+        Hkdf hkdf = new Hkdf();
+        byte[] inputKeyMaterial = new byte[22];
+        Arrays.fill(inputKeyMaterial, (byte) 0x0b);
+        byte[] pseudoRandomKey = hkdf.extract(decodeHex("000102030405060708090a0b0c"), inputKeyMaterial);
+        Assertions.assertArrayEquals(
+                decodeHex("077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5"),
+                pseudoRandomKey);
+        Assertions.assertArrayEquals(
+                decodeHex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865"),
+                hkdf.expand(pseudoRandomKey, decodeHex("f0f1f2f3f4f5f6f7f8f9"), 42));
+    }
+
+    @Test
+    void extractWithoutSalt() throws Exception {
+        // Test case 3 of RFC 5869
+        Hkdf hkdf = new Hkdf();
+        byte[] inputKeyMaterial = new byte[22];
+        Arrays.fill(inputKeyMaterial, (byte) 0x0b);
+        Assertions.assertArrayEquals(
+                decodeHex("8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8"),
+                hkdf.expand(hkdf.extract(null, inputKeyMaterial), new byte[0], 42));
+    }
+
+    @Test
+    void deriveKeys() throws Exception {
+        Hkdf hkdf1 = new Hkdf();
+        Hkdf hkdf2 = new Hkdf();
+        String secret = Base64.getEncoder().encodeToString("$ABCD 1234.........".getBytes());
+
+        String[] keys = hkdf1.deriveKeys(secret, "info", 32, 16);
+        Assertions.assertArrayEquals(keys, hkdf2.deriveKeys(secret, "info", 32, 16));
+        Assertions.assertEquals(32, Base64.getDecoder().decode(keys[0]).length);
+        Assertions.assertEquals(16, Base64.getDecoder().decode(keys[1]).length);
+        Assertions.assertNotEquals(keys[0], hkdf1.deriveKeys(secret, "other info", 32, 16)[0]);
+    }
+
+    private static byte[] decodeHex(String hex) {
+        byte[] bytes = new BigInteger("01" + hex, 16).toByteArray();
+        return Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+}
@@ -25,5 +25,22 @@ class HmacGenerateVerifyTest {
         String tag = hmacGenerateVerify1.generateTag(text, key);
         HmacGenerateVerify hmacGenerateVerify2 = new HmacGenerateVerify();
         Assertions.assertTrue(hmacGenerateVerify2.verifyTag(text, tag, key));
+        Assertions.assertFalse(hmacGenerateVerify2.verifyTag(text, tag.substring(1), key));
+        Assertions.assertFalse(hmacGenerateVerify2.verifyTag(text, null, key));
     }
-}
\ No newline at end of file
+
+    @Test
+    void generateTagWithDecodedKey() throws Exception {
+        HmacGenerateVerify hmacGenerateVerify = new HmacGenerateVerify();
+        AesGenEncDec aesGenEncDec = new AesGenEncDec();
+        String key = aesGenEncDec.generateKey(AppConfig.AES_KEY_SIZE);
+        HmacGenerateVerify.HmacKey hmacKey = hmacGenerateVerify.decodeKey(key);
+        for (int i = 0; i < 3; i++) {
+            String text = "$ABCD 1234......... " + i;
+            String tag = hmacGenerateVerify.generateTag(text, hmacKey);
+            Assertions.assertEquals(hmacGenerateVerify.generateTag(text, key), tag);
+            Assertions.assertTrue(hmacGenerateVerify.verifyTag(text, tag, hmacKey));
+            Assertions.assertFalse(hmacGenerateVerify.verifyTag(text + ".", tag, hmacKey));
+        }
+    }
+}
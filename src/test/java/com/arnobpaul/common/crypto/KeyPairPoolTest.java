@@ -0,0 +1,71 @@
+package com.arnobpaul.common.crypto;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class KeyPairPoolTest {
+    @Test
+    void take() throws Exception {
+        AtomicInteger generatedCount = new AtomicInteger();
+        KeyPairPool keyPairPool = new KeyPairPool("TestKeyPairPool", 4, () -> {
+            int i = generatedCount.incrementAndGet();
+            return new AsymmetricKeyPair("public" + i, "private" + i);
+        });
+
+        // Filled ahead in the background
+        for (int i = 0; i < 100 && keyPairPool.getReadyCount() < 4; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(4, keyPairPool.getReadyCount());
+
+        // A key pair is never given twice
+        Set<String> publicKeys = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertTrue(publicKeys.add(keyPairPool.take().publicKey));
+        }
+        Assertions.assertEquals(20, keyPairPool.getTakenCount());
+        Assertions.assertTrue(keyPairPool.getDepletedCount() <= 16);
+    }
+
+    @Test
+    void takeFromDepletedPool() throws Exception {
+        CountDownLatch generateLatch = new CountDownLatch(1);
+        KeyPairPool keyPairPool = new KeyPairPool("TestKeyPairPool", 1, () -> {
+            try {
+                generateLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new AsymmetricKeyPair("public", "private");
+        });
+
+        // The take waits for the key pair being generated by the refilling thread
+        CompletableFuture<AsymmetricKeyPair> keyPairFuture = CompletableFuture.supplyAsync(keyPairPool::take);
+        Thread.sleep(200);
+        Assertions.assertFalse(keyPairFuture.isDone());
+        generateLatch.countDown();
+        Assertions.assertEquals("public", keyPairFuture.get(10, TimeUnit.SECONDS).publicKey);
+        Assertions.assertEquals(1, keyPairPool.getDepletedCount());
+    }
+
+    @Test
+    void takeFromTerminatedPool() {
+        KeyPairPool keyPairPool = new KeyPairPool("TestKeyPairPool", 1, () -> {
+            if (Thread.currentThread().getName().equals("TestKeyPairPool")) {
+                throw new IllegalStateException("Refilling failure");
+            }
+            return new AsymmetricKeyPair("public", "private");
+        });
+
+        // The key pair is generated by the take itself
+        Assertions.assertEquals("public", keyPairPool.take().publicKey);
+        Assertions.assertEquals(1, keyPairPool.getDepletedCount());
+    }
+}
@@ -0,0 +1,102 @@
+package com.arnobpaul.common.crypto;
+
+import com.arnobpaul.common.AppConfig;
+import com.arnobpaul.common.RandomGeneratorHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * This class compares the key schedule of an epoch (i.e., deriving and decoding the keys of a key exchange, and
+ * tagging the new public key of a DH change) by {@link Hkdf} with the one by {@link RandomGeneratorHelper}.
+ * It only runs if asked: <code>mvn test -Dtest=KeyScheduleBenchmarkTest -Dbenchmark=true</code>
+ */
+class KeyScheduleBenchmarkTest {
+    private static final int WARMUP_EPOCH_COUNT = 50_000;
+    private static final int EPOCH_COUNT = 200_000;
+    private static final int SECRET_COUNT = 64;
+
+    private static final String MESSAGE_TO_BE_TAGGED = "DATA_DH_CHANGE 42 "
+            + Base64.getEncoder().encodeToString(new byte[32]);
+
+    @Test
+    void keySchedule() throws Exception {
+        Assumptions.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        SecureRandom secureRandom = new SecureRandom();
+        String[] secrets = new String[SECRET_COUNT];
+        for (int i = 0; i < secrets.length; i++) {
+            byte[] secret = new byte[32];
+            secureRandom.nextBytes(secret);
+            secrets[i] = Base64.getEncoder().encodeToString(secret);
+        }
+
+        Hkdf hkdf = new Hkdf();
+        HmacGenerateVerify hmacGenerateVerify = new HmacGenerateVerify();
+        AeadEncDec aeadEncDec = new AeadEncDec();
+
+        EpochRunner randomGeneratorEpoch = (secret, oldSecret) -> {
+            RandomGeneratorHelper randomGeneratorHelper = new RandomGeneratorHelper(secret);
+            String encryptionKey = randomGeneratorHelper.nextBase64String(AppConfig.AES_KEY_SIZE / 8);
+            String hmacKey = randomGeneratorHelper.nextBase64String(AppConfig.RSA_KEY_SIZE / 8);
+            aeadEncDec.decodeKey(MessageCipherMode.AES_GCM, encryptionKey);
+            hmacGenerateVerify.decodeKey(hmacKey);
+
+            // The HMAC key of the last epoch is derived again from its secret
+            RandomGeneratorHelper oldRandomGeneratorHelper = new RandomGeneratorHelper(oldSecret);
+            oldRandomGeneratorHelper.nextBase64String(AppConfig.AES_KEY_SIZE / 8);
+            String oldHmacKey = oldRandomGeneratorHelper.nextBase64String(AppConfig.RSA_KEY_SIZE / 8);
+            return hmacGenerateVerify.generateTag(MESSAGE_TO_BE_TAGGED, oldHmacKey);
+        };
+
+        HmacGenerateVerify.HmacKey[] lastHmacKey = {hmacGenerateVerify.decodeKey(secrets[0])};
+        EpochRunner hkdfEpoch = (secret, oldSecret) -> {
+            String[] derivedKeys = hkdf.deriveKeys(secret, "SecureChat message keys 1 2 2",
+                    AppConfig.AES_KEY_SIZE / 8,
+                    AppConfig.HMAC_KEY_SIZE / 8);
+            aeadEncDec.decodeKey(MessageCipherMode.AES_GCM, derivedKeys[0]);
+            HmacGenerateVerify.HmacKey hmacKey = hmacGenerateVerify.decodeKey(derivedKeys[1]);
+
+            // The HMAC key of the last epoch is kept by the session
+            String tag = hmacGenerateVerify.generateTag(MESSAGE_TO_BE_TAGGED, lastHmacKey[0]);
+            lastHmacKey[0] = hmacKey;
+            return tag;
+        };
+
+        run(randomGeneratorEpoch, secrets, WARMUP_EPOCH_COUNT);
+        run(hkdfEpoch, secrets, WARMUP_EPOCH_COUNT);
+        long randomGeneratorNanos = run(randomGeneratorEpoch, secrets, EPOCH_COUNT);
+        long hkdfNanos = run(hkdfEpoch, secrets, EPOCH_COUNT);
+
+        System.out.println(String.format("Key schedule of an epoch: RandomGeneratorHelper %.2f us, Hkdf %.2f us",
+                randomGeneratorNanos / 1000.0 / EPOCH_COUNT,
+                hkdfNanos / 1000.0 / EPOCH_COUNT));
+    }
+
+    private interface EpochRunner {
+        /**
+         * @return the tag of the new public key by the HMAC key of the last epoch
+         */
+        String run(String secret, String oldSecret) throws Exception;
+    }
+
+    /**
+     * @return the elapsed time in nanoseconds
+     */
+    private static long run(EpochRunner epochRunner, String[] secrets, int epochCount) throws Exception {
+        int tagLength = 0;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < epochCount; i++) {
+            String tag = epochRunner.run(secrets[i % secrets.length], secrets[(i + secrets.length - 1) % secrets.length]);
+            tagLength += tag.length();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        // Keeps the tags alive, so the work is not optimized away
+        Assertions.assertTrue(tagLength > 0);
+        return elapsedNanos;
+    }
+}
@@ -0,0 +1,65 @@
+package com.arnobpaul.common.crypto;
+
+import com.arnobpaul.common.AppConfig;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+class PublicKeyCacheTest {
+    @Test
+    void getPut() throws Exception {
+        RsaSignVerify rsaSignVerify = new RsaSignVerify(new PublicKeyCache(2, 60000));
+        PublicKeyCache publicKeyCache = rsaSignVerify.getPublicKeyCache();
+        RsaGenEncDec rsaGenEncDec = new RsaGenEncDec();
+        AsymmetricKeyPair asymmetricKeyPair1 = rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE);
+        AsymmetricKeyPair asymmetricKeyPair2 = rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE);
+        String text = "$ABCD 1234.........";
+        String signature1 = rsaSignVerify.sign(text, asymmetricKeyPair1.privateKey);
+        String signature2 = rsaSignVerify.sign(text, asymmetricKeyPair2.privateKey);
+
+        Assertions.assertTrue(rsaSignVerify.verify(text, signature1, 1, asymmetricKeyPair1.publicKey));
+        Assertions.assertTrue(rsaSignVerify.verify(text, signature1, 1, asymmetricKeyPair1.publicKey));
+        Assertions.assertEquals(1, publicKeyCache.getMissCount());
+        Assertions.assertEquals(1, publicKeyCache.getHitCount());
+
+        // A changed key of the same client is never verified with the cached one
+        Assertions.assertFalse(rsaSignVerify.verify(text, signature1, 1, asymmetricKeyPair2.publicKey));
+        Assertions.assertTrue(rsaSignVerify.verify(text, signature2, 1, asymmetricKeyPair2.publicKey));
+        Assertions.assertEquals(2, publicKeyCache.getMissCount());
+        Assertions.assertEquals(2, publicKeyCache.getHitCount());
+
+        publicKeyCache.invalidate(1);
+        Assertions.assertNull(publicKeyCache.get(1, asymmetricKeyPair2.publicKey));
+        Assertions.assertEquals(0, publicKeyCache.size());
+    }
+
+    @Test
+    void evict() throws Exception {
+        RsaGenEncDec rsaGenEncDec = new RsaGenEncDec();
+        String publicKey = rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE).publicKey;
+        PublicKey parsedPublicKey = KeyFactory.getInstance("RSA").generatePublic(
+                new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+
+        // The least recently used key is evicted
+        PublicKeyCache publicKeyCache = new PublicKeyCache(2, 60000);
+        publicKeyCache.put(1, publicKey, parsedPublicKey);
+        publicKeyCache.put(2, publicKey, parsedPublicKey);
+        Assertions.assertNotNull(publicKeyCache.get(1, publicKey));
+        publicKeyCache.put(3, publicKey, parsedPublicKey);
+        Assertions.assertEquals(2, publicKeyCache.size());
+        Assertions.assertNotNull(publicKeyCache.get(1, publicKey));
+        Assertions.assertNull(publicKeyCache.get(2, publicKey));
+        Assertions.assertNotNull(publicKeyCache.get(3, publicKey));
+
+        // An expired key is removed
+        publicKeyCache = new PublicKeyCache(2, 0);
+        publicKeyCache.put(1, publicKey, parsedPublicKey);
+        Thread.sleep(1);
+        Assertions.assertNull(publicKeyCache.get(1, publicKey));
+        Assertions.assertEquals(0, publicKeyCache.size());
+    }
+}
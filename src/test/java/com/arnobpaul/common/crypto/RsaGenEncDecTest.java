@@ -14,6 +14,19 @@ class RsaGenEncDecTest {
         rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE);
     }
 
+    @Test
+    void takeKey() throws Exception {
+        RsaGenEncDec rsaGenEncDec = new RsaGenEncDec();
+        AsymmetricKeyPair keyPair1 = rsaGenEncDec.takeKey(AppConfig.RSA_KEY_SIZE);
+        AsymmetricKeyPair keyPair2 = rsaGenEncDec.takeKey(AppConfig.RSA_KEY_SIZE);
+        Assertions.assertNotEquals(keyPair1.publicKey, keyPair2.publicKey);
+        Assertions.assertEquals(2, rsaGenEncDec.prepareKeyPairPool(AppConfig.RSA_KEY_SIZE).getTakenCount());
+
+        String plaintext = "$ABCD 1234.........";
+        Assertions.assertEquals(plaintext,
+                rsaGenEncDec.decrypt(rsaGenEncDec.encrypt(plaintext, keyPair2.publicKey), keyPair2.privateKey));
+    }
+
     @Test
     void encrypt() throws Exception {
         RsaGenEncDec rsaGenEncDec = new RsaGenEncDec();
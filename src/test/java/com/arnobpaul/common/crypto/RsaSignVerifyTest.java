@@ -4,6 +4,10 @@ import com.arnobpaul.common.AppConfig;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
 class RsaSignVerifyTest {
     @Test
     void sign() throws Exception {
@@ -26,4 +30,52 @@ class RsaSignVerifyTest {
         RsaSignVerify rsaSignVerify2 = new RsaSignVerify();
         Assertions.assertTrue(rsaSignVerify2.verify(text, signature, asymmetricKeyPair.publicKey));
     }
-}
\ No newline at end of file
+
+    @Test
+    void verifyConcurrently() throws Exception {
+        final int threadCount = 16;
+        final int verifyCountPerThread = 200;
+
+        RsaSignVerify rsaSignVerify = new RsaSignVerify();
+        RsaGenEncDec rsaGenEncDec = new RsaGenEncDec();
+        AsymmetricKeyPair[] asymmetricKeyPairs = {
+                rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE),
+                rsaGenEncDec.generateKey(AppConfig.RSA_KEY_SIZE)};
+        String[] texts = new String[asymmetricKeyPairs.length];
+        String[] signatures = new String[asymmetricKeyPairs.length];
+        for (int i = 0; i < asymmetricKeyPairs.length; i++) {
+            texts[i] = "$ABCD 1234......... " + i;
+            signatures[i] = rsaSignVerify.sign(texts[i], asymmetricKeyPairs[i].privateKey);
+        }
+
+        // All the threads share the same instance like the services of the server do
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            futures.add(executorService.submit(() -> {
+                startLatch.await();
+                for (int n = 0; n < verifyCountPerThread; n++) {
+                    int i = (threadIndex + n) % asymmetricKeyPairs.length;
+                    int j = (i + 1) % asymmetricKeyPairs.length;
+                    Assertions.assertTrue(rsaSignVerify.verify(texts[i], signatures[i], asymmetricKeyPairs[i].publicKey));
+                    Assertions.assertFalse(rsaSignVerify.verify(texts[i], signatures[j], asymmetricKeyPairs[i].publicKey));
+                    if (n % 20 == 0) {
+                        Assertions.assertEquals(signatures[i], rsaSignVerify.sign(texts[i], asymmetricKeyPairs[i].privateKey));
+                    }
+                }
+                return null;
+            }));
+        }
+
+        startLatch.countDown();
+        try {
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+}
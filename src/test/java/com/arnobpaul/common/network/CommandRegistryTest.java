@@ -0,0 +1,83 @@
+package com.arnobpaul.common.network;
+
+import com.arnobpaul.common.AppConfig;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class CommandRegistryTest {
+    @Test
+    void dispatch() throws ProtocolException {
+        List<String> handled = new ArrayList<>();
+        CommandRegistry commandRegistry = new CommandRegistry(() -> "test");
+        // Headers sharing a prefix must be dispatched to their own handlers
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_DATA, data -> handled.add("SEND:" + data));
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_START, data -> handled.add("SEND_START:" + data));
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN, data -> handled.add("LOGIN:" + data));
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN_ACCEPT, data -> handled.add("LOGIN_ACCEPT:" + data));
+        commandRegistry.register(AppConfig.NetworkCommand.LOGIN_SUCCESS, data -> handled.add("LOGIN_SUCCESS:" + data));
+
+        for (Protocol protocol : Protocol.values()) {
+            handled.clear();
+            Assertions.assertTrue(commandRegistry.dispatch(frame("SEND 2 DATA abc", protocol), protocol));
+            Assertions.assertTrue(commandRegistry.dispatch(frame("SEND_START 2", protocol), protocol));
+            Assertions.assertTrue(commandRegistry.dispatch(frame("LOGIN 2a", protocol), protocol));
+            Assertions.assertTrue(commandRegistry.dispatch(frame("LOGIN_ACCEPT QUJD", protocol), protocol));
+            Assertions.assertTrue(commandRegistry.dispatch(frame("LOGIN_SUCCESS", protocol), protocol));
+            Assertions.assertFalse(commandRegistry.dispatch(frame("LOGIN_FAILURE", protocol), protocol));
+            Assertions.assertFalse(commandRegistry.dispatch(frame("LOGINX 2", protocol), protocol));
+            Assertions.assertFalse(commandRegistry.dispatch(frame("", protocol), protocol));
+
+            Assertions.assertEquals(List.of(
+                    "SEND:2 DATA abc",
+                    "SEND_START:2",
+                    "LOGIN:2a",
+                    "LOGIN_ACCEPT:QUJD",
+                    "LOGIN_SUCCESS:null"), handled);
+        }
+    }
+
+    @Test
+    void dispatchRaw() throws ProtocolException {
+        List<String> handled = new ArrayList<>();
+        CommandRegistry commandRegistry = new CommandRegistry(() -> "test");
+        commandRegistry.registerRaw(AppConfig.NetworkCommand.SEND_DATA, (frame, protocol) -> {
+            FrameCodec.SendData sendData = FrameCodec.sliceSendData(frame, protocol);
+            if (sendData == null) return false;
+            handled.add("raw:" + sendData.clientId);
+            return true;
+        });
+        commandRegistry.register(AppConfig.NetworkCommand.SEND_DATA, data -> handled.add("SEND:" + data));
+
+        for (Protocol protocol : Protocol.values()) {
+            handled.clear();
+            commandRegistry.dispatch(frame("SEND 2 DATA abc", protocol), protocol);
+            // Not handled by the raw handler, so it falls back to the handler of the decoded fields
+            commandRegistry.dispatch(frame("SEND 2", protocol), protocol);
+
+            Assertions.assertEquals(List.of("raw:2", "SEND:2"), handled);
+        }
+    }
+
+    @Test
+    void registerWithoutOpcode() {
+        CommandRegistry commandRegistry = new CommandRegistry(() -> "test");
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> commandRegistry.register("NO_SUCH_COMMAND", data -> {
+                }));
+    }
+
+    private static ByteBuffer frame(String line, Protocol protocol) {
+        ByteBuffer frame = FrameCodec.encode(line, protocol);
+        if (protocol == Protocol.BINARY) {
+            frame.position(FrameCodec.LENGTH_PREFIX_SIZE);
+        } else {
+            frame.limit(frame.limit() - 1);
+        }
+        return frame.slice();
+    }
+}
@@ -0,0 +1,267 @@
+package com.arnobpaul.common.network;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+class FrameCodecTest {
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[300]);
+
+    private static final String[] LINES = {
+            "PROTOCOL BINARY/1",
+            "SIGNUP Alice " + KEY,
+            "SIGNUP_SUCCESS 42",
+            "SIGNUP_FAILURE",
+            "LOGIN 2a",
+            "LOGIN_NONCE -8274950278459287 1700000000000",
+            "LOGIN_ACCEPT " + KEY,
+            "SEND_INVITE 7 " + KEY,
+            "SEND 7 DATA_DH_START abc 12 def",
+            "SEND 7 DATA_AEAD 0 5 " + KEY + " " + KEY,
+            "SEND 7 " + KEY + "  " + KEY,
+            "GROUP_DATA 5 3 DATA_GROUP 1 0 " + KEY,
+            "SEND_FAILURE",
+            "SEND_FAILURE not_a_number",
+            "RENEW_KEY " + KEY + " " + KEY + " " + KEY,
+    };
+
+    @Test
+    void encodeDecode() throws ProtocolException {
+        for (Protocol protocol : Protocol.values()) {
+            for (String line : LINES) {
+                Assertions.assertEquals(line, decode(FrameCodec.encode(line, protocol), protocol));
+            }
+        }
+    }
+
+    @Test
+    void encodeBinaryIsCompact() {
+        String line = "SEND_INVITE 7 " + KEY;
+        ByteBuffer frame = FrameCodec.encode(line, Protocol.BINARY);
+        // length prefix + opcode + int + (u16 length + raw key)
+        Assertions.assertEquals(4 + 1 + 4 + 2 + 300, frame.remaining());
+        Assertions.assertEquals(frame.remaining() - 4, frame.getInt(0));
+        Assertions.assertEquals(FrameCodec.getOpcode("SEND_INVITE"), frame.get(4));
+    }
+
+    @Test
+    void encodeBinaryPacksData() {
+        String line = "SEND 7 DATA_AEAD 0 5 " + KEY;
+        ByteBuffer frame = FrameCodec.encode(line, Protocol.BINARY);
+        // length prefix + opcode + int + marker + (kind + u16 length + text) + (kind + u16 length + raw ciphertext)
+        Assertions.assertEquals(4 + 1 + 4 + 1 + (3 + "DATA_AEAD 0 5".length()) + (3 + 300), frame.remaining());
+
+        // Short or non-canonical tokens are kept in text
+        String[] unpackedLines = {
+                "SEND 7 DATA_AEAD 0 5 QUJD",
+                "SEND 7 DATA_AEAD 0 5 " + KEY.substring(0, KEY.length() - 2) + "B=",
+        };
+        for (String unpackedLine : unpackedLines) {
+            Assertions.assertEquals(4 + 1 + 4 + unpackedLine.length() - "SEND 7 ".length(),
+                    FrameCodec.encode(unpackedLine, Protocol.BINARY).remaining());
+        }
+    }
+
+    @Test
+    void encodeBinaryFallback() throws ProtocolException {
+        String[] malformedLines = {
+                "SIGNUP_SUCCESS 007",
+                "SIGNUP_SUCCESS",
+                "LOGIN_ACCEPT not_base64!",
+                "LOGIN_ACCEPT QQ",
+                "LOGIN_ACCEPT QR==",
+                "SEND_START 1 2",
+                "UNKNOWN_COMMAND with data",
+                "",
+        };
+        for (String line : malformedLines) {
+            ByteBuffer frame = FrameCodec.encode(line, Protocol.BINARY);
+            Assertions.assertEquals(FrameCodec.OPCODE_TEXT_LINE, frame.get(4));
+            Assertions.assertEquals(line, decode(frame, Protocol.BINARY));
+        }
+    }
+
+    @Test
+    void decodeMalformed() {
+        Assertions.assertThrows(ProtocolException.class,
+                () -> FrameCodec.decode(ByteBuffer.wrap(new byte[]{FrameCodec.getOpcode("SIGNUP_SUCCESS"), 0}), Protocol.BINARY));
+        Assertions.assertThrows(ProtocolException.class,
+                () -> FrameCodec.decode(ByteBuffer.wrap(new byte[]{(byte) 0x7F}), Protocol.BINARY));
+    }
+
+    @Test
+    void peekOpcodeAndDecodeData() throws ProtocolException {
+        for (Protocol protocol : Protocol.values()) {
+            for (String line : LINES) {
+                String[] lineItems = line.split(" ", 2);
+                ByteBuffer frame = frame(FrameCodec.encode(line, protocol), protocol);
+                Assertions.assertEquals(FrameCodec.getOpcode(lineItems[0]), FrameCodec.peekOpcode(frame, protocol));
+                Assertions.assertEquals((lineItems.length == 2) ? lineItems[1] : null, FrameCodec.decodeData(frame, protocol));
+            }
+        }
+
+        // A text line is trimmed like before
+        ByteBuffer frame = ByteBuffer.wrap("  SIGNUP_SUCCESS 42 \r".getBytes());
+        Assertions.assertEquals(FrameCodec.getOpcode("SIGNUP_SUCCESS"), FrameCodec.peekOpcode(frame, Protocol.TEXT));
+        Assertions.assertEquals("42", FrameCodec.decodeData(frame, Protocol.TEXT));
+
+        // The malformed lines sent as text lines in the binary protocol keep their opcodes
+        frame = frame(FrameCodec.encode("SIGNUP_SUCCESS 007", Protocol.BINARY), Protocol.BINARY);
+        Assertions.assertEquals(FrameCodec.getOpcode("SIGNUP_SUCCESS"), FrameCodec.peekOpcode(frame, Protocol.BINARY));
+        Assertions.assertEquals("007", FrameCodec.decodeData(frame, Protocol.BINARY));
+
+        frame = ByteBuffer.wrap("SIGNUP_SUCCES 42".getBytes());
+        Assertions.assertEquals(FrameCodec.OPCODE_TEXT_LINE, FrameCodec.peekOpcode(frame, Protocol.TEXT));
+    }
+
+    @Test
+    void sliceSendData() throws ProtocolException {
+        for (Protocol fromProtocol : Protocol.values()) {
+            ByteBuffer frame = frame(FrameCodec.encode("SEND 7 DATA_DH_START abc 12 def", fromProtocol), fromProtocol);
+            FrameCodec.SendData sendData = FrameCodec.sliceSendData(frame, fromProtocol);
+            Assertions.assertNotNull(sendData);
+            Assertions.assertEquals(7, sendData.clientId);
+            // The data shares the received frame
+            Assertions.assertSame(frame.array(), sendData.data.array());
+
+            for (Protocol toProtocol : Protocol.values()) {
+                ByteBuffer[] frameParts = FrameCodec.encodeSendData(3, sendData.data, toProtocol);
+                Assertions.assertNotNull(frameParts);
+                Assertions.assertEquals("SEND 3 DATA_DH_START abc 12 def", decode(join(frameParts), toProtocol));
+            }
+        }
+    }
+
+    @Test
+    void slicePackedSendData() throws ProtocolException {
+        String data = "DATA_AEAD 0 5 " + KEY;
+        ByteBuffer frame = frame(FrameCodec.encode("SEND 7 " + data, Protocol.BINARY), Protocol.BINARY);
+        FrameCodec.SendData sendData = FrameCodec.sliceSendData(frame, Protocol.BINARY);
+        Assertions.assertNotNull(sendData);
+
+        // Relayed as is in the binary protocol, but unpacked in the text protocol
+        ByteBuffer[] frameParts = FrameCodec.encodeSendData(3, sendData.data, Protocol.BINARY);
+        Assertions.assertNotNull(frameParts);
+        Assertions.assertSame(sendData.data, frameParts[frameParts.length - 1]);
+        frameParts = FrameCodec.encodeSendData(3, sendData.data, Protocol.TEXT);
+        Assertions.assertNotNull(frameParts);
+        Assertions.assertEquals("SEND 3 " + data, decode(join(frameParts), Protocol.TEXT));
+
+        ByteBuffer malformedData = ByteBuffer.wrap(new byte[]{0, 9, 0, 1, 'x'});
+        Assertions.assertNull(FrameCodec.encodeSendData(3, malformedData, Protocol.TEXT));
+    }
+
+    @Test
+    void dataStartingWithNul() throws ProtocolException {
+        // Unpacked data starting with the packed data marker (i.e., a NUL byte)
+        String[] datas = {
+                "\0abc def",
+                "\0\u0001\u0002x",
+                "\0" + KEY,
+                "\0\0 " + KEY,
+        };
+        for (String data : datas) {
+            for (Protocol protocol : Protocol.values()) {
+                Assertions.assertEquals("SEND 7 " + data, decode(FrameCodec.encode("SEND 7 " + data, protocol), protocol));
+            }
+
+            // Relayed as is in the binary protocol, and unescaped in the text protocol
+            ByteBuffer frame = frame(FrameCodec.encode("SEND 7 " + data, Protocol.BINARY), Protocol.BINARY);
+            FrameCodec.SendData sendData = FrameCodec.sliceSendData(frame, Protocol.BINARY);
+            Assertions.assertNotNull(sendData);
+            for (Protocol toProtocol : Protocol.values()) {
+                ByteBuffer[] frameParts = FrameCodec.encodeSendData(3, sendData.data, toProtocol);
+                Assertions.assertNotNull(frameParts);
+                Assertions.assertEquals("SEND 3 " + data, decode(join(frameParts), toProtocol));
+            }
+
+            // Not sliced in the text protocol, as it must be escaped for the binary protocol
+            frame = frame(FrameCodec.encode("SEND 7 " + data, Protocol.TEXT), Protocol.TEXT);
+            Assertions.assertNull(FrameCodec.sliceSendData(frame, Protocol.TEXT));
+        }
+    }
+
+    @Test
+    void sliceSendDataMalformed() {
+        String[] malformedLines = {
+                "SEND_START 7",
+                "SEND 7",
+                "SEND 7 ",
+                "SEND x data",
+                "SEND 99999999999 data",
+                "SENDING 7 data",
+        };
+        for (String line : malformedLines) {
+            for (Protocol protocol : Protocol.values()) {
+                Assertions.assertNull(FrameCodec.sliceSendData(frame(FrameCodec.encode(line, protocol), protocol), protocol));
+            }
+        }
+    }
+
+    @Test
+    void encodeSendDataWithLineSeparator() {
+        ByteBuffer data = ByteBuffer.wrap("DATA abc\nSEND 1 forged".getBytes());
+        Assertions.assertNull(FrameCodec.encodeSendData(3, data, Protocol.TEXT));
+        Assertions.assertNotNull(FrameCodec.encodeSendData(3, data, Protocol.BINARY));
+    }
+
+    @Test
+    void sliceGroupSendData() throws ProtocolException {
+        for (Protocol fromProtocol : Protocol.values()) {
+            ByteBuffer frame = frame(FrameCodec.encode("GROUP_SEND 5 DATA_GROUP 1 0 abc def", fromProtocol), fromProtocol);
+            FrameCodec.GroupSendData groupSendData = FrameCodec.sliceGroupSendData(frame, fromProtocol);
+            Assertions.assertNotNull(groupSendData);
+            Assertions.assertEquals(5, groupSendData.groupId);
+            Assertions.assertSame(frame.array(), groupSendData.data.array());
+
+            for (Protocol toProtocol : Protocol.values()) {
+                ByteBuffer[] frameParts = FrameCodec.encodeGroupData(5, 3, groupSendData.data, toProtocol);
+                Assertions.assertNotNull(frameParts);
+                Assertions.assertEquals("GROUP_DATA 5 3 DATA_GROUP 1 0 abc def", decode(join(frameParts), toProtocol));
+            }
+        }
+
+        String[] malformedLines = {
+                "GROUP_SEND 5",
+                "GROUP_SEND x data",
+                "SEND 5 data",
+        };
+        for (String line : malformedLines) {
+            for (Protocol protocol : Protocol.values()) {
+                Assertions.assertNull(FrameCodec.sliceGroupSendData(frame(FrameCodec.encode(line, protocol), protocol), protocol));
+            }
+        }
+        ByteBuffer data = ByteBuffer.wrap("DATA abc\nGROUP_DATA 5 1 forged".getBytes());
+        Assertions.assertNull(FrameCodec.encodeGroupData(5, 3, data, Protocol.TEXT));
+    }
+
+    private static ByteBuffer join(ByteBuffer[] frameParts) {
+        int size = 0;
+        for (ByteBuffer framePart : frameParts) {
+            size += framePart.remaining();
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(size);
+        for (ByteBuffer framePart : frameParts) {
+            encoded.put(framePart.duplicate());
+        }
+        encoded.flip();
+        return encoded;
+    }
+
+    private static ByteBuffer frame(ByteBuffer encoded, Protocol protocol) {
+        ByteBuffer frame = encoded.duplicate();
+        if (protocol == Protocol.BINARY) {
+            frame.position(FrameCodec.LENGTH_PREFIX_SIZE);
+        } else {
+            frame.limit(frame.limit() - 1);
+        }
+        return frame.slice();
+    }
+
+    private static String decode(ByteBuffer encoded, Protocol protocol) throws ProtocolException {
+        return FrameCodec.decode(frame(encoded, protocol), protocol);
+    }
+}
@@ -0,0 +1,61 @@
+package com.arnobpaul.common.network;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+class FrameDecoderTest {
+    @Test
+    void feedWithProtocolSwitch() throws ProtocolException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, FrameCodec.encode("PROTOCOL BINARY/1", Protocol.TEXT));
+        for (int i = 0; i < 100; i++) {
+            write(bytes, FrameCodec.encode("SEND " + i + " DATA message " + i, Protocol.BINARY));
+        }
+        byte[] stream = bytes.toByteArray();
+
+        // Feed the same stream in chunks of every size from 1 to 17 bytes
+        for (int chunkSize = 1; chunkSize <= 17; chunkSize++) {
+            List<String> lines = new ArrayList<>();
+            FrameDecoder[] frameDecoder = new FrameDecoder[1];
+            frameDecoder[0] = new FrameDecoder(frame -> {
+                try {
+                    String line = FrameCodec.decode(frame, frameDecoder[0].getProtocol());
+                    lines.add(line);
+                    if (line.startsWith("PROTOCOL ")) {
+                        frameDecoder[0].setProtocol(Protocol.BINARY);
+                    }
+                } catch (ProtocolException e) {
+                    Assertions.fail(e);
+                }
+            });
+
+            for (int offset = 0; offset < stream.length; offset += chunkSize) {
+                frameDecoder[0].feed(ByteBuffer.wrap(stream, offset, Math.min(chunkSize, stream.length - offset)));
+            }
+
+            Assertions.assertEquals(101, lines.size());
+            Assertions.assertEquals("PROTOCOL BINARY/1", lines.get(0));
+            for (int i = 0; i < 100; i++) {
+                Assertions.assertEquals("SEND " + i + " DATA message " + i, lines.get(i + 1));
+            }
+        }
+    }
+
+    @Test
+    void feedInvalidLength() {
+        FrameDecoder frameDecoder = new FrameDecoder(frame -> Assertions.fail());
+        frameDecoder.setProtocol(Protocol.BINARY);
+        Assertions.assertThrows(ProtocolException.class,
+                () -> frameDecoder.feed(ByteBuffer.wrap(new byte[]{0x7F, 0, 0, 0})));
+    }
+
+    private static void write(ByteArrayOutputStream bytes, ByteBuffer frame) {
+        bytes.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+}
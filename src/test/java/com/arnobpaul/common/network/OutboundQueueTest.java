@@ -0,0 +1,99 @@
+package com.arnobpaul.common.network;
+
+import com.arnobpaul.common.AppConfig;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class OutboundQueueTest {
+    @Test
+    void offer() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+        OutboundQueue outboundQueue = new OutboundQueue(outputStream, writerExecutor, 1000);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertTrue(outboundQueue.offer(OutboundQueue.encodeLine("LINE " + i)));
+            expected.append("LINE ").append(i).append('\n');
+        }
+        writerExecutor.shutdown();
+        Assertions.assertTrue(writerExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(expected.toString(), outputStream.toString(AppConfig.DEFAULT_CHARSET.name()));
+    }
+
+    @Test
+    void offerFrameParts() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+        OutboundQueue outboundQueue = new OutboundQueue(outputStream, writerExecutor, 10);
+        ByteBuffer data = ByteBuffer.wrap("DATA".getBytes(AppConfig.DEFAULT_CHARSET));
+        Assertions.assertTrue(outboundQueue.offer(
+                ByteBuffer.wrap("SEND 1 ".getBytes(AppConfig.DEFAULT_CHARSET)),
+                data,
+                ByteBuffer.wrap("\n".getBytes(AppConfig.DEFAULT_CHARSET))));
+        writerExecutor.shutdown();
+        Assertions.assertTrue(writerExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        Assertions.assertEquals("SEND 1 DATA\n", outputStream.toString(AppConfig.DEFAULT_CHARSET.name()));
+        // The frame parts are not changed, so they may be shared
+        Assertions.assertEquals(4, data.remaining());
+    }
+
+    @Test
+    void offerLargeFrames() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+        OutboundQueue outboundQueue = new OutboundQueue(outputStream, writerExecutor, 10);
+        // Frames larger than the write buffer (on the heap, and direct), between small ones
+        byte[] heapData = new byte[200 * 1024];
+        byte[] directData = new byte[150 * 1024];
+        for (int i = 0; i < heapData.length; i++) {
+            heapData[i] = (byte) i;
+        }
+        for (int i = 0; i < directData.length; i++) {
+            directData[i] = (byte) (i * 7);
+        }
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(directData.length);
+        directBuffer.put(directData).flip();
+        Assertions.assertTrue(outboundQueue.offer(ByteBuffer.wrap(new byte[]{1, 2, 3})));
+        Assertions.assertTrue(outboundQueue.offer(ByteBuffer.wrap(new byte[]{4}), ByteBuffer.wrap(heapData, 1, heapData.length - 1)));
+        Assertions.assertTrue(outboundQueue.offer(directBuffer));
+        Assertions.assertTrue(outboundQueue.offer(ByteBuffer.wrap(new byte[]{5, 6})));
+        writerExecutor.shutdown();
+        Assertions.assertTrue(writerExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(new byte[]{1, 2, 3, 4});
+        expected.write(heapData, 1, heapData.length - 1);
+        expected.write(directData);
+        expected.write(new byte[]{5, 6});
+        Assertions.assertArrayEquals(expected.toByteArray(), outputStream.toByteArray());
+        Assertions.assertEquals(directData.length, directBuffer.remaining());
+    }
+
+    @Test
+    void offerWhenFull() throws Exception {
+        CountDownLatch writerBlocked = new CountDownLatch(1);
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+        // keep the writer busy so that nothing is drained
+        writerExecutor.execute(() -> {
+            try {
+                writerBlocked.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        OutboundQueue outboundQueue = new OutboundQueue(new ByteArrayOutputStream(), writerExecutor, 2);
+        Assertions.assertTrue(outboundQueue.offer(OutboundQueue.encodeLine("1")));
+        Assertions.assertTrue(outboundQueue.offer(OutboundQueue.encodeLine("2")));
+        Assertions.assertFalse(outboundQueue.offer(OutboundQueue.encodeLine("3")));
+        outboundQueue.close();
+        Assertions.assertFalse(outboundQueue.offer(OutboundQueue.encodeLine("4")));
+        writerBlocked.countDown();
+        writerExecutor.shutdown();
+    }
+}
@@ -0,0 +1,171 @@
+package com.arnobpaul.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+class ClusterNodeTest {
+    private static final String SECRET = "cluster-secret";
+
+    private static class TestHandler implements ClusterNode.Handler {
+        final List<String> data = new CopyOnWriteArrayList<>();
+        final List<String> lines = new CopyOnWriteArrayList<>();
+        final List<String> groupData = new CopyOnWriteArrayList<>();
+        final List<Integer> remoteLogins = new CopyOnWriteArrayList<>();
+        final List<Integer> changedClientIds = new CopyOnWriteArrayList<>();
+        final List<Integer> changedGroupIds = new CopyOnWriteArrayList<>();
+        final List<Integer> linkedNodeIndexes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onForwardedData(int recipientClientId, int senderClientId, @NotNull ByteBuffer data) {
+            this.data.add(recipientClientId + " " + senderClientId + " " + StandardCharsets.UTF_8.decode(data));
+        }
+
+        @Override
+        public void onForwardedLine(int recipientClientId, @NotNull String line) {
+            lines.add(recipientClientId + " " + line);
+        }
+
+        @Override
+        public void onForwardedGroupData(int groupId, int senderClientId, @NotNull ByteBuffer data) {
+            groupData.add(groupId + " " + senderClientId + " " + StandardCharsets.UTF_8.decode(data));
+        }
+
+        @Override
+        public void onRemoteLogin(int clientId, @NotNull ClusterNode.RemoteNode remoteNode) {
+            remoteLogins.add(clientId);
+        }
+
+        @Override
+        public void onRemoteClientChanged(int clientId) {
+            changedClientIds.add(clientId);
+        }
+
+        @Override
+        public void onRemoteGroupChanged(int groupId) {
+            changedGroupIds.add(groupId);
+        }
+
+        @Override
+        public void onRemoteNodeLinked(@NotNull ClusterNode.RemoteNode remoteNode) {
+            linkedNodeIndexes.add(remoteNode.nodeIndex);
+        }
+    }
+
+    @Test
+    void presenceAndForwarding() throws Exception {
+        int[] linkPorts = {findFreePort(), findFreePort()};
+        Router router0 = new Router();
+        Router router1 = new Router();
+        TestHandler handler0 = new TestHandler();
+        TestHandler handler1 = new TestHandler();
+        ClusterNode clusterNode0 = new ClusterNode(0, linkPorts, SECRET, router0, handler0);
+        ClusterNode clusterNode1 = new ClusterNode(1, linkPorts, SECRET, router1, handler1);
+        clusterNode0.start();
+        clusterNode1.start();
+
+        try {
+            ClusterNode.RemoteNode remoteNode1 = clusterNode0.getRemoteNode(1);
+            ClusterNode.RemoteNode remoteNode0 = clusterNode1.getRemoteNode(0);
+            Assertions.assertNull(clusterNode0.getRemoteNode(0));
+            await(() -> remoteNode1.isConnected() && remoteNode0.isConnected());
+            // The clients kept in memory are dropped on linking
+            await(() -> handler0.linkedNodeIndexes.contains(1) && handler1.linkedNodeIndexes.contains(0));
+
+            // A change of a client committed by the node 0 is seen by the node 1
+            clusterNode0.announceClientChange(4);
+            await(() -> handler1.changedClientIds.contains(4));
+            Assertions.assertTrue(handler0.changedClientIds.isEmpty());
+            clusterNode1.announceGroupChange(3);
+            await(() -> handler0.changedGroupIds.contains(3));
+            Assertions.assertTrue(handler1.changedGroupIds.isEmpty());
+
+            // A login of the node 0 is seen by the node 1
+            clusterNode0.onPresenceChanged(5, true);
+            await(() -> router1.getRemoteClientNode(5) == remoteNode0);
+            await(() -> handler1.remoteLogins.contains(5));
+            Assertions.assertNull(router0.getRemoteClientNode(5));
+
+            // Forwarded to the node the client is logged in to
+            Assertions.assertTrue(router1.getRemoteClientNode(5).forwardData(5, 7,
+                    ByteBuffer.wrap("data".getBytes(StandardCharsets.UTF_8))));
+            Assertions.assertTrue(remoteNode0.forwardLine(5, "SEND_INVITE 7 key"));
+            Assertions.assertTrue(remoteNode0.asRecipient(5).sendDataBatch(new int[]{8, 9},
+                    new ByteBuffer[]{ByteBuffer.wrap("a".getBytes(StandardCharsets.UTF_8)),
+                            ByteBuffer.wrap("b".getBytes(StandardCharsets.UTF_8))}, 2));
+            await(() -> handler0.data.size() == 3);
+            Assertions.assertEquals(List.of("5 7 data", "5 8 a", "5 9 b"), handler0.data);
+            Assertions.assertEquals(List.of("5 SEND_INVITE 7 key"), handler0.lines);
+
+            // Forwarded once for all the members of the group on the node
+            Assertions.assertTrue(remoteNode0.forwardGroupData(3, 7, ByteBuffer.wrap("group".getBytes(StandardCharsets.UTF_8))));
+            await(() -> handler0.groupData.size() == 1);
+            Assertions.assertEquals(List.of("3 7 group"), handler0.groupData);
+
+            clusterNode0.onPresenceChanged(5, false);
+            await(() -> router1.getRemoteClientNode(5) == null);
+
+            // The clients of a stopped node are forgotten
+            clusterNode0.onPresenceChanged(6, true);
+            await(() -> router1.getRemoteClientNode(6) != null);
+            clusterNode0.stop();
+            await(() -> router1.getRemoteClientNode(6) == null);
+            await(() -> !remoteNode0.isConnected());
+            Assertions.assertFalse(remoteNode0.forwardData(6, 7, ByteBuffer.wrap("data".getBytes(StandardCharsets.UTF_8))));
+        } finally {
+            clusterNode0.stop();
+            clusterNode1.stop();
+        }
+    }
+
+    @Test
+    void rejectWrongSecret() throws Exception {
+        int[] linkPorts = {findFreePort(), findFreePort()};
+        Router router0 = new Router();
+        TestHandler handler0 = new TestHandler();
+        TestHandler handler1 = new TestHandler();
+        ClusterNode clusterNode0 = new ClusterNode(0, linkPorts, SECRET, router0, handler0);
+        ClusterNode clusterNode1 = new ClusterNode(1, linkPorts, "wrong-secret", new Router(), handler1);
+        clusterNode0.start();
+        clusterNode1.start();
+
+        try {
+            // Both of the links are attempted (and closed) at least once
+            Thread.sleep(1500);
+            Assertions.assertFalse(clusterNode0.getRemoteNode(1).isConnected());
+            Assertions.assertFalse(clusterNode1.getRemoteNode(0).isConnected());
+            Assertions.assertTrue(handler0.linkedNodeIndexes.isEmpty());
+            Assertions.assertTrue(handler1.linkedNodeIndexes.isEmpty());
+
+            clusterNode1.onPresenceChanged(5, true);
+            Thread.sleep(100);
+            Assertions.assertNull(router0.getRemoteClientNode(5));
+        } finally {
+            clusterNode0.stop();
+            clusterNode1.stop();
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+}
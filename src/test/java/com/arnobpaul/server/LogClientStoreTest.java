@@ -0,0 +1,142 @@
+package com.arnobpaul.server;
+
+import com.arnobpaul.common.ClientEntity;
+import com.arnobpaul.common.crypto.PublicKeyCache;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+class LogClientStoreTest {
+    private static final PublicKeyCache PUBLIC_KEY_CACHE = new PublicKeyCache(16, 60000);
+
+    @Test
+    void insertUpdateDelete(@TempDir Path tempDir) throws Exception {
+        Path logPath = tempDir.resolve("clients.log");
+        LogClientStore logClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024 * 1024);
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(logClientStore.insert("client" + i, "key" + i));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Assertions.assertEquals(i + 1, futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+
+        Assertions.assertTrue(logClientStore.updateClientPublicKey(3, "newKey3").get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(logClientStore.delete(5).get(10, TimeUnit.SECONDS));
+        Assertions.assertFalse(logClientStore.delete(5).get(10, TimeUnit.SECONDS));
+
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> logClientStore.updateClientPublicKey(5, "newKey5").get(10, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(ClientStoreException.class, e.getCause());
+
+        assertClients(logClientStore);
+        logClientStore.close();
+
+        // The reopened store loads the same clients from the log
+        LogClientStore reopenedLogClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024 * 1024);
+        assertClients(reopenedLogClientStore);
+        // Like the SQLite row IDs, a new client ID is one more than the largest one
+        Assertions.assertEquals(21, reopenedLogClientStore.insert("client20", "key20").get(10, TimeUnit.SECONDS));
+        reopenedLogClientStore.close();
+    }
+
+    @Test
+    void truncateTornRecord(@TempDir Path tempDir) throws Exception {
+        Path logPath = tempDir.resolve("clients.log");
+        LogClientStore logClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024 * 1024);
+        Assertions.assertEquals(1, logClientStore.insert("client0", "key0").get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(2, logClientStore.insert("client1", "key1").get(10, TimeUnit.SECONDS));
+        logClientStore.close();
+
+        // Cuts the last record in the middle, like a crash while appending it
+        long logSize = Files.size(logPath);
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(logSize - 3);
+        }
+
+        LogClientStore reopenedLogClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024 * 1024);
+        Assertions.assertEquals(1, reopenedLogClientStore.size());
+        Assertions.assertEquals("key0", reopenedLogClientStore.getClient(1).clientPublicKey);
+        Assertions.assertThrows(ClientStoreException.class, () -> reopenedLogClientStore.getClient(2));
+
+        Assertions.assertEquals(2, reopenedLogClientStore.insert("client1", "key1").get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals("key1", reopenedLogClientStore.getClient(2).clientPublicKey);
+        reopenedLogClientStore.close();
+    }
+
+    @Test
+    void compact(@TempDir Path tempDir) throws Exception {
+        Path logPath = tempDir.resolve("clients.log");
+        LogClientStore logClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024);
+
+        int clientId = logClientStore.insert("client", "key").get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(logClientStore.updateClientPublicKey(clientId, "key" + i).get(10, TimeUnit.SECONDS));
+            Assertions.assertEquals("key" + i, logClientStore.getClient(clientId).clientPublicKey);
+        }
+
+        // The superseded records are dropped once they take more than half of the log
+        Assertions.assertTrue(Files.size(logPath) < 2048);
+        logClientStore.close();
+
+        LogClientStore reopenedLogClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024);
+        ClientEntity client = reopenedLogClientStore.getClient(clientId);
+        Assertions.assertEquals("client", client.clientName);
+        Assertions.assertEquals("key99", client.clientPublicKey);
+        reopenedLogClientStore.close();
+    }
+
+    @Test
+    void close(@TempDir Path tempDir) throws Exception {
+        Path logPath = tempDir.resolve("clients.log");
+        // A latency long enough for the writes to be still waiting for their batch when closed
+        LogClientStore logClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 1000, 60_000, 1024 * 1024);
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(logClientStore.insert("client" + i, "key" + i));
+        }
+        logClientStore.close();
+
+        // The writes submitted before are forced once closed
+        for (int i = 0; i < futures.size(); i++) {
+            Assertions.assertTrue(futures.get(i).isDone());
+            Assertions.assertEquals(i + 1, futures.get(i).get());
+        }
+
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> logClientStore.insert("client20", "key20").get(10, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(ClientStoreException.class, e.getCause());
+
+        LogClientStore reopenedLogClientStore = new LogClientStore(logPath, PUBLIC_KEY_CACHE, 8, 20, 1024 * 1024);
+        Assertions.assertEquals(20, reopenedLogClientStore.size());
+        reopenedLogClientStore.close();
+    }
+
+    private static void assertClients(LogClientStore logClientStore) throws ClientStoreException {
+        Assertions.assertEquals(19, logClientStore.size());
+        for (int clientId = 1; clientId <= 20; clientId++) {
+            if (clientId == 5) {
+                final int deletedClientId = clientId;
+                Assertions.assertThrows(ClientStoreException.class, () -> logClientStore.getClient(deletedClientId));
+                continue;
+            }
+
+            ClientEntity client = logClientStore.getClient(clientId);
+            Assertions.assertEquals(clientId, client.clientId);
+            Assertions.assertEquals("client" + (clientId - 1), client.clientName);
+            Assertions.assertEquals((clientId == 3) ? "newKey3" : "key" + (clientId - 1), client.clientPublicKey);
+        }
+    }
+}
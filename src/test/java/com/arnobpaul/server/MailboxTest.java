@@ -0,0 +1,190 @@
+package com.arnobpaul.server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+class MailboxTest {
+    private static class TestRecipient implements Mailbox.Recipient {
+        final List<String> frames = new ArrayList<>();
+        int writeCount = 0;
+        boolean isLoginDone = true;
+
+        @Override
+        public boolean isLoginDone() {
+            return isLoginDone;
+        }
+
+        @Override
+        public synchronized boolean sendDataBatch(int[] clientIds, ByteBuffer[] data, int count) {
+            for (int i = 0; i < count; i++) {
+                frames.add(clientIds[i] + " " + StandardCharsets.UTF_8.decode(data[i].duplicate()));
+            }
+            writeCount++;
+            return true;
+        }
+    }
+
+    @Test
+    void appendDeliver(@TempDir Path tempDir) throws Exception {
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 1024 * 1024, 4, 8, 20);
+
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(mailbox.append(2, 1, ByteBuffer.wrap(("data" + i).getBytes(StandardCharsets.UTF_8))));
+        }
+        futures.add(mailbox.append(3, 1, ByteBuffer.wrap("other".getBytes(StandardCharsets.UTF_8))));
+        for (CompletableFuture<Boolean> future : futures) {
+            Assertions.assertTrue(future.get(10, TimeUnit.SECONDS));
+        }
+        Assertions.assertEquals(11, mailbox.getWaitingCount());
+
+        TestRecipient recipient = new TestRecipient();
+        Assertions.assertEquals(10, mailbox.deliver(2, recipient).get(10, TimeUnit.SECONDS));
+        // In the order received, and at most 4 in a write
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("1 data" + i, recipient.frames.get(i));
+        }
+        Assertions.assertEquals(3, recipient.writeCount);
+
+        // Sent only once
+        Assertions.assertEquals(0, mailbox.deliver(2, recipient).get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, mailbox.getWaitingCount());
+        mailbox.close();
+    }
+
+    @Test
+    void appendToOnlineRecipient(@TempDir Path tempDir) throws Exception {
+        TestRecipient recipient = new TestRecipient();
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> (clientId == 2) ? recipient : null,
+                100, 60000, 1024 * 1024, 4, 8, 20);
+
+        // The recipient logged in before the data is stored, so it is sent at once
+        Assertions.assertTrue(mailbox.append(2, 1, ByteBuffer.wrap("data".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, mailbox.deliver(2, recipient).get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("1 data"), recipient.frames);
+        mailbox.close();
+    }
+
+    @Test
+    void reopen(@TempDir Path tempDir) throws Exception {
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 64, 4, 8, 20);
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertTrue(mailbox.append(2 + i % 2, 1, ByteBuffer.wrap(("data" + i).getBytes(StandardCharsets.UTF_8)))
+                    .get(10, TimeUnit.SECONDS));
+        }
+        Assertions.assertEquals(3, mailbox.deliver(2, new TestRecipient()).get(10, TimeUnit.SECONDS));
+        mailbox.close();
+
+        // The reopened mailbox only has the messages not sent yet
+        Mailbox reopenedMailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 64, 4, 8, 20);
+        Assertions.assertEquals(3, reopenedMailbox.getWaitingCount());
+        TestRecipient recipient = new TestRecipient();
+        Assertions.assertEquals(0, reopenedMailbox.deliver(2, recipient).get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(3, reopenedMailbox.deliver(3, recipient).get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("1 data1", "1 data3", "1 data5"), recipient.frames);
+
+        // Only the last segment is kept once every message is sent
+        Assertions.assertEquals(1, countSegments(tempDir));
+        reopenedMailbox.close();
+    }
+
+    @Test
+    void expire(@TempDir Path tempDir) throws Exception {
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> null, 100, 50, 1024 * 1024, 4, 8, 20);
+        Assertions.assertTrue(mailbox.append(2, 1, ByteBuffer.wrap("data".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+
+        TestRecipient recipient = new TestRecipient();
+        Assertions.assertEquals(0, mailbox.deliver(2, recipient).get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(recipient.frames.isEmpty());
+        Assertions.assertEquals(0, mailbox.getWaitingCount());
+        mailbox.close();
+    }
+
+    @Test
+    void rejectIfFull(@TempDir Path tempDir) throws Exception {
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> null, 2, 60000, 1024 * 1024, 4, 8, 20);
+        Assertions.assertTrue(mailbox.append(2, 1, ByteBuffer.wrap("data0".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(mailbox.append(2, 1, ByteBuffer.wrap("data1".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        Assertions.assertFalse(mailbox.append(2, 1, ByteBuffer.wrap("data2".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(mailbox.append(3, 1, ByteBuffer.wrap("data3".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        mailbox.close();
+    }
+
+    @Test
+    void truncateTornRecord(@TempDir Path tempDir) throws Exception {
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 1024 * 1024, 4, 8, 20);
+        Assertions.assertTrue(mailbox.append(2, 1, ByteBuffer.wrap("data0".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(mailbox.append(2, 1, ByteBuffer.wrap("data1".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        mailbox.close();
+
+        // Cuts the last record in the middle, like a crash while appending it
+        Path segmentPath = tempDir.resolve("mailbox-1.seg");
+        long segmentSize = Files.size(segmentPath);
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+            channel.truncate(segmentSize - 3);
+        }
+
+        Mailbox reopenedMailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 1024 * 1024, 4, 8, 20);
+        Assertions.assertEquals(1, reopenedMailbox.getWaitingCount());
+        Assertions.assertTrue(reopenedMailbox.append(2, 1, ByteBuffer.wrap("data2".getBytes(StandardCharsets.UTF_8)))
+                .get(10, TimeUnit.SECONDS));
+        TestRecipient recipient = new TestRecipient();
+        Assertions.assertEquals(2, reopenedMailbox.deliver(2, recipient).get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("1 data0", "1 data2"), recipient.frames);
+        reopenedMailbox.close();
+    }
+
+    @Test
+    void close(@TempDir Path tempDir) throws Exception {
+        // A latency long enough for the appends to be still waiting for their batch when closed
+        Mailbox mailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 1024 * 1024, 4, 1000, 60_000);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(mailbox.append(2, 1, ByteBuffer.wrap(("data" + i).getBytes(StandardCharsets.UTF_8))));
+        }
+        mailbox.close();
+
+        // The appends submitted before are forced once closed
+        for (CompletableFuture<Boolean> future : futures) {
+            Assertions.assertTrue(future.isDone());
+            Assertions.assertTrue(future.get());
+        }
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> mailbox.deliver(2, new TestRecipient()).get(10, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(IOException.class, e.getCause());
+
+        Mailbox reopenedMailbox = new Mailbox(tempDir, clientId -> null, 100, 60000, 1024 * 1024, 4, 8, 20);
+        Assertions.assertEquals(5, reopenedMailbox.getWaitingCount());
+        reopenedMailbox.close();
+    }
+
+    private static long countSegments(Path directory) throws Exception {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.count();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.arnobpaul.server;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+class WriteBehindJournalTest {
+    @Test
+    void submit(@TempDir Path tempDir) throws Exception {
+        DbConnectionPool dbConnectionPool = new DbConnectionPool("jdbc:sqlite:" + tempDir.resolve("test.db"), 1);
+        dbConnectionPool.write(dbConnection -> {
+            try (Statement statement = dbConnection.createStatement()) {
+                return statement.execute("CREATE TABLE test (id integer PRIMARY KEY, value text NOT NULL)");
+            }
+        });
+
+        WriteBehindJournal writeBehindJournal = new WriteBehindJournal(dbConnectionPool, 8, 50);
+        writeBehindJournal.start();
+
+        List<Integer> committedIds = new ArrayList<>();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final String value = (i == 5) ? null : "value" + i;
+            futures.add(writeBehindJournal.submit(dbConnection -> {
+                PreparedStatement statement = dbConnection.prepareStatement("INSERT INTO test (value) VALUES(?)");
+                statement.setString(1, value);
+                statement.executeUpdate();
+                try (ResultSet generatedKeys = statement.getGeneratedKeys()) {
+                    generatedKeys.next();
+                    return generatedKeys.getInt(1);
+                }
+            }, committedIds::add));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            CompletableFuture<Integer> future = futures.get(i);
+            if (i == 5) {
+                // The failed write does not fail the others in its transaction
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                        () -> future.get(10, TimeUnit.SECONDS));
+                Assertions.assertInstanceOf(SQLException.class, e.getCause());
+            } else {
+                Assertions.assertTrue(future.get(10, TimeUnit.SECONDS) > 0);
+            }
+        }
+
+        // The commit listeners run in the order of the writes
+        Assertions.assertEquals(19, committedIds.size());
+        for (int i = 1; i < committedIds.size(); i++) {
+            Assertions.assertTrue(committedIds.get(i - 1) < committedIds.get(i));
+        }
+
+        int count = dbConnectionPool.read(dbConnection -> {
+            try (Statement statement = dbConnection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM test")) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        });
+        Assertions.assertEquals(19, count);
+
+        writeBehindJournal.close();
+        dbConnectionPool.close();
+    }
+
+    @Test
+    void close(@TempDir Path tempDir) throws Exception {
+        DbConnectionPool dbConnectionPool = new DbConnectionPool("jdbc:sqlite:" + tempDir.resolve("test.db"), 1);
+        dbConnectionPool.write(dbConnection -> {
+            try (Statement statement = dbConnection.createStatement()) {
+                return statement.execute("CREATE TABLE test (id integer PRIMARY KEY)");
+            }
+        });
+
+        // A latency long enough for the writes to be still waiting for their batch when closed
+        WriteBehindJournal writeBehindJournal = new WriteBehindJournal(dbConnectionPool, 1000, 60_000);
+        writeBehindJournal.start();
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(writeBehindJournal.submit(dbConnection ->
+                    dbConnection.prepareStatement("INSERT INTO test DEFAULT VALUES").executeUpdate(), null));
+        }
+        writeBehindJournal.close();
+
+        // The writes submitted before are committed once closed
+        for (CompletableFuture<Integer> future : futures) {
+            Assertions.assertTrue(future.isDone());
+            Assertions.assertEquals(1, future.get());
+        }
+        int count = dbConnectionPool.read(dbConnection -> {
+            try (Statement statement = dbConnection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM test")) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        });
+        Assertions.assertEquals(20, count);
+
+        CompletableFuture<Integer> lateFuture = writeBehindJournal.submit(dbConnection -> 0, null);
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> lateFuture.get(10, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(SQLException.class, e.getCause());
+
+        dbConnectionPool.close();
+    }
+}